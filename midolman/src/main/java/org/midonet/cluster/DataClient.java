@@ -129,6 +129,19 @@ public interface DataClient {
     List<Bridge> bridgesGetAll() throws StateAccessException,
             SerializationException;
 
+    /**
+     * Gets the IDs of all the bridges in ascending order, so that they can be
+     * listed in pages with bridgesGet(List).
+     */
+    List<UUID> bridgesGetIds() throws StateAccessException;
+
+    /**
+     * Gets the bridges with the given IDs in the same order, reading them all
+     * at once and skipping those that don't exist.
+     */
+    List<Bridge> bridgesGet(List<UUID> ids)
+            throws StateAccessException, SerializationException;
+
     /**
      * Provide the ids of all the bridges with a binding to the given VTEP.
      */
@@ -645,6 +658,19 @@ public interface DataClient {
     List<Port<?, ?>> portsGetAll()
             throws StateAccessException, SerializationException;
 
+    /**
+     * Gets the IDs of all the ports in ascending order, so that they can be
+     * listed in pages with portsGet(List).
+     */
+    List<UUID> portsGetIds() throws StateAccessException;
+
+    /**
+     * Gets the ports with the given IDs in the same order, reading them all
+     * at once and skipping those that don't exist.
+     */
+    List<Port<?, ?>> portsGet(List<UUID> ids)
+            throws StateAccessException, SerializationException;
+
     @CheckForNull Port<?, ?> portsGet(UUID id)
             throws StateAccessException, SerializationException;
 
@@ -813,6 +839,20 @@ public interface DataClient {
     List<Route> routesFindByRouter(UUID routerId)
             throws StateAccessException, SerializationException;
 
+    /**
+     * Gets the IDs of the routes of a router in ascending order, so that they
+     * can be listed in pages with routesGet(List).
+     */
+    List<UUID> routesFindIdsByRouter(UUID routerId)
+            throws StateAccessException, SerializationException;
+
+    /**
+     * Gets the routes with the given IDs in the same order, reading them all
+     * at once and skipping those that don't exist.
+     */
+    List<Route> routesGet(List<UUID> ids)
+            throws StateAccessException, SerializationException;
+
 
     /* Routers related methods */
     boolean routerExists(UUID id) throws StateAccessException;
@@ -832,6 +872,19 @@ public interface DataClient {
     List<Router> routersGetAll() throws StateAccessException,
             SerializationException;
 
+    /**
+     * Gets the IDs of all the routers in ascending order, so that they can be
+     * listed in pages with routersGet(List).
+     */
+    List<UUID> routersGetIds() throws StateAccessException;
+
+    /**
+     * Gets the routers with the given IDs in the same order, reading them all
+     * at once and skipping those that don't exist.
+     */
+    List<Router> routersGet(List<UUID> ids)
+            throws StateAccessException, SerializationException;
+
     List<Router> routersFindByTenant(String tenantId)
             throws StateAccessException, SerializationException;
 
@@ -850,6 +903,20 @@ public interface DataClient {
     List<Rule<?, ?>> rulesFindByChain(UUID chainId)
             throws StateAccessException, SerializationException;
 
+    /**
+     * Gets the IDs of the rules of a chain in the order of the chain, so that
+     * they can be listed in pages with rulesGet(List).
+     */
+    List<UUID> rulesFindIdsByChain(UUID chainId)
+            throws StateAccessException, SerializationException;
+
+    /**
+     * Gets the rules with the given IDs in the same order, reading them all
+     * at once and skipping those that don't exist.
+     */
+    List<Rule<?, ?>> rulesGet(List<UUID> ids)
+            throws StateAccessException, SerializationException;
+
     /**
      * Get tenants
      *
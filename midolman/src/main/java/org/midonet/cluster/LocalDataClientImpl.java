@@ -18,6 +18,8 @@ package org.midonet.cluster;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -576,17 +578,36 @@ public class LocalDataClientImpl implements DataClient {
     public List<Bridge> bridgesGetAll() throws StateAccessException,
             SerializationException {
         log.debug("bridgesGetAll entered");
-        List<Bridge> bridges = new ArrayList<>();
+        List<Bridge> bridges = bridgesGet(
+            bridgeZkManager.getUuidList(pathBuilder.getBridgesPath()));
+        log.debug("bridgesGetAll exiting: {} bridges found", bridges.size());
+        return bridges;
+    }
+
+    @Override
+    public List<UUID> bridgesGetIds() throws StateAccessException {
+        return sortedIds(pathBuilder.getBridgesPath());
+    }
 
-        for (UUID id :
-            bridgeZkManager.getUuidList(pathBuilder.getBridgesPath())) {
-            Bridge bridge = bridgesGet(id);
+    @Override
+    public List<Bridge> bridgesGet(List<UUID> ids)
+            throws StateAccessException, SerializationException {
+        List<BridgeConfig> configs = bridgeZkManager.tryGetAll(ids);
+        List<Bridge> bridges = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            BridgeConfig config = configs.get(i);
+            Bridge bridge = null;
+            if (config != null && config.vxLanPortId != null) {
+                // Let bridgesGet migrate the legacy VxLAN port.
+                bridge = bridgesGet(ids.get(i));
+            } else if (config != null) {
+                bridge = Converter.fromBridgeConfig(config);
+                bridge.setId(ids.get(i));
+            }
             if (bridge != null) {
                 bridges.add(bridge);
             }
         }
-
-        log.debug("bridgesGetAll exiting: {} bridges found", bridges.size());
         return bridges;
     }
 
@@ -674,16 +695,15 @@ public class LocalDataClientImpl implements DataClient {
                                               SerializationException {
         log.debug("chainsGetAll entered");
 
-        List<Chain> chains = new ArrayList<>();
-
-        String path = pathBuilder.getChainsPath();
-        if (zkManager.exists(path)) {
-            Set<String> chainIds = zkManager.getChildren(path);
-            for (String id : chainIds) {
-                Chain chain = chainsGet(UUID.fromString(id));
-                if (chain != null) {
-                    chains.add(chain);
-                }
+        List<UUID> ids = childIds(pathBuilder.getChainsPath());
+        List<ChainZkManager.ChainConfig> configs =
+            chainZkManager.tryGetAll(ids);
+        List<Chain> chains = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            if (configs.get(i) != null) {
+                Chain chain = Converter.fromChainConfig(configs.get(i));
+                chain.setId(ids.get(i));
+                chains.add(chain);
             }
         }
 
@@ -1366,20 +1386,25 @@ public class LocalDataClientImpl implements DataClient {
     public List<BridgePort> portsFindByBridge(UUID bridgeId)
             throws StateAccessException, SerializationException {
 
-        Collection<UUID> ids = portZkManager.getBridgePortIDs(bridgeId);
+        List<UUID> ids =
+            new ArrayList<>(portZkManager.getBridgePortIDs(bridgeId));
+        int exteriorPorts = ids.size();
+        ids.addAll(portZkManager.getBridgeLogicalPortIDs(bridgeId));
+
+        List<PortConfig> configs = portZkManager.tryGetAll(ids);
         List<BridgePort> ports = new ArrayList<>();
-        for (UUID id : ids) {
-            Port<?, ?> port = portsGet(id);
-            if (port instanceof BridgePort) {
+        for (int i = 0; i < ids.size(); i++) {
+            Port<?, ?> port = configs.get(i) == null ? null
+                              : Converter.fromPortConfig(configs.get(i));
+            if (i < exteriorPorts && !(port instanceof BridgePort)) {
                 // Skip the VxLanPort, since it's not really a
                 // BridgePort and is accessible in other ways.
-                ports.add((BridgePort) portsGet(id));
+                continue;
             }
-        }
-
-        ids = portZkManager.getBridgeLogicalPortIDs(bridgeId);
-        for (UUID id : ids) {
-            ports.add((BridgePort) portsGet(id));
+            if (port != null) {
+                port.setId(ids.get(i));
+            }
+            ports.add((BridgePort) port);
         }
 
         return ports;
@@ -1405,13 +1430,8 @@ public class LocalDataClientImpl implements DataClient {
     public List<Port<?, ?>> portsFindByRouter(UUID routerId)
             throws StateAccessException, SerializationException {
 
-        Collection<UUID> ids = portZkManager.getRouterPortIDs(routerId);
-        List<Port<?, ?>> ports = new ArrayList<>();
-        for (UUID id : ids) {
-            ports.add(portsGet(id));
-        }
-
-        return ports;
+        return portsGet(
+            new ArrayList<>(portZkManager.getRouterPortIDs(routerId)));
     }
 
     @Override
@@ -1440,23 +1460,52 @@ public class LocalDataClientImpl implements DataClient {
     public List<Port<?, ?>> portsGetAll()
             throws StateAccessException, SerializationException {
         log.debug("portsGetAll entered");
-        List<Port<?, ?>> ports = new ArrayList<>();
+        List<Port<?, ?>> ports = portsGet(childIds(pathBuilder.getPortsPath()));
+        log.debug("portsGetAll exiting: {} routers found", ports.size());
+        return ports;
+    }
 
-        String path = pathBuilder.getPortsPath();
-        if (zkManager.exists(path)) {
-            Set<String> portIds = zkManager.getChildren(path);
-            for (String id : portIds) {
-                Port<?, ?> port = portsGet(UUID.fromString(id));
-                if (port != null) {
-                    ports.add(port);
-                }
+    @Override
+    public List<UUID> portsGetIds() throws StateAccessException {
+        return sortedIds(pathBuilder.getPortsPath());
+    }
+
+    @Override
+    public List<Port<?, ?>> portsGet(List<UUID> ids)
+            throws StateAccessException, SerializationException {
+        List<PortConfig> configs = portZkManager.tryGetAll(ids);
+        List<Port<?, ?>> ports = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            if (configs.get(i) != null) {
+                Port<?, ?> port = Converter.fromPortConfig(configs.get(i));
+                port.setId(ids.get(i));
+                ports.add(port);
             }
         }
-
-        log.debug("portsGetAll exiting: {} routers found", ports.size());
         return ports;
     }
 
+    /**
+     * Gets the IDs of the children of a path, or an empty list if the path
+     * doesn't exist.
+     */
+    private List<UUID> childIds(String path) throws StateAccessException {
+        if (!zkManager.exists(path)) {
+            return new ArrayList<>();
+        }
+        return portZkManager.getUuidList(path);
+    }
+
+    /**
+     * Gets the IDs of the children of a path in ascending order, or an
+     * empty list if the path doesn't exist.
+     */
+    private List<UUID> sortedIds(String path) throws StateAccessException {
+        List<UUID> ids = childIds(path);
+        Collections.sort(ids);
+        return ids;
+    }
+
     @Override
     public @CheckForNull Port<?,?> portsGet(UUID id)
             throws StateAccessException, SerializationException {
@@ -1498,13 +1547,8 @@ public class LocalDataClientImpl implements DataClient {
     @Override
     public List<Port<?, ?>> portsFindByPortGroup(UUID portGroupId)
             throws StateAccessException, SerializationException {
-        Set<UUID> portIds = portZkManager.getPortGroupPortIds(portGroupId);
-        List<Port<?, ?>> ports = new ArrayList<>(portIds.size());
-        for (UUID portId : portIds) {
-            ports.add(portsGet(portId));
-        }
-
-        return ports;
+        return portsGet(
+            new ArrayList<>(portZkManager.getPortGroupPortIds(portGroupId)));
     }
 
     @Override
@@ -1683,16 +1727,16 @@ public class LocalDataClientImpl implements DataClient {
     public List<PortGroup> portGroupsGetAll() throws StateAccessException,
             SerializationException {
         log.debug("portGroupsGetAll entered");
-        List<PortGroup> portGroups = new ArrayList<>();
-
-        String path = pathBuilder.getPortGroupsPath();
-        if (zkManager.exists(path)) {
-            Set<String> portGroupIds = zkManager.getChildren(path);
-            for (String id : portGroupIds) {
-                PortGroup portGroup = portGroupsGet(UUID.fromString(id));
-                if (portGroup != null) {
-                    portGroups.add(portGroup);
-                }
+        List<UUID> ids = childIds(pathBuilder.getPortGroupsPath());
+        List<PortGroupZkManager.PortGroupConfig> configs =
+            portGroupZkManager.tryGetAll(ids);
+        List<PortGroup> portGroups = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            if (configs.get(i) != null) {
+                PortGroup portGroup =
+                    Converter.fromPortGroupConfig(configs.get(i));
+                portGroup.setId(ids.get(i));
+                portGroups.add(portGroup);
             }
         }
 
@@ -2852,13 +2896,31 @@ public class LocalDataClientImpl implements DataClient {
     public List<Route> routesFindByRouter(UUID routerId)
             throws StateAccessException, SerializationException {
 
-        List<UUID> routeIds = routeZkManager.list(routerId);
-        List<Route> routes = new ArrayList<>();
-        for (UUID id : routeIds) {
-            routes.add(routesGet(id));
+        return routesGet(routeZkManager.list(routerId));
+    }
+
+    @Override
+    public List<UUID> routesFindIdsByRouter(UUID routerId)
+            throws StateAccessException, SerializationException {
+        List<UUID> ids = routeZkManager.list(routerId);
+        Collections.sort(ids);
+        return ids;
+    }
+
+    @Override
+    public List<Route> routesGet(List<UUID> ids)
+            throws StateAccessException, SerializationException {
+        List<org.midonet.midolman.layer3.Route> configs =
+            routeZkManager.tryGetAll(ids);
+        List<Route> routes = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            if (configs.get(i) != null) {
+                Route route = Converter.fromRouteConfig(configs.get(i));
+                route.setId(ids.get(i));
+                routes.add(route);
+            }
         }
         return routes;
-
     }
 
     @Override
@@ -2870,20 +2932,30 @@ public class LocalDataClientImpl implements DataClient {
     public List<Router> routersGetAll() throws StateAccessException,
             SerializationException {
         log.debug("routersGetAll entered");
-        List<Router> routers = new ArrayList<>();
+        List<Router> routers = routersGet(
+            childIds(pathBuilder.getRoutersPath()));
+        log.debug("routersGetAll exiting: {} routers found", routers.size());
+        return routers;
+    }
 
-        String path = pathBuilder.getRoutersPath();
-        if (zkManager.exists(path)) {
-            Set<String> routerIds = zkManager.getChildren(path);
-            for (String id : routerIds) {
-                Router router = routersGet(UUID.fromString(id));
-                if (router != null) {
-                    routers.add(router);
-                }
+    @Override
+    public List<UUID> routersGetIds() throws StateAccessException {
+        return sortedIds(pathBuilder.getRoutersPath());
+    }
+
+    @Override
+    public List<Router> routersGet(List<UUID> ids)
+            throws StateAccessException, SerializationException {
+        List<RouterZkManager.RouterConfig> configs =
+            routerZkManager.tryGetAll(ids);
+        List<Router> routers = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            if (configs.get(i) != null) {
+                Router router = Converter.fromRouterConfig(configs.get(i));
+                router.setId(ids.get(i));
+                routers.add(router);
             }
         }
-
-        log.debug("routersGetAll exiting: {} routers found", routers.size());
         return routers;
     }
 
@@ -3012,13 +3084,46 @@ public class LocalDataClientImpl implements DataClient {
     public List<Rule<?, ?>> rulesFindByChain(UUID chainId)
             throws StateAccessException, SerializationException {
         List<UUID> ruleIds = ruleZkManager.getRuleList(chainId).getRuleList();
-        List<Rule<?, ?>> rules = new ArrayList<>();
+        Map<UUID, List<UUID>> chains = new HashMap<>();
+        chains.put(chainId, ruleIds);
+        return rulesGet(ruleIds, chains);
+    }
 
-        int position = 1;
-        for (UUID id : ruleIds) {
-            Rule<?,?> rule = rulesGet(id);
-            rule.setPosition(position);
-            position++;
+    @Override
+    public List<UUID> rulesFindIdsByChain(UUID chainId)
+            throws StateAccessException, SerializationException {
+        return ruleZkManager.getRuleList(chainId).getRuleList();
+    }
+
+    @Override
+    public List<Rule<?, ?>> rulesGet(List<UUID> ids)
+            throws StateAccessException, SerializationException {
+        return rulesGet(ids, new HashMap<UUID, List<UUID>>());
+    }
+
+    /**
+     * Gets the rules with the given IDs, setting their positions from the
+     * rule lists of their chains, which are read as needed.
+     */
+    private List<Rule<?, ?>> rulesGet(List<UUID> ids,
+                                      Map<UUID, List<UUID>> chains)
+            throws StateAccessException, SerializationException {
+        List<org.midonet.midolman.rules.Rule> configs =
+            ruleZkManager.tryGetAll(ids);
+        List<Rule<?, ?>> rules = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            if (configs.get(i) == null) {
+                continue;
+            }
+            Rule<?, ?> rule = Converter.fromRuleConfig(configs.get(i));
+            rule.setId(ids.get(i));
+            List<UUID> chain = chains.get(rule.getChainId());
+            if (chain == null) {
+                chain = ruleZkManager.getRuleList(rule.getChainId())
+                                     .getRuleList();
+                chains.put(rule.getChainId(), chain);
+            }
+            rule.setPosition(chain.indexOf(ids.get(i)) + 1);
             rules.add(rule);
         }
         return rules;
@@ -27,10 +27,13 @@ import com.google.inject.PrivateModule;
 import com.google.inject.Provider;
 
 import com.google.inject.Provides;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.lmax.disruptor.BatchEventProcessor;
 import com.lmax.disruptor.EventPoller;
 import com.lmax.disruptor.EventProcessor;
 import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.Sequence;
 import com.lmax.disruptor.SequenceBarrier;
 
 import org.slf4j.Logger;
@@ -53,6 +56,7 @@ import org.midonet.midolman.io.OneToOneDpConnManager;
 import org.midonet.midolman.io.OneToManyDpConnManager;
 import org.midonet.midolman.io.UpcallDatapathConnectionManager;
 import org.midonet.midolman.io.TokenBucketPolicy;
+import org.midonet.midolman.monitoring.metrics.PacketPipelineGauge;
 import org.midonet.midolman.services.DatapathConnectionService;
 import org.midonet.netlink.NetlinkChannel;
 import org.midonet.netlink.NetlinkChannelFactory;
@@ -103,35 +107,63 @@ public class DatapathModule extends PrivateModule {
 
     private EventProcessor[] createProcessors(
             int threads,
+            int packetBatchSize,
             RingBuffer ringBuffer,
             SequenceBarrier barrier,
             FlowProcessor flowProcessor,
             DatapathState dpState,
             OvsNetlinkFamilies families,
-            NetlinkChannelFactory channelFactory) {
+            NetlinkChannelFactory channelFactory,
+            MetricRegistry metrics) {
         threads = Math.max(threads, 1);
         EventProcessor[] processors = new EventProcessor[threads];
+        final Sequence[] executorSequences;
         if (threads == 1) {
             EventPoller.Handler handler = new AggregateEventPollerHandler(
                 JavaConversions.asScalaBuffer(Arrays.asList(
                     flowProcessor,
                     new EventPollerHandlerAdapter(new PacketExecutor(
-                        dpState, families, 1, 0, channelFactory)))));
+                        dpState, families, 1, 0, channelFactory,
+                        packetBatchSize, metrics)))));
             processors[0] = new BackchannelEventProcessor(
                 ringBuffer, handler, flowProcessor, Seq$.MODULE$.empty());
+            executorSequences = new Sequence[] { processors[0].getSequence() };
         } else {
             int numPacketHandlers = threads - 1;
+            executorSequences = new Sequence[numPacketHandlers];
             for (int i = 0; i < numPacketHandlers; ++i) {
                 PacketExecutor pexec = new PacketExecutor(
-                    dpState, families, numPacketHandlers, i, channelFactory);
+                    dpState, families, numPacketHandlers, i, channelFactory,
+                    packetBatchSize, metrics);
                 processors[i] = new BatchEventProcessor(ringBuffer, barrier, pexec);
+                executorSequences[i] = processors[i].getSequence();
             }
             processors[numPacketHandlers] = new BackchannelEventProcessor(
                 ringBuffer, flowProcessor, flowProcessor,  Seq$.MODULE$.empty());
         }
+        registerQueueDepth(metrics, ringBuffer, executorSequences);
         return processors;
     }
 
+    /**
+     * Registers a gauge for the number of handed off packets that the
+     * slowest packet executor has yet to process.
+     */
+    private void registerQueueDepth(MetricRegistry metrics,
+                                    final RingBuffer ringBuffer,
+                                    final Sequence[] executorSequences) {
+        metrics.register(MetricRegistry.name(PacketPipelineGauge.class,
+                                             "packetExecutorQueueDepth"),
+                         new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return ringBuffer.getCursor() -
+                       com.lmax.disruptor.util.Util.getMinimumSequence(
+                           executorSequences);
+            }
+        });
+    }
+
     protected void bindDatapathStateDriver() {
         bind(DatapathStateDriver.class).toProvider(new Provider<DatapathStateDriver>() {
             @Inject
@@ -171,11 +203,13 @@ public class DatapathModule extends PrivateModule {
                     SequenceBarrier barrier = ringBuffer.newBarrier();
                     EventProcessor processors[] = createProcessors(
                         config.outputChannels(),
+                        config.datapath().packetExecuteBatchSize(),
                         ringBuffer, barrier,
                         injector.getInstance(FlowProcessor.class),
                         injector.getInstance(DatapathState.class),
                         injector.getInstance(OvsNetlinkFamilies.class),
-                        injector.getInstance(NetlinkChannelFactory.class));
+                        injector.getInstance(NetlinkChannelFactory.class),
+                        injector.getInstance(MetricRegistry.class));
                     return new DisruptorDatapathChannel(ringBuffer, processors);
                 }
             })
@@ -218,13 +252,18 @@ public class DatapathModule extends PrivateModule {
 
                 @Override
                 public FlowProcessor get() {
+                    int flowCreateBatchSize =
+                        config.datapath().flowCreateBatching()
+                        ? config.datapath().flowCreateBatchSize() : 0;
                     return new FlowProcessor(
                         injector.getInstance(DatapathState.class),
                         injector.getInstance(OvsNetlinkFamilies.class),
                         config.datapath().globalIncomingBurstCapacity() * 2,
                         512, // Flow request size
                         injector.getInstance(NetlinkChannelFactory.class),
-                        NanoClock$.MODULE$.DEFAULT());
+                        NanoClock$.MODULE$.DEFAULT(),
+                        flowCreateBatchSize,
+                        injector.getInstance(MetricRegistry.class));
                 }
             })
             .in(Singleton.class);
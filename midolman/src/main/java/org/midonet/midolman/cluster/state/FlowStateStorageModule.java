@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.cluster.state;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import com.google.inject.Key;
 import com.google.inject.PrivateModule;
@@ -37,6 +38,7 @@ public class FlowStateStorageModule extends PrivateModule {
         binder().requireExplicitBindings();
 
         requireBinding(MidolmanConfig.class);
+        requireBinding(MetricRegistry.class);
         requireBinding(Key.get(Reactor.class, Names.named(
                 ZkConnectionProvider.DIRECTORY_REACTOR_TAG)));
 
@@ -53,6 +55,9 @@ public class FlowStateStorageModule extends PrivateModule {
         @Named(ZkConnectionProvider.DIRECTORY_REACTOR_TAG)
         Reactor reactor;
 
+        @Inject
+        MetricRegistry metrics;
+
         @Override
         public FlowStateStorageFactory get() {
             CassandraClient cass = new CassandraClient(
@@ -60,20 +65,24 @@ public class FlowStateStorageModule extends PrivateModule {
                     "MidonetFlowState", config.cassandra().replication_factor(),
                     FlowStateStorage$.MODULE$.SCHEMA(), reactor);
             cass.connect();
-            return new FlowStateStorageFactoryImpl(cass);
+            return new FlowStateStorageFactoryImpl(cass, metrics);
         }
     }
 
     private static class FlowStateStorageFactoryImpl implements FlowStateStorageFactory {
         CassandraClient cass;
+        FlowStateStorage.WriteThrottle throttle;
 
-        public FlowStateStorageFactoryImpl(CassandraClient cass) {
+        public FlowStateStorageFactoryImpl(CassandraClient cass,
+                                           MetricRegistry metrics) {
             this.cass = cass;
+            this.throttle = new FlowStateStorage.WriteThrottle(
+                FlowStateStorage$.MODULE$.MAX_IN_FLIGHT_BATCHES(), metrics);
         }
 
         @Override
         public FlowStateStorage create() {
-            return FlowStateStorage$.MODULE$.apply(cass);
+            return FlowStateStorage$.MODULE$.apply(cass, throttle);
         }
     }
 }
@@ -16,33 +16,513 @@
 
 package org.midonet.midolman.layer3;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
 
 /**
- * TODO (galo) - transitional, wraps the legacy RoutesTrie implementation
- * into the new RoutingTableIfc interface. All classes depending on
- * RoutesTrie should be refactored to conform to the RoutesTrie interface.
+ * An IPv4 routing table doing longest prefix match lookups on a multibit trie
+ * with a stride of 8 bits, so that a lookup takes at most 4 memory accesses
+ * regardless of the number of routes.
+ *
+ * The trie nodes are kept in a flat array of slots, where each slot holds
+ * either the longest prefix covering the addresses of the slot, or a child
+ * node for the next 8 bits of the address. Prefixes are expanded into all the
+ * slots they cover, and pushed down into the child nodes created below them.
+ * Adding or deleting a route only updates the slots covered by its prefix.
+ *
+ * The routes of a prefix that don't depend on the source address are grouped
+ * ahead of time into the list of routes with the lowest weight, which lookups
+ * return as is, so the common lookup doesn't allocate. The routes are only
+ * filtered at lookup time if some of them match on the source address, in
+ * which case the lookup falls back to the next shorter prefix when none of
+ * them match, as the previous trie based table did.
+ *
+ * This class is not thread-safe: a table must not be modified once it is
+ * shared with the simulation threads. Instead, writers can create a copy of
+ * the table and modify it, which is cheaper than adding all the routes again.
  */
 public class IPv4RoutingTable implements RoutingTableIfc<IPv4Addr> {
 
-    private RoutingTable legacyTable = new RoutingTable();
+    private final static Logger log =
+        LoggerFactory.getLogger("org.midonet.devices.router");
+
+    private static final int STRIDE = 8;
+    private static final int NODE_SIZE = 1 << STRIDE;
+    private static final int MAX_DEPTH = 32 / STRIDE;
+    private static final int CHILD = 0x80000000;
+    private static final int NO_PREFIX = 0;
+    private static final long NO_KEY = -1L;
+
+    private static final List<Route> NO_ROUTES = Collections.emptyList();
+
+    // The slots of the trie nodes, where the node n has the slots starting at
+    // n * NODE_SIZE and node 0 is the root. A slot holds the index of the
+    // longest prefix covering it, NO_PREFIX, or the CHILD flag along with the
+    // index of a child node.
+    private int[] slots;
+    // The number of prefixes and children of each node, which is freed when
+    // it has none.
+    private int[] nodeRefs;
+    private int nodeCount;
+    private int[] freeNodes;
+    private int freeNodeCount;
+
+    // The prefixes, starting at index 1 as 0 is NO_PREFIX. The routes of a
+    // prefix are replaced rather than modified, so that copies of the table
+    // can share them.
+    private int[] prefixAddrs;
+    private int[] prefixLengths;
+    private Route[][] prefixRoutes;
+    private List<Route>[] prefixGroups;
+    private int prefixCount;
+    private int[] freePrefixes;
+    private int freePrefixCount;
+
+    // An open addressing hash map from the prefixes to their indices, used to
+    // update the routes of a prefix and to find the prefix covering another.
+    private long[] mapKeys;
+    private int[] mapValues;
+    private int mapSize;
+
+    private int numRoutes;
+
+    @SuppressWarnings("unchecked")
+    public IPv4RoutingTable() {
+        slots = new int[NODE_SIZE * 4];
+        nodeRefs = new int[4];
+        nodeCount = 1;
+        freeNodes = new int[4];
+
+        prefixAddrs = new int[16];
+        prefixLengths = new int[16];
+        prefixRoutes = new Route[16][];
+        prefixGroups = new List[16];
+        prefixCount = 1;
+        freePrefixes = new int[16];
+
+        mapKeys = new long[32];
+        Arrays.fill(mapKeys, NO_KEY);
+        mapValues = new int[32];
+    }
+
+    /**
+     * Creates a copy of the given routing table.
+     */
+    public IPv4RoutingTable(IPv4RoutingTable table) {
+        slots = Arrays.copyOf(table.slots, table.nodeCount * NODE_SIZE);
+        nodeRefs = Arrays.copyOf(table.nodeRefs, table.nodeCount);
+        nodeCount = table.nodeCount;
+        freeNodes = table.freeNodes.clone();
+        freeNodeCount = table.freeNodeCount;
+
+        prefixAddrs = Arrays.copyOf(table.prefixAddrs, table.prefixCount);
+        prefixLengths = Arrays.copyOf(table.prefixLengths, table.prefixCount);
+        prefixRoutes = Arrays.copyOf(table.prefixRoutes, table.prefixCount);
+        prefixGroups = Arrays.copyOf(table.prefixGroups, table.prefixCount);
+        prefixCount = table.prefixCount;
+        freePrefixes = table.freePrefixes.clone();
+        freePrefixCount = table.freePrefixCount;
+
+        mapKeys = table.mapKeys.clone();
+        mapValues = table.mapValues.clone();
+        mapSize = table.mapSize;
+
+        numRoutes = table.numRoutes;
+    }
 
     public void addRoute(Route rt) {
-        legacyTable.addRoute(rt);
+        log.debug("addRoute: {}", rt);
+
+        int len = rt.dstNetworkLength;
+        int addr = rt.dstNetworkAddr & mask(len);
+        int prefix = find(addr, len);
+        if (prefix == NO_PREFIX) {
+            prefix = newPrefix(addr, len, new Route[] { rt });
+            insert(prefix);
+        } else {
+            Route[] routes = prefixRoutes[prefix];
+            if (indexOf(routes, rt) >= 0)
+                return;
+            routes = Arrays.copyOf(routes, routes.length + 1);
+            routes[routes.length - 1] = rt;
+            setRoutes(prefix, routes);
+        }
+        numRoutes++;
     }
 
     public void deleteRoute(Route rt) {
-        legacyTable.deleteRoute(rt);
+        log.debug("deleteRoute: {}", rt);
+
+        int len = rt.dstNetworkLength;
+        int prefix = find(rt.dstNetworkAddr & mask(len), len);
+        if (prefix == NO_PREFIX)
+            return;
+        Route[] routes = prefixRoutes[prefix];
+        int index = indexOf(routes, rt);
+        if (index < 0)
+            return;
+
+        if (routes.length == 1) {
+            remove(prefix);
+            freePrefix(prefix);
+        } else {
+            Route[] remaining = new Route[routes.length - 1];
+            System.arraycopy(routes, 0, remaining, 0, index);
+            System.arraycopy(routes, index + 1, remaining, index,
+                             remaining.length - index);
+            setRoutes(prefix, remaining);
+        }
+        numRoutes--;
+    }
+
+    public List<Route> lookup(IPv4Addr src, IPv4Addr dst) {
+        return lookup(src.toInt(), dst.toInt());
+    }
+
+    public List<Route> lookup(IPv4Addr src, IPv4Addr dst, Logger logger) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format(
+                "lookup: src %s dst %s in table with %d routes",
+                src, dst, numRoutes));
+        }
+
+        List<Route> routes = lookup(src.toInt(), dst.toInt());
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("lookup: return %s for src %s dst %s",
+                                       routes, src, dst));
+        }
+        return routes;
+    }
+
+    /**
+     * Returns the routes with the lowest weight among those of the longest
+     * prefix matching the destination address that match the source address.
+     * The returned list must not be modified.
+     */
+    List<Route> lookup(int src, int dst) {
+        int prefix = slots[dst >>> (32 - STRIDE)];
+        int depth = 0;
+        while ((prefix & CHILD) != 0) {
+            depth++;
+            prefix = slots[(prefix & ~CHILD) * NODE_SIZE + slot(dst, depth)];
+        }
+
+        while (prefix != NO_PREFIX) {
+            List<Route> routes = prefixGroups[prefix];
+            if (routes != null)
+                return routes;
+            routes = bestRoutes(prefixRoutes[prefix], src);
+            if (!routes.isEmpty())
+                return routes;
+            prefix = findCovering(prefixAddrs[prefix], prefixLengths[prefix]);
+        }
+        return NO_ROUTES;
+    }
+
+    /**
+     * The number of routes in the table.
+     */
+    public int size() {
+        return numRoutes;
+    }
+
+    /* Expands a new prefix into the slots that it covers. */
+    private void insert(int prefix) {
+        int addr = prefixAddrs[prefix];
+        int len = prefixLengths[prefix];
+        int depth = depth(len);
+
+        int node = 0;
+        for (int d = 0; d < depth; d++) {
+            int pos = node * NODE_SIZE + slot(addr, d);
+            int value = slots[pos];
+            if ((value & CHILD) != 0) {
+                node = value & ~CHILD;
+            } else {
+                // The child takes the prefix that covered the slot, and the
+                // slots array may grow, so it's read again.
+                int child = newNode(value);
+                slots[pos] = CHILD | child;
+                nodeRefs[node]++;
+                node = child;
+            }
+        }
+
+        int first = node * NODE_SIZE + slot(addr, depth);
+        int span = 1 << (STRIDE * (depth + 1) - len);
+        for (int pos = first; pos < first + span; pos++) {
+            push(pos, prefix, len);
+        }
+        nodeRefs[node]++;
+    }
+
+    /* Sets the prefix on a slot and the slots of its children, unless they
+     * already have a longer prefix. */
+    private void push(int pos, int prefix, int len) {
+        int value = slots[pos];
+        if ((value & CHILD) != 0) {
+            int base = (value & ~CHILD) * NODE_SIZE;
+            for (int i = 0; i < NODE_SIZE; i++) {
+                push(base + i, prefix, len);
+            }
+        } else if (value == NO_PREFIX || prefixLengths[value] < len) {
+            slots[pos] = prefix;
+        }
     }
 
-    public Iterable<Route> lookup(IPv4Addr src, IPv4Addr dst) {
-        return legacyTable.lookup(src.toInt(), dst.toInt());
+    /* Replaces a prefix by the prefix covering it in all the slots where it
+     * is expanded, and frees the nodes left without prefixes. */
+    private void remove(int prefix) {
+        int addr = prefixAddrs[prefix];
+        int len = prefixLengths[prefix];
+        int depth = depth(len);
+        int covering = findCovering(addr, len);
+
+        int[] path = new int[MAX_DEPTH];
+        int node = 0;
+        for (int d = 0; d < depth; d++) {
+            path[d] = node * NODE_SIZE + slot(addr, d);
+            node = slots[path[d]] & ~CHILD;
+        }
+
+        int first = node * NODE_SIZE + slot(addr, depth);
+        int span = 1 << (STRIDE * (depth + 1) - len);
+        for (int pos = first; pos < first + span; pos++) {
+            replace(pos, prefix, covering);
+        }
+        nodeRefs[node]--;
+
+        // All the slots of a node without prefixes nor children have the
+        // prefix covering the node, which goes back to the parent's slot.
+        for (int d = depth - 1; d >= 0 && nodeRefs[node] == 0; d--) {
+            slots[path[d]] = slots[node * NODE_SIZE];
+            freeNode(node);
+            node = path[d] / NODE_SIZE;
+            nodeRefs[node]--;
+        }
+    }
+
+    private void replace(int pos, int prefix, int covering) {
+        int value = slots[pos];
+        if ((value & CHILD) != 0) {
+            int base = (value & ~CHILD) * NODE_SIZE;
+            for (int i = 0; i < NODE_SIZE; i++) {
+                replace(base + i, prefix, covering);
+            }
+        } else if (value == prefix) {
+            slots[pos] = covering;
+        }
+    }
+
+    private int newNode(int prefix) {
+        int node;
+        if (freeNodeCount > 0) {
+            node = freeNodes[--freeNodeCount];
+        } else {
+            node = nodeCount++;
+            if (nodeCount > nodeRefs.length) {
+                nodeRefs = Arrays.copyOf(nodeRefs, nodeRefs.length * 2);
+                slots = Arrays.copyOf(slots, nodeRefs.length * NODE_SIZE);
+            }
+        }
+        Arrays.fill(slots, node * NODE_SIZE, (node + 1) * NODE_SIZE, prefix);
+        nodeRefs[node] = 0;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        if (freeNodeCount == freeNodes.length)
+            freeNodes = Arrays.copyOf(freeNodes, freeNodes.length * 2);
+        freeNodes[freeNodeCount++] = node;
+    }
+
+    private int newPrefix(int addr, int len, Route[] routes) {
+        int prefix;
+        if (freePrefixCount > 0) {
+            prefix = freePrefixes[--freePrefixCount];
+        } else {
+            prefix = prefixCount++;
+            if (prefixCount > prefixAddrs.length) {
+                int capacity = prefixAddrs.length * 2;
+                prefixAddrs = Arrays.copyOf(prefixAddrs, capacity);
+                prefixLengths = Arrays.copyOf(prefixLengths, capacity);
+                prefixRoutes = Arrays.copyOf(prefixRoutes, capacity);
+                prefixGroups = Arrays.copyOf(prefixGroups, capacity);
+            }
+        }
+        prefixAddrs[prefix] = addr;
+        prefixLengths[prefix] = len;
+        setRoutes(prefix, routes);
+        put(key(addr, len), prefix);
+        return prefix;
+    }
+
+    private void freePrefix(int prefix) {
+        delete(key(prefixAddrs[prefix], prefixLengths[prefix]));
+        prefixRoutes[prefix] = null;
+        prefixGroups[prefix] = null;
+        if (freePrefixCount == freePrefixes.length)
+            freePrefixes = Arrays.copyOf(freePrefixes, freePrefixes.length * 2);
+        freePrefixes[freePrefixCount++] = prefix;
+    }
+
+    private void setRoutes(int prefix, Route[] routes) {
+        prefixRoutes[prefix] = routes;
+        prefixGroups[prefix] = null;
+        for (Route rt : routes) {
+            if (rt.srcNetworkLength != 0)
+                return;
+        }
+        prefixGroups[prefix] = bestRoutes(routes, 0);
     }
 
-    public Iterable<Route> lookup(IPv4Addr src, IPv4Addr dst, Logger logger) {
-        return legacyTable.lookup(src.toInt(), dst.toInt(), logger);
+    /* Returns the longest prefix shorter than the given one that covers it. */
+    private int findCovering(int addr, int len) {
+        for (int l = len - 1; l >= 0; l--) {
+            int prefix = find(addr & mask(l), l);
+            if (prefix != NO_PREFIX)
+                return prefix;
+        }
+        return NO_PREFIX;
     }
 
+    private int find(int addr, int len) {
+        long key = key(addr, len);
+        int mask = mapKeys.length - 1;
+        int i = hash(key) & mask;
+        while (true) {
+            long k = mapKeys[i];
+            if (k == key)
+                return mapValues[i];
+            if (k == NO_KEY)
+                return NO_PREFIX;
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void put(long key, int prefix) {
+        if ((mapSize + 1) * 2 > mapKeys.length) {
+            long[] keys = mapKeys;
+            int[] values = mapValues;
+            mapKeys = new long[keys.length * 2];
+            Arrays.fill(mapKeys, NO_KEY);
+            mapValues = new int[keys.length * 2];
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != NO_KEY)
+                    insertKey(keys[i], values[i]);
+            }
+        }
+        insertKey(key, prefix);
+        mapSize++;
+    }
+
+    private void insertKey(long key, int prefix) {
+        int mask = mapKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mapKeys[i] != NO_KEY) {
+            i = (i + 1) & mask;
+        }
+        mapKeys[i] = key;
+        mapValues[i] = prefix;
+    }
+
+    private void delete(long key) {
+        int mask = mapKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mapKeys[i] != key) {
+            if (mapKeys[i] == NO_KEY)
+                return;
+            i = (i + 1) & mask;
+        }
+        // Shifts back the keys that follow in the probe sequence, so that
+        // lookups can stop at the first empty slot.
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (mapKeys[j] == NO_KEY)
+                break;
+            int home = hash(mapKeys[j]) & mask;
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                mapKeys[i] = mapKeys[j];
+                mapValues[i] = mapValues[j];
+                i = j;
+            }
+        }
+        mapKeys[i] = NO_KEY;
+        mapSize--;
+    }
+
+    /* Returns the routes with the lowest weight among those matching the
+     * source address. */
+    private static List<Route> bestRoutes(Route[] routes, int src) {
+        int minWeight = Integer.MAX_VALUE;
+        int count = 0;
+        for (Route rt : routes) {
+            if (IPv4Subnet.addrMatch(src, rt.srcNetworkAddr,
+                                     rt.srcNetworkLength)) {
+                if (rt.weight < minWeight) {
+                    minWeight = rt.weight;
+                    count = 1;
+                } else if (rt.weight == minWeight) {
+                    count++;
+                }
+            }
+        }
+        if (count == 0)
+            return NO_ROUTES;
+
+        Route[] best = new Route[count];
+        int i = 0;
+        for (Route rt : routes) {
+            if (rt.weight == minWeight &&
+                IPv4Subnet.addrMatch(src, rt.srcNetworkAddr,
+                                     rt.srcNetworkLength)) {
+                best[i++] = rt;
+            }
+        }
+        return Collections.unmodifiableList(Arrays.asList(best));
+    }
+
+    private static int indexOf(Route[] routes, Route rt) {
+        for (int i = 0; i < routes.length; i++) {
+            if (routes[i].equals(rt))
+                return i;
+        }
+        return -1;
+    }
+
+    private static int depth(int len) {
+        return len == 0 ? 0 : (len - 1) / STRIDE;
+    }
+
+    private static int slot(int addr, int depth) {
+        return (addr >>> (32 - STRIDE * (depth + 1))) & (NODE_SIZE - 1);
+    }
+
+    private static int mask(int len) {
+        return len == 0 ? 0 : ~0 << (32 - len);
+    }
+
+    private static long key(int addr, int len) {
+        return ((long) len << 32) | (addr & 0xffffffffL);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "IPv4RoutingTable [routes=" + numRoutes + ", prefixes=" +
+               mapSize + ", nodes=" + (nodeCount - freeNodeCount) + "]";
+    }
 }
@@ -15,6 +15,8 @@
  */
 package org.midonet.midolman.layer3;
 
+import java.util.List;
+
 import org.midonet.packets.IPAddr;
 import org.slf4j.Logger;
 
@@ -39,13 +41,15 @@ public interface RoutingTableIfc<IP extends IPAddr> {
     void deleteRoute(Route rt);
 
     /**
-     * Returns a route.
+     * Returns the routes with the lowest weight among the routes of the
+     * longest prefix matching the destination and the source addresses.
      */
-    Iterable<Route> lookup(IP src, IP dst);
+    List<Route> lookup(IP src, IP dst);
 
     /**
-     * Returns a route.
+     * Returns the routes with the lowest weight among the routes of the
+     * longest prefix matching the destination and the source addresses.
      */
-    Iterable<Route> lookup(IP src, IP dst, Logger logger);
+    List<Route> lookup(IP src, IP dst, Logger logger);
 
 }
@@ -230,39 +230,50 @@ public class Condition extends BaseConfig {
 
         UUID inPortId = isPortFilter ? null : pktCtx.inPortId();
         UUID outPortId = isPortFilter ? null : pktCtx.outPortId();
-        IPAddr pmSrcIP = pktMatch.getNetworkSrcIP();
-        IPAddr pmDstIP = pktMatch.getNetworkDstIP();
         if (!matchPortGroup(pktCtx.portGroups(), portGroup, invPortGroup))
             return conjunctionInv;
         if (!matchPort(this.inPortIds, inPortId, this.inPortInv))
             return conjunctionInv;
         if (!matchPort(this.outPortIds, outPortId, this.outPortInv))
             return conjunctionInv;
-        if (!matchField(etherType, Unsigned.unsign(pktMatch.getEtherType()),
+        // The fields of the packet are only read when the condition
+        // constrains them, so that flows and the cached decisions of the
+        // simulation don't depend on the fields it doesn't look at.
+        if (etherType != null &&
+            !matchField(etherType, Unsigned.unsign(pktMatch.getEtherType()),
                         invDlType))
             return conjunctionInv;
-        if (!matchMAC(ethSrc, pktMatch.getEthSrc(), ethSrcMask, invDlSrc))
+        if (ethSrc != null &&
+            !matchMAC(ethSrc, pktMatch.getEthSrc(), ethSrcMask, invDlSrc))
             return conjunctionInv;
-        if (!matchMAC(ethDst, pktMatch.getEthDst(),
-                      dlDstMask, invDlDst))
+        if (ethDst != null &&
+            !matchMAC(ethDst, pktMatch.getEthDst(), dlDstMask, invDlDst))
             return conjunctionInv;
-        if (!matchField(nwTos, pktMatch.getNetworkTOS(), nwTosInv))
+        if (nwTos != null &&
+            !matchField(nwTos, pktMatch.getNetworkTOS(), nwTosInv))
             return conjunctionInv;
-        if (!matchField(
-                nwProto, pktMatch.getNetworkProto(), nwProtoInv))
+        if (nwProto != null &&
+            !matchField(nwProto, pktMatch.getNetworkProto(), nwProtoInv))
             return conjunctionInv;
-        if (!matchIP(nwSrcIp, pmSrcIP, nwSrcInv))
+        if (nwSrcIp != null &&
+            !matchIP(nwSrcIp, pktMatch.getNetworkSrcIP(), nwSrcInv))
             return conjunctionInv;
-        if (!matchIP(nwDstIp, pmDstIP, nwDstInv))
+        if (nwDstIp != null &&
+            !matchIP(nwDstIp, pktMatch.getNetworkDstIP(), nwDstInv))
             return conjunctionInv;
-        if (!matchRange(tpSrc, pktMatch.getSrcPort(), tpSrcInv))
+        if (tpSrc != null &&
+            !matchRange(tpSrc, pktMatch.getSrcPort(), tpSrcInv))
             return conjunctionInv;
-        if (!matchRange(
-                tpDst, pktMatch.getDstPort(), tpDstInv))
+        if (tpDst != null &&
+            !matchRange(tpDst, pktMatch.getDstPort(), tpDstInv))
             return conjunctionInv;
-        if (!matchIpToGroup(ipAddrGroupSrc, pmSrcIP, invIpAddrGroupIdSrc))
+        if (ipAddrGroupSrc != null &&
+            !matchIpToGroup(ipAddrGroupSrc, pktMatch.getNetworkSrcIP(),
+                            invIpAddrGroupIdSrc))
             return conjunctionInv;
-        if (!matchIpToGroup(ipAddrGroupDst, pmDstIP, invIpAddrGroupIdDst))
+        if (ipAddrGroupDst != null &&
+            !matchIpToGroup(ipAddrGroupDst, pktMatch.getNetworkDstIP(),
+                            invIpAddrGroupIdDst))
             return conjunctionInv;
         if (!matchTraversedDevice(pktCtx))
             return conjunctionInv;
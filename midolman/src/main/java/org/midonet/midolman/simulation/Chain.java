@@ -17,7 +17,6 @@ package org.midonet.midolman.simulation;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
@@ -41,16 +40,78 @@ public class Chain implements VirtualDevice {
     private final Map<UUID, Chain> jumpTargets;
     public final String name;
     public final FlowTagger.FlowTag flowInvTag;
+    private final boolean indexRules;
+
+    // Compiled on first use rather than on construction, because the rules
+    // and jump targets of a chain may be filled in after it's created. The
+    // compiled chain is immutable, so racing to set it is harmless.
+    private CompiledChain compiled;
+    // Whether the decisions of the chain may be cached, computed on first
+    // use for the same reason.
+    private Boolean cacheable;
 
     public Chain(UUID id, List<Rule> rules, Map<UUID, Chain> jumpTargets,
                  String name) {
+        this(id, rules, jumpTargets, name, true);
+    }
+
+    /**
+     * @param indexRules whether the rules of long chains are indexed, so
+     *                   that packets are only checked against the rules that
+     *                   may match them.
+     */
+    @VisibleForTesting
+    public Chain(UUID id, List<Rule> rules, Map<UUID, Chain> jumpTargets,
+                 String name, boolean indexRules) {
         this.id = id;
         this.rules = new ArrayList<>(rules);
         this.jumpTargets = jumpTargets;
         this.name = name;
+        this.indexRules = indexRules;
         flowInvTag = FlowTagger.tagForDevice(id);
     }
 
+    private CompiledChain compiled() {
+        CompiledChain c = compiled;
+        if (c == null) {
+            c = new CompiledChain(rules, this, indexRules);
+            compiled = c;
+        }
+        return c;
+    }
+
+    /**
+     * Whether the chain and the chains it may jump to are all cacheable, so
+     * that its decisions may be looked up in the simulation cache.
+     */
+    boolean isCacheable() {
+        Boolean c = cacheable;
+        if (c == null) {
+            c = isCacheable(0);
+            cacheable = c;
+        }
+        return c;
+    }
+
+    private boolean isCacheable(int depth) {
+        // Deeper jumps fail the simulation anyway.
+        if (depth > 10)
+            return false;
+        CompiledChain chain = compiled();
+        if (!chain.cacheable)
+            return false;
+        for (Chain target : chain.jumpTargets) {
+            if (target != null && !target.isCacheable(depth + 1))
+                return false;
+        }
+        return true;
+    }
+
+    @VisibleForTesting
+    public boolean isIndexed() {
+        return compiled().isIndexed();
+    }
+
     public int hashCode() {
         return id.hashCode();
     }
@@ -92,8 +153,9 @@ public class Chain implements VirtualDevice {
      * @param traversedChains
      *     Keeps track of chains that have been visited to prevent
      *     infinite recursion in the event of a cycle.
+     * @return whether all the chains traversed are cacheable.
      */
-    private void apply(PacketContext context, UUID ownerId,
+    private boolean apply(PacketContext context, UUID ownerId,
                        boolean isPortFilter, RuleResult res,
                        int depth, List<UUID> traversedChains) {
 
@@ -106,15 +168,34 @@ public class Chain implements VirtualDevice {
         context.addFlowTag(flowInvTag);
         traversedChains.add(id);
 
-        Iterator<Rule> iter = rules.iterator();
+        CompiledChain chain = compiled();
+        boolean cacheable = chain.cacheable;
+        Rule[] rules = chain.rules;
+        int[] candidates = chain.isIndexed()
+                           ? chain.candidates(context, isPortFilter) : null;
+        int candidate = 0;
+        int next = 0;
         res.action = Action.CONTINUE;
-        while (iter.hasNext() && res.action == Action.CONTINUE) {
+        while (res.action == Action.CONTINUE) {
+            int i;
+            if (candidates == null) {
+                if (next == rules.length)
+                    break;
+                i = next;
+            } else {
+                if (candidate == candidates.length)
+                    break;
+                i = candidates[candidate++];
+            }
+            next = i + 1;
 
-            Rule r = iter.next();
+            Rule r = rules[i];
             r.process(context, res, ownerId, isPortFilter);
 
             if (res.action == Action.JUMP) {
-                Chain jumpChain = getJumpTarget(res.jumpToChain);
+                Chain jumpChain = chain.jumpTargets[i] != null
+                                  ? chain.jumpTargets[i]
+                                  : getJumpTarget(res.jumpToChain);
                 if (null == jumpChain) {
                     context.jlog().error("ignoring jump to chain {} : not found.",
                                         res.jumpToChain, context);
@@ -127,15 +208,23 @@ public class Chain implements VirtualDevice {
                 } else {
                     // Apply the jump chain and return if it produces a
                     // decisive action. If not, on to the next rule.
-                    jumpChain.apply(context, ownerId, isPortFilter,
-                                    res, depth + 1, traversedChains);
+                    cacheable &= jumpChain.apply(context, ownerId,
+                                                 isPortFilter, res, depth + 1,
+                                                 traversedChains);
                     if (res.action == Action.RETURN)
                         res.action = Action.CONTINUE;
                 }
             }
+
+            // The rule may have rewritten the field the rules are indexed on.
+            if (candidates != null && chain.rewrites[i]) {
+                candidates = chain.candidates(context, isPortFilter);
+                candidate = CompiledChain.seek(candidates, next);
+            }
         }
 
         assert res.action != Action.JUMP;
+        return cacheable;
     }
 
     /**
@@ -160,6 +249,29 @@ public class Chain implements VirtualDevice {
             context.jlog().debug("Testing against Chain:\n{}", chain.asList(4, false));
         }
 
+        SimulationCache cache = context.simulationCache();
+        if (cache == null || !chain.isCacheable()) {
+            return evaluate(chain, context, ownerId, isPortFilter, null);
+        }
+
+        RuleResult res = cache.get(chain, context, ownerId, isPortFilter);
+        if (res != null) {
+            return res;
+        }
+
+        // Tracks the fields read and the tags added by the chain alone, so
+        // that its result can be reused for packets that agree on them.
+        long seenFields = cache.startRecording(context);
+        try {
+            return evaluate(chain, context, ownerId, isPortFilter, cache);
+        } finally {
+            cache.stopRecording(context, seenFields);
+        }
+    }
+
+    private static RuleResult evaluate(
+            Chain chain, PacketContext context, UUID ownerId,
+            boolean isPortFilter, SimulationCache cache) {
         // Use ArrayList rather than HashSet because the list will be
         // short enough that O(N) lookup is still cheap, and this
         // avoids per-chain allocation.
@@ -169,7 +281,8 @@ public class Chain implements VirtualDevice {
         // determine how big a list to allocate.
         List<UUID> traversedChains = new ArrayList<>();
         RuleResult res = new RuleResult(Action.CONTINUE, null);
-        chain.apply(context, ownerId, isPortFilter, res, 0, traversedChains);
+        boolean cacheable = chain.apply(context, ownerId, isPortFilter, res,
+                                        0, traversedChains);
 
         // Accept if the chain didn't make an explicit decision.
         if (!res.action.isDecisive())
@@ -182,6 +295,10 @@ public class Chain implements VirtualDevice {
                                traversedChains.size(), chain.id, context);
         }
 
+        if (cache != null && cacheable) {
+            cache.put(chain, context, ownerId, isPortFilter, res.action);
+        }
+
         return res;
     }
 
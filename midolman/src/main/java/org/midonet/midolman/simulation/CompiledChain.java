@@ -0,0 +1,428 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.midonet.midolman.rules.Condition;
+import org.midonet.midolman.rules.JumpRule;
+import org.midonet.midolman.rules.LiteralRule;
+import org.midonet.midolman.rules.NatRule;
+import org.midonet.midolman.rules.Rule;
+import org.midonet.packets.IPAddr;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+import org.midonet.util.Range;
+
+/**
+ * The compiled form of the rules of a chain. Jump targets are resolved once,
+ * and the rules of chains long enough for it to be worth it are arranged in a
+ * decision tree. Each node of the tree dispatches packets on one of the fields
+ * that tell the rules apart: the network protocol, the transport destination
+ * port, the network destination prefix, or the ingress or egress port. For
+ * each value of the field, the node leads to the rules whose condition may
+ * match a packet with that value, along with the rules that don't constrain
+ * the field. The leaves list those candidates in the order of the chain, which
+ * then only checks their conditions. This yields the same result as checking
+ * every rule.
+ *
+ * Rules that may rewrite the packet, NAT rules and jumps to other chains,
+ * may change the fields the tree dispatches on, so the candidates are looked
+ * up again after them.
+ *
+ * A chain is cacheable when its rules only depend on the packet match, its
+ * ports and port groups, so that their result may be reused for any packet
+ * with the same values for the fields they read.
+ *
+ * Instances are immutable.
+ */
+final class CompiledChain {
+
+    enum Field { NW_PROTO, TP_DST, NW_DST, IN_PORT, OUT_PORT }
+
+    /* Sets of rules smaller than this aren't split any further. */
+    static final int MIN_INDEXED_RULES = 8;
+
+    /* The widest port range expanded into the tree, wider ones match any
+     * destination port as far as the tree is concerned. */
+    private static final int MAX_RANGE_KEYS = 32;
+
+    /* Destination prefixes shorter than this aren't indexed. */
+    private static final int MIN_PREFIX_LEN = 8;
+
+    private static final int[] NO_RULES = new int[0];
+    private static final List<Integer> NO_BUCKET = new ArrayList<>(0);
+
+    final Rule[] rules;
+    final Chain[] jumpTargets;
+    final boolean[] rewrites;
+    final boolean cacheable;
+
+    private final Node root;
+
+    CompiledChain(List<Rule> ruleList, Chain chain, boolean indexRules) {
+        int size = ruleList.size();
+        rules = ruleList.toArray(new Rule[size]);
+        jumpTargets = new Chain[size];
+        rewrites = new boolean[size];
+        boolean pure = true;
+        for (int i = 0; i < size; i++) {
+            Rule rule = rules[i];
+            pure &= isPure(rule);
+            if (rule instanceof JumpRule) {
+                jumpTargets[i] =
+                    chain.getJumpTarget(((JumpRule) rule).jumpToChainID);
+                rewrites[i] = true;
+            } else {
+                rewrites[i] = rule instanceof NatRule;
+            }
+        }
+        cacheable = pure;
+
+        Node node = null;
+        if (indexRules && size >= MIN_INDEXED_RULES) {
+            int[] all = new int[size];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (rules[i].getCondition() != Condition.FALSE)
+                    all[count++] = i;
+            }
+            // Bounds the rule positions held by the tree, as the rules that
+            // don't constrain a field are repeated for each of its values.
+            int[] budget = { 32 * size + 4096 };
+            node = build(Arrays.copyOf(all, count),
+                         EnumSet.allOf(Field.class), budget);
+        }
+        root = node instanceof Split ? node : null;
+    }
+
+    boolean isIndexed() {
+        return root != null;
+    }
+
+    /**
+     * Returns the positions, in ascending order, of the rules that may match
+     * the packet as it is now.
+     */
+    int[] candidates(PacketContext context, boolean isPortFilter) {
+        Node node = root;
+        while (node instanceof Split)
+            node = ((Split) node).next(context, isPortFilter);
+        return ((Leaf) node).rules;
+    }
+
+    /**
+     * Returns the index of the first candidate at or after the given rule
+     * position, or the length of the candidates if there's none.
+     */
+    static int seek(int[] candidates, int position) {
+        int i = Arrays.binarySearch(candidates, position);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /* Whether the rule only tells apart packets by their match, ports and port
+     * groups, without looking up their connection state, the devices they
+     * traversed, or address groups that may change in place. */
+    private static boolean isPure(Rule rule) {
+        if (!(rule instanceof LiteralRule) && !(rule instanceof JumpRule))
+            return false;
+        Condition c = rule.getCondition();
+        if (c == null || c == Condition.TRUE || c == Condition.FALSE)
+            return true;
+        return c.getClass() == Condition.class && !c.matchForwardFlow &&
+               !c.matchReturnFlow && c.traversedDevice == null &&
+               c.ipAddrGroupSrc == null && c.ipAddrGroupDst == null;
+    }
+
+    private Node build(int[] ruleSet, EnumSet<Field> fields, int[] budget) {
+        if (ruleSet.length < MIN_INDEXED_RULES)
+            return new Leaf(ruleSet);
+
+        // Splits on the field that leaves the fewest candidates, as long
+        // as it rules out enough of them.
+        Partition best = null;
+        for (Field field : fields) {
+            Partition p = new Partition(field, rules, ruleSet);
+            if (p.cost < ruleSet.length - ruleSet.length / 8 &&
+                p.size <= budget[0] && (best == null || p.cost < best.cost))
+                best = p;
+        }
+        if (best == null)
+            return new Leaf(ruleSet);
+
+        budget[0] -= best.size;
+        EnumSet<Field> remaining = EnumSet.copyOf(fields);
+        remaining.remove(best.field);
+        Split split = new Split(best.field, best.prefixLen,
+                                best.buckets.size(),
+                                build(best.merge(NO_BUCKET), remaining,
+                                      budget));
+        for (Map.Entry<Object, List<Integer>> e : best.buckets.entrySet()) {
+            split.put(e.getKey(), build(best.merge(e.getValue()), remaining,
+                                        budget));
+        }
+        return split;
+    }
+
+    /* Whether the fields of the condition tell which packets it matches, which
+     * isn't the case for inverted conjunctions, nor for the conditions of
+     * another class, such as Condition.TRUE. Conditions on the direction of
+     * the flow are never skipped either, since checking the direction starts
+     * tracking the connection and tags the flow with its key, whatever fields
+     * the rest of the condition looks at. */
+    private static boolean isPlain(Condition c) {
+        return c != null && c.getClass() == Condition.class &&
+               !c.conjunctionInv && !c.matchForwardFlow &&
+               !c.matchReturnFlow;
+    }
+
+    private static abstract class Node { }
+
+    private static final class Leaf extends Node {
+        final int[] rules;
+
+        Leaf(int[] rules) {
+            this.rules = rules.length == 0 ? NO_RULES : rules;
+        }
+    }
+
+    /**
+     * A node that dispatches packets on the value of one of their fields.
+     */
+    private static final class Split extends Node {
+        final Field field;
+        final int prefixLen;
+        final IntMap<Node> intChildren;
+        final Map<UUID, Node> uuidChildren;
+        final Node unconstrained;
+
+        Split(Field field, int prefixLen, int size, Node unconstrained) {
+            this.field = field;
+            this.prefixLen = prefixLen;
+            this.unconstrained = unconstrained;
+            if (field == Field.IN_PORT || field == Field.OUT_PORT) {
+                intChildren = null;
+                uuidChildren = new HashMap<>();
+            } else {
+                intChildren = new IntMap<>(size);
+                uuidChildren = null;
+            }
+        }
+
+        void put(Object key, Node child) {
+            if (intChildren != null)
+                intChildren.put((Integer) key, child);
+            else
+                uuidChildren.put((UUID) key, child);
+        }
+
+        Node next(PacketContext context, boolean isPortFilter) {
+            Node child;
+            switch (field) {
+                case NW_PROTO:
+                    child = intChildren.get(
+                        context.wcmatch().getNetworkProto() & 0xff);
+                    break;
+                case TP_DST:
+                    child = intChildren.get(context.wcmatch().getDstPort());
+                    break;
+                case NW_DST:
+                    IPAddr dst = context.wcmatch().getNetworkDstIP();
+                    child = dst instanceof IPv4Addr
+                        ? intChildren.get(((IPv4Addr) dst).toInt() >>>
+                                          (32 - prefixLen))
+                        : null;
+                    break;
+                case IN_PORT:
+                    child = isPortFilter || context.inPortId() == null
+                        ? null : uuidChildren.get(context.inPortId());
+                    break;
+                case OUT_PORT:
+                    child = isPortFilter || context.outPortId() == null
+                        ? null : uuidChildren.get(context.outPortId());
+                    break;
+                default:
+                    child = null;
+            }
+            return child != null ? child : unconstrained;
+        }
+    }
+
+    /**
+     * A partition of a set of rules on the values of one of the fields,
+     * weighed against the partitions on the other fields.
+     */
+    private static final class Partition {
+        final Field field;
+        final int prefixLen;
+        final List<Integer> wildcards = new ArrayList<>();
+        final Map<Object, List<Integer>> buckets = new HashMap<>();
+        final int cost;
+        final int size;
+
+        Partition(Field field, Rule[] rules, int[] ruleSet) {
+            this.field = field;
+            this.prefixLen = field == Field.NW_DST
+                             ? prefixLen(rules, ruleSet) : 0;
+
+            int entries = 0;
+            for (int i : ruleSet) {
+                Condition c = rules[i].getCondition();
+                List<?> keys = isPlain(c) ? keys(c) : null;
+                if (keys == null) {
+                    wildcards.add(i);
+                    continue;
+                }
+                for (Object key : keys) {
+                    List<Integer> bucket = buckets.get(key);
+                    if (bucket == null) {
+                        bucket = new ArrayList<>();
+                        buckets.put(key, bucket);
+                    }
+                    bucket.add(i);
+                    entries++;
+                }
+            }
+
+            // The expected number of candidates for a packet with a value of
+            // the field that some rules constrain, and the number of rule
+            // positions the partition holds.
+            cost = buckets.isEmpty() ? Integer.MAX_VALUE
+                   : wildcards.size() + entries / buckets.size();
+            size = entries + (buckets.size() + 1) * wildcards.size();
+        }
+
+        /* The keys under which the rule with the given condition is indexed,
+         * or null if it may match any value of the field. */
+        private List<?> keys(Condition c) {
+            switch (field) {
+                case NW_PROTO:
+                    if (c.nwProto == null || c.nwProtoInv)
+                        return null;
+                    return Arrays.asList(c.nwProto & 0xff);
+                case TP_DST:
+                    Range<Integer> range = c.tpDst;
+                    if (range == null || c.tpDstInv || range.start() == null ||
+                        range.end() == null ||
+                        range.end() - range.start() >= MAX_RANGE_KEYS)
+                        return null;
+                    List<Integer> ports = new ArrayList<>();
+                    for (int p = range.start(); p <= range.end(); p++)
+                        ports.add(p);
+                    return ports;
+                case NW_DST:
+                    if (!isIndexedPrefix(c))
+                        return null;
+                    IPv4Subnet subnet = (IPv4Subnet) c.nwDstIp;
+                    return Arrays.asList(
+                        subnet.getIntAddress() >>> (32 - prefixLen));
+                case IN_PORT:
+                    return portKeys(c.inPortIds, c.inPortInv);
+                case OUT_PORT:
+                    return portKeys(c.outPortIds, c.outPortInv);
+                default:
+                    return null;
+            }
+        }
+
+        private static List<?> portKeys(Set<UUID> ports, boolean inv) {
+            if (ports == null || ports.isEmpty() || inv)
+                return null;
+            return new ArrayList<>(ports);
+        }
+
+        private static boolean isIndexedPrefix(Condition c) {
+            return c.nwDstIp instanceof IPv4Subnet && !c.nwDstInv &&
+                   c.nwDstIp.getPrefixLen() >= MIN_PREFIX_LEN;
+        }
+
+        /* The length of the prefix of the destination addresses the
+         * partition is keyed on, the shortest of the indexed prefixes. */
+        private static int prefixLen(Rule[] rules, int[] ruleSet) {
+            int len = 32;
+            for (int i : ruleSet) {
+                Condition c = rules[i].getCondition();
+                if (isPlain(c) && isIndexedPrefix(c))
+                    len = Math.min(len, c.nwDstIp.getPrefixLen());
+            }
+            return len;
+        }
+
+        /* Merges the rules in a bucket with the ones that don't constrain
+         * the field, keeping the order of the chain. */
+        int[] merge(List<Integer> bucket) {
+            int[] merged = new int[bucket.size() + wildcards.size()];
+            int b = 0, w = 0, i = 0;
+            while (b < bucket.size() || w < wildcards.size()) {
+                if (w == wildcards.size() || (b < bucket.size() &&
+                        bucket.get(b) < wildcards.get(w)))
+                    merged[i++] = bucket.get(b++);
+                else
+                    merged[i++] = wildcards.get(w++);
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * An open addressing map with int keys, which doesn't box the keys
+     * looked up.
+     */
+    private static final class IntMap<V> {
+        private final int[] keys;
+        private final Object[] values;
+        private final int mask;
+
+        IntMap(int size) {
+            int capacity = Integer.highestOneBit(Math.max(size, 1) * 2) * 2;
+            keys = new int[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+
+        void put(int key, V value) {
+            int i = hash(key) & mask;
+            while (values[i] != null && keys[i] != key)
+                i = (i + 1) & mask;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(int key) {
+            int i = hash(key) & mask;
+            Object value;
+            while ((value = values[i]) != null) {
+                if (keys[i] == key)
+                    return (V) value;
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
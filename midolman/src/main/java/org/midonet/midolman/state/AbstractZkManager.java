@@ -179,9 +179,40 @@ public abstract class AbstractZkManager<K, CFG>
      */
     public List<CFG> get(Collection<K> keys)
             throws StateAccessException, SerializationException {
-        List<CFG> configs = new ArrayList<>(keys.size());
+        List<K> keyList = new ArrayList<>(keys);
+        List<CFG> configs = tryGetAll(keyList);
+        for (int i = 0; i < configs.size(); i++) {
+            if (configs.get(i) == null) {
+                // Fails as a single get on a missing resource does.
+                configs.set(i, get(keyList.get(i)));
+            }
+        }
+        return configs;
+    }
+
+    /**
+     * Gets the configs for the specified resource IDs, pipelining their reads
+     * with ZkManager.getAll(). Returns the configs in the order of the
+     * IDs, with null for the resources that don't exist.
+     */
+    public List<CFG> tryGetAll(List<K> keys)
+            throws StateAccessException, SerializationException {
+        List<String> paths = new ArrayList<>(keys.size());
         for (K key : keys) {
-            configs.add(get(key));
+            paths.add(getConfigPath(key));
+        }
+
+        List<byte[]> data = zk.getAll(paths);
+        List<CFG> configs = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            CFG config = null;
+            if (data.get(i) != null) {
+                config = serializer.deserialize(data.get(i), getConfigClass());
+                if (config instanceof BaseConfig && keys.get(i) instanceof UUID) {
+                    ((BaseConfig)config).id = (UUID)keys.get(i);
+                }
+            }
+            configs.add(config);
         }
         return configs;
     }
@@ -16,12 +16,14 @@
 package org.midonet.midolman.state;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
 
 import com.google.inject.Inject;
 import org.apache.zookeeper.CreateMode;
@@ -59,6 +61,12 @@ public class ZkManager {
 
     public static final int ZK_SEQ_NUM_LEN = 10;
 
+    /**
+     * The number of reads that getAll keeps in flight by default, half the
+     * default limit of outstanding requests of a ZooKeeper server.
+     */
+    public static final int MAX_PENDING_READS = 500;
+
     public ZkManager(Directory zk, String basePath) {
         this.zk = zk;
         this.basePath = basePath;
@@ -322,6 +330,78 @@ public class ZkManager {
         }
     }
 
+    /**
+     * Gets the data of the nodes at the given paths, keeping up to
+     * MAX_PENDING_READS reads in flight.
+     */
+    public List<byte[]> getAll(List<String> paths)
+            throws StateAccessException {
+        return getAll(paths, MAX_PENDING_READS);
+    }
+
+    /**
+     * Gets the data of the nodes at the given paths. The reads are issued
+     * asynchronously so that they are pipelined on the ZooKeeper session,
+     * instead of waiting a round trip for each of them, and up to maxPending
+     * of them are kept in flight. The data is returned in the order of the
+     * paths, with null for the nodes that don't exist.
+     *
+     * This method blocks until all the reads complete, so it must not be
+     * called from the ZooKeeper event thread, which completes them.
+     */
+    public List<byte[]> getAll(List<String> paths, int maxPending)
+            throws StateAccessException {
+        final byte[][] data = new byte[paths.size()][];
+        final KeeperException[] error = new KeeperException[1];
+        final Semaphore window = new Semaphore(maxPending);
+        try {
+            for (int i = 0; i < paths.size(); i++) {
+                window.acquire();
+                synchronized (error) {
+                    if (error[0] != null) {
+                        window.release();
+                        break;
+                    }
+                }
+                final int index = i;
+                zk.asyncGet(paths.get(i), new DirectoryCallback<byte[]>() {
+                    @Override
+                    public void onSuccess(byte[] result) {
+                        data[index] = result;
+                        window.release();
+                    }
+
+                    @Override
+                    public void onTimeout() {
+                        onError(new KeeperException.OperationTimeoutException());
+                    }
+
+                    @Override
+                    public void onError(KeeperException e) {
+                        if (!(e instanceof NoNodeException)) {
+                            synchronized (error) {
+                                if (error[0] == null)
+                                    error[0] = e;
+                            }
+                        }
+                        window.release();
+                    }
+                }, null);
+            }
+            // Wait for the reads still in flight.
+            window.acquire(maxPending);
+        } catch (InterruptedException ex) {
+            throw processException(ex, "getting the nodes at " + paths);
+        }
+        synchronized (error) {
+            if (error[0] != null) {
+                throw processException(error[0], "getting the node at path " +
+                                                 error[0].getPath());
+            }
+        }
+        return Arrays.asList(data);
+    }
+
     public Set<String> getChildren(String path) throws StateAccessException {
         return getChildren(path, null);
     }
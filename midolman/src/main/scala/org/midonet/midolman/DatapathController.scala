@@ -175,7 +175,8 @@ class DatapathController @Inject() (val driver: DatapathStateDriver,
     }
 
     private def subscribeToHost(id: UUID): Unit = {
-        val props = Props(classOf[HostRequestProxy], id, storage, self)
+        val props = Props(classOf[HostRequestProxy], id, storage, self,
+                          config.flowStateFetchPageSize)
                         .withDispatcher(context.props.dispatcher)
         context.actorOf(props, s"HostRequestProxy-$id")
     }
@@ -248,9 +249,8 @@ class DatapathController @Inject() (val driver: DatapathStateDriver,
         val dropped = oldZones.keySet.diff(newZones.keySet)
         for (zone <- dropped) {
             VirtualToPhysicalMapper ! TunnelZoneUnsubscribe(zone)
-            for (tag <- driver.removePeersForZone(zone)) {
-                flowInvalidator.scheduleInvalidationFor(tag)
-            }
+            flowInvalidator.scheduleInvalidationForAll(
+                driver.removePeersForZone(zone))
         }
 
         val added = newZones.keySet.diff(oldZones.keySet)
@@ -314,7 +314,7 @@ class DatapathController @Inject() (val driver: DatapathStateDriver,
         }
 
         def processTags(tags: TraversableOnce[FlowTag]): Unit =
-            tags foreach flowInvalidator.scheduleInvalidationFor
+            flowInvalidator.scheduleInvalidationForAll(tags)
 
         def processDelPeer(): Unit =
             processTags(driver.removePeer(peerUUID, zone))
@@ -359,8 +359,9 @@ class DatapathController @Inject() (val driver: DatapathStateDriver,
         //   - The case for invalidating on deactivation is obvious.
         //   - On activation we invalidate flows for this dp port number in case
         //     it has been reused by the dp: we want to start with a clean state
-        flowInvalidator.scheduleInvalidationFor(FlowTagger.tagForTunnelKey(tunnelKey))
-        flowInvalidator.scheduleInvalidationFor(FlowTagger.tagForDpPort(port.getPortNo))
+        flowInvalidator.scheduleInvalidationForAll(
+            List(FlowTagger.tagForTunnelKey(tunnelKey),
+                 FlowTagger.tagForDpPort(port.getPortNo)))
     }
 
     private def setTunnelMtu(interfaces: JSet[InterfaceDescription]) = {
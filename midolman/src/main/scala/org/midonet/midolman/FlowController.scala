@@ -16,7 +16,7 @@
 
 package org.midonet.midolman
 
-import java.util.{HashMap, ArrayList}
+import java.util.ArrayList
 
 import akka.actor.{Actor, ActorSystem}
 
@@ -34,7 +34,6 @@ import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.monitoring.MeterRegistry
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.netlink.exceptions.NetlinkException.ErrorCode
-import org.midonet.odp.FlowMatch
 import org.midonet.util.collection.{NoOpPool, ArrayObjectPool}
 import org.midonet.util.concurrent.{Backchannel, NanoClock}
 import org.midonet.util.concurrent.WakerUpper.Parkable
@@ -67,16 +66,16 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
     private val flowRemoveCommandsToRetry = new ArrayList[FlowOperation](
         flowProcessor.capacity)
 
-    private val dpFlows = new HashMap[FlowMatch, ManagedFlow](maxFlows)
+    private val dpFlows = new FlowTable(maxFlows)
 
     metrics.currentDpFlowsMetric register new Gauge[Long] {
-        override def getValue = dpFlows.size()
+        override def getValue = dpFlows.size
     }
 
     def tryAddFlow(context: PacketContext, expiration: Expiration): Boolean = {
         val flowMatch = context.origMatch
         val callbacks = context.flowRemovedCallbacks
-        if (!dpFlows.containsKey(flowMatch)) {
+        if (!dpFlows.contains(flowMatch)) {
             var flow = managedFlowPool.take
             if (flow eq null)
                 flow = oversubscriptionManagedFlowPool.take
@@ -94,34 +93,37 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
 
     override def shouldProcess() =
         completedFlowOperations.size > 0 ||
-        flowInvalidator.hasInvalidations
+        flowInvalidator.hasInvalidations ||
+        hasPendingInvalidations ||
+        hasExpiredFlows
 
     override def process(): Unit = {
         processCompletedFlowOperations()
+        invalidatePendingFlows()
         flowInvalidator.process(this)
         checkFlowsExpiration(clock.tick)
     }
 
     override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
-        dpFlows.put(flow.flowMatch, flow)
+        dpFlows.put(flow)
         meters.trackFlow(flow.flowMatch, flow.tags)
         metrics.dpFlowsMetric.mark()
         flow.ref()
     }
 
     override def removeFlow(flow: ManagedFlow): Unit = {
-        val removedFlow = dpFlows.remove(flow.flowMatch)
-        if (removedFlow eq flow) {
+        if (dpFlows.remove(flow)) {
             super.removeFlow(flow)
             flow.callbacks.runAndClear()
             removeFlowFromDatapath(flow)
             flow.unref()
-        } else if (removedFlow ne null) {
-            dpFlows.put(removedFlow.flowMatch, removedFlow)
         }
     }
 
+    override protected def invalidatedFlowsRemoved(latencyNanos: Long): Unit =
+        metrics.flowInvalidationLatency.update(latencyNanos)
+
     private def processCompletedFlowOperations(): Unit = {
         var req: FlowOperation = null
         while ({ req = completedFlowOperations.poll(); req } ne null) {
@@ -15,7 +15,7 @@
  */
 package org.midonet.midolman
 
-import java.util.{HashMap => JHashMap, HashSet => JHashSet, Map => JMap, Set => JSet, UUID}
+import java.util.{Collections, HashMap => JHashMap, HashSet => JHashSet, Map => JMap, Set => JSet, UUID}
 
 import scala.concurrent.Future
 import scala.util.{Failure, Success}
@@ -50,6 +50,21 @@ object HostRequestProxy {
                                                new JHashSet[ConnTrackKey](),
                                                new JHashMap[NatKey, NatBinding](),
                                                new JHashMap[NatKey, NatBinding]())
+
+    private val NoConnTrackKeys = Collections.emptySet[ConnTrackKey]()
+    private val NoNatKeys = Collections.emptyMap[NatKey, NatBinding]()
+
+    def StrongConnTrackBatch(keys: JSet[ConnTrackKey]) =
+        FlowStateBatch(keys, NoConnTrackKeys, NoNatKeys, NoNatKeys)
+
+    def WeakConnTrackBatch(keys: JSet[ConnTrackKey]) =
+        FlowStateBatch(NoConnTrackKeys, keys, NoNatKeys, NoNatKeys)
+
+    def StrongNatBatch(keys: JMap[NatKey, NatBinding]) =
+        FlowStateBatch(NoConnTrackKeys, NoConnTrackKeys, keys, NoNatKeys)
+
+    def WeakNatBatch(keys: JMap[NatKey, NatBinding]) =
+        FlowStateBatch(NoConnTrackKeys, NoConnTrackKeys, NoNatKeys, keys)
 }
 
 
@@ -58,9 +73,14 @@ object HostRequestProxy {
   * subscriber. It will proxy requests making sure per-flow state for the
   * host's ports is fetched from Cassandra before the subscriber receives
   * the host object.
+  *
+  * The state is fetched in pages of at most fetchPageSize keys, which are
+  * handed over to the packet workers as they arrive, so that neither this
+  * actor nor the workers have to hold all the state of a port at once.
   */
 class HostRequestProxy(val hostId: UUID, val storage: FlowStateStorage,
-                       val subscriber: ActorRef) extends Actor
+                       val subscriber: ActorRef,
+                       val fetchPageSize: Int) extends Actor
                                                  with ActorLogWithoutPath
                                                  with SingleThreadExecutionContextProvider {
 
@@ -78,21 +98,25 @@ class HostRequestProxy(val hostId: UUID, val storage: FlowStateStorage,
         VTPM ! HostRequest(hostId)
     }
 
-    private def stateForPort(port: UUID): Future[FlowStateBatch] = {
-        val scf = storage.fetchStrongConnTrackRefs(port)
-        val wcf = storage.fetchWeakConnTrackRefs(port)
-        val snf = storage.fetchStrongNatRefs(port)
-        val wnf = storage.fetchWeakNatRefs(port)
-
-        ((scf zip wcf) zip (snf zip wnf)) map {
-            case ((sc, wc) , (sn, wn)) => FlowStateBatch(sc, wc, sn, wn)
+    private def streamStateForPort(port: UUID): Future[Int] = {
+        val scf = storage.streamStrongConnTrackRefs(port, fetchPageSize) {
+            keys => PacketsEntryPoint ! StrongConnTrackBatch(keys)
         }
+        val wcf = storage.streamWeakConnTrackRefs(port, fetchPageSize) {
+            keys => PacketsEntryPoint ! WeakConnTrackBatch(keys)
+        }
+        val snf = storage.streamStrongNatRefs(port, fetchPageSize) {
+            keys => PacketsEntryPoint ! StrongNatBatch(keys)
+        }
+        val wnf = storage.streamWeakNatRefs(port, fetchPageSize) {
+            keys => PacketsEntryPoint ! WeakNatBatch(keys)
+        }
+
+        Future.fold(List(scf, wcf, snf, wnf))(0)(_ + _)
     }
 
-    private def stateForPorts(ports: Iterable[UUID]): Future[FlowStateBatch] =
-        Future.fold(ports map stateForPort)(EmptyFlowStateBatch()) {
-            (batch: FlowStateBatch, v: FlowStateBatch) => batch.merge(v)
-        }
+    private def streamStateForPorts(ports: Iterable[UUID]): Future[Int] =
+        Future.fold(ports map streamStateForPort)(0)(_ + _)
 
     /* Resolve all ports into UUIDs, creating a ResolvedHost object.
      *
@@ -135,10 +159,10 @@ class HostRequestProxy(val hostId: UUID, val storage: FlowStateStorage,
             belt.handle(() => {
                 val ps = h.portBindings.keySet -- lastPorts
                 val resolved = resolvePorts(h)
-                stateForPorts(ps).andThen {
-                        case Success(stateBatch) =>
+                streamStateForPorts(ps).andThen {
+                        case Success(keys) =>
+                            log.debug(s"Fetched $keys state keys for ports $ps")
                             lastPorts = ps
-                            PacketsEntryPoint ! stateBatch
                         case Failure(e) =>
                             log.warn("Failed to fetch state from Cassandra: {}", e)
                 }.andThen {
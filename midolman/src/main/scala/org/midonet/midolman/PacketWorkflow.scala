@@ -23,6 +23,7 @@ import scala.concurrent.{ExecutionContext, Future}
 import scala.util.{Failure, Success}
 
 import akka.actor._
+import com.codahale.metrics.Gauge
 import com.typesafe.scalalogging.Logger
 import org.jctools.queues.MpscArrayQueue
 import org.slf4j.{LoggerFactory, MDC}
@@ -32,6 +33,7 @@ import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.{DatapathChannel, FlowProcessor}
 import org.midonet.midolman.flows.FlowExpirationIndexer.Expiration
 import org.midonet.midolman.flows.{FlowExpirationIndexer, FlowInvalidator}
+import org.midonet.midolman.io.UpcallRing
 import org.midonet.midolman.logging.{ActorLogWithoutPath, FlowTracingContext}
 import org.midonet.midolman.management.PacketTracing
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
@@ -39,6 +41,7 @@ import org.midonet.midolman.routingprotocols.RoutingWorkflow
 import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
 import org.midonet.midolman.simulation._
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.FlowStateCodec.PeerVersions
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
 import org.midonet.midolman.state.{FlowStatePackets, FlowStateReplicator, FlowStateStorage, NatLeaser, _}
@@ -54,8 +57,10 @@ import org.midonet.util.collection.Reducer
 import org.midonet.util.concurrent._
 
 object PacketWorkflow {
-    case class HandlePackets(packet: Array[Packet])
-    case class RestartWorkflow(pktCtx: PacketContext, error: Throwable)
+    case object HandleUpcalls
+    case object ImportFlowState
+    case object FlushFlowState
+    case class RestartWorkflows(on: Future[_], error: Throwable)
 
     trait SimulationResult
     case object NoOp extends SimulationResult
@@ -146,9 +151,11 @@ class PacketWorkflow(
             val natStateTable: FlowStateTable[NatKey, NatBinding],
             val traceStateTable: FlowStateTable[TraceKey, TraceContext],
             val storage: FlowStateStorage,
+            val peerVersions: PeerVersions,
             val natLeaser: NatLeaser,
             val metrics: PacketPipelineMetrics,
-            val packetOut: Int => Unit)
+            val packetOut: Int => Unit,
+            val upcalls: UpcallRing)
         extends Actor with ActorLogWithoutPath with Stash with Backchannel
         with UnderlayTrafficHandler with FlowTranslator with RoutingWorkflow
         with FlowController {
@@ -163,14 +170,52 @@ class PacketWorkflow(
 
     protected val simulationExpireMillis = 5000L
 
+    // The maximum number of upcalls processed before going back to the
+    // mailbox, so that control messages are not starved.
+    private val maxUpcallsPerDrain = 256
+
+    // The maximum number of flow state keys imported from storage before
+    // going back to the mailbox.
+    private val maxStateKeysPerImport = config.flowStateImportBatchSize
+    private var stateImportScheduled = false
+
+    // The maximum time that the replicated flow state waits to be packed with
+    // the state of other flows.
+    private val flowStateMaxDelay = config.datapath.flowStateMaxDelay millis
+    private var stateFlushScheduled = false
+    private val stateMessageMatch = new FlowMatch()
+
+    // Caches the decisions of the rule chains, keyed on the packet fields
+    // they read, when enabled.
+    private val simulationCache =
+        if (config.simulationCacheSize > 0)
+            new SimulationCache(config.simulationCacheSize, metrics)
+        else null
+
     private val waitingRoom = new WaitingRoom[PacketContext](
-                                        (simulationExpireMillis millis).toNanos)
+                                        (simulationExpireMillis millis).toNanos,
+                                        metrics.waitingRoomWaitTime.update)
+    metrics.waitingRoomSize register new Gauge[Long] {
+        override def getValue: Long = waitingRoom.count
+    }
 
     private val genPacketEmitter = new PacketEmitter(new MpscArrayQueue(512), self)
 
-    protected val connTrackTx = new FlowStateTransaction(connTrackStateTable)
-    protected val natTx = new FlowStateTransaction(natStateTable)
+    protected val stateImporter = new FlowStateImporter(connTrackStateTable,
+                                                        natStateTable,
+                                                        metrics)
+
+    protected val connTrackTx = new FlowStateTransaction(stateImporter.conntrackTable)
+    protected val natTx = new FlowStateTransaction(stateImporter.natTable)
     protected val traceStateTx = new FlowStateTransaction(traceStateTable)
+    protected val stateAggregator = new FlowStateAggregator(
+            hostId,
+            dpState,
+            config.datapath.controlPacketTos,
+            flowStateMaxDelay.toNanos,
+            clock,
+            stateCarriers)
+
     protected var replicator = new FlowStateReplicator(
             connTrackStateTable,
             natStateTable,
@@ -179,12 +224,27 @@ class PacketWorkflow(
             hostId,
             dpState,
             this,
-            config.datapath.controlPacketTos)
+            config.datapath.controlPacketTos,
+            peerVersions,
+            stateAggregator,
+            metrics)
 
     protected val datapathId = dpState.datapath.getIndex
 
     protected val arpBroker = new ArpRequestBroker(genPacketEmitter, config, flowInvalidator )
 
+    // Contexts are in use while their packets are simulated, waiting in the
+    // waiting room, or being executed by the datapath channel, whose ring
+    // buffer is shared by all the workers.
+    private val contextPool = new PacketContextPool(
+        config.datapath.globalIncomingBurstCapacity * 2 /
+            math.max(config.simulationThreads, 1),
+        newContext,
+        metrics,
+        clock,
+        (1 minute).toNanos,
+        log)
+
     private val invalidateExpiredConnTrackKeys =
         new Reducer[ConnTrackKey, ConnTrackValue, Unit]() {
             override def apply(u: Unit, k: ConnTrackKey, v: ConnTrackValue) {
@@ -200,24 +260,53 @@ class PacketWorkflow(
             }
         }
 
+    override def invalidateFlowsFor(tag: FlowTag): Unit = {
+        super.invalidateFlowsFor(tag)
+        if (simulationCache ne null)
+            simulationCache.invalidate(tag)
+    }
+
     system.scheduler.schedule(20 millis, 5 seconds, self, CheckBackchannels)
 
     override def receive = {
         case m: FlowStateBatch =>
-            replicator.importFromStorage(m)
+            stateImporter.enqueue(m)
+            importFlowState()
+
+        case ImportFlowState =>
+            stateImportScheduled = false
+            process()
+
+        case FlushFlowState =>
+            stateFlushScheduled = false
+            flushFlowState()
 
-        case HandlePackets(packets) =>
-            var i = 0
-            while (i < packets.length && packets(i) != null) {
-                handlePacket(packets(i))
-                i += 1
+        case HandleUpcalls =>
+            // The upcalls dropped because the ring was full are done with
+            val dropped = upcalls.takeDrops()
+            if (dropped > 0) {
+                metrics.upcallsDropped.mark(dropped)
+                packetOut(dropped)
             }
+            if (upcalls.drain(handleUpcall, maxUpcallsPerDrain))
+                self ! HandleUpcalls
             process()
 
         case CheckBackchannels =>
             process()
 
-        case RestartWorkflow(pktCtx, error) =>
+        case RestartWorkflows(on, error) =>
+            // The packets that were expired and dropped are no longer in the
+            // waiting room, and their contexts may be reused for other packets
+            restartWorkflows(waitingRoom wakeUp on, error)
+            flushFlowState()
+    }
+
+    private def restartWorkflows(pktCtxs: IndexedSeq[PacketContext],
+                                 error: Throwable): Unit = {
+        var i = 0
+        while (i < pktCtxs.size) {
+            val pktCtx = pktCtxs(i)
             if (pktCtx.idle) {
                 metrics.packetsOnHold.dec()
                 pktCtx.log.debug("Restarting workflow")
@@ -229,22 +318,77 @@ class PacketWorkflow(
                 MDC.remove("cookie")
                 FlowTracingContext.clearContext()
             }
-            // Else the packet may have already been expired and dropped
+            i += 1
+        }
     }
 
     override def shouldProcess(): Boolean =
         super.shouldProcess() ||
         genPacketEmitter.pendingPackets > 0 ||
-        arpBroker.shouldProcess()
+        arpBroker.shouldProcess() ||
+        stateImporter.isImporting
 
     override def process(): Unit = {
         super.process()
+        contextPool.reclaim(dpChannel.processedSequence)
+        contextPool.checkLeaks()
         genPacketEmitter.process(runGeneratedPacket)
         connTrackStateTable.expireIdleEntries((), invalidateExpiredConnTrackKeys)
         natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
         natLeaser.obliterateUnusedBlocks()
         traceStateTable.expireIdleEntries()
         arpBroker.process()
+        importFlowState()
+        flushFlowState()
+    }
+
+    /**
+     * Imports a bounded number of the state keys fetched from storage, and
+     * schedules the import of the remaining ones so that they are interleaved
+     * with the processing of packets.
+     */
+    private def importFlowState(): Unit =
+        if (stateImporter.isImporting) {
+            stateImporter.importKeys(maxStateKeysPerImport)
+            if (stateImporter.isImporting && !stateImportScheduled) {
+                stateImportScheduled = true
+                self ! ImportFlowState
+            }
+        }
+
+    /**
+     * Sends the aggregated flow state that has waited for the maximum delay,
+     * and schedules sending the rest.
+     */
+    private def flushFlowState(): Unit = {
+        stateAggregator.flush()
+        if (stateAggregator.hasPending && !stateFlushScheduled) {
+            stateFlushScheduled = true
+            system.scheduler.scheduleOnce(flowStateMaxDelay, self, FlushFlowState)
+        }
+    }
+
+    /**
+     * Provides the FlowStateAggregator with packet contexts, without a packet
+     * of their own, to carry its state messages to the datapath.
+     */
+    private object stateCarriers extends FlowStateAggregator.Carriers {
+        override def take(): PacketContext =
+            contextPool.take(0, null, stateMessageMatch, null)
+
+        override def release(carrier: PacketContext): Unit =
+            contextPool.release(carrier)
+
+        override def handoff(carrier: PacketContext): Unit =
+            contextPool.release(carrier, dpChannel.handoff(carrier))
+    }
+
+    private def newContext(): PacketContext = {
+        val context = new PacketContext(0, null, new FlowMatch())
+        context.reset(genPacketEmitter, arpBroker)
+        context.simulationCache = simulationCache
+        context.initialize(connTrackTx, natTx, natLeaser, traceStateTx)
+        context
     }
 
     protected def packetContext(packet: Packet): PacketContext =
@@ -258,10 +402,8 @@ class PacketWorkflow(
 
     private def initialize(packet: Packet, fmatch: FlowMatch, egressPort: UUID) = {
         val cookie = cookieGen.next
-        log.debug(s"Creating new PacketContext for cookie $cookie")
-        val context = new PacketContext(cookie, packet, fmatch, egressPort)
-        context.reset(genPacketEmitter, arpBroker)
-        context.initialize(connTrackTx, natTx, natLeaser, traceStateTx)
+        log.debug(s"Creating PacketContext for cookie $cookie")
+        val context = contextPool.take(cookie, packet, fmatch, egressPort)
         context.log = PacketTracing.loggerFor(fmatch)
         context
     }
@@ -272,14 +414,18 @@ class PacketWorkflow(
      */
     private def postponeOn(pktCtx: PacketContext, f: Future[_]) {
         pktCtx.postpone()
-        f.onComplete {
-            case Success(_) =>
-                self ! RestartWorkflow(pktCtx, null)
-            case Failure(ex) =>
-                self ! RestartWorkflow(pktCtx, ex)
-        }(ExecutionContext.callingThread)
+        // All the packets waiting on the same future are restarted together,
+        // so the callback is only registered for the first of them.
+        if (!waitingRoom.isWaitingOn(f)) {
+            f.onComplete {
+                case Success(_) =>
+                    self ! RestartWorkflows(f, null)
+                case Failure(ex) =>
+                    self ! RestartWorkflows(f, ex)
+            }(ExecutionContext.callingThread)
+        }
         metrics.packetPostponed()
-        giveUpWorkflows(waitingRoom enter pktCtx)
+        giveUpWorkflows(waitingRoom.enter(pktCtx, f))
     }
 
     private def giveUpWorkflows(pktCtxs: IndexedSeq[PacketContext]) {
@@ -298,28 +444,38 @@ class PacketWorkflow(
         }
     }
 
-    private def drop(context: PacketContext): Unit =
+    private def drop(context: PacketContext,
+                     installFlow: Boolean = true): Unit =
         try {
             if (context.ingressed) {
                 context.prepareForDrop()
-                addTranslatedFlow(context, FlowExpirationIndexer.ERROR_CONDITION_EXPIRATION)
+                if (installFlow)
+                    addTranslatedFlow(context, FlowExpirationIndexer.ERROR_CONDITION_EXPIRATION)
             }
         } catch {
             case e: Exception =>
                 context.log.error("Failed to install drop flow", e)
         } finally {
             metrics.packetsDropped.mark()
+            leaveWaitingRoom(context)
+            releaseStateCarriers(context)
+            contextPool.release(context)
         }
 
+    private def leaveWaitingRoom(context: PacketContext): Unit =
+        waitingRoom leave context
+
     private def complete(pktCtx: PacketContext, simRes: SimulationResult): Unit = {
         pktCtx.log.debug("Packet processed")
         if (pktCtx.runs > 1)
-            waitingRoom leave pktCtx
+            leaveWaitingRoom(pktCtx)
 
+        stateAggregator.sendWith(pktCtx)
         val seq = dpChannel.handoff(pktCtx)
         if (pktCtx.flow ne null) {
             pktCtx.flow.sequence = seq
         }
+        releaseStateCarriers(pktCtx, seq)
 
         if (pktCtx.ingressed) {
             val latency = NanoClock.DEFAULT.tick - pktCtx.packet.startTimeNanos
@@ -329,6 +485,25 @@ class PacketWorkflow(
                 case _ => metrics.packetSimulated(latency.toInt)
             }
         }
+        contextPool.release(pktCtx, seq)
+    }
+
+    private def releaseStateCarriers(pktCtx: PacketContext, seq: Long): Unit = {
+        val carriers = pktCtx.stateCarriers
+        var i = 0
+        while (i < carriers.size) {
+            contextPool.release(carriers.get(i), seq)
+            i += 1
+        }
+    }
+
+    private def releaseStateCarriers(pktCtx: PacketContext): Unit = {
+        val carriers = pktCtx.stateCarriers
+        var i = 0
+        while (i < carriers.size) {
+            contextPool.release(carriers.get(i))
+            i += 1
+        }
     }
 
     /**
@@ -336,6 +511,8 @@ class PacketWorkflow(
      */
     private def handleErrorOn(pktCtx: PacketContext, ex: Throwable): Unit = {
         ex match {
+            case e: MalformedFrameException =>
+                pktCtx.log.debug("Dropping malformed packet", e)
             case ArpTimeoutException(router, ip) =>
                 pktCtx.log.debug(s"ARP timeout at router $router for address $ip")
             case _: DhcpException =>
@@ -345,7 +522,9 @@ class PacketWorkflow(
             case e =>
                 pktCtx.log.warn("Exception while processing packet", e)
         }
-        drop(pktCtx)
+        // Valid packets may share the match that the kernel built for a
+        // malformed frame, so its drop flow would drop them too.
+        drop(pktCtx, installFlow = !ex.isInstanceOf[MalformedFrameException])
     }
 
     protected def startWorkflow(context: PacketContext): Unit =
@@ -383,12 +562,16 @@ class PacketWorkflow(
 
     private def handlePacket(packet: Packet): Unit =
         if (FlowStatePackets.isStateMessage(packet.getMatch)) {
-            handleStateMessage(packetContext(packet))
+            val context = packetContext(packet)
+            handleStateMessage(context)
+            contextPool.release(context)
             packetOut(1)
         } else {
             processPacket(packet)
         }
 
+    private val handleUpcall = (packet: Packet) => handlePacket(packet)
+
     private val runGeneratedPacket = (p: GeneratedPacket) => {
         log.debug(s"Executing generated packet $p")
         startWorkflow(generatedPacketContext(p.egressPort, p.eth))
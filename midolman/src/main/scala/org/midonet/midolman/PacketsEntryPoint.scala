@@ -32,10 +32,12 @@ import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.{DatapathChannel, FlowProcessor}
 import org.midonet.midolman.flows.{ShardedFlowInvalidator, FlowInvalidator}
+import org.midonet.midolman.io.UpcallRing
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.simulation.{DhcpConfigFromDataclient, DhcpConfigFromZoom}
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.FlowStateCodec.PeerVersions
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
 import org.midonet.midolman.state.{FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
@@ -49,7 +51,7 @@ object PacketsEntryPoint extends Referenceable {
 
     case object GetWorkers
 
-    case class Workers(list: IndexedSeq[ActorRef])
+    case class Workers(list: IndexedSeq[ActorRef], upcalls: IndexedSeq[UpcallRing])
 }
 
 class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
@@ -90,6 +92,7 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
     private var metrics: PacketPipelineMetrics = null
 
     protected var workers = immutable.IndexedSeq[ActorRef]()
+    protected var upcalls = immutable.IndexedSeq[UpcallRing]()
 
     @Inject
     var counter: StatisticalCounter = null
@@ -119,6 +122,7 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
     var natStateTable: ShardedFlowStateTable[NatKey, NatBinding] = _
     var natLeaser: NatLeaser = _
     var traceStateTable: ShardedFlowStateTable[TraceKey, TraceContext] = _
+    var peerVersions: PeerVersions = _
 
     override def preStart(): Unit = {
         super.preStart()
@@ -133,8 +137,14 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
             val clock = PacketsEntryPoint.this.clock
         }
         traceStateTable = new ShardedFlowStateTable(clock)
+        peerVersions = new PeerVersions
 
+        // With the one_to_many threading model a single thread reads from
+        // all the upcall channels, so it is the only producer of each ring.
+        val singleProducer = config.inputChannelThreading == "one_to_many"
         for (i <- 0 until NUM_WORKERS) {
+            upcalls :+= new UpcallRing(config.datapath.upcallRingCapacity,
+                                       singleProducer)
             workers :+= startWorker(i)
         }
         workers.awaitStart(30 seconds)
@@ -176,9 +186,11 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
             natStateTable.addShard(log = shardLogger(natStateTable)),
             traceStateTable.addShard(log = shardLogger(traceStateTable)),
             storageFactory.create(),
+            peerVersions,
             natLeaser,
             metrics,
-            counter.addAndGet(index, _: Int))
+            counter.addAndGet(index, _: Int),
+            upcalls(index))
     }
 
     private def broadcast(m: Any) { workers foreach ( _ ! m ) }
@@ -189,6 +201,6 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
 
         case CheckBackchannels => broadcast(CheckBackchannels)
 
-        case GetWorkers => sender ! Workers(workers)
+        case GetWorkers => sender ! Workers(workers, upcalls)
     }
 }
@@ -15,9 +15,27 @@
  */
 package org.midonet.midolman
 
-import scala.collection.{immutable, mutable}
+import java.util.HashMap
 import java.util.concurrent.TimeUnit
 
+import scala.collection.{immutable, mutable}
+
+object WaitingRoom {
+    // The number of ticks of the timing wheel that a timeout spans.
+    private final val TICKS_PER_TIMEOUT = 64
+
+    private final class Waiter[W](val w: W, val deadline: Long) {
+        // The waiters whose deadlines fall in the same slot of the wheel,
+        // in the order of their deadlines.
+        var prev: Waiter[W] = null
+        var next: Waiter[W] = null
+        // The waiters blocked on the same object.
+        var group: AnyRef = null
+        var groupPrev: Waiter[W] = null
+        var groupNext: Waiter[W] = null
+    }
+}
+
 /**
  * A WaitingRoom is an abstraction that allows holding Waiters for a limited
  * amount of time. Waiters are guaranteed to stay in the room for *at least*
@@ -25,15 +43,37 @@ import java.util.concurrent.TimeUnit
  * the room at any later time. Whenever this happens, users may get a
  * notification through the "leave" callback.
  *
+ * Waiters may enter the room blocked on some object, such as the future of a
+ * device being loaded, so that all the waiters blocked on it can be woken up
+ * at once with wakeUp. Woken up waiters stay in the room, with their original
+ * deadline, until they leave or enter it again blocked on another object.
+ *
+ * The deadlines are kept in a timing wheel whose slots span a fraction of the
+ * timeout, so that entering, leaving and expiring a waiter take O(1) time
+ * regardless of the number of waiters in the room.
+ *
  * This class is not thread safe, and all instances expected to be confined to
  * a thread.
  *
  * @param timeout timeout, in nanoseconds
+ * @param waited called with the nanoseconds that each waiter spent in the
+ *               room, when it leaves or times out
  */
-class WaitingRoom[W](val timeout: Long = TimeUnit.SECONDS.toNanos(3)) {
+class WaitingRoom[W](val timeout: Long = TimeUnit.SECONDS.toNanos(3),
+                     waited: Long => Unit = _ => ()) {
+    import WaitingRoom._
 
-    private[this] val waiters = new mutable.HashSet[W]()
-    private[this] val timeouts = new mutable.ListBuffer[(W, Long)]()
+    private[this] val waiters = new HashMap[W, Waiter[W]]()
+    private[this] val groups = new HashMap[AnyRef, Waiter[W]]()
+
+    // The wheel must have more slots than the ticks a timeout spans, so that
+    // each slot only holds the deadlines of a single tick.
+    private[this] val tickNanos = Math.max(1L, timeout / TICKS_PER_TIMEOUT)
+    private[this] val slots = new Array[Waiter[W]](TICKS_PER_TIMEOUT * 2)
+    private[this] val tails = new Array[Waiter[W]](TICKS_PER_TIMEOUT * 2)
+    private[this] val mask = slots.length - 1
+    private[this] val origin = System.nanoTime()
+    private[this] var expiredTick = -1L
 
     /**
      * Number of waiters currently in the room.
@@ -41,40 +81,152 @@ class WaitingRoom[W](val timeout: Long = TimeUnit.SECONDS.toNanos(3)) {
     def count = waiters.size
 
     /**
-     * Adds a new waiter w that will be kept here for a max of TIMEOUT nanos.
+     * Adds a new waiter w that will be kept here for a max of TIMEOUT nanos,
+     * blocked on the given object, if any.
      *
      * If the element is already in the waiting room, it will not be added again
-     * with the *old* waiting time unaltered.
+     * with the *old* waiting time unaltered, although it will be blocked on the
+     * given object instead.
      */
-    def enter(w: W): IndexedSeq[W] = {
+    def enter(w: W, on: AnyRef = null): IndexedSeq[W] = {
         val evictions = doExpirations()
-        if (!(waiters contains w)) {
-            waiters += w
-            timeouts += ((w, System.nanoTime() + timeout))
+        var waiter = waiters.get(w)
+        if (waiter eq null) {
+            waiter = new Waiter(w, System.nanoTime() + timeout)
+            waiters.put(w, waiter)
+            addToSlot(waiter)
+        } else {
+            removeFromGroup(waiter)
+        }
+        if (on ne null) {
+            addToGroup(waiter, on)
         }
         evictions
     }
 
-    def leave(w: W): Unit = {
-        waiters -= w
+    /**
+     * Removes the waiter from the room, returning the nanoseconds it waited,
+     * or -1 if it wasn't in the room.
+     */
+    def leave(w: W): Long = {
+        val waiter = waiters.remove(w)
+        if (waiter ne null) {
+            removeFromSlot(waiter)
+            removeFromGroup(waiter)
+            val nanos = System.nanoTime() - (waiter.deadline - timeout)
+            waited(nanos)
+            nanos
+        } else {
+            -1L
+        }
+    }
+
+    /**
+     * Whether there are waiters blocked on the given object.
+     */
+    def isWaitingOn(on: AnyRef): Boolean = groups.containsKey(on)
+
+    /**
+     * Unblocks the waiters blocked on the given object, returning them. They
+     * remain in the room until they leave it or time out.
+     */
+    def wakeUp(on: AnyRef): IndexedSeq[W] = {
+        var waiter = groups.remove(on)
+        if (waiter eq null)
+            return immutable.Vector.empty
+
+        while (waiter.groupPrev ne null) {
+            waiter = waiter.groupPrev
+        }
+        val woken = mutable.ArrayBuffer[W]()
+        while (waiter ne null) {
+            val next = waiter.groupNext
+            waiter.group = null
+            waiter.groupPrev = null
+            waiter.groupNext = null
+            woken += waiter.w
+            waiter = next
+        }
+        woken
     }
 
     def doExpirations(): IndexedSeq[W] = {
         var evictions: mutable.ArrayBuffer[W] = null
         val now = System.nanoTime()
-        while (timeouts.nonEmpty && (now - timeouts.head._2) > 0) {
-            val w = (timeouts remove 0)._1
-            if (waiters contains w) {
+        val nowTick = (now - origin) / tickNanos
+        var tick = Math.max(expiredTick + 1, nowTick - mask)
+        while (tick <= nowTick) {
+            val slot = (tick & mask).toInt
+            var waiter = slots(slot)
+            // The deadlines of the slot are in order, so the expired waiters
+            // are the ones at its head.
+            while ((waiter ne null) && (now - waiter.deadline) > 0) {
                 if (evictions == null)
                     evictions = mutable.ArrayBuffer()
-                evictions += w
-                waiters -= w
+                evictions += waiter.w
+                waiters.remove(waiter.w)
+                removeFromSlot(waiter)
+                removeFromGroup(waiter)
+                waited(now - (waiter.deadline - timeout))
+                waiter = slots(slot)
             }
+            tick += 1
         }
+        expiredTick = nowTick - 1
 
         if (evictions == null)
             immutable.Vector.empty
         else
             evictions
     }
+
+    private def addToSlot(waiter: Waiter[W]): Unit = {
+        val slot = (((waiter.deadline - origin) / tickNanos) & mask).toInt
+        val tail = tails(slot)
+        if (tail eq null) {
+            slots(slot) = waiter
+        } else {
+            tail.next = waiter
+            waiter.prev = tail
+        }
+        tails(slot) = waiter
+    }
+
+    private def removeFromSlot(waiter: Waiter[W]): Unit = {
+        val slot = (((waiter.deadline - origin) / tickNanos) & mask).toInt
+        if (waiter.prev eq null) slots(slot) = waiter.next
+        else waiter.prev.next = waiter.next
+        if (waiter.next eq null) tails(slot) = waiter.prev
+        else waiter.next.prev = waiter.prev
+        waiter.prev = null
+        waiter.next = null
+    }
+
+    // The groups map each object to the last waiter blocked on it.
+    private def addToGroup(waiter: Waiter[W], on: AnyRef): Unit = {
+        val tail = groups.put(on, waiter)
+        if (tail ne null) {
+            tail.groupNext = waiter
+            waiter.groupPrev = tail
+        }
+        waiter.group = on
+    }
+
+    private def removeFromGroup(waiter: Waiter[W]): Unit = {
+        val group = waiter.group
+        if (group ne null) {
+            if (waiter.groupNext ne null) {
+                waiter.groupNext.groupPrev = waiter.groupPrev
+            } else if (waiter.groupPrev ne null) {
+                groups.put(group, waiter.groupPrev)
+            } else {
+                groups.remove(group)
+            }
+            if (waiter.groupPrev ne null)
+                waiter.groupPrev.groupNext = waiter.groupNext
+            waiter.group = null
+            waiter.groupPrev = null
+            waiter.groupNext = null
+        }
+    }
 }
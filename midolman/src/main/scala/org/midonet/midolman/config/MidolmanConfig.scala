@@ -79,6 +79,10 @@ class MidolmanConfig(_conf: Config, val schema: Config = ConfigFactory.empty())
 
     def lockMemory = getBoolean(s"$PREFIX.midolman.lock_memory")
 
+    def flowStateFetchPageSize = getInt(s"$PREFIX.midolman.flow_state_fetch_page_size")
+    def flowStateImportBatchSize = getInt(s"$PREFIX.midolman.flow_state_import_batch_size")
+    def simulationCacheSize = getInt(s"$PREFIX.midolman.simulation_cache_size")
+
     val bridge = new BridgeConfig(conf, schema)
     val router = new RouterConfig(conf, schema)
     val zookeeper = new MidonetBackendConfig(conf)
@@ -114,6 +118,11 @@ class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFa
 
     def maxFlowCount = getInt(s"$PREFIX.max_flow_count")
 
+    def flowCreateBatching = getBoolean(s"$PREFIX.flow_create_batching")
+    def flowCreateBatchSize = getInt(s"$PREFIX.flow_create_batch_size_kb") * 1024
+
+    def packetExecuteBatchSize = getInt(s"$PREFIX.packet_execute_batch_size_kb") * 1024
+
     def vxlanVtepUdpPort = getInt(s"$PREFIX.vxlan_vtep_udp_port")
     def vxlanOverlayUdpPort = getInt(s"$PREFIX.vxlan_overlay_udp_port")
 
@@ -122,7 +131,11 @@ class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def tunnelIncomingBurstCapacity = getInt(s"$PREFIX.tunnel_incoming_burst_capacity")
     def vtepIncomingBurstCapacity = getInt(s"$PREFIX.vtep_incoming_burst_capacity")
 
+    def upcallRingCapacity = getInt(s"$PREFIX.upcall_ring_capacity")
+
     def controlPacketTos: Byte = getInt(s"$PREFIX.control_packet_tos").toByte
+
+    def flowStateMaxDelay = getDuration(s"$PREFIX.flow_state_max_delay", TimeUnit.MILLISECONDS)
 }
 
 class ArpTableConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -22,6 +22,12 @@ import org.midonet.midolman.simulation.PacketContext
 trait DatapathChannel {
     def handoff(context: PacketContext): Long
 
+    /**
+     * The sequence up to which the handed off contexts have been processed,
+     * after which they are no longer used by the datapath channel.
+     */
+    def processedSequence: Long
+
     def start(): Unit
     def stop(): Unit
 }
@@ -64,4 +70,6 @@ class DisruptorDatapathChannel(ringBuffer: RingBuffer[PacketContextHolder],
         ringBuffer.publish(seq)
         seq
     }
+
+    def processedSequence: Long = ringBuffer.getMinimumGatingSequence
 }
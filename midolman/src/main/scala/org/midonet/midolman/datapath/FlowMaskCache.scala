@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.datapath
+
+import java.nio.ByteBuffer
+
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
+
+import org.midonet.Util
+import org.midonet.midolman.monitoring.metrics.FlowTablesMeter
+import org.midonet.netlink.NetlinkSerializable
+import org.midonet.odp.{FlowMask, FlowMatch}
+
+object FlowMaskCache {
+
+    /**
+     * A flow mask serialized in advance, whose attributes are copied as they
+     * are into the flow create messages.
+     */
+    final class SerializedFlowMask(bytes: Array[Byte], description: String)
+        extends NetlinkSerializable {
+
+        override def serializeInto(buffer: ByteBuffer): Int = {
+            buffer.put(bytes)
+            bytes.length
+        }
+
+        override def toString = description
+    }
+}
+
+/**
+ * Caches the serialized flow masks of the flows created by the FlowProcessor.
+ * The flow mask of a FlowMatch only depends on its shape, as given by
+ * FlowMask.shapeOf(), and most flows share a small number of shapes, so the
+ * mask attributes are calculated and serialized once per shape. Serializing
+ * equal masks into identical attributes also lets the datapath share them
+ * between flows.
+ *
+ * The cache holds at most maxMasks shapes; the masks of other shapes are
+ * calculated for each flow.
+ *
+ * This class is not thread-safe.
+ */
+final class FlowMaskCache(maxMasks: Int, metrics: MetricRegistry) {
+    import FlowMaskCache._
+
+    private val capacity = Util.findNextPositivePowerOfTwo(Math.max(maxMasks, 8) * 2)
+    private val mask = capacity - 1
+    private val shapes = new Array[Long](capacity)
+    private val masks = new Array[SerializedFlowMask](capacity)
+    private var size = 0
+
+    private val flowMask = new FlowMask()
+    private val serializationBuf = ByteBuffer.allocate(4096)
+
+    private val hits = metrics.meter(name(
+        classOf[FlowTablesMeter], "flowMaskCacheHits"))
+    private val misses = metrics.meter(name(
+        classOf[FlowTablesMeter], "flowMaskCacheMisses"))
+
+    /**
+     * Returns the serialized flow mask for the specified FlowMatch.
+     */
+    def maskFor(flowMatch: FlowMatch): NetlinkSerializable = {
+        val shape = FlowMask.shapeOf(flowMatch)
+        var slot = indexOf(shape)
+        var cached = masks(slot)
+        while (cached ne null) {
+            if (shapes(slot) == shape) {
+                hits.mark()
+                return cached
+            }
+            slot = (slot + 1) & mask
+            cached = masks(slot)
+        }
+
+        misses.mark()
+        val serialized = serialize(flowMatch)
+        if (size < maxMasks) {
+            shapes(slot) = shape
+            masks(slot) = serialized
+            size += 1
+        }
+        serialized
+    }
+
+    private def serialize(flowMatch: FlowMatch): SerializedFlowMask =
+        try {
+            flowMask.calculateFor(flowMatch)
+            flowMask.serializeInto(serializationBuf)
+            serializationBuf.flip()
+            val bytes = new Array[Byte](serializationBuf.remaining())
+            serializationBuf.get(bytes)
+            new SerializedFlowMask(bytes, flowMask.toString)
+        } finally {
+            flowMask.clear()
+            serializationBuf.clear()
+        }
+
+    private def indexOf(shape: Long): Int = {
+        val hash = shape * 0x9E3779B97F4A7C15L
+        (hash ^ (hash >>> 32)).toInt & mask
+    }
+}
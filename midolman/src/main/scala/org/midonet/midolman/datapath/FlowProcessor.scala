@@ -19,6 +19,8 @@ package org.midonet.midolman.datapath
 import java.nio.{BufferOverflowException, ByteBuffer}
 import java.util.ArrayList
 
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
 import com.lmax.disruptor.{Sequencer, LifecycleAware, EventPoller}
 import org.midonet.midolman.DatapathState
 import rx.Observer
@@ -27,10 +29,12 @@ import org.slf4j.LoggerFactory
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.midolman.datapath.DisruptorDatapathChannel._
+import org.midonet.midolman.flows.ManagedFlow
+import org.midonet.midolman.monitoring.metrics.{FlowTablesHistogram, FlowTablesMeter}
 import org.midonet.netlink._
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.odp._
-import org.midonet.odp.flows.{FlowAction, FlowKey}
+import org.midonet.odp.flows.FlowAction
 import org.midonet.Util
 import org.midonet.util.concurrent.{NanoClock, Backchannel}
 
@@ -46,14 +50,38 @@ object FlowProcessor {
         classOf[FlowProcessor].getDeclaredField("lastSequence"))
 
     private val MAX_BUF_CAPACITY = 4 * 1024 * 1024
+
+    /**
+     * Flow creates don't go through the NetlinkRequestBroker, so we give them
+     * sequence numbers outside of its range. The sequence number indexes a
+     * slot where we record the flow being created, so that an error reply can
+     * be matched back to its flow.
+     */
+    private val FLOW_CREATE_SEQ_BASE = 1 << 30
+    private val FLOW_CREATE_SLOTS = 4096
+    private val FLOW_CREATE_SLOTS_MASK = FLOW_CREATE_SLOTS - 1
+
+    private val MAX_CACHED_FLOW_MASKS = 1024
 }
 
+/**
+ * Writes the flow creates handed off by the packet workers to the datapath and
+ * handles the flow gets and deletes requested by the FlowController.
+ *
+ * When flowCreateBatchSize is greater than zero, consecutive flow creates are
+ * packed into a buffer of that size and written together in a single syscall,
+ * which happens when the Disruptor batch ends or when the buffer is full.
+ * Otherwise, each flow create is written on its own. The flow masks of the
+ * flow creates are taken from a FlowMaskCache.
+ */
 class FlowProcessor(dpState: DatapathState,
                     families: OvsNetlinkFamilies,
                     maxPendingRequests: Int,
                     maxRequestSize: Int,
                     channelFactory: NetlinkChannelFactory,
-                    clock: NanoClock)
+                    clock: NanoClock,
+                    flowCreateBatchSize: Int = 0,
+                    metrics: MetricRegistry = new MetricRegistry)
     extends EventPoller.Handler[PacketContextHolder]
     with Backchannel
     with LifecycleAware {
@@ -85,10 +113,35 @@ class FlowProcessor(dpState: DatapathState,
 
     private val protocol = new OvsProtocol(pid, families)
 
-    private val flowMask = new FlowMask()
+    private val flowMasks =
+        if (supportsMegaflow) new FlowMaskCache(MAX_CACHED_FLOW_MASKS, metrics)
+        else null
 
     private var lastSequence = Sequencer.INITIAL_CURSOR_VALUE
 
+    private val batchBuf =
+        if (flowCreateBatchSize > 0)
+            BytesUtil.instance.allocateDirect(flowCreateBatchSize)
+        else null
+    private var batchedFlows = 0
+    private var batchedSequence = Sequencer.INITIAL_CURSOR_VALUE
+
+    /**
+     * The flows whose creation is in flight, indexed by their Netlink sequence
+     * number, along with the Disruptor sequence they were created under. They
+     * are written by the processor thread and read by the replies thread, but
+     * since they're only used to report errors, we don't synchronize them:
+     * a reply whose flow has been recycled fails the sequence check below.
+     */
+    private var flowCreateSeq = 0
+    private val createdFlows = new Array[ManagedFlow](FLOW_CREATE_SLOTS)
+    private val createdSequences = new Array[Long](FLOW_CREATE_SLOTS)
+
+    private val flowsPerWrite = metrics.histogram(name(
+        classOf[FlowTablesHistogram], "datapathFlowCreatesPerWrite"))
+    private val flowCreateErrors = metrics.meter(name(
+        classOf[FlowTablesMeter], "datapathFlowCreateErrors", "datapathFlows"))
+
     override def onEvent(event: PacketContextHolder, sequence: Long,
                          endOfBatch: Boolean): Boolean = {
         val context = event.flowCreateRef
@@ -97,30 +150,54 @@ class FlowProcessor(dpState: DatapathState,
         if (context.flow ne null) {
             try {
                 val mask = if (supportsMegaflow) {
-                    flowMask.calculateFor(flowMatch)
+                    val flowMask = flowMasks.maskFor(flowMatch)
                     context.log.debug(s"Applying mask $flowMask")
                     flowMask
                 } else null
-                writeFlow(datapathId, flowMatch.getKeys,
-                          context.flowActions, mask)
-                context.log.debug("Created datapath flow")
+                val seq = trackFlowCreate(context.flow, sequence)
+                prepareFlow(datapathId, flowMatch, context.flowActions,
+                            mask, seq)
+                if (batchBuf eq null) {
+                    writer.write(writeBuf)
+                    flowsPerWrite.update(1)
+                    context.log.debug("Created datapath flow")
+                } else {
+                    batchFlow()
+                    context.log.debug("Batched datapath flow create")
+                }
             } catch { case t: Throwable =>
                 context.log.error("Failed to create datapath flow", t)
             } finally {
-                flowMask.clear()
                 writeBuf.clear()
             }
 
-            lastSequence = sequence
+            if (batchBuf eq null)
+                lastSequence = sequence
+            else
+                batchedSequence = sequence
+        }
+        if (endOfBatch && (batchBuf ne null)) {
+            flushBatch()
         }
         true
     }
 
-    private def writeFlow(datapathId: Int, keys: ArrayList[FlowKey],
-                          actions: ArrayList[FlowAction], mask: FlowMask): Unit =
+    private def trackFlowCreate(flow: ManagedFlow, sequence: Long): Int = {
+        val slot = flowCreateSeq & FLOW_CREATE_SLOTS_MASK
+        flowCreateSeq += 1
+        createdFlows(slot) = flow
+        createdSequences(slot) = sequence
+        FLOW_CREATE_SEQ_BASE | slot
+    }
+
+    private def prepareFlow(datapathId: Int, flowMatch: FlowMatch,
+                            actions: ArrayList[FlowAction],
+                            mask: NetlinkSerializable,
+                            seq: Int): Unit =
         try {
-            protocol.prepareFlowCreate(datapathId, keys, actions, mask, writeBuf)
-            writer.write(writeBuf)
+            protocol.prepareFlowCreate(datapathId, flowMatch, actions, mask,
+                                       writeBuf)
+            writeBuf.putInt(NetlinkMessage.NLMSG_SEQ_OFFSET, seq)
         } catch { case e: BufferOverflowException =>
             val capacity = writeBuf.capacity()
             if (capacity >= MAX_BUF_CAPACITY)
@@ -128,8 +205,50 @@ class FlowProcessor(dpState: DatapathState,
             val newCapacity = capacity * 2
             writeBuf = BytesUtil.instance.allocateDirect(newCapacity)
             log.debug(s"Increasing buffer size to $newCapacity")
-            writeFlow(datapathId, keys, actions, mask)
+            prepareFlow(datapathId, flowMatch, actions, mask, seq)
+        }
+
+    /**
+     * Appends the flow create prepared in the writeBuf to the batch, flushing
+     * the batch first if there isn't enough space left. A flow create larger
+     * than the whole batch buffer is written on its own.
+     */
+    private def batchFlow(): Unit = {
+        val size = NetlinkMessage.align(writeBuf.remaining())
+        if (size > batchBuf.remaining()) {
+            flushBatch()
+        }
+        if (size > batchBuf.remaining()) {
+            writer.write(writeBuf)
+            flowsPerWrite.update(1)
+        } else {
+            val start = batchBuf.position()
+            batchBuf.put(writeBuf)
+            batchBuf.position(start + size)
+            batchedFlows += 1
+        }
+    }
+
+    /**
+     * Writes all the batched flow creates in one go and then lets the
+     * FlowController eject any of those flows.
+     */
+    private def flushBatch(): Unit = {
+        if (batchedFlows > 0) {
+            batchBuf.flip()
+            try {
+                writer.write(batchBuf)
+                flowsPerWrite.update(batchedFlows)
+                log.debug(s"Wrote $batchedFlows flow creates")
+            } catch { case t: Throwable =>
+                log.error(s"Failed to write $batchedFlows flow creates", t)
+            } finally {
+                batchBuf.clear()
+                batchedFlows = 0
+            }
         }
+        lastSequence = batchedSequence
+    }
 
     def capacity = broker.capacity
 
@@ -147,7 +266,7 @@ class FlowProcessor(dpState: DatapathState,
         if (disruptorSeq >= sequence && { brokerSeq = broker.nextSequence()
                                           brokerSeq } != NetlinkRequestBroker.FULL) {
             try {
-                protocol.prepareFlowDelete(datapathId, flowMatch.getKeys, broker.get(brokerSeq))
+                protocol.prepareFlowDelete(datapathId, flowMatch, broker.get(brokerSeq))
                 broker.publishRequest(brokerSeq, obs)
             } catch { case e: Throwable =>
                 obs.onError(e)
@@ -186,7 +305,11 @@ class FlowProcessor(dpState: DatapathState,
 
         override def onError(e: Throwable): Unit = e match {
             case ne: NetlinkException if ne.getErrorCodeEnum == NetlinkException.ErrorCode.EEXIST =>
-                log.debug("Tried to add duplicate DP flow")
+                log.debug(s"Tried to add duplicate DP flow ${flowCreateFor(ne.getSeq)}")
+            case ne: NetlinkException if isFlowCreate(ne.getSeq) =>
+                flowCreateErrors.mark()
+                log.warn(s"Failed to create DP flow ${flowCreateFor(ne.getSeq)} " +
+                         s"with error code ${ne.getErrorCodeEnum}")
             case ne: NetlinkException =>
                 log.warn(s"Unexpected error with code ${ne.getErrorCodeEnum}; " +
                          "probably the late answer of a request that timed out")
@@ -195,6 +318,21 @@ class FlowProcessor(dpState: DatapathState,
         override def onNext(t: ByteBuffer): Unit = { }
     }
 
+    private def isFlowCreate(seq: Int): Boolean =
+        (seq & FLOW_CREATE_SEQ_BASE) != 0
+
+    private def flowCreateFor(seq: Int): String =
+        if (isFlowCreate(seq)) {
+            val slot = seq & FLOW_CREATE_SLOTS_MASK
+            val flow = createdFlows(slot)
+            if ((flow ne null) && flow.sequence == createdSequences(slot))
+                flow.toString
+            else
+                "(recycled)"
+        } else {
+            "(unknown)"
+        }
+
     val replies = new Thread("flow-processor-replies") {
         override def run(): Unit =
             while (channel.isOpen) {
@@ -16,11 +16,11 @@
 
 package org.midonet.midolman.datapath
 
-import java.nio.BufferOverflowException
+import java.nio.{BufferOverflowException, ByteBuffer}
 import java.util._
 
-import com.google.protobuf.{MessageLite, CodedOutputStream}
-
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
 import com.typesafe.scalalogging.Logger
 import org.midonet.midolman.DatapathState
 import org.slf4j.LoggerFactory
@@ -28,12 +28,12 @@ import org.slf4j.LoggerFactory
 import com.lmax.disruptor.{EventHandler, LifecycleAware}
 
 import org.midonet.midolman.datapath.DisruptorDatapathChannel._
+import org.midonet.midolman.monitoring.metrics.PacketPipelineHistogram
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.netlink._
 import org.midonet.odp.flows.FlowAction
 import org.midonet.odp._
 import org.midonet.packets.FlowStateEthernet
-import org.midonet.util.FixedArrayOutputStream
 
 trait StatePacketExecutor {
     val log: Logger
@@ -42,40 +42,54 @@ trait StatePacketExecutor {
      * TODO: Use MTU
      */
     private val stateBuf = new Array[Byte](FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH)
-    private val stream = new FixedArrayOutputStream(stateBuf)
     private val udpShell: FlowStateEthernet = new FlowStateEthernet(stateBuf)
     private val statePacket = new Packet(udpShell, FlowMatches.fromEthernetPacket(udpShell))
 
-    def prepareStatePacket(message: MessageLite): Packet = {
-        val messageSizeVariantLength = CodedOutputStream.computeRawVarint32Size(
-            message.getSerializedSize)
-        val messageLength = message.getSerializedSize + messageSizeVariantLength
-        stream.reset()
-        try {
-            message.writeDelimitedTo(stream)
-            udpShell.limit(messageLength)
-        } catch {
-            case _: IndexOutOfBoundsException =>
-                // TODO(guillermo) partition messages
-                log.warn(s"Skipping state packet, too large: $message")
-            case e: Throwable =>
-                log.warn("Failed to write state packet due to", e)
-        }
+    /**
+     * Copies an encoded state message, which is at most
+     * FLOW_STATE_MAX_PAYLOAD_LENGTH bytes long, into the state packet.
+     */
+    def prepareStatePacket(message: ByteBuffer): Packet = {
+        val messageLength = message.remaining()
+        System.arraycopy(message.array(), message.arrayOffset() + message.position(),
+                         stateBuf, 0, messageLength)
+        udpShell.limit(messageLength)
         statePacket
     }
 }
 
 object PacketExecutor {
     private val MAX_BUF_CAPACITY = 4 * 1024 * 1024
+
+    /**
+     * The number of consecutive Disruptor sequences handled by an executor
+     * before the next executor takes over, so that each executor can pack
+     * the packets of a range together.
+     */
+    private val SEQUENCE_RANGE = 64
 }
 
+/**
+ * Executes the packets handed off by the packet workers. When there are
+ * several executors, they take turns over ranges of SEQUENCE_RANGE
+ * consecutive Disruptor sequences.
+ *
+ * When batchSize is greater than zero, the packet executes of a Disruptor
+ * batch are packed into a buffer of that size and written together in a
+ * single syscall, which happens when the batch ends or when the buffer is
+ * full. Otherwise, each packet execute is written on its own.
+ */
 sealed class PacketExecutor(dpState: DatapathState,
                             families: OvsNetlinkFamilies,
                             numHandlers: Int, index: Int,
-                            channelFactory: NetlinkChannelFactory)
+                            channelFactory: NetlinkChannelFactory,
+                            batchSize: Int = 0,
+                            metrics: MetricRegistry = new MetricRegistry)
     extends EventHandler[PacketContextHolder]
     with LifecycleAware with StatePacketExecutor {
 
+    import PacketExecutor._
+
     val log = Logger(LoggerFactory.getLogger(s"org.midonet.datapath.packet-executor-$index"))
 
     private val datapathId = dpState.datapath.getIndex
@@ -94,14 +108,59 @@ sealed class PacketExecutor(dpState: DatapathState,
     private val writer = new NetlinkBlockingWriter(channel)
     private val reader = new NetlinkReader(channel)
 
+    private val batchBuf =
+        if (batchSize > 0) BytesUtil.instance.allocateDirect(batchSize)
+        else null
+    private var batchedPackets = 0
+
+    // The range of sequences owned by this executor, where rangeEnd is the
+    // first sequence after it.
+    private var rangeStart = 0L
+    private var rangeEnd = 0L
+
+    private val packetsPerWrite = metrics.histogram(name(
+        classOf[PacketPipelineHistogram], "packetExecutesPerWrite"))
+
     override def onEvent(event: PacketContextHolder, sequence: Long,
-                         endOfBatch: Boolean): Unit =
-        if (sequence % numHandlers == index) {
+                         endOfBatch: Boolean): Unit = {
+        if (owns(sequence)) {
+            execute(event)
+        }
+        if (endOfBatch && (batchBuf ne null)) {
+            flushBatch()
+        }
+    }
+
+    /**
+     * Whether the sequence belongs to one of the ranges of this executor,
+     * moving to the next range owned by this executor once past the current
+     * one.
+     */
+    private def owns(sequence: Long): Boolean = {
+        if (sequence >= rangeEnd) {
+            val range = sequence / SEQUENCE_RANGE
+            val owner = range % numHandlers
+            val next = range + (index - owner + numHandlers) % numHandlers
+            rangeStart = next * SEQUENCE_RANGE
+            rangeEnd = rangeStart + SEQUENCE_RANGE
+        }
+        sequence >= rangeStart
+    }
+
+    private def execute(event: PacketContextHolder): Unit = {
             val context = event.packetExecRef
             event.packetExecRef = null
             val actions = context.packetActions
             val packet = context.packet
-            if (actions.size > 0 && packet.getReason != Packet.Reason.FlowActionUserspace) {
+            executeStateCarriers(datapathId, context)
+            if (packet eq null) {
+                // An aggregated state message, without a packet of its own
+                try {
+                    maybeExecuteStatePacket(datapathId, context)
+                } catch { case t: Throwable =>
+                    log.error("Failed to execute flow state message", t)
+                }
+            } else if (actions.size > 0 && packet.getReason != Packet.Reason.FlowActionUserspace) {
                 try {
                     maybeExecuteStatePacket(datapathId, context)
                     executePacket(datapathId, packet, actions)
@@ -110,7 +169,25 @@ sealed class PacketExecutor(dpState: DatapathState,
                     context.log.error(s"Failed to execute packet", t)
                 }
             }
+    }
+
+    /**
+     * Executes the state messages handed off along with the packet, which
+     * must reach their peers before the packet does.
+     */
+    private def executeStateCarriers(datapathId: Int,
+                                     context: PacketContext): Unit = {
+        val carriers = context.stateCarriers
+        var i = 0
+        while (i < carriers.size) {
+            try {
+                maybeExecuteStatePacket(datapathId, carriers.get(i))
+            } catch { case t: Throwable =>
+                context.log.error("Failed to execute flow state message", t)
+            }
+            i += 1
         }
+    }
 
     private def maybeExecuteStatePacket(datapathId: Int, context: PacketContext): Unit = {
         val actions = context.stateActions
@@ -128,19 +205,69 @@ sealed class PacketExecutor(dpState: DatapathState,
 
     private def executePacket(datapathId: Int, packet: Packet,
                               actions: ArrayList[FlowAction]): Unit =
+        try {
+            preparePacket(datapathId, packet, actions)
+            if (batchBuf eq null) {
+                writer.write(writeBuf)
+                packetsPerWrite.update(1)
+            } else {
+                batchPacket()
+            }
+        } finally {
+            writeBuf.clear()
+        }
+
+    private def preparePacket(datapathId: Int, packet: Packet,
+                              actions: ArrayList[FlowAction]): Unit =
         try {
             protocol.preparePacketExecute(datapathId, packet, actions, writeBuf)
-            writer.write(writeBuf)
         } catch { case e: BufferOverflowException =>
             val capacity = writeBuf.capacity()
-            if (capacity >= PacketExecutor.MAX_BUF_CAPACITY)
+            if (capacity >= MAX_BUF_CAPACITY)
                 throw e
             val newCapacity = capacity * 2
             writeBuf = BytesUtil.instance.allocateDirect(newCapacity)
             log.debug(s"Increasing buffer size to $newCapacity")
-            executePacket(datapathId, packet, actions)
-        } finally {
-            writeBuf.clear()
+            preparePacket(datapathId, packet, actions)
+        }
+
+    /**
+     * Appends the packet execute prepared in the writeBuf to the batch,
+     * flushing the batch first if there isn't enough space left. A packet
+     * execute larger than the whole batch buffer is written on its own.
+     */
+    private def batchPacket(): Unit = {
+        val size = NetlinkMessage.align(writeBuf.remaining())
+        if (size > batchBuf.remaining()) {
+            flushBatch()
+        }
+        if (size > batchBuf.remaining()) {
+            writer.write(writeBuf)
+            packetsPerWrite.update(1)
+        } else {
+            val start = batchBuf.position()
+            batchBuf.put(writeBuf)
+            batchBuf.position(start + size)
+            batchedPackets += 1
+        }
+    }
+
+    /**
+     * Writes all the batched packet executes in one go.
+     */
+    private def flushBatch(): Unit =
+        if (batchedPackets > 0) {
+            batchBuf.flip()
+            try {
+                writer.write(batchBuf)
+                packetsPerWrite.update(batchedPackets)
+                log.debug(s"Executed $batchedPackets packets")
+            } catch { case t: Throwable =>
+                log.error(s"Failed to execute $batchedPackets packets", t)
+            } finally {
+                batchBuf.clear()
+                batchedPackets = 0
+            }
         }
 
     private def processError(): Unit =
@@ -16,8 +16,6 @@
 
 package org.midonet.midolman.flows
 
-import java.util.ArrayDeque
-
 import scala.concurrent.duration._
 
 import com.typesafe.scalalogging.Logger
@@ -44,12 +42,35 @@ object FlowExpirationIndexer {
         val typeId = 3
     }
 
-    private final val maxType = 4
+    // The timing wheel ticks every 2^20 nanoseconds (~1ms) and has 5 levels
+    // of 64 slots each, so that it spans 2^50 nanoseconds (~13 days). Flows
+    // expiring later than that are parked in the last level and rescheduled.
+    private final val TICK_SHIFT = 20
+    private final val LEVEL_BITS = 6
+    private final val LEVELS = 5
+    private final val SLOTS_PER_LEVEL = 1 << LEVEL_BITS
+    private final val SLOT_MASK = SLOTS_PER_LEVEL - 1
+    private final val PENDING_SLOT = LEVELS * SLOTS_PER_LEVEL
+    private final val UNLINKED = -1
+
+    // The maximum number of flows expired by each call to checkFlowsExpiration,
+    // so that a burst of expirations is spread over several calls instead of
+    // stalling the packet worker.
+    private final val MAX_EXPIRATIONS_PER_CHECK = 1024
 }
 
 /**
  * This trait deals with flow expiration. It registers all new flows and removes
  * them when the specified expiration time has elapsed.
+ *
+ * Flows are kept in a hierarchical timing wheel, linked through intrusive
+ * fields of the ManagedFlow, so that scheduling, cancelling and expiring a
+ * flow are all O(1). Newly registered flows are scheduled on the next check,
+ * after the wheel has caught up with the current time. Flows are also kept in
+ * a list in registration order, from which the oldest ones are evicted when
+ * there are more flows than allowed. Eviction is thus FIFO rather than LRU:
+ * packets that hit a flow are handled by the datapath and never reach the
+ * agent, so a flow isn't refreshed when it's used.
  */
 trait FlowExpirationIndexer extends FlowIndexer {
     import FlowExpirationIndexer._
@@ -57,50 +78,167 @@ trait FlowExpirationIndexer extends FlowIndexer {
     val log: Logger
     val maxFlows: Int
 
-    private val expirationQueues = new Array[ArrayDeque[ManagedFlow]](maxType)
+    // The heads of the lists of flows in each slot, followed by the list of
+    // flows pending to be scheduled.
+    private val slots = new Array[ManagedFlow](PENDING_SLOT + 1)
+    private val flowsPerLevel = new Array[Int](LEVELS)
+    private var scheduledFlows = 0
+    private var currentTick = 0L
+    private var started = false
+    private var backlogged = false
 
-    {
-        expirationQueues(ERROR_CONDITION_EXPIRATION.typeId) = new ArrayDeque(maxFlows / 3)
-        expirationQueues(FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows)
-        expirationQueues(STATEFUL_FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows)
-        expirationQueues(TUNNEL_FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows / 3)
-    }
+    private var oldestFlow: ManagedFlow = null
+    private var newestFlow: ManagedFlow = null
+    private var registeredFlows = 0
 
     abstract override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
-        expirationQueues(flow.expirationType).addLast(flow)
+        link(flow, PENDING_SLOT)
+        appendToEvictionList(flow)
         flow.ref()
     }
 
+    abstract override def removeFlow(flow: ManagedFlow): Unit = {
+        super.removeFlow(flow)
+        if (flow.timerSlot != UNLINKED) {
+            unlink(flow)
+            removeFromEvictionList(flow)
+            flow.unref()
+        }
+    }
+
+    /**
+     * Whether the last check left expired flows behind, because it reached
+     * the maximum number of expirations it processes at once.
+     */
+    def hasExpiredFlows: Boolean = backlogged
+
     def checkFlowsExpiration(now: Long): Unit = {
         checkHardTimeOutExpiration(now)
         manageFlowTableSize()
     }
 
     private def checkHardTimeOutExpiration(now: Long): Unit = {
-        var i = 0
-        while (i < maxType) {
-            var flow: ManagedFlow = null
-            val queue = expirationQueues(i)
-            while (({ flow = queue.peekFirst(); flow } ne null) &&
-                   now >= flow.absoluteExpirationNanos) {
+        val nowTick = now >> TICK_SHIFT
+        if (!started) {
+            currentTick = nowTick
+            started = true
+        }
+        schedulePendingFlows()
+
+        var budget = MAX_EXPIRATIONS_PER_CHECK
+        var advancing = true
+        while (advancing) {
+            budget = expireSlot(currentTick.toInt & SLOT_MASK, now, budget)
+            if (budget > 0 && currentTick < nowTick) {
+                advance(nowTick)
+            } else {
+                advancing = false
+            }
+        }
+        backlogged = budget == 0
+    }
+
+    private def schedulePendingFlows(): Unit = {
+        var flow: ManagedFlow = null
+        while ({ flow = slots(PENDING_SLOT); flow } ne null) {
+            unlink(flow)
+            schedule(flow)
+        }
+    }
+
+    /**
+     * Links the flow to the slot for its expiration, relative to the current
+     * tick. A flow is kept in the lowest level whose slots cover the time left
+     * until it expires; it is moved down a level when its slot is reached.
+     */
+    private def schedule(flow: ManagedFlow): Unit = {
+        var expirationTick = flow.absoluteExpirationNanos >> TICK_SHIFT
+        val delta = expirationTick - currentTick
+        if (delta < 0) {
+            link(flow, currentTick.toInt & SLOT_MASK)
+        } else {
+            if (delta >= (1L << (LEVELS * LEVEL_BITS))) {
+                expirationTick = currentTick + (1L << (LEVELS * LEVEL_BITS)) - 1
+            }
+            var level = 0
+            while (level < LEVELS - 1 &&
+                   expirationTick - currentTick >= (1L << ((level + 1) * LEVEL_BITS))) {
+                level += 1
+            }
+            val index = (expirationTick >> (level * LEVEL_BITS)).toInt & SLOT_MASK
+            link(flow, level * SLOTS_PER_LEVEL + index)
+        }
+    }
+
+    /**
+     * Expires the flows of the specified first level slot that are due,
+     * returning the remaining budget of expirations.
+     */
+    private def expireSlot(slot: Int, now: Long, budget: Int): Int = {
+        var remaining = budget
+        var flow = slots(slot)
+        while ((flow ne null) && remaining > 0) {
+            val next = flow.timerNext
+            if (now >= flow.absoluteExpirationNanos) {
                 log.debug(s"Removing flow $flow for hard expiration")
-                removeFlow(queue.pollFirst())
+                unlink(flow)
+                removeFromEvictionList(flow)
+                removeFlow(flow)
                 flow.unref()
+                remaining -= 1
             }
-            i += 1
+            flow = next
         }
+        remaining
     }
 
-    private def manageFlowTableSize(): Unit = {
-        var excessFlows = 0
-        var i = 0
-        while (i < maxType) {
-            excessFlows += expirationQueues(i).size()
-            i += 1
+    /**
+     * Moves the wheel forward, up to the specified tick. The wheel moves one
+     * tick at a time while there are flows in the first level; otherwise, it
+     * skips to the next slot of the lowest non-empty level. When the current
+     * tick reaches the start of a slot in the upper levels, the flows in that
+     * slot are rescheduled into the lower levels.
+     */
+    private def advance(nowTick: Long): Unit = {
+        if (scheduledFlows == 0) {
+            currentTick = nowTick
+            return
+        }
+        var level = 0
+        while (flowsPerLevel(level) == 0) {
+            level += 1
+        }
+        val shift = level * LEVEL_BITS
+        val nextTick = ((currentTick >> shift) + 1) << shift
+        if (nextTick > nowTick) {
+            currentTick = nowTick
+            return
+        }
+        currentTick = nextTick
+        level = LEVELS - 1
+        while (level > 0) {
+            val levelShift = level * LEVEL_BITS
+            if ((currentTick & ((1L << levelShift) - 1)) == 0) {
+                cascade(level * SLOTS_PER_LEVEL +
+                        ((currentTick >> levelShift).toInt & SLOT_MASK))
+            }
+            level -= 1
+        }
+    }
+
+    private def cascade(slot: Int): Unit = {
+        var flow = slots(slot)
+        while (flow ne null) {
+            val next = flow.timerNext
+            unlink(flow)
+            schedule(flow)
+            flow = next
         }
-        excessFlows -= maxFlows
+    }
 
+    private def manageFlowTableSize(): Unit = {
+        val excessFlows = registeredFlows - maxFlows
         if (excessFlows > 0) {
             log.debug(s"Evicting $excessFlows excess flows")
             removeOldestDpFlows(excessFlows)
@@ -108,18 +246,75 @@ trait FlowExpirationIndexer extends FlowIndexer {
     }
 
     private def removeOldestDpFlows(numFlowsToEvict: Int): Unit = {
-        var i = 0
         var evicted = 0
-        while (i < maxType) {
-            val queue = expirationQueues(i)
-            var flow: ManagedFlow = null
-            while (evicted < numFlowsToEvict &&
-                   ({ flow = queue.pollFirst(); flow } ne null)) {
-                removeFlow(flow)
-                flow.unref()
-                evicted += 1
-            }
-            i += 1
+        var flow: ManagedFlow = null
+        while (evicted < numFlowsToEvict &&
+               ({ flow = oldestFlow; flow } ne null)) {
+            unlink(flow)
+            removeFromEvictionList(flow)
+            removeFlow(flow)
+            flow.unref()
+            evicted += 1
+        }
+    }
+
+    private def link(flow: ManagedFlow, slot: Int): Unit = {
+        val head = slots(slot)
+        flow.timerSlot = slot
+        flow.timerPrev = null
+        flow.timerNext = head
+        if (head ne null)
+            head.timerPrev = flow
+        slots(slot) = flow
+        if (slot != PENDING_SLOT) {
+            flowsPerLevel(slot >> LEVEL_BITS) += 1
+            scheduledFlows += 1
         }
     }
+
+    private def unlink(flow: ManagedFlow): Unit = {
+        val slot = flow.timerSlot
+        val prev = flow.timerPrev
+        val next = flow.timerNext
+        if (prev ne null)
+            prev.timerNext = next
+        else
+            slots(slot) = next
+        if (next ne null)
+            next.timerPrev = prev
+        if (slot != PENDING_SLOT) {
+            flowsPerLevel(slot >> LEVEL_BITS) -= 1
+            scheduledFlows -= 1
+        }
+        flow.timerSlot = UNLINKED
+        flow.timerPrev = null
+        flow.timerNext = null
+    }
+
+    private def appendToEvictionList(flow: ManagedFlow): Unit = {
+        flow.evictionPrev = newestFlow
+        flow.evictionNext = null
+        if (newestFlow ne null)
+            newestFlow.evictionNext = flow
+        else
+            oldestFlow = flow
+        newestFlow = flow
+        registeredFlows += 1
+    }
+
+    private def removeFromEvictionList(flow: ManagedFlow): Unit = {
+        val prev = flow.evictionPrev
+        val next = flow.evictionNext
+        if (prev ne null)
+            prev.evictionNext = next
+        else
+            oldestFlow = next
+        if (next ne null)
+            next.evictionPrev = prev
+        else
+            newestFlow = prev
+        flow.evictionPrev = null
+        flow.evictionNext = null
+        registeredFlows -= 1
+    }
 }
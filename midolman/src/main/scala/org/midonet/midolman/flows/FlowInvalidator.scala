@@ -16,31 +16,58 @@
 
 package org.midonet.midolman.flows
 
-import java.util.ArrayList
-
-import org.jctools.queues.MpscArrayQueue
+import java.util.{ArrayList, Collections}
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue}
 
 import org.midonet.midolman.{CheckBackchannels, PacketsEntryPoint}
 import org.midonet.midolman.services.MidolmanActorsService
 import org.midonet.sdn.flows.FlowTagger.FlowTag
-import org.midonet.util.concurrent.WakerUpper.Parkable
 
 trait FlowInvalidator {
     def scheduleInvalidationFor(tag: FlowTag): Unit
+
+    /**
+     * Schedules the invalidation of a batch of tags, such as all the tags
+     * invalidated by a topology update.
+     */
+    def scheduleInvalidationForAll(tags: TraversableOnce[FlowTag]): Unit =
+        tags foreach scheduleInvalidationFor
+
     def hasInvalidations: Boolean
     def process(handler: FlowInvalidationHandler): Unit
 }
 
 trait FlowInvalidationHandler {
     def invalidateFlowsFor(tag: FlowTag): Unit
+
+    /**
+     * Called once the flows of a batch of tags have been invalidated, with
+     * the time elapsed, in nanoseconds, since the batch was scheduled.
+     */
+    def invalidationCompleted(latencyNanos: Long): Unit = { }
+}
+
+object ShardedFlowInvalidator {
+    private final class InvalidationBatch(val tags: ArrayList[FlowTag],
+                                          val scheduledAt: Long)
 }
 
+/**
+ * Broadcasts the tags to invalidate to all the packet workers, where each
+ * worker registers a shard.
+ *
+ * The tags are scheduled in batches, so that the workers are woken up once
+ * per batch rather than once per tag. Each shard keeps the set of tags
+ * pending invalidation, and a tag scheduled again while it's pending is
+ * coalesced with the pending one, so a burst of invalidations for the same
+ * tags doesn't grow the shards. Scheduling never blocks.
+ */
 // TODO: having to pass the actorsService here, ugly as it
 //       may be, is an artifact of our bootstrap process
 final class ShardedFlowInvalidator(actorsService: MidolmanActorsService)
     extends FlowInvalidator {
+    import ShardedFlowInvalidator._
 
-    private val NO_SHARD: FlowInvalidatorShard = null
     private val processors = new ArrayList[FlowInvalidatorShard]()
 
     def registerProcessor(): FlowInvalidatorShard = {
@@ -52,20 +79,32 @@ final class ShardedFlowInvalidator(actorsService: MidolmanActorsService)
     /**
      * Broadcasts this tag to all invalidation processors.
      */
-    override def scheduleInvalidationFor(tag: FlowTag): Unit =
-        scheduleInvalidationInOthers(NO_SHARD, tag)
+    override def scheduleInvalidationFor(tag: FlowTag): Unit = {
+        val tags = new ArrayList[FlowTag](1)
+        tags.add(tag)
+        schedule(tags)
+    }
+
+    /**
+     * Broadcasts these tags to all invalidation processors, as one batch.
+     */
+    override def scheduleInvalidationForAll(tags: TraversableOnce[FlowTag]): Unit = {
+        val batch = new ArrayList[FlowTag]()
+        tags foreach batch.add
+        if (!batch.isEmpty)
+            schedule(batch)
+    }
 
-    private def scheduleInvalidationInOthers(
-            shardToSkip: FlowInvalidatorShard,
-            tag: FlowTag): Unit = {
+    private def schedule(tags: ArrayList[FlowTag]): Unit = {
+        val scheduledAt = System.nanoTime()
+        var scheduled = false
         var i = 0
         while (i < processors.size()) {
-            val p = processors.get(i)
-            if (p ne shardToSkip)
-                p.scheduleInvalidationFor(tag)
+            scheduled |= processors.get(i).enqueue(tags, scheduledAt)
             i += 1
         }
-        PacketsEntryPoint.getRef()(actorsService.system) ! CheckBackchannels
+        if (scheduled)
+            PacketsEntryPoint.getRef()(actorsService.system) ! CheckBackchannels
     }
 
     override def hasInvalidations: Boolean = {
@@ -81,35 +120,75 @@ final class ShardedFlowInvalidator(actorsService: MidolmanActorsService)
      override def process(handler: FlowInvalidationHandler): Unit =
         throw new Exception("Calling process on the main flow invalidator is not supported")
 
-    final class FlowInvalidatorShard extends FlowInvalidator with Parkable {
-        private val MAX_PENDING_INVALIDATIONS = 1024
+    final class FlowInvalidatorShard extends FlowInvalidator {
 
-        private val q = new MpscArrayQueue[FlowTag](MAX_PENDING_INVALIDATIONS)
+        private val pending = Collections.newSetFromMap(
+            new ConcurrentHashMap[FlowTag, java.lang.Boolean]())
+        private val batches = new ConcurrentLinkedQueue[InvalidationBatch]()
 
         /**
          * Broadcasts this tag to all invalidation processors.
          */
-        override def scheduleInvalidationFor(tag: FlowTag): Unit = {
-            while (!q.offer(tag)) {
-                park(retries = 0)
+        override def scheduleInvalidationFor(tag: FlowTag): Unit =
+            ShardedFlowInvalidator.this.scheduleInvalidationFor(tag)
+
+        /**
+         * Broadcasts these tags to all invalidation processors.
+         */
+        override def scheduleInvalidationForAll(tags: TraversableOnce[FlowTag]): Unit =
+            ShardedFlowInvalidator.this.scheduleInvalidationForAll(tags)
+
+        /**
+         * Adds the tags that aren't already pending in this shard as a new
+         * batch, returning whether there were any.
+         */
+        private[ShardedFlowInvalidator] def enqueue(tags: ArrayList[FlowTag],
+                                                    scheduledAt: Long): Boolean = {
+            var batch: ArrayList[FlowTag] = null
+            var i = 0
+            while (i < tags.size()) {
+                val tag = tags.get(i)
+                if (pending.add(tag)) {
+                    if (batch eq null)
+                        batch = new ArrayList[FlowTag](tags.size() - i)
+                    batch.add(tag)
+                }
+                i += 1
+            }
+            if (batch ne null) {
+                batches.offer(new InvalidationBatch(batch, scheduledAt))
+                true
+            } else {
+                false
             }
-            scheduleInvalidationInOthers(this, tag)
         }
 
+        /**
+         * The number of distinct tags pending invalidation.
+         */
+        def pendingTags: Int = pending.size()
+
         override def hasInvalidations: Boolean =
-            q.size() < MAX_PENDING_INVALIDATIONS
+            !batches.isEmpty
 
         /**
          * Processes the invalidations in this instance.
          */
         override def process(handler: FlowInvalidationHandler): Unit = {
-            var tag: FlowTag = null
-            while ({ tag = q.poll(); tag } ne null) {
-                handler.invalidateFlowsFor(tag)
+            var batch: InvalidationBatch = null
+            while ({ batch = batches.poll(); batch } ne null) {
+                var i = 0
+                while (i < batch.tags.size()) {
+                    val tag = batch.tags.get(i)
+                    // The tag is no longer pending once its invalidation
+                    // starts, so that scheduling it again from now on
+                    // invalidates the flows created in the meantime.
+                    pending.remove(tag)
+                    handler.invalidateFlowsFor(tag)
+                    i += 1
+                }
+                handler.invalidationCompleted(System.nanoTime() - batch.scheduledAt)
             }
         }
-
-        override def shouldWakeUp(): Boolean =
-            hasInvalidations
     }
 }
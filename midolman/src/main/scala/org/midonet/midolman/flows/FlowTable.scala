@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import org.midonet.Util
+import org.midonet.odp.FlowMatch
+
+/**
+ * An open-addressing hash table holding the ManagedFlows of a packet worker,
+ * keyed by their FlowMatch. It replaces a java.util.HashMap, avoiding its
+ * per-entry objects: the table consists of two flat arrays, one with the
+ * cached 64-bit hash of each FlowMatch and another with the pooled ManagedFlow
+ * instances. Probing compares the hashes stored inline in the array, so that
+ * a FlowMatch is only dereferenced when its hash matches.
+ *
+ * Collisions are resolved by linear probing and removals are done by shifting
+ * back the subsequent entries of the cluster, so there are no tombstones. The
+ * table is kept at most half full, doubling its size when needed; it is thus
+ * initially sized for the expected number of flows, so that it never grows
+ * in the common case.
+ *
+ * This class is not thread-safe.
+ */
+final class FlowTable(expectedFlows: Int) {
+
+    private var capacity =
+        Util.findNextPositivePowerOfTwo(Math.max(expectedFlows, 8) * 2)
+    private var mask = capacity - 1
+    private var hashes = new Array[Long](capacity)
+    private var flows = new Array[ManagedFlow](capacity)
+    private var occupied = 0
+
+    def size: Int = occupied
+
+    def isEmpty: Boolean = occupied == 0
+
+    /**
+     * Gets the flow indexed under a FlowMatch equal to the specified one, or
+     * null if there is no such flow.
+     */
+    def get(flowMatch: FlowMatch): ManagedFlow = {
+        val slot = find(flowMatch, flowMatch.longHashCode())
+        if (slot >= 0) flows(slot) else null
+    }
+
+    def contains(flowMatch: FlowMatch): Boolean =
+        find(flowMatch, flowMatch.longHashCode()) >= 0
+
+    /**
+     * Indexes the specified flow under its FlowMatch, returning the flow
+     * it replaces or null if there wasn't any.
+     */
+    def put(flow: ManagedFlow): ManagedFlow = {
+        val hash = flow.flowMatch.longHashCode()
+        var slot = indexOf(hash)
+        var existing = flows(slot)
+        while (existing ne null) {
+            if (hashes(slot) == hash && flow.flowMatch.equals(existing.flowMatch)) {
+                flows(slot) = flow
+                return existing
+            }
+            slot = (slot + 1) & mask
+            existing = flows(slot)
+        }
+        hashes(slot) = hash
+        flows(slot) = flow
+        occupied += 1
+        if (occupied > (capacity >> 1)) {
+            grow()
+        }
+        null
+    }
+
+    /**
+     * Removes the specified flow, but only if it is the very instance indexed
+     * under its FlowMatch. Returns whether the flow was removed.
+     */
+    def remove(flow: ManagedFlow): Boolean = {
+        val hash = flow.flowMatch.longHashCode()
+        var slot = indexOf(hash)
+        var existing = flows(slot)
+        while (existing ne null) {
+            if (existing eq flow) {
+                delete(slot)
+                return true
+            }
+            slot = (slot + 1) & mask
+            existing = flows(slot)
+        }
+        false
+    }
+
+    private def find(flowMatch: FlowMatch, hash: Long): Int = {
+        var slot = indexOf(hash)
+        var existing = flows(slot)
+        while (existing ne null) {
+            if (hashes(slot) == hash && flowMatch.equals(existing.flowMatch))
+                return slot
+            slot = (slot + 1) & mask
+            existing = flows(slot)
+        }
+        -1
+    }
+
+    /**
+     * Empties the specified slot and shifts back the entries that follow it
+     * in the probing sequence and that would otherwise become unreachable.
+     */
+    private def delete(slot: Int): Unit = {
+        var hole = slot
+        var next = (slot + 1) & mask
+        while (flows(next) ne null) {
+            val home = indexOf(hashes(next))
+            // The entry at next can fill the hole unless its home slot lies
+            // cyclically within (hole, next].
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                hashes(hole) = hashes(next)
+                flows(hole) = flows(next)
+                hole = next
+            }
+            next = (next + 1) & mask
+        }
+        hashes(hole) = 0L
+        flows(hole) = null
+        occupied -= 1
+    }
+
+    private def grow(): Unit = {
+        val oldHashes = hashes
+        val oldFlows = flows
+        capacity <<= 1
+        mask = capacity - 1
+        hashes = new Array[Long](capacity)
+        flows = new Array[ManagedFlow](capacity)
+        var i = 0
+        while (i < oldFlows.length) {
+            val flow = oldFlows(i)
+            if (flow ne null) {
+                var slot = indexOf(oldHashes(i))
+                while (flows(slot) ne null) {
+                    slot = (slot + 1) & mask
+                }
+                hashes(slot) = oldHashes(i)
+                flows(slot) = flow
+            }
+            i += 1
+        }
+    }
+
+    private def indexOf(hash: Long): Int =
+        hash.toInt & mask
+}
@@ -22,49 +22,235 @@ import com.typesafe.scalalogging.Logger
 
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 
+object FlowTagIndexer {
+    // The maximum number of flows removed by invalidations between calls to
+    // invalidatePendingFlows, so that invalidating a tag shared by many flows
+    // is spread over several calls instead of stalling the packet worker.
+    private final val MAX_INVALIDATIONS_PER_CYCLE = 1024
+
+    /**
+     * The flows with a tag, as an array of entries holding the id of each
+     * flow in the index and the position of the tag among the tags of the
+     * flow, so that removing a flow from the list is O(1).
+     */
+    private final class TaggedFlows(val tag: FlowTag, val id: Int) {
+        var entries = new Array[Long](4)
+        var size = 0
+
+        def add(flowId: Int, tagIndex: Int): Int = {
+            if (size == entries.length)
+                entries = Arrays.copyOf(entries, size * 2)
+            entries(size) = (flowId.toLong << 32) | tagIndex
+            size += 1
+            size - 1
+        }
+    }
+
+    /**
+     * A batch of invalidations whose flows are still being removed, with
+     * the time it was scheduled at and the number of tags that must have
+     * been drained for all of its flows to be removed.
+     */
+    private final class PendingBatch(val scheduledAt: Long, val tags: Long)
+
+    /** Hands out integer ids, reusing the released ones. */
+    private final class Ids {
+        private var released = new Array[Int](16)
+        private var numReleased = 0
+        private var next = 0
+
+        def take(): Int =
+            if (numReleased > 0) {
+                numReleased -= 1
+                released(numReleased)
+            } else {
+                next += 1
+                next - 1
+            }
+
+        def release(id: Int): Unit = {
+            if (numReleased == released.length)
+                released = Arrays.copyOf(released, numReleased * 2)
+            released(numReleased) = id
+            numReleased += 1
+        }
+    }
+}
+
+/**
+ * This trait indexes the flows by their tags, so that the flows with a tag
+ * can be removed when it is invalidated.
+ *
+ * Tags are interned to integer ids, and the flows of each tag are kept in a
+ * primitive array of flow ids, in which each flow remembers its position.
+ * This way, registering or removing a flow takes O(tags) time without
+ * hashing the flow, and removing all the flows of a tag doesn't rebuild any
+ * set. Tags without flows are dropped from the index.
+ *
+ * Invalidating a tag detaches its flows from the index right away, so that
+ * the flows created afterwards with that tag aren't affected, but only up to
+ * a maximum number of flows are removed between calls to
+ * invalidatePendingFlows. The rest are removed by the next calls. The
+ * latency of a batch of invalidations is thus reported to
+ * invalidatedFlowsRemoved once the flows of all of its tags are removed.
+ */
 trait FlowTagIndexer extends FlowIndexer with FlowInvalidationHandler {
-    private val tagToFlows = new HashMap[FlowTag, Set[ManagedFlow]]()
+    import FlowTagIndexer._
+
+    private val tagToFlows = new HashMap[FlowTag, TaggedFlows]()
+    private var taggedFlows = new Array[TaggedFlows](64)
+    private val tagIds = new Ids()
+    private var flows = new Array[ManagedFlow](1024)
+    private val flowIds = new Ids()
+
+    private val pendingInvalidations = new ArrayDeque[TaggedFlows]()
+    private var invalidationBudget = MAX_INVALIDATIONS_PER_CYCLE
+    private var tagsQueued = 0L
+    private var tagsDrained = 0L
+    private val pendingBatches = new ArrayDeque[PendingBatch]()
+
     val log: Logger
 
+    /**
+     * Called once the flows of a batch of invalidated tags have all been
+     * removed, with the time elapsed, in nanoseconds, since the batch was
+     * scheduled.
+     */
+    protected def invalidatedFlowsRemoved(latencyNanos: Long): Unit = { }
+
     abstract override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
+        val flowId = flowIds.take()
+        if (flowId == flows.length)
+            flows = Arrays.copyOf(flows, flowId * 2)
+        flows(flowId) = flow
+        flow.tagIndexId = flowId
+
         val numTags = flow.tags.size()
+        if (numTags > flow.tagIds.length) {
+            flow.tagIds = new Array[Int](numTags)
+            flow.tagPositions = new Array[Int](numTags)
+        }
         var i = 0
         while (i < numTags) {
-            getOrAdd(flow.tags.get(i)).add(flow)
+            val tagFlows = getOrAdd(flow.tags.get(i))
+            flow.tagIds(i) = tagFlows.id
+            flow.tagPositions(i) = tagFlows.add(flowId, i)
             i += 1
         }
+        flow.indexedTags = numTags
     }
 
     abstract override def removeFlow(flow: ManagedFlow): Unit = {
         super.removeFlow(flow)
-        val numTags = flow.tags.size()
-        var i = 0
-        while (i < numTags) {
-            val flows = tagToFlows.get(flow.tags.get(i))
-            if (flows ne null)
-                flows.remove(flow)
-            i += 1
-        }
+        unindex(flow)
     }
 
     def invalidateFlowsFor(tag: FlowTag): Unit = {
-        val flows = tagToFlows.remove(tag)
-        log.debug(s"Invalidating ${if (flows ne null) flows.size() else 0} flows for tag $tag")
-        if (flows ne null) {
-            val it = flows.iterator()
-            while (it.hasNext) {
-                removeFlow(it.next())
+        val tagFlows = tagToFlows.remove(tag)
+        log.debug(s"Invalidating ${if (tagFlows ne null) tagFlows.size else 0} flows for tag $tag")
+        if (tagFlows ne null) {
+            pendingInvalidations.add(tagFlows)
+            tagsQueued += 1
+            removePendingFlows()
+        }
+    }
+
+    override def invalidationCompleted(latencyNanos: Long): Unit =
+        if (tagsDrained == tagsQueued) {
+            invalidatedFlowsRemoved(latencyNanos)
+        } else {
+            val scheduledAt = System.nanoTime() - latencyNanos
+            pendingBatches.add(new PendingBatch(scheduledAt, tagsQueued))
+        }
+
+    /**
+     * Whether there are flows of invalidated tags left to remove.
+     */
+    def hasPendingInvalidations: Boolean = !pendingInvalidations.isEmpty
+
+    /**
+     * Starts a new cycle of invalidations, removing the flows left behind by
+     * the previous ones.
+     */
+    def invalidatePendingFlows(): Unit = {
+        invalidationBudget = MAX_INVALIDATIONS_PER_CYCLE
+        removePendingFlows()
+    }
+
+    private def removePendingFlows(): Unit = {
+        while (invalidationBudget > 0 && !pendingInvalidations.isEmpty) {
+            val tagFlows = pendingInvalidations.peek()
+            if (tagFlows.size == 0) {
+                pendingInvalidations.poll()
+                tagsDrained += 1
+                completePendingBatches()
+            } else {
+                // The flow is unindexed first, as the flow may not be removed
+                // if it was already removed from the datapath.
+                val entry = tagFlows.entries(tagFlows.size - 1)
+                val flow = flows((entry >>> 32).toInt)
+                unindex(flow)
+                removeFlow(flow)
+                invalidationBudget -= 1
             }
         }
+        if (!pendingInvalidations.isEmpty) {
+            log.debug(s"Deferring the invalidation of " +
+                      s"${pendingInvalidations.peek().size} flows")
+        }
+    }
+
+    private def completePendingBatches(): Unit =
+        while (!pendingBatches.isEmpty &&
+               pendingBatches.peek().tags <= tagsDrained) {
+            val batch = pendingBatches.poll()
+            invalidatedFlowsRemoved(System.nanoTime() - batch.scheduledAt)
+        }
+
+    private def unindex(flow: ManagedFlow): Unit = {
+        val flowId = flow.tagIndexId
+        if (flowId >= 0) {
+            var i = 0
+            while (i < flow.indexedTags) {
+                removeAt(taggedFlows(flow.tagIds(i)), flow.tagPositions(i))
+                i += 1
+            }
+            flow.tagIndexId = -1
+            flow.indexedTags = 0
+            flows(flowId) = null
+            flowIds.release(flowId)
+        }
+    }
+
+    /* Removes an entry by moving the last one in its place. */
+    private def removeAt(tagFlows: TaggedFlows, position: Int): Unit = {
+        tagFlows.size -= 1
+        if (position != tagFlows.size) {
+            val moved = tagFlows.entries(tagFlows.size)
+            tagFlows.entries(position) = moved
+            flows((moved >>> 32).toInt).tagPositions(moved.toInt) = position
+        }
+        if (tagFlows.size == 0) {
+            // Invalidated tags are no longer in the map, and the tag may have
+            // been interned again in the meantime.
+            if (tagToFlows.get(tagFlows.tag) eq tagFlows)
+                tagToFlows.remove(tagFlows.tag)
+            taggedFlows(tagFlows.id) = null
+            tagIds.release(tagFlows.id)
+        }
     }
 
-    private def getOrAdd(tag: FlowTag): Set[ManagedFlow] = {
-        var set = tagToFlows.get(tag)
-        if (set eq null) {
-            set = Collections.newSetFromMap(new IdentityHashMap())
-            tagToFlows.put(tag, set)
+    private def getOrAdd(tag: FlowTag): TaggedFlows = {
+        var tagFlows = tagToFlows.get(tag)
+        if (tagFlows eq null) {
+            val tagId = tagIds.take()
+            if (tagId == taggedFlows.length)
+                taggedFlows = Arrays.copyOf(taggedFlows, tagId * 2)
+            tagFlows = new TaggedFlows(tag, tagId)
+            taggedFlows(tagId) = tagFlows
+            tagToFlows.put(tag, tagFlows)
         }
-        set
+        tagFlows
     }
 }
@@ -39,6 +39,22 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
     var absoluteExpirationNanos = 0L
     var sequence = 0L
 
+    // Intrusive links used by the FlowExpirationIndexer to keep the flow in
+    // a slot of its timing wheel and in its eviction order.
+    var timerSlot = -1
+    var timerPrev: ManagedFlow = _
+    var timerNext: ManagedFlow = _
+    var evictionPrev: ManagedFlow = _
+    var evictionNext: ManagedFlow = _
+
+    // Used by the FlowTagIndexer: the id of the flow in the index and, for
+    // each of its tags, the id of the tag and the position of the flow in the
+    // list of flows with that tag.
+    var tagIndexId = -1
+    var indexedTags = 0
+    var tagIds = new Array[Int](16)
+    var tagPositions = new Array[Int](16)
+
     def reset(flowMatch: FlowMatch, flowTags: HashSet[FlowTag],
               flowRemovedCallbacks: ArrayList[Callback0], sequence: Long,
               expiration: Expiration, now: Long): Unit = {
@@ -44,7 +44,8 @@ object UpcallChannelsTest {
         val packetHandler: ActorRef
         override def askForWorkers()(implicit ec: ExecutionContext,
                                               as: ActorSystem) =
-            Future successful Workers(Vector(packetHandler))
+            Future successful Workers(Vector(packetHandler),
+                                      Vector(new UpcallRing(1024, singleProducer = false)))
         override def getDispatcher()(implicit as: ActorSystem) =
             NetlinkCallbackDispatcher.makeBatchCollector(Some(dispatcher))(as)
     }
@@ -52,6 +52,12 @@ trait UpcallDatapathConnectionManager {
         (implicit ec: ExecutionContext, as: ActorSystem): Future[_]
 }
 
+object UpcallDatapathConnectionManagerBase {
+    /** The time an upcall waits for room in the ring of its worker before
+      * it is dropped. */
+    val RING_FULL_WAIT = TimeUnit.MILLISECONDS.toNanos(1)
+}
+
 /**
  * Base class for specific UpcallDatapathConnectionManager's, depending on
  * the possible threading model.
@@ -60,6 +66,8 @@ abstract class UpcallDatapathConnectionManagerBase(
         val config: MidolmanConfig,
         val tbPolicy: TokenBucketPolicy) extends UpcallDatapathConnectionManager {
 
+    import UpcallDatapathConnectionManagerBase._
+
     protected val log: Logger
 
     protected def makeConnection(name: String, bucket: Bucket)
@@ -164,24 +172,21 @@ abstract class UpcallDatapathConnectionManagerBase(
                                    (implicit as: ActorSystem) =
         new BatchCollector[Packet] {
 
-            val BATCH_SIZE: Int = 16
             val NUM_WORKERS = workers.list.length
-            var packets = Array.ofDim[Packet](workers.list.length, BATCH_SIZE)
-            var cursors = Array.fill[Int](NUM_WORKERS)(0)
+            val pending = new Array[Boolean](NUM_WORKERS)
             val log = LoggerFactory.getLogger("PacketInHook")
 
-            def endBatch(worker: Int) {
-                if (cursors(worker) > 0) {
-                    workers.list(worker) ! PacketWorkflow.HandlePackets(packets(worker))
-                    cursors(worker) = 0
-                    packets(worker) = new Array[Packet](BATCH_SIZE)
-                }
-            }
+            private def notify(worker: Int): Unit =
+                if (workers.upcalls(worker).shouldNotify())
+                    workers.list(worker) ! PacketWorkflow.HandleUpcalls
 
             override def endBatch() {
                 var i = 0
                 while (i < NUM_WORKERS) {
-                    endBatch(i)
+                    if (pending(i)) {
+                        pending(i) = false
+                        notify(i)
+                    }
                     i += 1
                 }
             }
@@ -192,22 +197,60 @@ abstract class UpcallDatapathConnectionManagerBase(
                 data.startTimeNanos = NanoClock.DEFAULT.tick
 
                 if (FlowStatePackets.isStateMessage(data.getMatch)) {
+                    // All the workers process the packet, so its match
+                    // is never released.
+                    data.retainMatch()
                     var i = 0
                     while (i < NUM_WORKERS) {
-                        addToWorkerBatch(i, data)
+                        broadcastToWorkerRing(i, data)
                         i += 1
                     }
                 } else {
                     val worker = Math.abs(data.getMatch.connectionHash) % NUM_WORKERS
-                    addToWorkerBatch(worker, data)
+                    addToWorkerRing(worker, data)
+                }
+            }
+
+            /**
+             * Hands a packet to a worker, waiting at most RING_FULL_WAIT for
+             * the worker to make room in its ring before dropping it.
+             */
+            private def addToWorkerRing(worker: Int, data: Packet): Unit = {
+                val ring = workers.upcalls(worker)
+                if (!ring.offer(data)) {
+                    log.debug("Upcall ring of worker {} is full", worker)
+                    val deadline = NanoClock.DEFAULT.tick + RING_FULL_WAIT
+                    var offered = false
+                    do {
+                        notify(worker)
+                        Thread.`yield`()
+                        offered = ring.offer(data)
+                    } while (!offered && NanoClock.DEFAULT.tick < deadline)
+                    if (!offered) {
+                        drop(worker, ring, data)
+                    }
+                }
+                pending(worker) = true
+            }
+
+            /**
+             * Hands a packet that every worker processes to a worker,
+             * dropping it right away if its ring is full: a single stalled
+             * worker must not hold back the upcalls of all the others.
+             */
+            private def broadcastToWorkerRing(worker: Int, data: Packet): Unit = {
+                val ring = workers.upcalls(worker)
+                if (!ring.offer(data)) {
+                    drop(worker, ring, data)
                 }
+                pending(worker) = true
             }
 
-            private def addToWorkerBatch(worker: Int, data: Packet): Unit = {
-                packets(worker)(cursors(worker)) = data
-                cursors(worker) += 1
-                if (cursors(worker) == BATCH_SIZE)
-                    endBatch(worker)
+            private def drop(worker: Int, ring: UpcallRing, data: Packet): Unit = {
+                log.debug("Dropping packet, upcall ring of worker {} is full",
+                          worker)
+                data.releaseMatch()
+                ring.dropped()
             }
         }
 }
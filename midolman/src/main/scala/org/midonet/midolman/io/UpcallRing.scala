@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.io
+
+import java.util.Queue
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+
+import org.jctools.queues.{MpscArrayQueue, SpscArrayQueue}
+
+import org.midonet.odp.Packet
+
+/**
+ * A bounded ring through which the upcall threads hand packets over to a
+ * packet worker, without allocating per packet or per batch. It is backed by
+ * a single-producer queue when all the upcall channels are served by a single
+ * thread, and by a multi-producer queue otherwise.
+ *
+ * The worker is woken up through its mailbox, but only when it may have gone
+ * idle: the producer notifies the worker when it publishes packets and the
+ * ring is not already scheduled; the worker clears the scheduled flag once it
+ * has drained the ring, and keeps it if there are more packets to process.
+ *
+ * The ring doesn't need to be sized for the worst case: the number of packets
+ * in flight is bounded by the tokens of the TokenBucketPolicy, which are only
+ * returned to the system after the workers process the packets. If the ring
+ * fills up nonetheless, the producer waits a bounded time for the worker to
+ * make room, which stops it from reading more packets from the upcall
+ * channels, and then drops the packet. The dropped packets are counted in
+ * the ring, so that the worker can account for them as if it had processed
+ * them.
+ */
+final class UpcallRing(capacity: Int, singleProducer: Boolean) {
+
+    private val queue: Queue[Packet] =
+        if (singleProducer) new SpscArrayQueue[Packet](capacity)
+        else new MpscArrayQueue[Packet](capacity)
+
+    private val scheduled = new AtomicBoolean(false)
+    private val drops = new AtomicInteger(0)
+
+    /**
+     * Publishes a packet, returning false if the ring is full.
+     */
+    def offer(packet: Packet): Boolean =
+        queue.offer(packet)
+
+    /**
+     * Called by the producer when it drops a packet that didn't fit.
+     */
+    def dropped(): Unit =
+        drops.incrementAndGet()
+
+    /**
+     * Called by the worker, returns the number of packets dropped since the
+     * last call.
+     */
+    def takeDrops(): Int =
+        if (drops.get == 0) 0 else drops.getAndSet(0)
+
+    /**
+     * Called by the producer after publishing packets, returns whether the
+     * worker should be notified that it has packets to process.
+     */
+    def shouldNotify(): Boolean =
+        !scheduled.get && scheduled.compareAndSet(false, true)
+
+    /**
+     * Called by the worker to process at most maxPackets packets. Returns
+     * whether the worker should drain the ring again, in which case it is
+     * still scheduled and won't be notified by the producer.
+     */
+    def drain(handler: Packet => Unit, maxPackets: Int): Boolean = {
+        var drained = 0
+        var packet: Packet = null
+        while (drained < maxPackets &&
+               ({ packet = queue.poll(); packet } ne null)) {
+            handler(packet)
+            drained += 1
+        }
+        if (drained == maxPackets)
+            return true
+
+        scheduled.set(false)
+        !queue.isEmpty && scheduled.compareAndSet(false, true)
+    }
+
+    def isEmpty: Boolean = queue.isEmpty
+}
@@ -21,6 +21,7 @@ import java.util.ArrayList
 import com.codahale.metrics.{Gauge, MetricRegistry}
 import com.codahale.metrics.MetricRegistry.name
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics.CompositeLongGauge
+import org.midonet.sdn.flows.FlowTagger
 
 object PacketPipelineMetrics {
     class CompositeLongGauge() extends Gauge[Long] {
@@ -62,10 +63,20 @@ class PacketPipelineMetrics(val registry: MetricRegistry,
     val packetsDropped = registry.meter(name(
         classOf[PacketPipelineCounter], "packetsDropped", "packets"))
 
+    val upcallsDropped = registry.meter(name(
+        classOf[PacketPipelineMeter], "upcallsDropped", "packets"))
+
     val liveSimulations = registry.register(name(
         classOf[PacketPipelineGauge], "liveSimulations"),
         new Gauge[Long]{ override def getValue = 0 })
 
+    val waitingRoomSize = registry.register(name(
+        classOf[PacketPipelineGauge], "waitingRoomSize"),
+        new CompositeLongGauge())
+
+    val waitingRoomWaitTime = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "waitingRoomWaitTime"))
+
     val simulationLatency = registry.histogram(name(
         classOf[PacketPipelineHistogram], "simulationLatency"))
 
@@ -81,6 +92,46 @@ class PacketPipelineMetrics(val registry: MetricRegistry,
             classOf[FlowTablesMeter], "datapathFlowsCreated",
             "datapathFlows"))
 
+    val stateKeysPendingImport = registry.counter(name(
+        classOf[PacketPipelineGauge], "stateKeysPendingImport"))
+
+    val stateKeysImported = registry.meter(name(
+        classOf[PacketPipelineMeter], "stateKeysImported", "keys"))
+
+    val stateKeysImportedOnDemand = registry.meter(name(
+        classOf[PacketPipelineMeter], "stateKeysImportedOnDemand", "keys"))
+
+    val stateMessagesFragmented = registry.counter(name(
+        classOf[PacketPipelineCounter], "stateMessagesFragmented"))
+
+    val stateMessagesDropped = registry.counter(name(
+        classOf[PacketPipelineCounter], "stateMessagesDropped"))
+
+    val stateMessagesPartiallyDropped = registry.counter(name(
+        classOf[PacketPipelineCounter], "stateMessagesPartiallyDropped"))
+
+    val simulationCacheHits = registry.meter(name(
+        classOf[PacketPipelineMeter], "simulationCacheHits", "decisions"))
+
+    val simulationCacheMisses = registry.meter(name(
+        classOf[PacketPipelineMeter], "simulationCacheMisses", "decisions"))
+
+    val packetContextPoolHits = registry.meter(name(
+        classOf[PacketPipelineMeter], "packetContextPoolHits", "contexts"))
+
+    val packetContextPoolMisses = registry.meter(name(
+        classOf[PacketPipelineMeter], "packetContextPoolMisses", "contexts"))
+
+    val packetContextsLeaked = registry.counter(name(
+        classOf[PacketPipelineCounter], "packetContextsLeaked"))
+
+    val flowInvalidationLatency = registry.histogram(name(
+        classOf[FlowTablesHistogram], "flowInvalidationLatency"))
+
+    val internedFlowTags = registry.register(name(
+        classOf[FlowTablesGauge], "internedFlowTags"),
+        new Gauge[Long]{ override def getValue = FlowTagger.internedTags })
+
     def packetSimulated(latency: Int) {
         packetsSimulated.mark()
         simulationLatency.update(latency)
@@ -307,10 +307,13 @@ class Bridge(val id: UUID,
             return ToPortAction(toPort)
         }
 
-        val vlanInFrame: Option[JShort] = context.ethernet.getVlanIDs match {
-            case l: java.util.List[_] if !l.isEmpty => Some(l.get(0))
-            case _ => None
-        }
+        // Only looked up for ports with a vlan, so that the frame of the
+        // packet isn't parsed otherwise.
+        lazy val vlanInFrame: Option[JShort] =
+            context.ethernet.getVlanIDs match {
+                case l: java.util.List[_] if !l.isEmpty => Some(l.get(0))
+                case _ => None
+            }
 
         vlanToPort.getVlan(toPort) match {
             case null => // the outbound port has no vlan assigned
@@ -58,6 +58,9 @@ trait FlowContext extends Clearable { this: PacketContext =>
 
     var flow: ManagedFlow = _
 
+    // Collects the tags added while a stage of the simulation is recorded.
+    private var recordedTags: ArrayList[FlowTag] = null
+
     def isDrop: Boolean = flowActions.isEmpty
 
     override def clear(): Unit = {
@@ -67,8 +70,18 @@ trait FlowContext extends Clearable { this: PacketContext =>
         super.clear()
     }
 
-    def addFlowTag(tag: FlowTag): Unit =
+    def addFlowTag(tag: FlowTag): Unit = {
         flowTags.add(tag)
+        if (recordedTags ne null)
+            recordedTags.add(tag)
+    }
+
+    /**
+     * Adds the tags subsequently added to the flow to the given list as well,
+     * or stops doing so if the list is null.
+     */
+    def recordFlowTags(tags: ArrayList[FlowTag]): Unit =
+        recordedTags = tags
 
     def clearFlowTags(): Unit = {
         val it = flowTags.iterator
@@ -195,11 +208,15 @@ trait FlowContext extends Clearable { this: PacketContext =>
  * context of the same thread, the PacketContext can be safely mutated and
  * used to pass state between different simulation stages, or between virtual
  * devices.
+ *
+ * The packet workflow takes its contexts from a PacketContextPool, which
+ * reset()s them for each packet and recycle()s them once the packet has been
+ * processed.
  */
-class PacketContext(val cookie: Int,
-                    val packet: Packet,
-                    val origMatch: FlowMatch,
-                    val egressPort: UUID = null) extends Clearable
+class PacketContext(var cookie: Int,
+                    var packet: Packet,
+                    var origMatch: FlowMatch,
+                    var egressPort: UUID = null) extends Clearable
                                                  with FlowContext
                                                  with StateContext {
     var log = PacketContext.defaultLog
@@ -221,6 +238,7 @@ class PacketContext(val cookie: Int,
 
     var packetEmitter: PacketEmitter = _
     var arpBroker: ArpRequestBroker = _
+    var simulationCache: SimulationCache = _
 
     // Stores the callback to call when this flow is removed.
     val flowRemovedCallbacks = new ArrayList[Callback0]()
@@ -236,17 +254,61 @@ class PacketContext(val cookie: Int,
 
     def cookieStr = s"[cookie:$cookie]"
 
+    // Used by the PacketContextPool to track the contexts it handed out.
+    private[simulation] var released = false
+    private[simulation] var handoffSequence = 0L
+
     def reset(packetEmitter: PacketEmitter, arpBroker: ArpRequestBroker): Unit = {
         this.packetEmitter = packetEmitter
         this.arpBroker = arpBroker
     }
 
+    /**
+     * Resets a recycled context to simulate a new packet.
+     */
+    def reset(cookie: Int, packet: Packet, origMatch: FlowMatch,
+              egressPort: UUID): Unit = {
+        this.cookie = cookie
+        this.packet = packet
+        this.origMatch = origMatch
+        this.egressPort = egressPort
+        wcmatch.reset(origMatch)
+        idle = true
+        released = false
+    }
+
     override def clear(): Unit = {
         super.clear()
         flowRemovedCallbacks.runAndClear()
         wcmatch.reset(origMatch)
     }
 
+    /**
+     * Fully clears the context once its packet has been processed, so that
+     * it can be reused. Unlike clear(), it drops the flow removed callbacks
+     * without running them, since by then they belong to the flow.
+     */
+    def recycle(): Unit = {
+        flowRemovedCallbacks.clear()
+        renewTraceContext()
+        clear()
+        packetActions.clear()
+        outPorts.clear()
+        flow = null
+        stateMessage = null
+        // The datapath is done with the packet, so its match can be reused.
+        if (packet ne null)
+            packet.releaseMatch()
+        packet = null
+        portGroups = null
+        inPortId = null
+        outPortId = null
+        inputPort = null
+        log = PacketContext.defaultLog
+        idle = false
+        runs = 0
+    }
+
     def prepareForSimulation() {
         idle = false
         runs += 1
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.{ArrayDeque, IdentityHashMap, UUID}
+
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.odp.{FlowMatch, Packet}
+import org.midonet.util.collection.ArrayObjectPool
+import org.midonet.util.concurrent.NanoClock
+
+object PacketContextPool {
+    /**
+     * Whether to remember where the contexts in use were taken, so that the
+     * ones that are never released can be reported. It is enabled along with
+     * assertions, as in the test and debug runs of the agent.
+     */
+    val leakDetection = classOf[PacketContextPool].desiredAssertionStatus()
+
+    /* The sequence of contexts that were never handed off to the datapath,
+     * and that can be recycled straight away. */
+    private val NOT_HANDED_OFF = Long.MinValue
+
+    private class Lease(cookie: Int, val takenNanos: Long)
+        extends Exception(s"PacketContext for cookie $cookie taken at")
+}
+
+/**
+ * A pool of the PacketContexts used by a packet worker, so that simulating a
+ * packet doesn't allocate a new context along with its lists of actions, its
+ * tags and its wildcard match.
+ *
+ * Contexts are released once the workflow of their packet completes or is
+ * dropped. Contexts that were handed off to the datapath are still in use by
+ * the packet executors and the flow processor, so they are only recycled once
+ * the datapath channel has processed their sequence, when the worker calls
+ * reclaim(). When the pool runs out of contexts, a new one is allocated,
+ * which the pool keeps when it's released if it has room for it.
+ *
+ * This class is not thread-safe.
+ */
+final class PacketContextPool(capacity: Int,
+                              factory: () => PacketContext,
+                              metrics: PacketPipelineMetrics,
+                              clock: NanoClock,
+                              leakThresholdNanos: Long,
+                              log: Logger,
+                              leakDetection: Boolean =
+                                  PacketContextPool.leakDetection) {
+
+    import PacketContextPool._
+
+    private val pool = new ArrayObjectPool[PacketContext](capacity, _ => factory())
+    private val released = new ArrayDeque[PacketContext]()
+    private val leases =
+        if (leakDetection) new IdentityHashMap[PacketContext, Lease]() else null
+
+    def take(cookie: Int, packet: Packet, fmatch: FlowMatch,
+             egressPort: UUID): PacketContext = {
+        var context = pool.take
+        if (context eq null) {
+            metrics.packetContextPoolMisses.mark()
+            context = factory()
+        } else {
+            metrics.packetContextPoolHits.mark()
+        }
+        context.reset(cookie, packet, fmatch, egressPort)
+        if (leases ne null)
+            leases.put(context, new Lease(cookie, clock.tick))
+        context
+    }
+
+    /**
+     * Releases a context that was handed off to the datapath with the given
+     * sequence.
+     */
+    def release(context: PacketContext, sequence: Long): Unit =
+        if (context.released) {
+            log.error(s"PacketContext for cookie ${context.cookie} was " +
+                      "released twice", new Exception)
+        } else {
+            context.released = true
+            context.handoffSequence = sequence
+            released.add(context)
+        }
+
+    /**
+     * Releases a context that was not handed off to the datapath.
+     */
+    def release(context: PacketContext): Unit =
+        release(context, NOT_HANDED_OFF)
+
+    /**
+     * Recycles the released contexts that the datapath is done with, that is
+     * the ones handed off up to the given processed sequence.
+     */
+    def reclaim(processedSequence: Long): Unit =
+        while (!released.isEmpty &&
+               released.peek().handoffSequence <= processedSequence) {
+            val context = released.poll()
+            if (leases ne null)
+                leases.remove(context)
+            context.recycle()
+            pool.offer(context)
+        }
+
+    /**
+     * The number of released contexts waiting to be recycled.
+     */
+    def pending: Int = released.size
+
+    /**
+     * The number of contexts ready to be taken.
+     */
+    def available: Int = pool.available
+
+    /**
+     * Reports, when leak detection is enabled, the contexts that have been in
+     * use for longer than the leak threshold, along with where they were
+     * taken. Each leaked context is reported once.
+     */
+    def checkLeaks(): Unit =
+        if ((leases ne null) && !leases.isEmpty) {
+            val now = clock.tick
+            val it = leases.entrySet.iterator
+            while (it.hasNext) {
+                val e = it.next()
+                if (!e.getKey.released &&
+                    now - e.getValue.takenNanos > leakThresholdNanos) {
+                    log.warn("Leaked a PacketContext", e.getValue)
+                    metrics.packetContextsLeaked.inc()
+                    it.remove()
+                }
+            }
+        }
+}
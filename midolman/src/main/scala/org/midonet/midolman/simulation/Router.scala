@@ -15,7 +15,7 @@
  */
 package org.midonet.midolman.simulation
 
-import java.util.UUID
+import java.util.{List => JList, UUID}
 
 import scala.concurrent.ExecutionContext
 
@@ -60,9 +60,13 @@ object Router {
         def getFlowRemovalCallback(dstIp: IPAddr): Callback0
     }
 
+    /**
+     * Provided to the [[Router]] to look up the routes for a packet. The
+     * returned lists must not be modified.
+     */
     trait RoutingTable {
-        def lookup(flowMatch: FlowMatch): Iterable[Route]
-        def lookup(flowMatch: FlowMatch, log: Logger): Iterable[Route]
+        def lookup(flowMatch: FlowMatch): JList[Route]
+        def lookup(flowMatch: FlowMatch, log: Logger): JList[Route]
     }
 }
 
@@ -182,7 +182,6 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
 
     private def routing(inPort: RouterPort)
                        (implicit context: PacketContext): SimulationResult = {
-        val frame = context.ethernet
         val wcmatch = context.wcmatch
         val dstIP = context.wcmatch.getNetworkDstIP
 
@@ -191,7 +190,7 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
                 val ttl = Unsigned.unsign(wcmatch.getNetworkTTL)
                 if (ttl <= 1) {
                     sendAnswer(inPort.id, icmpErrors.timeExceededIcmp(
-                        inPort, wcmatch, frame))
+                        inPort, wcmatch, context.ethernet))
                     TemporaryDrop
                 } else {
                     context.wcmatch.setNetworkTTL((ttl - 1).toByte)
@@ -208,15 +207,15 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
             if (rt == null) {
                 // No route to network
                 context.log.debug(s"No route to network (dst:$dstIP)")
-                sendAnswer(inPort.id,
-                    icmpErrors.unreachableNetIcmp(inPort, wcmatch, frame))
+                sendAnswer(inPort.id, icmpErrors.unreachableNetIcmp(
+                    inPort, wcmatch, context.ethernet))
                 return (rt, Drop)
             }
 
             val action = rt.nextHop match {
                 case Route.NextHop.LOCAL if isIcmpEchoRequest(wcmatch) =>
                     context.log.debug("Got ICMP echo req, will reply")
-                    sendIcmpEchoReply(wcmatch, frame)
+                    sendIcmpEchoReply(wcmatch, context.ethernet)
                     NoOp
 
                 case Route.NextHop.LOCAL =>
@@ -236,7 +235,7 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
 
                 case Route.NextHop.REJECT =>
                     sendAnswer(inPort.id, icmpErrors.unreachableProhibitedIcmp(
-                        inPort, wcmatch, frame))
+                        inPort, wcmatch, context.ethernet))
                     context.log.debug("Dropping packet, REJECT route (dst:{})",
                         wcmatch.getNetworkDstIP)
                     Drop
@@ -303,7 +302,6 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
         implicit val packetContext = context
 
         val pMatch = context.wcmatch
-        val pFrame = context.ethernet
 
         context.outPortId = outPort.id
 
@@ -324,7 +322,7 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
             case RuleResult.Action.REJECT =>
                 context.log.debug("PostRouting REJECT rule")
                 sendAnswer(inPort.id, icmpErrors.unreachableProhibitedIcmp(
-                    inPort, pMatch, pFrame))
+                    inPort, pMatch, context.ethernet))
                 return Drop
             case other =>
                 context.log.warn(
@@ -343,12 +341,12 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
             case null if rt.nextHopGateway == 0 || rt.nextHopGateway == -1 =>
                 context.log.debug("icmp host unreachable, host mac unknown")
                 sendAnswer(inPort.id, icmpErrors.unreachableHostIcmp(
-                    inPort, pMatch, pFrame))
+                    inPort, pMatch, context.ethernet))
                 TemporaryDrop
             case null =>
                 context.log.debug("icmp net unreachable, gw mac unknown")
                 sendAnswer(inPort.id, icmpErrors.unreachableNetIcmp(
-                    inPort, pMatch, pFrame))
+                    inPort, pMatch, context.ethernet))
                 TemporaryDrop
             case nextHopMac =>
                 context.log.debug("routing packet to {}", nextHopMac)
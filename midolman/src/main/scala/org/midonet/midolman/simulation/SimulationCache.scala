@@ -0,0 +1,346 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.{ArrayList, Arrays, HashMap, IdentityHashMap, Objects, Set => JSet, UUID}
+
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.midolman.rules.RuleResult
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.odp.FlowMatch
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+object SimulationCache {
+    // The maximum number of distinct sets of fields read by a device that are
+    // cached, as each of them takes a lookup.
+    private final val MAX_FIELD_SETS = 8
+
+    // The average number of distinct tags per cached decision that the cache
+    // holds before it is cleared, which bounds the index of the decisions by
+    // tag independently of the decisions themselves.
+    private final val TAGS_PER_DECISION = 4
+
+    private val Fields = FlowMatch.Field.values()
+
+    /**
+     * The inputs of a device decision: the device, the context it was made
+     * in, and the values of the fields of the packet it read.
+     */
+    private final class Key {
+        var device: AnyRef = _
+        var ownerId: UUID = _
+        var isPortFilter: Boolean = _
+        var inPortId: UUID = _
+        var outPortId: UUID = _
+        var portGroups: JSet[UUID] = _
+        var fields: Long = _
+        var fmatch: FlowMatch = _
+        private var hash: Int = _
+
+        def set(device: AnyRef, ownerId: UUID, isPortFilter: Boolean,
+                context: PacketContext, fields: Long,
+                fmatch: FlowMatch): Key = {
+            this.device = device
+            this.ownerId = ownerId
+            this.isPortFilter = isPortFilter
+            // Port filters don't look at the ingress and egress ports.
+            this.inPortId = if (isPortFilter) null else context.inPortId
+            this.outPortId = if (isPortFilter) null else context.outPortId
+            this.portGroups = context.portGroups
+            this.fields = fields
+            this.fmatch = fmatch
+
+            var h = System.identityHashCode(device)
+            h = 31 * h + Objects.hashCode(ownerId)
+            h = 31 * h + Objects.hashCode(inPortId)
+            h = 31 * h + Objects.hashCode(outPortId)
+            h = 31 * h + System.identityHashCode(portGroups)
+            h = 31 * h + java.lang.Long.hashCode(fields)
+            var f = fields
+            while (f != 0) {
+                h = 31 * h + Fields(
+                    java.lang.Long.numberOfTrailingZeros(f)).hashCode(fmatch)
+                f &= f - 1
+            }
+            hash = h
+            this
+        }
+
+        override def hashCode: Int = hash
+
+        override def equals(other: Any): Boolean = other match {
+            case that: Key =>
+                (device eq that.device) && isPortFilter == that.isPortFilter &&
+                (portGroups eq that.portGroups) && fields == that.fields &&
+                Objects.equals(ownerId, that.ownerId) &&
+                Objects.equals(inPortId, that.inPortId) &&
+                Objects.equals(outPortId, that.outPortId) &&
+                sameFields(that.fmatch)
+            case _ => false
+        }
+
+        private def sameFields(that: FlowMatch): Boolean = {
+            var f = fields
+            while (f != 0) {
+                if (!Fields(java.lang.Long.numberOfTrailingZeros(f))
+                        .equals(fmatch, that))
+                    return false
+                f &= f - 1
+            }
+            true
+        }
+    }
+
+    /* A decision, along with the tags it is indexed under. */
+    private final class Entry(val action: Action, val tags: Array[FlowTag])
+
+    /* The sets of fields read by the cached decisions of a device, and the
+     * number of these decisions. */
+    private final class Device {
+        var fieldSets = new Array[Long](0)
+        var decisions = 0
+    }
+}
+
+/**
+ * A cache of the decisions of the devices of the virtual topology, so that
+ * packets that only differ in fields that a device doesn't read reuse its
+ * decision instead of evaluating it again. This is the case of the short
+ * lived connections between the same endpoints, whose transport ports are
+ * seldom inspected.
+ *
+ * A decision is keyed on the device instance, the ports and port groups of
+ * the packet, and the values of the fields of the match that the device read
+ * while deciding, as tracked by the match itself. A device may read different
+ * fields for different packets, so the cache keeps the sets of fields read by
+ * each device and looks up a decision for each of them. Since the decision
+ * only depends on the fields read, it holds for any packet with the same
+ * values for them.
+ *
+ * Decisions are only cached for devices whose evaluation has no effect other
+ * than tagging the flow, and such tags are added again when a decision is
+ * reused. They are dropped when any of those tags is invalidated, same as the
+ * flows they resulted in, and removed from the index of every other tag
+ * they're held under. Updated devices are new instances, so that the
+ * decisions of their previous version are no longer looked up either way,
+ * and a device is forgotten along with its last decision.
+ *
+ * The decisions, the tags that index them and the devices are each bounded,
+ * and the whole cache is cleared when any of them is full.
+ *
+ * The cache is confined to the thread of a packet processor.
+ */
+final class SimulationCache(capacity: Int, metrics: PacketPipelineMetrics) {
+    import SimulationCache._
+
+    private val decisions = new HashMap[Key, Entry]()
+    private val devices = new IdentityHashMap[AnyRef, Device]()
+    private val tagged = new HashMap[FlowTag, ArrayList[Key]]()
+    private val maxTags = capacity * TAGS_PER_DECISION
+    private val probe = new Key
+    private val recordedTags = new ArrayList[FlowTag]()
+
+    /**
+     * The number of cached decisions.
+     */
+    def size: Int = decisions.size
+
+    /**
+     * The number of tags that index the cached decisions.
+     */
+    def taggedSize: Int = tagged.size
+
+    /**
+     * The number of devices with cached decisions.
+     */
+    def devicesSize: Int = devices.size
+
+    /**
+     * Returns the cached result of applying a chain to the packet, adding the
+     * tags of the chain to its flow, or null if there is none.
+     */
+    def get(chain: Chain, context: PacketContext, ownerId: UUID,
+            isPortFilter: Boolean): RuleResult = {
+        val device = devices.get(chain)
+        if (device ne null) {
+            val sets = device.fieldSets
+            val fmatch = context.wcmatch
+            var i = 0
+            while (i < sets.length) {
+                val entry = decisions.get(probe.set(chain, ownerId, isPortFilter,
+                                                    context, sets(i), fmatch))
+                if (entry ne null) {
+                    probe.set(null, null, false, context, 0L, null)
+                    // The fields must be matched by the flow as if they
+                    // had been read.
+                    fmatch.setSeenFields(fmatch.getSeenFields | sets(i))
+                    var j = 0
+                    while (j < entry.tags.length) {
+                        context.addFlowTag(entry.tags(j))
+                        j += 1
+                    }
+                    metrics.simulationCacheHits.mark()
+                    return new RuleResult(entry.action, null)
+                }
+                i += 1
+            }
+            probe.set(null, null, false, context, 0L, null)
+        }
+        metrics.simulationCacheMisses.mark()
+        null
+    }
+
+    /**
+     * Starts recording the fields read and the tags added by a device,
+     * returning the fields read before, to be passed to stopRecording.
+     */
+    def startRecording(context: PacketContext): Long = {
+        val seenFields = context.wcmatch.getSeenFields
+        context.wcmatch.setSeenFields(0L)
+        recordedTags.clear()
+        context.recordFlowTags(recordedTags)
+        seenFields
+    }
+
+    /**
+     * Caches the result of applying a chain to the packet, given the fields
+     * read and the tags added since startRecording.
+     */
+    def put(chain: Chain, context: PacketContext, ownerId: UUID,
+            isPortFilter: Boolean, action: Action): Unit = {
+        val fields = context.wcmatch.getSeenFields
+        var device = devices.get(chain)
+        if ((device ne null) && !contains(device.fieldSets, fields) &&
+            device.fieldSets.length == MAX_FIELD_SETS)
+            return
+
+        if (decisions.size >= capacity || tagged.size >= maxTags ||
+            devices.size >= capacity) {
+            clear()
+            device = null
+        }
+
+        if (device eq null) {
+            device = new Device
+            devices.put(chain, device)
+        }
+        if (!contains(device.fieldSets, fields)) {
+            val sets = Arrays.copyOf(device.fieldSets,
+                                     device.fieldSets.length + 1)
+            sets(sets.length - 1) = fields
+            device.fieldSets = sets
+        }
+
+        val key = new Key().set(chain, ownerId, isPortFilter, context, fields,
+                                context.wcmatch.clone())
+        if (decisions.containsKey(key))
+            return
+        val tags = recordedTags.toArray(new Array[FlowTag](recordedTags.size))
+        decisions.put(key, new Entry(action, tags))
+        device.decisions += 1
+        var i = 0
+        while (i < tags.length) {
+            var keys = tagged.get(tags(i))
+            if (keys eq null) {
+                keys = new ArrayList[Key](4)
+                tagged.put(tags(i), keys)
+            }
+            keys.add(key)
+            i += 1
+        }
+    }
+
+    /**
+     * Stops recording, adding the fields read by the device to the fields
+     * read before it.
+     */
+    def stopRecording(context: PacketContext, seenFields: Long): Unit = {
+        context.recordFlowTags(null)
+        recordedTags.clear()
+        val fmatch = context.wcmatch
+        fmatch.setSeenFields(seenFields | fmatch.getSeenFields)
+    }
+
+    /**
+     * Drops the decisions that tagged their flows with the given tag.
+     */
+    def invalidate(tag: FlowTag): Unit = {
+        val keys = tagged.remove(tag)
+        if (keys ne null) {
+            var i = 0
+            while (i < keys.size) {
+                val key = keys.get(i)
+                val entry = decisions.remove(key)
+                if (entry ne null)
+                    unindex(key, entry, tag)
+                i += 1
+            }
+        }
+    }
+
+    def clear(): Unit = {
+        decisions.clear()
+        devices.clear()
+        tagged.clear()
+    }
+
+    /* Removes a dropped decision from the index of its tags, other than the
+     * one being invalidated, and from the count of its device. */
+    private def unindex(key: Key, entry: Entry, invalidated: FlowTag): Unit = {
+        var i = 0
+        while (i < entry.tags.length) {
+            val tag = entry.tags(i)
+            if (tag ne invalidated) {
+                val keys = tagged.get(tag)
+                if (keys ne null) {
+                    removeKey(keys, key)
+                    if (keys.isEmpty)
+                        tagged.remove(tag)
+                }
+            }
+            i += 1
+        }
+        val device = devices.get(key.device)
+        if (device ne null) {
+            device.decisions -= 1
+            if (device.decisions == 0)
+                devices.remove(key.device)
+        }
+    }
+
+    private def removeKey(keys: ArrayList[Key], key: Key): Unit = {
+        var i = 0
+        while (i < keys.size) {
+            if (keys.get(i) eq key) {
+                keys.set(i, keys.get(keys.size - 1))
+                keys.remove(keys.size - 1)
+                return
+            }
+            i += 1
+        }
+    }
+
+    private def contains(sets: Array[Long], fields: Long): Boolean = {
+        var i = 0
+        while (i < sets.length) {
+            if (sets(i) == fields)
+                return true
+            i += 1
+        }
+        false
+    }
+}
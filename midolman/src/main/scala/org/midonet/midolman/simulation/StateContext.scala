@@ -16,16 +16,16 @@
 
 package org.midonet.midolman.simulation
 
+import java.nio.ByteBuffer
 import java.util.ArrayList
 
-import com.google.protobuf.MessageLite
-
 import org.midonet.midolman.state.{NatLeaser, FlowState, ConnTrackState, NatState}
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackValue, ConnTrackKey}
 import org.midonet.midolman.state.NatState.{NatKey, NatBinding}
 import org.midonet.midolman.state.TraceState
 import org.midonet.midolman.state.TraceState.{TraceKey, TraceContext}
 import org.midonet.odp.flows.FlowAction
+import org.midonet.packets.FlowStateEthernet
 import org.midonet.sdn.state.FlowStateTransaction
 
 trait StateContext extends FlowState
@@ -33,8 +33,26 @@ trait StateContext extends FlowState
                    with NatState
                    with TraceState { this: PacketContext =>
 
-    var stateMessage: MessageLite = _
+    /* The encoded state message for the peers, ready to be copied into a
+     * state packet, or null if there is none. */
+    var stateMessage: ByteBuffer = _
     val stateActions = new ArrayList[FlowAction]()
+    /* The contexts carrying the aggregated state messages that must be
+     * executed before the packet. */
+    val stateCarriers = new ArrayList[PacketContext]()
+    private var stateBuffer: ByteBuffer = _
+
+    /**
+     * Returns the cleared buffer into which the state message is encoded.
+     */
+    def stateMessageBuffer: ByteBuffer = {
+        if (stateBuffer eq null) {
+            stateBuffer = ByteBuffer.allocate(
+                FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH)
+        }
+        stateBuffer.clear()
+        stateBuffer
+    }
 
     def initialize(conntrackTx: FlowStateTransaction[ConnTrackKey, ConnTrackValue],
                    natTx: FlowStateTransaction[NatKey, NatBinding],
@@ -58,5 +76,6 @@ trait StateContext extends FlowState
     override def clear(): Unit = {
         super.clear()
         stateActions.clear()
+        stateCarriers.clear()
     }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.nio.ByteBuffer
+import java.util.{HashMap, UUID}
+
+import org.midonet.midolman.UnderlayResolver
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.odp.flows.{FlowActionSetKey, FlowKeyTunnel}
+import org.midonet.odp.flows.FlowActions.setKey
+import org.midonet.odp.flows.FlowKeys.tunnel
+import org.midonet.util.concurrent.NanoClock
+
+object FlowStateAggregator {
+
+    /**
+     * Provides the packet contexts that carry the state messages to the
+     * datapath. A message is encoded into the state message buffer of its
+     * carrier, so that both are reused once the datapath is done with them.
+     */
+    trait Carriers {
+        /** Takes a context to carry a new message. */
+        def take(): PacketContext
+
+        /** Gives back a context whose message was not sent. */
+        def release(carrier: PacketContext): Unit
+
+        /** Hands off a context to the datapath, to send its message on its
+          * own. */
+        def handoff(carrier: PacketContext): Unit
+    }
+}
+
+/**
+ * Packs the flow state that a packet worker replicates to its peers into a
+ * binary state message per peer, so that the state of many flows reaches a
+ * peer in a single tunnel packet rather than in a packet per flow.
+ *
+ * The encoded flow states are added to the message of each of their peers. A
+ * message is sent when the next flow state doesn't fit in a state packet, or
+ * by flush() once it has been pending for maxDelayNanos. The packet worker
+ * calls flush() at the end of each batch of packets, so with no delay the
+ * state is sent along with the packets of the batch that created it; longer
+ * delays pack more flows per packet, at the cost of the time a peer may be
+ * missing the state of a flow if it starts receiving its return traffic.
+ *
+ * A peer must have the state of a flow before the packets of the flow reach
+ * it, so the packet worker calls sendWith() for every packet it hands off to
+ * the datapath: the pending messages to the peers that the packet is
+ * tunnelled to go along with the packet, and are executed right before it.
+ *
+ * This class is not thread-safe.
+ */
+final class FlowStateAggregator(hostId: UUID,
+                                underlay: UnderlayResolver,
+                                tos: Byte,
+                                maxDelayNanos: Long,
+                                clock: NanoClock,
+                                carriers: FlowStateAggregator.Carriers) {
+
+    private class PeerMessage(val peer: UUID) {
+        val encoder = new FlowStateEncoder(hostId)
+        var carrier: PacketContext = null
+        var buf: ByteBuffer = null
+        var startNanos = 0L
+
+        def isPending = carrier ne null
+
+        def start(): Unit = {
+            carrier = carriers.take()
+            buf = carrier.stateMessageBuffer
+            encoder.start(buf)
+            startNanos = clock.tick
+            pendingMessages += 1
+        }
+
+        def discard(): Unit = {
+            carriers.release(carrier)
+            carrier = null
+            buf = null
+            pendingMessages -= 1
+        }
+
+        /**
+         * Finishes the message and gives away its carrier, ready to be
+         * executed, or returns null if the peer can't be reached.
+         */
+        def finish(): PacketContext = {
+            val context = carrier
+            val message = buf
+            carrier = null
+            buf = null
+            pendingMessages -= 1
+            encoder.finish()
+            underlay.peerTunnelInfo(peer) match {
+                case Some(route) =>
+                    context.stateMessage = message
+                    context.stateActions.add(setKey(tunnel(
+                        FlowStatePackets.TUNNEL_KEY, route.srcIp, route.dstIp,
+                        tos)))
+                    context.stateActions.add(route.output)
+                    context
+                case None =>
+                    carriers.release(context)
+                    null
+            }
+        }
+    }
+
+    private val messages = new HashMap[UUID, PeerMessage]()
+    private var pendingMessages = 0
+
+    /**
+     * Adds flow states, given as the bytes that follow the header of the
+     * binary message that encoded them, to the message for a peer. Returns
+     * false if they don't fit in a state packet.
+     */
+    def add(peer: UUID, encodedStates: ByteBuffer, count: Int): Boolean = {
+        var message = messages.get(peer)
+        if (message eq null) {
+            message = new PeerMessage(peer)
+            messages.put(peer, message)
+        }
+
+        if (message.isPending) {
+            if (message.encoder.append(encodedStates, count))
+                return true
+            send(message)
+        }
+        message.start()
+        if (message.encoder.append(encodedStates, count)) {
+            true
+        } else {
+            message.discard()
+            false
+        }
+    }
+
+    /**
+     * Takes a carrier for a state message that is executed along with the
+     * packet of the given context, for the messages that don't fit in the
+     * state message of the context itself.
+     */
+    def carrierFor(context: PacketContext): PacketContext = {
+        val carrier = carriers.take()
+        context.stateCarriers.add(carrier)
+        carrier
+    }
+
+    /**
+     * Sends the messages that have been pending for the maximum delay.
+     */
+    def flush(): Unit =
+        if (pendingMessages > 0) {
+            val now = clock.tick
+            val it = messages.values.iterator
+            while (it.hasNext) {
+                val message = it.next()
+                if (message.isPending && now - message.startNanos >= maxDelayNanos)
+                    send(message)
+            }
+        }
+
+    /**
+     * Sends the pending messages to the peers that the packet of the given
+     * context is tunnelled to along with the packet, adding their carriers
+     * to the state carriers of the context.
+     */
+    def sendWith(context: PacketContext): Unit =
+        if (pendingMessages > 0) {
+            val actions = context.packetActions
+            var i = 0
+            while (i < actions.size) {
+                actions.get(i) match {
+                    case a: FlowActionSetKey => a.getFlowKey match {
+                        case k: FlowKeyTunnel => sendWith(context, k.ipv4_dst)
+                        case _ =>
+                    }
+                    case _ =>
+                }
+                i += 1
+            }
+        }
+
+    private def sendWith(context: PacketContext, tunnelDst: Int): Unit = {
+        val it = messages.values.iterator
+        while (it.hasNext) {
+            val message = it.next()
+            if (message.isPending) {
+                underlay.peerTunnelInfo(message.peer) match {
+                    case Some(route) if route.dstIp == tunnelDst =>
+                        val carrier = message.finish()
+                        if (carrier ne null)
+                            context.stateCarriers.add(carrier)
+                    case _ =>
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether there are messages waiting to be sent.
+     */
+    def hasPending: Boolean = pendingMessages > 0
+
+    private def send(message: PeerMessage): Unit = {
+        val carrier = message.finish()
+        if (carrier ne null)
+            carriers.handoff(carrier)
+    }
+}
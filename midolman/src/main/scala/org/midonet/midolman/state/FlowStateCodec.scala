@@ -0,0 +1,615 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.lang.{Long => JLong}
+import java.nio.{BufferOverflowException, ByteBuffer}
+import java.util.{Arrays, Set => JSet, UUID}
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState._
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.odp.flows.FlowKeyEtherType
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv6Addr, MAC}
+import org.midonet.util.concurrent.NanoClock
+
+object FlowStateCodec {
+    /**
+     * Versions of the payload of state replication messages:
+     *
+     *   1 A length-delimited protobufs StateMessage.
+     *   2 The binary format below, written and parsed without intermediate
+     *     objects.
+     *
+     * Binary message, all fields in network byte order:
+     *
+     *     +--------+--------+-----------------+
+     *     | magic (16)      | version| max ver|
+     *     +-----------------+--------+--------+
+     *     | sender host id (128)              |
+     *     +-----------------+-----------------+
+     *     | state count (16)| reserved (16)   |
+     *     +-----------------+-----------------+
+     *     | flow state * state count          |
+     *     +-----------------------------------+
+     *
+     * Flow state:
+     *
+     *     +-----------------------------------+
+     *     | ingress port id (128)             |
+     *     +-----------------+-----------------+
+     *     | conntrack (16)  | nat count (16)  |
+     *     +-----------------+-----------------+
+     *     | trace count (16)| reserved (16)   |
+     *     +-----------------+-----------------+
+     *     | conntrack key * conntrack (0 or 1)|
+     *     | nat entry * nat count             |
+     *     | trace entry * trace count         |
+     *     +-----------------------------------+
+     *
+     * IP addresses are written as a one byte IP version (4 or 6) followed by
+     * the address, and ports as unsigned 16 bit integers. The first two bytes
+     * of a protobufs StateMessage are its length and the tag of the seq field,
+     * 0x08, so a message starting with MAGIC can never be a protobufs message.
+     *
+     * Peers advertise the highest version they can parse, in the max version
+     * field of binary messages and in the codec_version field of protobufs
+     * messages. Hosts that don't advertise a version only parse version 1.
+     * A host advertises its version on its own to a peer that sends it
+     * protobufs messages despite parsing binary ones, see PeerVersions.
+     */
+    final val MAGIC: Short = 0x4D53
+    final val PROTOBUF_VERSION = 1
+    final val BINARY_VERSION = 2
+    final val CURRENT_VERSION = BINARY_VERSION
+
+    final val ADVERTISEMENT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1)
+
+    final val HEADER_LENGTH = 24
+    final val STATE_HEADER_LENGTH = 24
+
+    private[state] final val IPV4 = 4
+    private[state] final val IPV6 = 6
+
+    private[state] final val TRACE_ETH_SRC = 0x01
+    private[state] final val TRACE_ETH_DST = 0x02
+    private[state] final val TRACE_ETHER_TYPE = 0x04
+    private[state] final val TRACE_IP_SRC = 0x08
+    private[state] final val TRACE_IP_DST = 0x10
+    private[state] final val TRACE_IP_PROTO = 0x20
+    private[state] final val TRACE_TP_SRC = 0x40
+    private[state] final val TRACE_TP_DST = 0x80
+
+    private[state] final val NAT_KEY_TYPES = Array[KeyType](
+        NatState.FWD_SNAT, NatState.FWD_DNAT, NatState.FWD_STICKY_DNAT,
+        NatState.REV_SNAT, NatState.REV_DNAT, NatState.REV_STICKY_DNAT)
+
+    private[state] def natKeyTypeId(t: KeyType): Int = {
+        var i = 0
+        while (NAT_KEY_TYPES(i) ne t) {
+            i += 1
+        }
+        i
+    }
+
+    /**
+     * The highest message version understood by each peer, as advertised in
+     * the messages they send. It is shared by the replicators of all the
+     * packet workers, any of which may send messages to a peer. It is also
+     * thread-safe, because the state messages of a peer are broadcast to
+     * every worker, each of which learns the versions they advertise.
+     *
+     * A peer that sends us protobufs messages while advertising a newer
+     * version hasn't learned our version yet, as may happen when we only
+     * receive state from it. We then advertise our version to it in a state
+     * message without flow states, at most once per advertisement interval,
+     * which also bounds the messages sent to a peer that keeps using
+     * protobufs because some other recipient of its state doesn't advertise
+     * a version.
+     */
+    final class PeerVersions(clock: NanoClock = NanoClock.DEFAULT) {
+        private val versions = new ConcurrentHashMap[UUID, Integer]()
+        private val advertisements = new ConcurrentHashMap[UUID, JLong]()
+
+        def learn(peer: UUID, maxVersion: Int): Unit = {
+            val known = versions.get(peer)
+            if ((known eq null) || known.intValue() != maxVersion)
+                versions.put(peer, Integer.valueOf(maxVersion))
+        }
+
+        /**
+         * Whether to advertise our version to a peer, which is true once per
+         * advertisement interval across all the packet workers.
+         */
+        def advertiseTo(peer: UUID): Boolean = {
+            val now = clock.tick
+            val last = advertisements.get(peer)
+            if (last eq null)
+                advertisements.putIfAbsent(peer, JLong.valueOf(now)) eq null
+            else
+                now - last.longValue() >= ADVERTISEMENT_INTERVAL_NANOS &&
+                advertisements.replace(peer, last, JLong.valueOf(now))
+        }
+
+        def versionOf(peer: UUID): Int = {
+            val known = versions.get(peer)
+            if (known eq null) PROTOBUF_VERSION
+            else Math.min(known.intValue(), CURRENT_VERSION)
+        }
+
+        /**
+         * Returns the highest version understood by all of the given peers.
+         */
+        def versionFor(peers: JSet[UUID]): Int = {
+            var version = CURRENT_VERSION
+            val it = peers.iterator()
+            while (it.hasNext && version > PROTOBUF_VERSION) {
+                version = Math.min(version, versionOf(it.next()))
+            }
+            version
+        }
+    }
+
+    /**
+     * Receives the flow state parsed by a FlowStateDecoder.
+     */
+    trait StateVisitor {
+        def conntrackKey(k: ConnTrackKey): Unit
+        def natEntry(k: NatKey, v: NatBinding): Unit
+        def traceEntry(k: TraceKey, ctx: TraceContext): Unit
+    }
+}
+
+/**
+ * Writes binary state messages into a ByteBuffer supplied by the caller.
+ *
+ * Entries that don't fit in the buffer mark the message as overflowed rather
+ * than throwing, so that the caller can keep processing the keys of the flow
+ * and drop the message at the end.
+ *
+ * The encoder remembers where each entry of the last flow state ends, so that
+ * a flow state too large for a state packet can be split into several flow
+ * states of the same ingress port. Each of them is a complete flow state, so
+ * the recipients decode them as they arrive, without reassembling them.
+ *
+ * This class is not thread-safe.
+ */
+final class FlowStateEncoder(hostId: UUID) {
+    import FlowStateCodec._
+
+    private var buf: ByteBuffer = _
+    private var messageStart = 0
+    private var states = 0
+    private var statePosition = -1
+    private var conntrackKeys = 0
+    private var natEntries = 0
+    private var traceEntries = 0
+    private var overflowed = false
+
+    private var lastStatePosition = -1
+    private var entryEnds = new Array[Int](16)
+    private var entries = 0
+
+    /**
+     * Starts a message in the given buffer, from its current position.
+     */
+    def start(buf: ByteBuffer): Unit = {
+        this.buf = buf
+        messageStart = buf.position()
+        states = 0
+        statePosition = -1
+        overflowed = false
+        try {
+            buf.putShort(MAGIC)
+            buf.put(BINARY_VERSION.toByte)
+            buf.put(CURRENT_VERSION.toByte)
+            putUUID(hostId)
+            buf.putInt(0)
+        } catch { case _: BufferOverflowException =>
+            overflowed = true
+        }
+    }
+
+    /**
+     * Starts the flow state of a new ingress port. The entries written next
+     * belong to this flow state.
+     */
+    def startState(ingressPort: UUID): Unit = {
+        endState()
+        if (overflowed)
+            return
+        try {
+            statePosition = buf.position()
+            lastStatePosition = statePosition
+            putUUID(ingressPort)
+            buf.putLong(0L)
+            states += 1
+            conntrackKeys = 0
+            natEntries = 0
+            traceEntries = 0
+            entries = 0
+        } catch { case _: BufferOverflowException =>
+            overflowed = true
+        }
+    }
+
+    def conntrackKey(k: ConnTrackKey): Unit = if (!overflowed) try {
+        putIp(k.networkSrc)
+        buf.putShort(k.icmpIdOrTransportSrc.toShort)
+        putIp(k.networkDst)
+        buf.putShort(k.icmpIdOrTransportDst.toShort)
+        buf.put(k.networkProtocol)
+        putUUID(k.deviceId)
+        conntrackKeys += 1
+        entryEnded()
+    } catch { case _: BufferOverflowException =>
+        overflowed = true
+    }
+
+    def natEntry(k: NatKey, v: NatBinding): Unit = if (!overflowed) try {
+        buf.put(natKeyTypeId(k.keyType).toByte)
+        buf.put(k.networkProtocol)
+        buf.putInt(k.networkSrc.addr)
+        buf.putInt(k.networkDst.addr)
+        buf.putShort(k.transportSrc.toShort)
+        buf.putShort(k.transportDst.toShort)
+        putUUID(k.deviceId)
+        buf.putInt(v.networkAddress.addr)
+        buf.putShort(v.transportPort.toShort)
+        natEntries += 1
+        entryEnded()
+    } catch { case _: BufferOverflowException =>
+        overflowed = true
+    }
+
+    def traceEntry(k: TraceKey, ctx: TraceContext): Unit = if (!overflowed) try {
+        val flagsPosition = buf.position()
+        var flags = 0
+        buf.put(0.toByte)
+        if (k.ethSrc ne null) {
+            putMac(k.ethSrc)
+            flags |= TRACE_ETH_SRC
+        }
+        if (k.ethDst ne null) {
+            putMac(k.ethDst)
+            flags |= TRACE_ETH_DST
+        }
+        if (k.etherType != FlowKeyEtherType.Type.ETH_P_NONE.value) {
+            buf.putShort(k.etherType)
+            flags |= TRACE_ETHER_TYPE
+        }
+        if (k.networkSrc ne null) {
+            putIp(k.networkSrc)
+            flags |= TRACE_IP_SRC
+        }
+        if (k.networkDst ne null) {
+            putIp(k.networkDst)
+            flags |= TRACE_IP_DST
+        }
+        if (k.networkProto != 0) {
+            buf.put(k.networkProto)
+            flags |= TRACE_IP_PROTO
+        }
+        if (k.srcPort != 0) {
+            buf.putShort(k.srcPort.toShort)
+            flags |= TRACE_TP_SRC
+        }
+        if (k.dstPort != 0) {
+            buf.putShort(k.dstPort.toShort)
+            flags |= TRACE_TP_DST
+        }
+        buf.put(flagsPosition, flags.toByte)
+        putUUID(ctx.flowTraceId)
+        val requests = ctx.requests
+        buf.putShort(requests.size.toShort)
+        var i = 0
+        while (i < requests.size) {
+            putUUID(requests.get(i))
+            i += 1
+        }
+        traceEntries += 1
+        entryEnded()
+    } catch { case _: BufferOverflowException =>
+        overflowed = true
+    }
+
+    /**
+     * Appends flow states encoded by another encoder, given as the bytes
+     * that follow the header of their message. Returns false, leaving the
+     * message untouched, if they don't fit in the buffer.
+     */
+    def append(encodedStates: ByteBuffer, count: Int): Boolean = {
+        endState()
+        val length = encodedStates.remaining()
+        if (overflowed || length > buf.remaining())
+            return false
+        buf.put(encodedStates.array, encodedStates.arrayOffset +
+                                     encodedStates.position, length)
+        states += count
+        true
+    }
+
+    /** The number of flow states in the message being written. */
+    def stateCount: Int = states
+
+    /**
+     * Completes the message, leaving the buffer ready to be read. Returns
+     * whether the message is complete, or false if it didn't fit in the
+     * buffer.
+     */
+    def finish(): Boolean = {
+        endState()
+        if (!overflowed) {
+            buf.putShort(messageStart + 20, states.toShort)
+            buf.limit(buf.position())
+            buf.position(messageStart)
+        }
+        buf = null
+        !overflowed
+    }
+
+    /**
+     * Splits the last flow state of a message, which has been finished in the
+     * given buffer, into flow states whose encoding takes at most maxLength
+     * bytes. Each of them is written into the out buffer and handed to the
+     * fragment function, as the bytes that follow the header of a message.
+     * Returns false if an entry doesn't fit in maxLength bytes on its own, in
+     * which case no flow state is handed to the function.
+     *
+     * The entries of a flow state must have been written in the order of
+     * the format: the conntrack key, the NAT entries and the trace entries.
+     */
+    def splitState(message: ByteBuffer, out: ByteBuffer, maxLength: Int,
+                   fragment: ByteBuffer => Unit): Boolean = {
+        val stateHeaderEnd = lastStatePosition + STATE_HEADER_LENGTH
+        var from = stateHeaderEnd
+        var i = 0
+        while (i < entries) {
+            if (entryEnds(i) - from + STATE_HEADER_LENGTH > maxLength)
+                return false
+            from = entryEnds(i)
+            i += 1
+        }
+
+        val data = message.array
+        val offset = message.arrayOffset
+        val natStart = conntrackKeys
+        val traceStart = conntrackKeys + natEntries
+        from = stateHeaderEnd
+        var first = 0
+        while (first < entries) {
+            var last = first
+            while (last < entries &&
+                   entryEnds(last) - from + STATE_HEADER_LENGTH <= maxLength) {
+                last += 1
+            }
+            out.clear()
+            out.put(data, offset + lastStatePosition, 16)
+            out.putShort(count(first, last, 0, natStart).toShort)
+            out.putShort(count(first, last, natStart, traceStart).toShort)
+            out.putShort(count(first, last, traceStart, entries).toShort)
+            out.putShort(0.toShort)
+            out.put(data, offset + from, entryEnds(last - 1) - from)
+            out.flip()
+            fragment(out)
+            from = entryEnds(last - 1)
+            first = last
+        }
+        true
+    }
+
+    /* The number of entries in [first, last) that fall in [start, end). */
+    private def count(first: Int, last: Int, start: Int, end: Int): Int =
+        Math.max(0, Math.min(last, end) - Math.max(first, start))
+
+    private def entryEnded(): Unit = {
+        if (entries == entryEnds.length)
+            entryEnds = Arrays.copyOf(entryEnds, entries * 2)
+        entryEnds(entries) = buf.position()
+        entries += 1
+    }
+
+    private def endState(): Unit = {
+        if (statePosition >= 0 && !overflowed) {
+            buf.putShort(statePosition + 16, conntrackKeys.toShort)
+            buf.putShort(statePosition + 18, natEntries.toShort)
+            buf.putShort(statePosition + 20, traceEntries.toShort)
+        }
+        statePosition = -1
+    }
+
+    private def putUUID(id: UUID): Unit = {
+        buf.putLong(id.getMostSignificantBits)
+        buf.putLong(id.getLeastSignificantBits)
+    }
+
+    private def putMac(mac: MAC): Unit = {
+        val addr = mac.asLong()
+        buf.putShort((addr >>> 32).toShort)
+        buf.putInt(addr.toInt)
+    }
+
+    private def putIp(ip: IPAddr): Unit = ip match {
+        case v4: IPv4Addr =>
+            buf.put(IPV4.toByte)
+            buf.putInt(v4.addr)
+        case v6: IPv6Addr =>
+            buf.put(IPV6.toByte)
+            buf.putLong(v6.upperWord)
+            buf.putLong(v6.lowerWord)
+        case _ =>
+            throw new IllegalArgumentException(s"Unsupported address $ip")
+    }
+}
+
+/**
+ * Parses binary state messages straight from the payload of state packets,
+ * handing the keys to a StateVisitor.
+ *
+ * This class is not thread-safe.
+ */
+final class FlowStateDecoder {
+    import FlowStateCodec._
+
+    private var data: Array[Byte] = _
+    private var pos = 0
+    private var end = 0
+
+    /** The version of the last message read by readHeader(). */
+    var version = 0
+    /** The highest version understood by the sender of the last message. */
+    var maxVersion = 0
+    var senderMsb = 0L
+    var senderLsb = 0L
+
+    /**
+     * Reads the header of a message, returning false if the data doesn't hold
+     * a binary message. The caller should only read the flow states of the
+     * message if its version is BINARY_VERSION.
+     */
+    def readHeader(data: Array[Byte], offset: Int, length: Int): Boolean = {
+        this.data = data
+        pos = offset
+        end = offset + length
+        if (length < HEADER_LENGTH || getShort() != MAGIC)
+            return false
+        version = getByte()
+        maxVersion = getByte()
+        senderMsb = getLong()
+        senderLsb = getLong()
+        true
+    }
+
+    def sender: UUID = new UUID(senderMsb, senderLsb)
+
+    /**
+     * Reads the flow states of the message whose header was read last.
+     * Throws an IllegalArgumentException if the message is truncated or
+     * malformed.
+     */
+    def readStates(visitor: StateVisitor): Unit = {
+        val states = getShort() & 0xFFFF
+        pos += 2
+        var i = 0
+        while (i < states) {
+            readState(visitor)
+            i += 1
+        }
+    }
+
+    private def readState(visitor: StateVisitor): Unit = {
+        pos += 16 // the ingress port is not used by the recipients
+        val conntrackKeys = getShort() & 0xFFFF
+        val natEntries = getShort() & 0xFFFF
+        val traceEntries = getShort() & 0xFFFF
+        pos += 2
+
+        var i = 0
+        while (i < conntrackKeys) {
+            visitor.conntrackKey(ConnTrackKey(
+                getIp(), getPort(), getIp(), getPort(), getByte().toByte,
+                getUUID()))
+            i += 1
+        }
+        i = 0
+        while (i < natEntries) {
+            val keyType = getByte()
+            if (keyType >= NAT_KEY_TYPES.length)
+                throw new IllegalArgumentException(s"Invalid NAT key type $keyType")
+            val protocol = getByte().toByte
+            val src = new IPv4Addr(getInt())
+            val dst = new IPv4Addr(getInt())
+            val k = NatKey(NAT_KEY_TYPES(keyType), src, getPort(), dst, getPort(),
+                           protocol, getUUID())
+            visitor.natEntry(k, NatBinding(new IPv4Addr(getInt()), getPort()))
+            i += 1
+        }
+        i = 0
+        while (i < traceEntries) {
+            readTraceEntry(visitor)
+            i += 1
+        }
+    }
+
+    private def readTraceEntry(visitor: StateVisitor): Unit = {
+        val flags = getByte()
+        val k = TraceKey(
+            if ((flags & TRACE_ETH_SRC) != 0) getMac() else null,
+            if ((flags & TRACE_ETH_DST) != 0) getMac() else null,
+            if ((flags & TRACE_ETHER_TYPE) != 0) getShort()
+            else FlowKeyEtherType.Type.ETH_P_NONE.value.toShort,
+            if ((flags & TRACE_IP_SRC) != 0) getIp() else null,
+            if ((flags & TRACE_IP_DST) != 0) getIp() else null,
+            if ((flags & TRACE_IP_PROTO) != 0) getByte().toByte else 0,
+            if ((flags & TRACE_TP_SRC) != 0) getPort() else 0,
+            if ((flags & TRACE_TP_DST) != 0) getPort() else 0)
+        val ctx = new TraceContext
+        ctx.enable(getUUID())
+        val requests = getShort() & 0xFFFF
+        var i = 0
+        while (i < requests) {
+            ctx.addRequest(getUUID())
+            i += 1
+        }
+        visitor.traceEntry(k, ctx)
+    }
+
+    private def check(n: Int): Unit =
+        if (pos + n > end)
+            throw new IllegalArgumentException("Truncated flow state message")
+
+    private def getByte(): Int = {
+        check(1)
+        val b = data(pos) & 0xFF
+        pos += 1
+        b
+    }
+
+    private def getShort(): Short = {
+        check(2)
+        val s = ((data(pos) & 0xFF) << 8) | (data(pos + 1) & 0xFF)
+        pos += 2
+        s.toShort
+    }
+
+    private def getPort(): Int = getShort() & 0xFFFF
+
+    private def getInt(): Int = {
+        check(4)
+        val i = ((data(pos) & 0xFF) << 24) | ((data(pos + 1) & 0xFF) << 16) |
+                ((data(pos + 2) & 0xFF) << 8) | (data(pos + 3) & 0xFF)
+        pos += 4
+        i
+    }
+
+    private def getLong(): Long =
+        (getInt().toLong << 32) | (getInt() & 0xFFFFFFFFL)
+
+    private def getUUID(): UUID = new UUID(getLong(), getLong())
+
+    private def getMac(): MAC = {
+        val upper = getShort() & 0xFFFFL
+        new MAC((upper << 32) | (getInt() & 0xFFFFFFFFL))
+    }
+
+    private def getIp(): IPAddr = getByte() match {
+        case IPV4 => new IPv4Addr(getInt())
+        case IPV6 => new IPv6Addr(getLong(), getLong())
+        case v => throw new IllegalArgumentException(s"Invalid IP version $v")
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{ArrayDeque, Collections, Iterator => JIterator}
+import java.util.Map.Entry
+
+import com.google.common.collect.Iterators
+import com.typesafe.scalalogging.Logger
+import org.slf4j.LoggerFactory
+
+import org.midonet.midolman.HostRequestProxy.FlowStateBatch
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.sdn.state.FlowStateTable
+import org.midonet.util.collection.Reducer
+
+/**
+ * Imports the flow state fetched from storage into the state tables of a
+ * packet worker.
+ *
+ * The state of a port may hold hundreds of thousands of keys, so instead of
+ * importing a FlowStateBatch at once, batches are queued and their keys are
+ * imported a bounded number at a time, by successive calls to importKeys(),
+ * in between the processing of packets.
+ *
+ * Until a batch is imported, the simulations read the state tables through
+ * the conntrackTable and natTable views, which import on demand the queued
+ * keys not found in the underlying tables.
+ *
+ * EXPECTED CALLING THREADS: only the packet processing thread that owns the
+ * state tables.
+ */
+class FlowStateImporter(underlyingConntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue],
+                        underlyingNatTable: FlowStateTable[NatKey, NatBinding],
+                        metrics: PacketPipelineMetrics) {
+
+    private val log = Logger(LoggerFactory.getLogger("org.midonet.state.replication"))
+
+    private val pending = new ArrayDeque[FlowStateBatch]()
+    private var current: FlowStateBatch = null
+    private var conntrackKeys: JIterator[ConnTrackKey] =
+        Collections.emptyIterator[ConnTrackKey]()
+    private var natEntries: JIterator[Entry[NatKey, NatBinding]] =
+        Collections.emptyIterator[Entry[NatKey, NatBinding]]()
+
+    val conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue] =
+        new ImportingFlowStateTable(underlyingConntrackTable, importConnTrackKey)
+
+    val natTable: FlowStateTable[NatKey, NatBinding] =
+        new ImportingFlowStateTable(underlyingNatTable, importNatKey)
+
+    /**
+     * Queues a batch of state keys to be imported.
+     */
+    def enqueue(batch: FlowStateBatch): Unit = {
+        val keys = batch.strongConnTrack.size + batch.weakConnTrack.size +
+                   batch.strongNat.size + batch.weakNat.size
+        if (keys > 0) {
+            pending.add(batch)
+            metrics.stateKeysPendingImport.inc(keys)
+        }
+    }
+
+    /**
+     * Whether there are state keys left to import.
+     */
+    def isImporting: Boolean = (current ne null) || !pending.isEmpty
+
+    /**
+     * Imports at most maxKeys of the queued state keys.
+     */
+    def importKeys(maxKeys: Int): Unit = {
+        var imported = 0
+        while (imported < maxKeys && ((current ne null) || nextBatch())) {
+            if (conntrackKeys.hasNext) {
+                val k = conntrackKeys.next()
+                log.debug("importing state key from storage: {}", k)
+                underlyingConntrackTable.putAndRef(k, ConnTrackState.RETURN_FLOW)
+                underlyingConntrackTable.unref(k)
+                imported += 1
+            } else if (natEntries.hasNext) {
+                val e = natEntries.next()
+                log.debug("importing state key from storage: {}", e.getKey)
+                underlyingNatTable.putAndRef(e.getKey, e.getValue)
+                underlyingNatTable.unref(e.getKey)
+                imported += 1
+            } else {
+                current = null
+            }
+        }
+        if ((current ne null) && !conntrackKeys.hasNext && !natEntries.hasNext)
+            current = null
+        if (imported > 0) {
+            metrics.stateKeysPendingImport.dec(imported)
+            metrics.stateKeysImported.mark(imported)
+        }
+    }
+
+    private def nextBatch(): Boolean = {
+        current = pending.poll()
+        if (current ne null) {
+            conntrackKeys = Iterators.concat[ConnTrackKey](
+                current.strongConnTrack.iterator(),
+                current.weakConnTrack.iterator())
+            natEntries = Iterators.concat[Entry[NatKey, NatBinding]](
+                current.strongNat.entrySet().iterator(),
+                current.weakNat.entrySet().iterator())
+            true
+        } else {
+            false
+        }
+    }
+
+    private def isPending(k: ConnTrackKey, batch: FlowStateBatch): Boolean =
+        batch.strongConnTrack.contains(k) || batch.weakConnTrack.contains(k)
+
+    private def pendingBinding(k: NatKey, batch: FlowStateBatch): NatBinding = {
+        val v = batch.strongNat.get(k)
+        if (v ne null) v else batch.weakNat.get(k)
+    }
+
+    /**
+     * Imports a conntrack key that is queued for import and wasn't found in
+     * the state table. The key is imported again, harmlessly, when its batch
+     * is reached.
+     */
+    private def importConnTrackKey(k: ConnTrackKey): ConnTrackValue = {
+        var found = (current ne null) && isPending(k, current)
+        val batches = pending.iterator()
+        while (!found && batches.hasNext) {
+            found = isPending(k, batches.next())
+        }
+        if (found) {
+            log.debug("importing state key from storage on demand: {}", k)
+            underlyingConntrackTable.putAndRef(k, ConnTrackState.RETURN_FLOW)
+            underlyingConntrackTable.unref(k)
+            metrics.stateKeysImportedOnDemand.mark()
+            ConnTrackState.RETURN_FLOW
+        } else {
+            null
+        }
+    }
+
+    /**
+     * Imports a NAT key that is queued for import and wasn't found in the
+     * state table.
+     */
+    private def importNatKey(k: NatKey): NatBinding = {
+        var v = if (current ne null) pendingBinding(k, current) else null
+        val batches = pending.iterator()
+        while ((v eq null) && batches.hasNext) {
+            v = pendingBinding(k, batches.next())
+        }
+        if (v ne null) {
+            log.debug("importing state key from storage on demand: {}", k)
+            underlyingNatTable.putAndRef(k, v)
+            underlyingNatTable.unref(k)
+            metrics.stateKeysImportedOnDemand.mark()
+        }
+        v
+    }
+
+    /**
+     * A view of a state table that falls back to the keys queued for import
+     * while there are any.
+     */
+    private class ImportingFlowStateTable[K, V >: Null](table: FlowStateTable[K, V],
+                                                       importKey: K => V)
+        extends FlowStateTable[K, V] {
+
+        override def get(key: K): V = {
+            val v = table.get(key)
+            if ((v == null) && isImporting) importKey(key) else v
+        }
+
+        override def touch(key: K, value: V): Unit = table.touch(key, value)
+
+        override def putAndRef(key: K, value: V): V = table.putAndRef(key, value)
+
+        override def ref(key: K): V = table.ref(key)
+
+        override def unref(key: K): Unit = table.unref(key)
+
+        override def getRefCount(key: K): Int = table.getRefCount(key)
+
+        override def expireIdleEntries(): Unit = table.expireIdleEntries()
+
+        override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U =
+            table.expireIdleEntries(seed, func)
+
+        override def fold[U](seed: U, func: Reducer[K, V, U]): U =
+            table.fold(seed, func)
+    }
+}
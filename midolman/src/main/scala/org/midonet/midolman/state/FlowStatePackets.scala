@@ -34,7 +34,7 @@ object FlowStatePackets {
      * Frame format for state replication messages:
      *
      *     +---------------------------------------+
-     *     | Payload (protobufs message)           |
+     *     | Payload (see FlowStateCodec)          |
      *     +---------------------------------------+
      *     | UDP (arbitrary IANA-unnassigned port) |
      *     +---------------------------------------+
@@ -62,6 +62,14 @@ object FlowStatePackets {
     // 20(IP) + 8(GRE+Key) + 14(Ethernet w/o preamble and CRC) + 20(IP) + 8(UDP)
     val OVERHEAD = 70
 
+    // The flow states that fit in a state packet after the header of its
+    // binary message, which bounds the flow states sent in each packet.
+    val MAX_STATES_LENGTH =
+        FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH - FlowStateCodec.HEADER_LENGTH
+    // The largest binary message encoded for the state of a flow, before
+    // it is split into the flow states of several state packets.
+    val MAX_STATE_MESSAGE_LENGTH = 16 * FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH
+
     def isStateMessage(fmatch: FlowMatch): Boolean =
         fmatch.getTunnelKey == TUNNEL_KEY
 
@@ -195,7 +203,11 @@ object FlowStatePackets {
                  if (proto.hasTpSrc) proto.getTpSrc else 0,
                  if (proto.hasTpDst) proto.getTpDst else 0)
 
-    def parseDatagram(p: Ethernet): Proto.StateMessage  = {
+    /**
+     * Returns the payload of a state replication datagram, or null if the
+     * packet is not one.
+     */
+    def parsePayload(p: Ethernet): Array[Byte] = {
         if (p.getDestinationMACAddress != DST_MAC ||
             p.getSourceMACAddress != SRC_MAC) {
             return null
@@ -208,9 +220,7 @@ object FlowStatePackets {
                     case udp: UDP if udp.getDestinationPort == UDP_PORT &&
                         udp.getSourcePort == UDP_PORT =>
                         udp.getPayload match {
-                            case d: Data =>
-                                val input = new ByteArrayInputStream(d.getData)
-                                Proto.StateMessage.parseDelimitedFrom(input)
+                            case d: Data => d.getData
                             case _ => null
                         }
 
@@ -220,4 +230,11 @@ object FlowStatePackets {
             case _ => null
         }
     }
+
+    def parseDatagram(p: Ethernet): Proto.StateMessage  = {
+        val payload = parsePayload(p)
+        if (payload eq null) null
+        else Proto.StateMessage.parseDelimitedFrom(
+                 new ByteArrayInputStream(payload))
+    }
 }
@@ -16,16 +16,21 @@
 
 package org.midonet.midolman.state
 
-import java.util.{ArrayList, HashSet => JHashSet, Iterator => JIterator, List => JList, Set => JSet, UUID}
+import java.io.ByteArrayInputStream
+import java.nio.ByteBuffer
+import java.util.{ArrayList, HashSet => JHashSet, List => JList, Set => JSet, UUID}
 
 import akka.actor.ActorSystem
+import com.google.protobuf.{CodedOutputStream, MessageLite}
+import com.google.protobuf.CodedOutputStream.OutOfSpaceException
 import com.typesafe.scalalogging.Logger
 import org.slf4j.LoggerFactory
 
 import org.midonet.midolman.flows.FlowTagIndexer
-import org.midonet.midolman.HostRequestProxy.FlowStateBatch
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.simulation.{PacketContext, PortGroup}
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.FlowStateCodec._
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.TraceState.{TraceKey, TraceContext}
 import org.midonet.midolman.topology.devices.Port
@@ -34,7 +39,7 @@ import org.midonet.midolman.{NotYetException, UnderlayResolver}
 import org.midonet.odp.flows.FlowAction
 import org.midonet.odp.flows.FlowActions.setKey
 import org.midonet.odp.flows.FlowKeys.tunnel
-import org.midonet.packets.Ethernet
+import org.midonet.packets.{Ethernet, FlowStateEthernet}
 import org.midonet.rpc.{FlowStateProto => Proto}
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.state.FlowStateTable
@@ -59,6 +64,18 @@ import org.midonet.util.functors.Callback0
  * replicator.accept(packet)
  * </code>
  *
+ * State messages are encoded in the binary format of FlowStateCodec when all
+ * of their recipients have advertised that they can parse it, and as
+ * protobufs messages otherwise, so that hosts running older versions keep
+ * receiving the state. Binary flow states are handed to the
+ * FlowStateAggregator, which packs the state of many flows into each packet
+ * to a peer, while protobufs messages are sent along with the packet of their
+ * flow. A flow state too large for a state packet, in either encoding, is
+ * split into several flow states of the same ingress port, each sent in its
+ * own packet, which the recipients decode independently. A peer that sends
+ * protobufs messages although it parses binary ones is told the version of
+ * this host in a binary message without flow states.
+ *
  *          NOTES ON THREAD SAFETY
  *          **********************
  *
@@ -94,7 +111,10 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
                                        hostId: UUID,
                                        underlay: UnderlayResolver,
                                        flowInvalidation: FlowTagIndexer,
-                                       tos: Byte) {
+                                       tos: Byte,
+                                       peerVersions: PeerVersions,
+                                       aggregator: FlowStateAggregator,
+                                       metrics: PacketPipelineMetrics) {
     import FlowStatePackets._
 
     protected def log: Logger
@@ -109,6 +129,15 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     private[this] var txIngressPort: UUID = _
     private[this] val txPeers: JSet[UUID] = new JHashSet[UUID]()
     private[this] val txPorts: JSet[UUID] = new JHashSet[UUID]()
+    private[this] var txBinary = false
+    private[this] val txBuffer = ByteBuffer.allocate(MAX_STATE_MESSAGE_LENGTH)
+    private[this] val fragmentBuffer = ByteBuffer.allocate(MAX_STATES_LENGTH)
+    // The number of peers that were, and weren't, given each piece of state
+    private[this] var statesAdded = 0
+    private[this] var statesMissed = 0
+    private[this] val encoder = new FlowStateEncoder(hostId)
+    private[this] val decoder = new FlowStateDecoder
+    private[this] val noStates = ByteBuffer.allocate(0)
 
     private[this] val hostIdProto = uuidToProto(hostId)
 
@@ -117,7 +146,10 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
                            v: ConnTrackValue): ArrayList[Callback0] = {
             if (txPeers.size() > 0) {
                 log.debug("push conntrack key: {}", k)
-                txState.setConntrackKey(connTrackKeyToProto(k))
+                if (txBinary)
+                    encoder.conntrackKey(k)
+                else
+                    txState.setConntrackKey(connTrackKeyToProto(k))
             }
             log.debug("touch conntrack key: {}", k)
             storage.touchConnTrackKey(k, txIngressPort, txPorts.iterator())
@@ -134,9 +166,13 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
                            v: NatBinding): ArrayList[Callback0] = {
             if (txPeers.size() > 0) {
                 log.debug("push nat key: {}", k)
-                txNatEntry.clear()
-                txNatEntry.setK(natKeyToProto(k)).setV(natBindingToProto(v))
-                txState.addNatEntries(txNatEntry.build())
+                if (txBinary) {
+                    encoder.natEntry(k, v)
+                } else {
+                    txNatEntry.clear()
+                    txNatEntry.setK(natKeyToProto(k)).setV(natBindingToProto(v))
+                    txState.addNatEntries(txNatEntry.build())
+                }
             }
             log.debug("touch nat key: {}", k)
             storage.touchNatKey(k, v, txIngressPort, txPorts.iterator())
@@ -155,15 +191,19 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
                 : ArrayList[Callback0] = {
             if (txPeers.size() > 0) {
                 log.debug("push trace key: {}", k)
-                txTraceEntry.clear()
-
-                traceKeyToProto(k, txTraceEntry)
-                txTraceEntry.setFlowTraceId(ctx.flowTraceId)
-                val iter = ctx.requests.iterator
-                while (iter.hasNext) {
-                    txTraceEntry.addRequestId(iter.next())
+                if (txBinary) {
+                    encoder.traceEntry(k, ctx)
+                } else {
+                    txTraceEntry.clear()
+
+                    traceKeyToProto(k, txTraceEntry)
+                    txTraceEntry.setFlowTraceId(ctx.flowTraceId)
+                    val iter = ctx.requests.iterator
+                    while (iter.hasNext) {
+                        txTraceEntry.addRequestId(iter.next())
+                    }
+                    txState.addTraceEntry(txTraceEntry.build())
                 }
-                txState.addTraceEntry(txTraceEntry.build())
             }
 
             callbacks.add(new Callback0 {
@@ -178,36 +218,12 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         currentMessage.clear()
         currentMessage.setSender(hostIdProto)
         currentMessage.setEpoch(0L /* the epoch is not used*/)
+        currentMessage.setCodecVersion(CURRENT_VERSION)
 
         /* We don't expect ACKs, seq is unused for now */
         currentMessage.setSeq(0x1)
     }
 
-    def importFromStorage(batch: FlowStateBatch) {
-        importConnTrack(batch.strongConnTrack.iterator(), ConnTrackState.RETURN_FLOW)
-        importConnTrack(batch.weakConnTrack.iterator(), ConnTrackState.RETURN_FLOW)
-        importNat(batch.strongNat.entrySet().iterator())
-        importNat(batch.weakNat.entrySet().iterator())
-    }
-
-    private def importConnTrack(keys: JIterator[ConnTrackKey], v: ConnTrackState.ConnTrackValue) {
-        while (keys.hasNext) {
-            val k = keys.next()
-            log.debug("importing state key from storage: {}", k)
-            conntrackTable.putAndRef(k, v)
-            conntrackTable.unref(k)
-        }
-    }
-
-    private def importNat(entries: JIterator[java.util.Map.Entry[NatKey, NatBinding]]) {
-        while (entries.hasNext) {
-            val e = entries.next()
-            log.debug("importing state key from storage: {}", e.getKey)
-            natTable.putAndRef(e.getKey, e.getValue)
-            natTable.unref(e.getKey)
-        }
-    }
-
     /**
      * Given the FlowStateTransaction instances resulting from the processing
      * of a flow, this method will prepare messages to push the state accumulated
@@ -223,6 +239,13 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         val egressPorts = context.outPorts
         resolvePeers(ingressPort, egressPorts, txPeers, txPorts, context.flowTags)
         txIngressPort = ingressPort
+        txBinary = !txPeers.isEmpty &&
+                   peerVersions.versionFor(txPeers) >= BINARY_VERSION
+        if (txBinary) {
+            txBuffer.clear()
+            encoder.start(txBuffer)
+            encoder.startState(ingressPort)
+        }
         val callbacks = context.flowRemovedCallbacks
         context.conntrackTx.fold(callbacks, _conntrackAdder)
         context.natTx.fold(callbacks, _natAdder)
@@ -231,18 +254,177 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     }
 
     def buildMessage(context: PacketContext, ingressPort: UUID): Unit =
-        if (!txPeers.isEmpty) {
+        if (txBinary) {
+            statesAdded = 0
+            statesMissed = 0
+            if (encoder.finish()) {
+                aggregateMessage()
+            }
+            if (statesAdded == 0) {
+                metrics.stateMessagesDropped.inc()
+                log.warn("Skipping state message for port {}, too large",
+                         ingressPort)
+            } else if (statesMissed > 0) {
+                metrics.stateMessagesPartiallyDropped.inc()
+                log.warn("State message for port {} only partially sent to " +
+                         "the peers {}, too large", ingressPort, txPeers)
+            }
+        } else if (!txPeers.isEmpty) {
             try {
-                resetCurrentMessage()
                 txState.setIngressPort(uuidToProto(ingressPort))
-                currentMessage.addNewState(txState.build())
-                context.stateMessage = currentMessage.build()
-                hostsToActions(txPeers, context.stateActions)
+                val state = txState.build()
+                val message = buildProtoMessage(context.stateMessageBuffer,
+                                                state)
+                if (message ne null) {
+                    sendProtoMessage(context, message)
+                } else {
+                    splitProtoState(context, state)
+                }
             } finally {
                 txState.clear()
             }
         }
 
+    /**
+     * Adds the flow state of the binary message in txBuffer to the messages
+     * that the aggregator sends to each peer, splitting it if it doesn't fit
+     * in a state packet, and counts the peers that were and weren't given
+     * each piece of it.
+     */
+    private def aggregateMessage(): Unit = {
+        txBuffer.position(txBuffer.position + HEADER_LENGTH)
+        if (txBuffer.remaining <= MAX_STATES_LENGTH) {
+            aggregateStates(txBuffer)
+        } else if (encoder.splitState(txBuffer, fragmentBuffer,
+                                      MAX_STATES_LENGTH, aggregateStates)) {
+            metrics.stateMessagesFragmented.inc()
+        } else {
+            // The state that doesn't fit is lost for all peers
+            statesMissed += txPeers.size
+        }
+    }
+
+    private[this] val aggregateStates = (states: ByteBuffer) => {
+        val it = txPeers.iterator
+        while (it.hasNext) {
+            if (aggregator.add(it.next(), states, 1)) statesAdded += 1
+            else statesMissed += 1
+        }
+    }
+
+    private def buildProtoMessage(buf: ByteBuffer, state: Proto.FlowState)
+    : ByteBuffer =
+        try {
+            resetCurrentMessage()
+            currentMessage.addNewState(state)
+            val message = currentMessage.build()
+            val out = CodedOutputStream.newInstance(buf.array, buf.arrayOffset,
+                                                    buf.capacity)
+            out.writeRawVarint32(message.getSerializedSize)
+            message.writeTo(out)
+            buf.limit(buf.capacity - out.spaceLeft())
+            buf
+        } catch { case _: OutOfSpaceException =>
+            null
+        }
+
+    private def sendProtoMessage(carrier: PacketContext,
+                                 message: ByteBuffer): Unit = {
+        carrier.stateMessage = message
+        hostsToActions(txPeers, carrier.stateActions)
+    }
+
+    /**
+     * Splits a flow state too large for a state packet into several flow
+     * states of the same ingress port, each in a protobufs message of its
+     * own. The first message goes along with the packet of the context, and
+     * the rest in state carriers executed before it. An entry that doesn't
+     * fit in a state packet on its own is lost.
+     */
+    private def splitProtoState(context: PacketContext,
+                                state: Proto.FlowState): Unit = {
+        resetCurrentMessage()
+        val messageSize = currentMessage.build().getSerializedSize
+        val portSize = CodedOutputStream.computeMessageSize(
+            Proto.FlowState.INGRESS_PORT_FIELD_NUMBER, state.getIngressPort)
+
+        val entries = new ArrayList[MessageLite]()
+        if (state.hasConntrackKey)
+            entries.add(state.getConntrackKey)
+        entries.addAll(state.getNatEntriesList)
+        entries.addAll(state.getTraceEntryList)
+
+        val piece = Proto.FlowState.newBuilder()
+        var pieceSize = portSize
+        var pieces = 0
+        var missed = 0
+
+        def fits(stateSize: Int): Boolean = {
+            val size = messageSize + CodedOutputStream.computeTagSize(
+                Proto.StateMessage.NEW_STATE_FIELD_NUMBER) +
+                CodedOutputStream.computeRawVarint32Size(stateSize) + stateSize
+            CodedOutputStream.computeRawVarint32Size(size) + size <=
+                FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH
+        }
+
+        def send(): Unit = {
+            val carrier = if (pieces == 0) context
+                          else aggregator.carrierFor(context)
+            val message = buildProtoMessage(carrier.stateMessageBuffer,
+                piece.setIngressPort(state.getIngressPort).build())
+            if (message ne null) sendProtoMessage(carrier, message)
+            piece.clear()
+            pieceSize = portSize
+            pieces += 1
+        }
+
+        var i = 0
+        while (i < entries.size) {
+            val entry = entries.get(i)
+            val entrySize = CodedOutputStream.computeMessageSize(
+                protoFieldOf(entry), entry)
+            if (!fits(pieceSize + entrySize) && pieceSize > portSize)
+                send()
+            if (fits(pieceSize + entrySize)) {
+                addProtoEntry(piece, entry)
+                pieceSize += entrySize
+            } else {
+                missed += 1
+            }
+            i += 1
+        }
+        if (pieceSize > portSize)
+            send()
+
+        if (pieces == 0) {
+            metrics.stateMessagesDropped.inc()
+            log.warn("Skipping state message for port {}, too large",
+                     uuidFromProto(state.getIngressPort))
+        } else {
+            if (pieces > 1)
+                metrics.stateMessagesFragmented.inc()
+            if (missed > 0) {
+                metrics.stateMessagesPartiallyDropped.inc()
+                log.warn("State message for port {} only partially sent to " +
+                         "the peers {}, too large",
+                         uuidFromProto(state.getIngressPort), txPeers)
+            }
+        }
+    }
+
+    private def protoFieldOf(entry: MessageLite): Int = entry match {
+        case _: Proto.ConntrackKey => Proto.FlowState.CONNTRACK_KEY_FIELD_NUMBER
+        case _: Proto.NatEntry => Proto.FlowState.NAT_ENTRIES_FIELD_NUMBER
+        case _: Proto.TraceEntry => Proto.FlowState.TRACE_ENTRY_FIELD_NUMBER
+    }
+
+    private def addProtoEntry(state: Proto.FlowState.Builder,
+                              entry: MessageLite): Unit = entry match {
+        case k: Proto.ConntrackKey => state.setConntrackKey(k)
+        case e: Proto.NatEntry => state.addNatEntries(e)
+        case e: Proto.TraceEntry => state.addTraceEntry(e)
+    }
+
     private def hostsToActions(hosts: JSet[UUID],
                                actions: ArrayList[FlowAction]): Unit = {
         val hostsIt = hosts.iterator
@@ -260,39 +442,51 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     def touchState(): Unit =
         storage.submit()
 
+    private val stateAcceptor = new StateVisitor {
+        override def conntrackKey(k: ConnTrackKey): Unit = {
+            log.debug("got new conntrack key: {}", k)
+            conntrackTable.touch(k, ConnTrackState.RETURN_FLOW)
+            flowInvalidation.invalidateFlowsFor(k)
+        }
+
+        override def natEntry(k: NatKey, v: NatBinding): Unit = {
+            log.debug("Got new nat mapping: {} -> {}", k, v)
+            natTable.touch(k, v)
+            flowInvalidation.invalidateFlowsFor(k)
+        }
+
+        override def traceEntry(k: TraceKey, ctx: TraceContext): Unit = {
+            log.debug("Got new trace state: {} -> {}", k, ctx)
+            traceTable.touch(k, ctx)
+        }
+    }
+
     private def acceptNewState(msg: Proto.StateMessage) {
         val newStates = msg.getNewStateList.iterator
         while (newStates.hasNext) {
             val state = newStates.next()
             if (state.hasConntrackKey) {
-                val k = connTrackKeyFromProto(state.getConntrackKey)
-                log.debug("got new conntrack key: {}", k)
-                conntrackTable.touch(k, ConnTrackState.RETURN_FLOW)
-                flowInvalidation.invalidateFlowsFor(k)
+                stateAcceptor.conntrackKey(
+                    connTrackKeyFromProto(state.getConntrackKey))
             }
 
             val natEntries = state.getNatEntriesList.iterator
             while (natEntries.hasNext) {
                 val nat = natEntries.next()
-                val k = natKeyFromProto(nat.getK)
-                val v = natBindingFromProto(nat.getV)
-                log.debug("Got new nat mapping: {} -> {}", k, v)
-                natTable.touch(k, v)
-                flowInvalidation.invalidateFlowsFor(k)
+                stateAcceptor.natEntry(natKeyFromProto(nat.getK),
+                                       natBindingFromProto(nat.getV))
             }
 
             val traceEntries = state.getTraceEntryList.iterator
             while (traceEntries.hasNext) {
                 val trace = traceEntries.next
-                val k = traceKeyFromProto(trace)
                 val ctx = new TraceContext
                 ctx.enable(trace.getFlowTraceId)
                 val iter = trace.getRequestIdList.iterator
                 while (iter.hasNext) {
                     ctx.addRequest(iter.next)
                 }
-                log.debug("Got new trace state: {} -> {}", k, ctx)
-                traceTable.touch(k, ctx)
+                stateAcceptor.traceEntry(traceKeyFromProto(trace), ctx)
             }
         }
     }
@@ -310,14 +504,40 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
      */
     @throws(classOf[NotYetException])
     def accept(p: Ethernet) {
-        val msg = parseDatagram(p)
-        if (msg == null) {
+        val payload = parsePayload(p)
+        if (payload eq null) {
             log.info("Ignoring unexpected packet: {}", p)
             return
         }
 
-        log.debug("Got state replication message from: {}", msg.getSender)
-        acceptNewState(msg)
+        if (decoder.readHeader(payload, 0, payload.length)) {
+            val sender = decoder.sender
+            peerVersions.learn(sender, decoder.maxVersion)
+            if (decoder.version != BINARY_VERSION) {
+                log.info("Ignoring state message of version {} from: {}",
+                         Int.box(decoder.version), sender)
+                return
+            }
+            log.debug("Got state replication message from: {}", sender)
+            try {
+                decoder.readStates(stateAcceptor)
+            } catch { case e: IllegalArgumentException =>
+                log.warn(s"Ignoring malformed state message from $sender", e)
+            }
+        } else {
+            val msg = Proto.StateMessage.parseDelimitedFrom(
+                new ByteArrayInputStream(payload))
+            log.debug("Got state replication message from: {}", msg.getSender)
+            val sender = uuidFromProto(msg.getSender)
+            val version = if (msg.hasCodecVersion) msg.getCodecVersion
+                          else PROTOBUF_VERSION
+            peerVersions.learn(sender, version)
+            if (version >= BINARY_VERSION && peerVersions.advertiseTo(sender)) {
+                log.debug("Advertising the state message version to: {}", sender)
+                aggregator.add(sender, noStates, 0)
+            }
+            acceptNewState(msg)
+        }
     }
 
     @throws(classOf[NotYetException])
@@ -378,10 +598,14 @@ class FlowStateReplicator(
         hostId: UUID,
         underlay: UnderlayResolver,
         flowInvalidation: FlowTagIndexer,
-        tso: Byte)(implicit as: ActorSystem)
+        tso: Byte,
+        peerVersions: PeerVersions,
+        aggregator: FlowStateAggregator,
+        metrics: PacketPipelineMetrics)(implicit as: ActorSystem)
         extends BaseFlowStateReplicator(conntrackTable, natTable, traceTable,
                                         storage, hostId, underlay,
-                                        flowInvalidation, tso) {
+                                        flowInvalidation, tso, peerVersions,
+                                        aggregator, metrics) {
     override val log = Logger(LoggerFactory.getLogger("org.midonet.state.replication"))
 
     @throws(classOf[NotYetException])
@@ -18,21 +18,27 @@ package org.midonet.midolman.state
 
 import java.lang.{Integer => JInt}
 import java.net.InetAddress
-import java.util.{UUID, Set => JSet, Map => JMap, HashMap => JHashMap,
-                  HashSet => JHashSet, Iterator => JIterator}
-import java.util.concurrent.{TimeoutException, TimeUnit}
+import java.util.{ArrayList, Objects, UUID, Set => JSet, Map => JMap, HashMap => JHashMap,
+                  HashSet => JHashSet, Iterator => JIterator, LinkedHashMap}
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentLinkedQueue, TimeoutException, TimeUnit}
 import scala.concurrent.{ExecutionContext, Promise, Future}
 import scala.concurrent.duration.Duration
 
 import akka.actor.ActorSystem
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.codahale.metrics.MetricRegistry.name
 import com.datastax.driver.core._
-import com.google.common.util.concurrent.{FutureCallback, Futures}
+import com.google.common.util.concurrent.{FutureCallback, Futures, ListenableFuture}
 import org.slf4j.{Logger, LoggerFactory}
 import org.midonet.cluster.backend.cassandra.CassandraClient
+import org.midonet.midolman.monitoring.metrics.{FlowStateStorageGauge, FlowStateStorageMeter}
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.midolman.state.NatState.{KeyType, NatKey, NatBinding}
 import org.midonet.packets.{IPv4Addr, IPAddr}
 import org.midonet.util.collection.Bimap
+import org.midonet.util.concurrent.NanoClock
 
 object FlowStateStorage {
     val KEYSPACE_NAME = "MidonetFlowState"
@@ -122,7 +128,55 @@ object FlowStateStorage {
             networkAddress = inetToIPAddr(r.getInet("translateIp")).asInstanceOf[IPv4Addr],
             transportPort = r.getInt("translatePort"))
 
-    def apply(client: CassandraClient): FlowStateStorage = new FlowStateStorageImpl(client)
+    // The maximum number of statements in a write batch, which is sent as
+    // soon as it fills up.
+    val MAX_BATCH_STATEMENTS = 128
+
+    // The maximum number of write batches waiting for Cassandra to reply.
+    val MAX_IN_FLIGHT_BATCHES = 256
+
+    // The maximum number of recently written keys remembered to coalesce
+    // repeated touches of the same key.
+    val MAX_COALESCED_KEYS = 32768
+
+    /**
+     * Limits the number of write batches in flight towards Cassandra. It is
+     * shared by all the FlowStateStorage instances of a CassandraClient, and
+     * batches submitted when the limit is reached are dropped, so that a
+     * slow or overloaded Cassandra cluster doesn't build up pending requests
+     * in the agent.
+     */
+    class WriteThrottle(maxInFlight: Int, metrics: MetricRegistry) {
+        private val inFlight = new AtomicInteger()
+
+        val batchesWritten = metrics.meter(name(
+            classOf[FlowStateStorageMeter], "batchesWritten"))
+        val statementsShed = metrics.meter(name(
+            classOf[FlowStateStorageMeter], "statementsShed"))
+        val touchesCoalesced = metrics.meter(name(
+            classOf[FlowStateStorageMeter], "touchesCoalesced"))
+
+        metrics.register(name(classOf[FlowStateStorageGauge], "inFlightBatches"),
+            new Gauge[Int] { override def getValue = inFlight.get })
+
+        def tryAcquire(): Boolean = {
+            var current = inFlight.get
+            while (current < maxInFlight) {
+                if (inFlight.compareAndSet(current, current + 1))
+                    return true
+                current = inFlight.get
+            }
+            false
+        }
+
+        def release(): Unit = inFlight.decrementAndGet()
+    }
+
+    def apply(client: CassandraClient): FlowStateStorage =
+        apply(client, new WriteThrottle(MAX_IN_FLIGHT_BATCHES, new MetricRegistry))
+
+    def apply(client: CassandraClient, throttle: WriteThrottle): FlowStateStorage =
+        new FlowStateStorageImpl(client, throttle)
 }
 
 trait FlowStateStorage {
@@ -138,6 +192,37 @@ trait FlowStateStorage {
     def fetchWeakNatRefs(portId: UUID)
         (implicit ec: ExecutionContext, as: ActorSystem): Future[JMap[NatKey, NatBinding]]
 
+    /**
+     * Streams the keys fetched by fetchStrongConnTrackRefs() in pages of at
+     * most pageSize keys, which are handed to onPage as they are received.
+     * The returned future completes with the number of keys fetched, once
+     * all pages have been handed over. By default the keys are handed over
+     * in a single page.
+     */
+    def streamStrongConnTrackRefs(portId: UUID, pageSize: Int)
+                                 (onPage: JSet[ConnTrackKey] => Unit)
+                                 (implicit ec: ExecutionContext,
+                                           as: ActorSystem): Future[Int] =
+        fetchStrongConnTrackRefs(portId) map { keys => onPage(keys); keys.size }
+
+    def streamWeakConnTrackRefs(portId: UUID, pageSize: Int)
+                               (onPage: JSet[ConnTrackKey] => Unit)
+                               (implicit ec: ExecutionContext,
+                                         as: ActorSystem): Future[Int] =
+        fetchWeakConnTrackRefs(portId) map { keys => onPage(keys); keys.size }
+
+    def streamStrongNatRefs(portId: UUID, pageSize: Int)
+                           (onPage: JMap[NatKey, NatBinding] => Unit)
+                           (implicit ec: ExecutionContext,
+                                     as: ActorSystem): Future[Int] =
+        fetchStrongNatRefs(portId) map { keys => onPage(keys); keys.size }
+
+    def streamWeakNatRefs(portId: UUID, pageSize: Int)
+                         (onPage: JMap[NatKey, NatBinding] => Unit)
+                         (implicit ec: ExecutionContext,
+                                   as: ActorSystem): Future[Int] =
+        fetchWeakNatRefs(portId) map { keys => onPage(keys); keys.size }
+
     def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID, weakRefs: JIterator[UUID])
     def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID, weakRefs: JIterator[UUID])
 
@@ -156,15 +241,99 @@ trait FlowStateStorage {
  *
  * All operations are asynchronous, submit is meant to be fire-and-forget with
  * no error control and for this reason, returns Unit.
+ *
+ * Writes are coalesced: a key touched again with the same ports and value
+ * within half its TTL is not written again, since its row won't expire
+ * before the key is touched after that. Only the keys of batches that were
+ * sent count as written: the keys of batches that are shed, or that fail,
+ * are written again the next time they are touched. Writes are grouped into
+ * unlogged batches per table, and the batches in flight are limited by a
+ * WriteThrottle, dropping the writes that exceed it. Losing some writes only
+ * means that some flow state may not survive a port migration, which is
+ * preferable to slowing down the packet processing threads.
  */
-class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage {
+class FlowStateStorageImpl(val client: CassandraClient,
+                           throttle: FlowStateStorage.WriteThrottle,
+                           clock: NanoClock = NanoClock.DEFAULT)
+        extends FlowStateStorage {
     private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
 
     import FlowStateStorage._
 
-    var batch: BatchStatement = new BatchStatement()
     val ASYNC_REQUEST_TIMEOUT = Duration.create(3, TimeUnit.SECONDS)
 
+    /**
+     * An unlogged batch of writes to a single table.
+     */
+    private class TableBatch {
+        private var batch = new BatchStatement(BatchStatement.Type.UNLOGGED)
+        private var keys = new ArrayList[FlowStateKey]()
+
+        def add(s: Session, statement: Statement, key: FlowStateKey): Unit = {
+            batch.add(statement)
+            keys.add(key)
+            if (keys.size == MAX_BATCH_STATEMENTS)
+                submit(s)
+        }
+
+        def submit(s: Session): Unit = if (keys.size > 0) {
+            if (throttle.tryAcquire()) {
+                val result = s.executeAsync(batch)
+                Futures.addCallback(result, new TouchCallback(keys))
+                throttle.batchesWritten.mark()
+                keys = new ArrayList[FlowStateKey]()
+            } else {
+                throttle.statementsShed.mark(keys.size)
+                forgetTouches(keys)
+                keys.clear()
+            }
+            batch = new BatchStatement(BatchStatement.Type.UNLOGGED)
+        }
+    }
+
+    /**
+     * The last write of a key: when it was sent, and with which value and
+     * references.
+     */
+    private class Touch {
+        var writtenAt = 0L
+        var value: AnyRef = null
+        var strongRef: UUID = null
+        val weakRefs = new ArrayList[UUID](2)
+
+        def isSameAs(value: AnyRef, strongRef: UUID,
+                     weakRefs: ArrayList[UUID]): Boolean =
+            Objects.equals(this.value, value) &&
+            Objects.equals(this.strongRef, strongRef) &&
+            this.weakRefs.size == weakRefs.size &&
+            this.weakRefs.containsAll(weakRefs)
+
+        def set(now: Long, value: AnyRef, strongRef: UUID,
+                weakRefs: ArrayList[UUID]): Unit = {
+            writtenAt = now
+            this.value = value
+            this.strongRef = strongRef
+            this.weakRefs.clear()
+            this.weakRefs.addAll(weakRefs)
+        }
+    }
+
+    private val ingressConnTrackBatch = new TableBatch
+    private val egressConnTrackBatch = new TableBatch
+    private val ingressNatBatch = new TableBatch
+    private val egressNatBatch = new TableBatch
+
+    private val touchedWeakRefs = new ArrayList[UUID]()
+    // The keys of the batches whose writes failed, which are forgotten by
+    // the thread that owns this instance
+    private val failedTouches = new ConcurrentLinkedQueue[ArrayList[FlowStateKey]]()
+    private val recentTouches =
+        new LinkedHashMap[FlowStateKey, Touch](MAX_COALESCED_KEYS / 8) {
+            override def removeEldestEntry(
+                    eldest: java.util.Map.Entry[FlowStateKey, Touch]) =
+                size() > MAX_COALESCED_KEYS
+        }
+
     class Prepared(query: String) {
         var _statement: PreparedStatement = null
 
@@ -235,10 +404,14 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     override def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
             weakRefs: JIterator[UUID]): Unit = withSession {
         s =>
-            if (strongRef ne null)
-                batch.add(bind(touchIngressConnTrack(s), strongRef, k))
-            while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressConnTrack(s), weakRefs.next(), k))
+            if (shouldWrite(k, null, strongRef, weakRefs)) {
+                if (strongRef ne null)
+                    ingressConnTrackBatch.add(s, bind(touchIngressConnTrack(s), strongRef, k), k)
+                var i = 0
+                while (i < touchedWeakRefs.size) {
+                    egressConnTrackBatch.add(s, bind(touchEgressConnTrack(s), touchedWeakRefs.get(i), k), k)
+                    i += 1
+                }
             }
     }
 
@@ -253,22 +426,70 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     override def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
             weakRefs: JIterator[UUID]): Unit = withSession {
         s =>
-            if (strongRef ne null)
-                batch.add(bind(touchIngressNat(s), strongRef, k, v))
-            while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressNat(s), weakRefs.next(), k, v))
+            if (shouldWrite(k, v, strongRef, weakRefs)) {
+                if (strongRef ne null)
+                    ingressNatBatch.add(s, bind(touchIngressNat(s), strongRef, k, v), k)
+                var i = 0
+                while (i < touchedWeakRefs.size) {
+                    egressNatBatch.add(s, bind(touchEgressNat(s), touchedWeakRefs.get(i), k, v), k)
+                    i += 1
+                }
             }
     }
 
+    /**
+     * Collects the weak references of a key and decides whether the key
+     * needs to be written, or whether it was written recently enough, with
+     * the same value and references. The key counts as written until its
+     * batch is shed or fails.
+     */
+    private def shouldWrite(k: FlowStateKey, value: AnyRef, strongRef: UUID,
+                            refs: JIterator[UUID]): Boolean = {
+        forgetFailedTouches()
+        touchedWeakRefs.clear()
+        while (refs.hasNext) {
+            touchedWeakRefs.add(refs.next())
+        }
+
+        val now = clock.tick
+        var touch = recentTouches.get(k)
+        if (touch eq null) {
+            touch = new Touch
+            recentTouches.put(k, touch)
+        } else if (touch.isSameAs(value, strongRef, touchedWeakRefs) &&
+                   now - touch.writtenAt < k.expiresAfter.toNanos / 2) {
+            throttle.touchesCoalesced.mark()
+            return false
+        }
+        touch.set(now, value, strongRef, touchedWeakRefs)
+        true
+    }
+
+    private def forgetTouches(keys: ArrayList[FlowStateKey]): Unit = {
+        var i = 0
+        while (i < keys.size) {
+            recentTouches.remove(keys.get(i))
+            i += 1
+        }
+    }
+
+    private def forgetFailedTouches(): Unit =
+        while (!failedTouches.isEmpty) {
+            val keys = failedTouches.poll()
+            if (keys ne null)
+                forgetTouches(keys)
+        }
+
     /**
      * Sends all state accumulated through touchConnTrackKey() and touchNatKey()
      * to Cassandra, asynchronously. Errors will be logged but ignored.
      */
     override def submit(): Unit = withSession {
         s =>
-            val result = s.executeAsync(batch)
-            Futures.addCallback(result, touchCallback)
-            batch = new BatchStatement()
+            ingressConnTrackBatch.submit(s)
+            egressConnTrackBatch.submit(s)
+            ingressNatBatch.submit(s)
+            egressNatBatch.submit(s)
     }
 
     /**
@@ -295,6 +516,46 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     override def fetchWeakNatRefs(port: UUID)(implicit ec: ExecutionContext, as: ActorSystem) =
         fetch(fetchEgressNat, port, resultSetToNatBindings)
 
+    /**
+     * Streams all conntrack keys for which a given port is ingress, fetching
+     * them from Cassandra one page at a time.
+     */
+    override def streamStrongConnTrackRefs(port: UUID, pageSize: Int)
+                                          (onPage: JSet[ConnTrackKey] => Unit)
+                                          (implicit ec: ExecutionContext,
+                                                    as: ActorSystem) =
+        stream(fetchIngressConnTrack, port, pageSize, pageToConnTrackKeys, onPage)
+
+    /**
+     * Streams all conntrack keys for which a given port is egress, fetching
+     * them from Cassandra one page at a time.
+     */
+    override def streamWeakConnTrackRefs(port: UUID, pageSize: Int)
+                                        (onPage: JSet[ConnTrackKey] => Unit)
+                                        (implicit ec: ExecutionContext,
+                                                  as: ActorSystem) =
+        stream(fetchEgressConnTrack, port, pageSize, pageToConnTrackKeys, onPage)
+
+    /**
+     * Streams all nat keys for which a given port is ingress, fetching them
+     * from Cassandra one page at a time.
+     */
+    override def streamStrongNatRefs(port: UUID, pageSize: Int)
+                                    (onPage: JMap[NatKey, NatBinding] => Unit)
+                                    (implicit ec: ExecutionContext,
+                                              as: ActorSystem) =
+        stream(fetchIngressNat, port, pageSize, pageToNatBindings, onPage)
+
+    /**
+     * Streams all nat keys for which a given port is egress, fetching them
+     * from Cassandra one page at a time.
+     */
+    override def streamWeakNatRefs(port: UUID, pageSize: Int)
+                                  (onPage: JMap[NatKey, NatBinding] => Unit)
+                                  (implicit ec: ExecutionContext,
+                                            as: ActorSystem) =
+        stream(fetchEgressNat, port, pageSize, pageToNatBindings, onPage)
+
     private def resultSetToConnTrackKeys(rs: ResultSet): JSet[ConnTrackKey] = {
         val keys = new JHashSet[ConnTrackKey]()
         val rows = rs.iterator()
@@ -314,6 +575,27 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
         bindings
     }
 
+    private def pageToConnTrackKeys(rs: ResultSet, rows: Int): JSet[ConnTrackKey] = {
+        val keys = new JHashSet[ConnTrackKey](rows * 2)
+        var i = 0
+        while (i < rows) {
+            keys.add(rowToConnTrack(rs.one()))
+            i += 1
+        }
+        keys
+    }
+
+    private def pageToNatBindings(rs: ResultSet, rows: Int): JMap[NatKey, NatBinding] = {
+        val bindings = new JHashMap[NatKey, NatBinding](rows * 2)
+        var i = 0
+        while (i < rows) {
+            val row = rs.one()
+            bindings.put(rowToNatKey(row), rowToNatBinding(row))
+            i += 1
+        }
+        bindings
+    }
+
     private def peelResult[U](result: Option[Future[U]]): Future[U] = result match {
         case Some(f) => f
         case None =>
@@ -327,23 +609,60 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
         })
     }
 
-    private val touchCallback = new FutureCallback[ResultSet] {
+    private def stream[U](statement: Prepared, portId: UUID, pageSize: Int,
+                          transform: (ResultSet, Int) => U, onPage: U => Unit)
+                         (implicit ec: ExecutionContext, as: ActorSystem): Future[Int] = {
+        peelResult (withSession { s =>
+            val bound = statement(s).bind(portId)
+            bound.setFetchSize(pageSize)
+            toScalaFuture(s.executeAsync(bound)) flatMap {
+                rs => streamPages(rs, transform, onPage, 0)
+            }
+        })
+    }
+
+    /**
+     * Hands over the rows of the current page of the result set and fetches
+     * the next one, until the result set is exhausted. Only one page is held
+     * in memory at a time.
+     */
+    private def streamPages[U](rs: ResultSet, transform: (ResultSet, Int) => U,
+                               onPage: U => Unit, fetched: Int)
+                              (implicit ec: ExecutionContext,
+                                        as: ActorSystem): Future[Int] = {
+        val rows = rs.getAvailableWithoutFetching
+        if (rows > 0)
+            onPage(transform(rs, rows))
+        if (rs.isFullyFetched) {
+            Future.successful(fetched + rows)
+        } else {
+            toScalaFuture(rs.fetchMoreResults()) flatMap {
+                _ => streamPages(rs, transform, onPage, fetched + rows)
+            }
+        }
+    }
+
+    private class TouchCallback(keys: ArrayList[FlowStateKey])
+            extends FutureCallback[ResultSet] {
         override def onSuccess(result: ResultSet): Unit = {
+            throttle.release()
             log.debug("key touch success: {}", result)
         }
 
         override def onFailure(t: Throwable): Unit = {
+            throttle.release()
+            failedTouches.add(keys)
             log.warn("failed to touch keys", t)
         }
     }
 
-    private def toScalaFuture(f: ResultSetFuture)
+    private def toScalaFuture[T](f: ListenableFuture[T])
             (implicit ec: ExecutionContext,
-                      as: ActorSystem): Future[ResultSet] = {
+                      as: ActorSystem): Future[T] = {
 
-        val p: Promise[ResultSet] = Promise[ResultSet]()
-        Futures.addCallback(f, new FutureCallback[ResultSet](){
-            override def onSuccess(result: ResultSet): Unit = {
+        val p: Promise[T] = Promise[T]()
+        Futures.addCallback(f, new FutureCallback[T](){
+            override def onSuccess(result: T): Unit = {
                 if(!p.trySuccess(result)) {
                     log.warn("failed to complete future with success {}", result)
                 }
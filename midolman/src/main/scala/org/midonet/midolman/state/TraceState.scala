@@ -107,7 +107,8 @@ trait TraceState extends FlowState { this: PacketContext =>
     import org.midonet.midolman.state.TraceState._
 
     var traceTx: FlowStateTransaction[TraceKey, TraceContext] = _
-    val traceContext: TraceContext = new TraceContext
+    private var _traceContext: TraceContext = new TraceContext
+    def traceContext: TraceContext = _traceContext
 
     private var clearEnabled = true
 
@@ -127,6 +128,13 @@ trait TraceState extends FlowState { this: PacketContext =>
         }
     }
 
+    /* Starts over with a new trace context once the packet has been
+     * processed, since the trace state table holds the current one when the
+     * packet was traced, and clearing it would wipe the stored state. */
+    protected def renewTraceContext(): Unit =
+        if (_traceContext.enabled)
+            _traceContext = new TraceContext
+
     def tracingContext : String = traceContext.toString
 
     def tracingEnabled: Boolean = traceContext.enabled
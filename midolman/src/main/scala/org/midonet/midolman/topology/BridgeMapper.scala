@@ -43,7 +43,7 @@ import org.midonet.midolman.state.ReplicatedMap.Watcher
 import org.midonet.midolman.state.{ReplicatedMap, StateAccessException}
 import org.midonet.midolman.topology.devices.{RouterPort, BridgePort, Port}
 import org.midonet.packets.{IPv4Addr, IPAddr, MAC}
-import org.midonet.sdn.flows.FlowTagger.{tagForArpRequests, tagForBridgePort, tagForBroadcast, tagForFloodedFlowsByDstMac, tagForVlanPort}
+import org.midonet.sdn.flows.FlowTagger.{FlowTag, tagForArpRequests, tagForBridgePort, tagForBroadcast, tagForFloodedFlowsByDstMac, tagForVlanPort}
 import org.midonet.util.collection.Reducer
 import org.midonet.util.concurrent.TimedExpirationMap
 import org.midonet.util.functors._
@@ -684,28 +684,30 @@ final class BridgeMapper(bridgeId: UUID, implicit val vt: VirtualTopology)
 
         val addedMacPortMappings = routerMacToPortMap -- oldRouterMacPortMap.keys
         val deletedMacPortMappings = oldRouterMacPortMap -- routerMacToPortMap.keys
+        val invalidatedTags = new mutable.ArrayBuffer[FlowTag]
         // Invalidate the flows for the deleted MAC-port mappings.
         for ((mac, portId) <- deletedMacPortMappings) {
-            vt.invalidate(tagForBridgePort(bridgeId, portId))
+            invalidatedTags += tagForBridgePort(bridgeId, portId)
         }
         // Invalidated all ARP requests.
         if (addedMacPortMappings.nonEmpty) {
-            vt.invalidate(tagForArpRequests(bridgeId))
+            invalidatedTags += tagForArpRequests(bridgeId)
         }
         // Invalidate all flooded flows to the router port's specific MAC. We
         // don't expect MAC migration in this case, otherwise we'd be
         // invalidating unicast flows to device port's MAC.
         for ((mac, portId) <- addedMacPortMappings) {
-            vt.invalidate(tagForFloodedFlowsByDstMac(bridgeId, UntaggedVlanId,
-                                                     mac))
+            invalidatedTags += tagForFloodedFlowsByDstMac(bridgeId,
+                                                          UntaggedVlanId, mac)
         }
         oldRouterMacPortMap = routerMacToPortMap.toMap
 
         // Invalidate the flows if the exterior ports have changed.
         if (exteriorPorts != oldExteriorPorts) {
-            vt.invalidate(tagForBroadcast(bridgeId))
+            invalidatedTags += tagForBroadcast(bridgeId)
             oldExteriorPorts = exteriorPorts.toSet
         }
+        vt.invalidateAll(invalidatedTags)
 
         // Create the simulation bridge.
         val device = new SimulationBridge(
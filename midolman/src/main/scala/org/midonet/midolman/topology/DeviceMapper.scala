@@ -31,6 +31,7 @@ import rx.{Observable, Observer, Subscriber}
 import org.midonet.midolman.logging.MidolmanLogging
 import org.midonet.midolman.topology.DeviceMapper.DeviceState
 import org.midonet.midolman.topology.VirtualTopology.Device
+import org.midonet.sdn.flows.FlowTagger
 import org.midonet.util.functors._
 
 object DeviceMapper {
@@ -121,6 +122,7 @@ abstract class DeviceMapper[D <: Device](val id: UUID, vt: VirtualTopology)
             case _ =>
         }
         vt.observables.remove(id)
+        FlowTagger.evictTagsFor(id)
     }
 
     override final def onError(e: Throwable) = {
@@ -15,7 +15,7 @@
  */
 package org.midonet.midolman.topology
 
-import java.util.UUID
+import java.util.{List => JList, UUID}
 
 import scala.collection.JavaConversions._
 import scala.collection.{Set => ROSet, mutable}
@@ -39,13 +39,11 @@ import org.midonet.util.functors.Callback0
 class RoutingTableWrapper[IP <: IPAddr](val rTable: RoutingTableIfc[IP])
     extends RoutingTable {
 
-    import collection.JavaConversions._
-
     /**
      * TODO (ipv6): de facto implementation for ipv4, that explains the casts at
      * this point.
      */
-    def lookup(wmatch: FlowMatch): Iterable[Route] =
+    def lookup(wmatch: FlowMatch): JList[Route] =
         rTable.lookup(wmatch.getNetworkSrcIP.asInstanceOf[IP],
                       wmatch.getNetworkDstIP.asInstanceOf[IP])
 
@@ -53,7 +51,7 @@ class RoutingTableWrapper[IP <: IPAddr](val rTable: RoutingTableIfc[IP])
      * TODO (ipv6): de facto implementation for ipv4, that explains the casts at
      * this point.
      */
-    def lookup(wmatch: FlowMatch, logger: Logger): Iterable[Route] =
+    def lookup(wmatch: FlowMatch, logger: Logger): JList[Route] =
         rTable.lookup(wmatch.getNetworkSrcIP.asInstanceOf[IP],
                       wmatch.getNetworkDstIP.asInstanceOf[IP],
                       logger.underlying)
@@ -17,7 +17,7 @@
 package org.midonet.midolman.topology
 
 import java.lang.{Boolean => JBoolean}
-import java.util.UUID
+import java.util.{List => JList, UUID}
 
 import scala.collection.JavaConverters._
 import scala.collection.mutable
@@ -39,7 +39,7 @@ import org.midonet.midolman.topology.RouterMapper._
 import org.midonet.midolman.topology.devices.RouterPort
 import org.midonet.odp.FlowMatch
 import org.midonet.packets.{IPAddr, IPv4Addr, MAC}
-import org.midonet.sdn.flows.FlowTagger.{tagForDestinationIp, tagForRoute}
+import org.midonet.sdn.flows.FlowTagger.{FlowTag, tagForDestinationIp, tagForRoute}
 import org.midonet.util.functors._
 
 object RouterMapper {
@@ -267,28 +267,22 @@ object RouterMapper {
 
     /**
      * Provides an implementation for a router's [[RoutingTable]], wrapping an
-     * underlying IPv4 routing table.
+     * underlying IPv4 routing table, which must not be modified afterwards.
      */
-    private class RouterRoutingTable(routes: mutable.Set[Route])
+    private class RouterRoutingTable(ipv4RoutingTable: IPv4RoutingTable)
         extends RoutingTable {
 
-        private val ipv4RoutingTable = new IPv4RoutingTable()
-
-        for (route <- routes) {
-            ipv4RoutingTable.addRoute(route)
-        }
-
-        override def lookup(flowMatch: FlowMatch): Iterable[Route] = {
+        override def lookup(flowMatch: FlowMatch): JList[Route] = {
             ipv4RoutingTable.lookup(
                 flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr],
-                flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr]).asScala
+                flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr])
         }
 
-        override def lookup(flowMatch: FlowMatch, log: Logger): Iterable[Route] = {
+        override def lookup(flowMatch: FlowMatch, log: Logger): JList[Route] = {
             ipv4RoutingTable.lookup(
                 flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr],
                 flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr],
-                log.underlying).asScala
+                log.underlying)
         }
     }
 
@@ -333,8 +327,10 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology)
     private val ports = new mutable.HashMap[UUID, PortState]
     private var loadBalancer: LoadBalancerState = null
     // Stores all routes received via notifications from the replicated routing
-    // table.
-    private val routes = new mutable.HashSet[Route]
+    // table. Once a routing table is used by a router device, the next route
+    // updates are applied to a copy of it.
+    private var routingTable = new IPv4RoutingTable()
+    private var routingTableShared = false
     // Stores routes received via the router's configuration in storage.
     private val localRoutes = new mutable.HashMap[UUID, RouteState]
     private var arpCache: ArpCache = null
@@ -539,12 +535,21 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology)
         assertThread()
 
         // Update the current routes.
-        routes ++= routeUpdates.added
-        routes --= routeUpdates.removed
+        if (routingTableShared) {
+            routingTable = new IPv4RoutingTable(routingTable)
+            routingTableShared = false
+        }
+        for (route <- routeUpdates.added) {
+            routingTable.addRoute(route)
+        }
+        for (route <- routeUpdates.removed) {
+            routingTable.deleteRoute(route)
+        }
 
+        val invalidatedTags = new mutable.ArrayBuffer[FlowTag]
         // Invalidate the flows for the removed routes.
         for (route <- routeUpdates.removed) {
-            vt.invalidate(tagForRoute(route))
+            invalidatedTags += tagForRoute(route)
         }
         // Invalidate the flows for the added routes. This involves invalidating
         // all flows tags that were previously added for a given destination
@@ -563,9 +568,10 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology)
                       ipsToInvalidate.toSet)
 
             for (ip <- ipsToInvalidate) {
-                vt.invalidate(tagForDestinationIp(routerId, ip))
+                invalidatedTags += tagForDestinationIp(routerId, ip)
             }
         }
+        vt.invalidateAll(invalidatedTags)
 
         config
     }
@@ -603,10 +609,11 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology)
     private def buildRouter(config: Config) : SimulationRouter = {
         assertThread()
 
+        routingTableShared = true
         val device = new SimulationRouter(
             routerId,
             config,
-            new RouterRoutingTable(routes),
+            new RouterRoutingTable(routingTable),
             tagManager,
             arpCache
             )
@@ -239,6 +239,10 @@ class VirtualTopology @Inject() (val backend: MidonetBackend,
     private[topology] def invalidate(tag: FlowTag): Unit =
         flowInvalidator.scheduleInvalidationFor(tag)
 
+    /** Invalidates the flows for the tags of a device update, as one batch. */
+    private[topology] def invalidateAll(tags: TraversableOnce[FlowTag]): Unit =
+        flowInvalidator.scheduleInvalidationForAll(tags)
+
     /** Safely executes a task on the virtual topology thread. */
     private[topology] def executeVt(task: => Unit) = {
         vtExecutor.execute(makeRunnable {
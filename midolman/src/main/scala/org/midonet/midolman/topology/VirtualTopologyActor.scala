@@ -27,6 +27,7 @@ import akka.actor._
 import com.google.inject.Inject
 import com.typesafe.scalalogging.Logger
 import org.midonet.midolman.flows.FlowInvalidator
+import org.midonet.sdn.flows.FlowTagger
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.slf4j.LoggerFactory
 
@@ -346,6 +347,7 @@ class VirtualTopologyActor extends VirtualTopologyRedirector {
 
     protected override def deviceDeleted(id: UUID): Unit = {
         topology.remove(id)
+        FlowTagger.evictTagsFor(id)
     }
 
     protected override def deviceError(id: UUID, e: Throwable): Unit = {
@@ -32,7 +32,10 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
 
     private var cfg: Config = new Config
     private var arpCache: ArpCache = null
-    private val routes = new scala.collection.mutable.HashSet[Route]()
+    // The routing table is passed to the router on build, so the next changes
+    // are applied to a copy of it.
+    private var table = new IPv4RoutingTable()
+    private var tableShared = false
     private val routesToAdd = new scala.collection.mutable.HashSet[Route]()
     private val routesToRemove = new scala.collection.mutable.HashSet[Route]()
 
@@ -44,15 +47,23 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
     }
 
     def addRoute(rt: Route) {
-        routes.add(rt)
+        writableTable().addRoute(rt)
         routesToAdd.add(rt)
     }
 
     def removeRoute(rt: Route) {
-        routes.remove(rt)
+        writableTable().deleteRoute(rt)
         routesToRemove.add(rt)
     }
 
+    private def writableTable(): IPv4RoutingTable = {
+        if (tableShared) {
+            table = new IPv4RoutingTable(table)
+            tableShared = false
+        }
+        table
+    }
+
     def setAdminStateUp(adminStateUp: Boolean) = {
         cfg = cfg.copy(adminStateUp = adminStateUp)
         this
@@ -73,11 +84,9 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
     }
 
     def build() {
-        // we always pass a new copy of the RoutingTable since this is accessed
-        // by the RCU Router
-        val table = new IPv4RoutingTable()
-        for (rt <- routes)
-            table.addRoute(rt)
+        // the RoutingTable is accessed by the RCU Router, so it's copied
+        // before it's modified again
+        tableShared = true
         if (routesToAdd.size > 0 || routesToRemove.size > 0) {
             val added = routesToAdd.clone()
             val deleted = routesToRemove.clone()
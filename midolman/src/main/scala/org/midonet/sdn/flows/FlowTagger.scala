@@ -16,8 +16,9 @@
 
 package org.midonet.sdn.flows
 
-import java.util.{UUID, WeakHashMap}
 import java.lang.ref.WeakReference
+import java.util.{Arrays, Collections, HashSet, UUID, WeakHashMap}
+import java.util.concurrent.ConcurrentLinkedQueue
 
 import org.midonet.packets.{IPAddr, MAC}
 import org.midonet.midolman.layer3.Route
@@ -41,335 +42,533 @@ object FlowTagger {
         }
     }
 
-    class TagsTrie {
-        private var wrValue: WeakReference[FlowTag] = _
-        private val children = new WeakHashMap[Object, TagsTrie]
-        // TODO: Consider having arrays to hold primitive type keys,
-        //       in order to avoid boxing.
+    /**
+     * A tag created by the FlowTagger, which is interned in the tag table of
+     * the creating thread. The hash code of these tags is computed once.
+     *
+     * Interned tags still compare structurally, although the case class
+     * equality checks for the same instance first, which is the case of the
+     * tags of a thread. The same tag is a different instance in the table of
+     * each thread, such as the tags invalidated by the topology threads and
+     * the tags of the flows of the packet workers, and a tag is created again
+     * after it has been evicted, while the flows tagged before still hold the
+     * previous instance. Comparing them by reference would miss those.
+     */
+    sealed trait InternedTag extends FlowTag {
+        /** Whether the tag refers to the specified virtual device. */
+        def refersTo(device: UUID): Boolean = false
+
+        /** Whether the tag has the fields of the tag being looked up. */
+        private[FlowTagger] def sameAs(key: TagKey): Boolean
+    }
+
+    private final val DEVICE = 1
+    private final val PORT_TX = 2
+    private final val PORT_RX = 3
+    private final val VLAN_FLOOD = 4
+    private final val ARP_REQUEST = 5
+    private final val VLAN_PORT = 6
+    private final val BROADCAST = 7
+    private final val BRIDGE_PORT = 8
+    private final val DP_PORT = 9
+    private final val TUNNEL_ROUTE = 10
+    private final val TUNNEL_KEY = 11
+    private final val ROUTE = 12
+    private final val DESTINATION_IP = 13
+    private final val USER = 14
+
+    private final val INITIAL_TABLE_CAPACITY = 1024
+
+    @inline private def hash(h: Long, value: Long): Long =
+        java.lang.Long.rotateLeft((h ^ value) * 0x9e3779b97f4a7c15L, 31)
+
+    @inline private def hash(h: Long, id: UUID): Long =
+        if (id eq null) hash(h, 0L)
+        else hash(hash(h, id.getMostSignificantBits), id.getLeastSignificantBits)
+
+    @inline private def hash(h: Long, mac: MAC): Long =
+        hash(h, if (mac eq null) 0L else mac.asLong)
+
+    @inline private def hash(h: Long, obj: AnyRef): Long =
+        hash(h, if (obj eq null) 0L else obj.hashCode.toLong)
+
+    @inline private def result(h: Long): Int = (h ^ (h >>> 32)).toInt
 
-        def getOrAddSegment(key: Object): TagsTrie = {
-            var segment = children.get(key)
-            if (segment eq null) {
-                segment = new TagsTrie
-                children.put(key, segment)
+    /**
+     * The fields of the tag being looked up in a table, set by each lookup
+     * in place, so that finding an existing tag doesn't allocate.
+     */
+    private[FlowTagger] final class TagKey {
+        var kind = 0
+        var id: UUID = null
+        var other: UUID = null
+        var ref: AnyRef = null
+        var value = 0L
+        var otherValue = 0L
+
+        def set(kind: Int, id: UUID = null, other: UUID = null,
+                ref: AnyRef = null, value: Long = 0L,
+                otherValue: Long = 0L): TagKey = {
+            this.kind = kind
+            this.id = id
+            this.other = other
+            this.ref = ref
+            this.value = value
+            this.otherValue = otherValue
+            this
+        }
+    }
+
+    /* Creates the tag for the fields of a key. */
+    private def newTag(key: TagKey): FlowTag = key.kind match {
+        case DEVICE => DeviceTag(key.id)
+        case PORT_TX => PortTxTag(key.id)
+        case PORT_RX => PortRxTag(key.id)
+        case VLAN_FLOOD =>
+            VlanFloodTag(key.id, key.value.toShort, key.ref.asInstanceOf[MAC])
+        case ARP_REQUEST => ArpRequestTag(key.id)
+        case VLAN_PORT =>
+            VlanPortTag(key.id, key.ref.asInstanceOf[MAC], key.value.toShort,
+                        key.other)
+        case BROADCAST => BroadcastTag(key.id)
+        case BRIDGE_PORT => BridgePortTag(key.id, key.other)
+        case DP_PORT => DpPortTag(key.value.toInt)
+        case TUNNEL_ROUTE =>
+            TunnelRouteTag(key.value.toInt, key.otherValue.toInt)
+        case TUNNEL_KEY => TunnelKeyTag(key.value)
+        case ROUTE => RouteTag(key.id, key.value.toInt)
+        case DESTINATION_IP =>
+            DestinationIpTag(key.id, key.ref.asInstanceOf[IPAddr])
+        case USER => UserTag(key.ref.asInstanceOf[String])
+    }
+
+    /**
+     * The table where a thread interns the tags it creates, so that each
+     * tag is a canonical object while it's in use, and so that creating an
+     * existing tag doesn't allocate. The table is an open addressing hash
+     * table, looked up with a hash computed from the primitive fields of the
+     * tags. The tags are weakly referenced, and the slots of the collected
+     * tags are reclaimed when the table grows.
+     *
+     * Tables are only accessed by their thread, except for the evictions
+     * requested by other threads, which are applied on the next lookup.
+     */
+    final class TagTable {
+        private var hashes = new Array[Int](INITIAL_TABLE_CAPACITY)
+        private var refs = new Array[WeakReference[FlowTag]](INITIAL_TABLE_CAPACITY)
+        private var used = 0
+        private[FlowTagger] val evictions = new ConcurrentLinkedQueue[UUID]()
+
+        /**
+         * The number of slots in use, including the ones of the tags that
+         * have been collected since the table last grew.
+         */
+        def size: Int = used
+
+        @inline private def start(hash: Int): Int =
+            hash & (refs.length - 1)
+
+        @inline private def next(slot: Int): Int =
+            (slot + 1) & (refs.length - 1)
+
+        /** The key reused by the lookups in this table. */
+        private[FlowTagger] val key = new TagKey
+
+        /**
+         * Returns the interned tag with the given hash and the fields of the
+         * key, or adds a new one in the empty slot where the probe ended.
+         */
+        private[FlowTagger] def intern(hash: Int, key: TagKey): FlowTag = {
+            var slot = start(hash)
+            var found: FlowTag = null
+            while ((found eq null) && (refs(slot) ne null)) {
+                if (hashes(slot) == hash) refs(slot).get() match {
+                    case tag: InternedTag if tag.sameAs(key) => found = tag
+                    case _ => slot = next(slot)
+                } else {
+                    slot = next(slot)
+                }
             }
-            segment
+            if (found eq null)
+                found = add(slot, hash, newTag(key))
+            // Drops the references to the fields of the tag.
+            key.set(0)
+            found
         }
 
-        def value: FlowTag =
-            if (wrValue ne null) wrValue.get() else null
+        /**
+         * Adds a tag in the empty slot where its lookup ended.
+         */
+        private def add[T <: FlowTag](slot: Int, hash: Int, tag: T): T = {
+            hashes(slot) = hash
+            refs(slot) = new WeakReference[FlowTag](tag)
+            used += 1
+            if (used * 2 > refs.length)
+                rebuild(_ => false)
+            tag
+        }
 
-        def value_=(flowTag: FlowTag): Unit =
-            wrValue = new WeakReference[FlowTag](flowTag)
+        /* Evicts the tags of all the devices deleted since the last lookup
+         * with a single rebuild of the table. */
+        private[FlowTagger] def evictPending(): Unit = {
+            val devices = new HashSet[UUID]()
+            var device: UUID = null
+            while ({ device = evictions.poll(); device } ne null) {
+                devices.add(device)
+            }
+            if (!devices.isEmpty) rebuild {
+                case tag: InternedTag =>
+                    val it = devices.iterator()
+                    var refers = false
+                    while (!refers && it.hasNext) {
+                        refers = tag.refersTo(it.next())
+                    }
+                    refers
+                case _ => false
+            }
+        }
+
+        /* Rebuilds the table without the collected tags nor the evicted ones,
+         * doubling its capacity if it's still half full. */
+        private def rebuild(evict: FlowTag => Boolean): Unit = {
+            val oldHashes = hashes
+            val oldRefs = refs
+            var live = 0
+            var i = 0
+            while (i < oldRefs.length) {
+                if (oldRefs(i) ne null) {
+                    val tag = oldRefs(i).get()
+                    if ((tag eq null) || evict(tag))
+                        oldRefs(i) = null
+                    else
+                        live += 1
+                }
+                i += 1
+            }
+            val capacity =
+                if (live * 2 > oldRefs.length / 2) oldRefs.length * 2
+                else oldRefs.length
+            hashes = new Array[Int](capacity)
+            refs = new Array[WeakReference[FlowTag]](capacity)
+            used = live
+            i = 0
+            while (i < oldRefs.length) {
+                if (oldRefs(i) ne null) {
+                    var slot = start(oldHashes(i))
+                    while (refs(slot) ne null) {
+                        slot = next(slot)
+                    }
+                    hashes(slot) = oldHashes(i)
+                    refs(slot) = oldRefs(i)
+                }
+                i += 1
+            }
+        }
+    }
+
+    private val tables = Collections.synchronizedMap(
+        new WeakHashMap[TagTable, java.lang.Boolean]())
+
+    private val tagTables = new ThreadLocal[TagTable] {
+        override def initialValue = {
+            val table = new TagTable
+            tables.put(table, java.lang.Boolean.TRUE)
+            table
+        }
+    }
+
+    private def tagTable: TagTable = {
+        val table = tagTables.get()
+        if (!table.evictions.isEmpty)
+            table.evictPending()
+        table
     }
 
     /**
-     * Tag for the flows related to the specified device.
+     * The number of tags interned by all threads.
      */
-    case class DeviceTag(device: UUID) extends FlowTag with MeterTag {
-        override def toString = "device:" + device
+    def internedTags: Long = tables synchronized {
+        var count = 0L
+        val it = tables.keySet.iterator()
+        while (it.hasNext) {
+            count += it.next().size
+        }
+        count
     }
 
-    val cachedDeviceTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
+    /**
+     * Evicts the interned tags that refer to the specified device, which
+     * should be called once the device has been deleted. Each thread evicts
+     * them from its table before it creates its next tag.
+     */
+    def evictTagsFor(device: UUID): Unit = tables synchronized {
+        val it = tables.keySet.iterator()
+        while (it.hasNext) {
+            it.next().evictions.offer(device)
+        }
     }
 
-    def tagForDevice(device: UUID): FlowTag = {
-        val segment = cachedDeviceTags.get().getOrAddSegment(device)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = new DeviceTag(device)
-            segment.value = tag
-        }
-        tag
+    /**
+     * Tag for the flows related to the specified device.
+     */
+    case class DeviceTag(device: UUID) extends InternedTag with MeterTag {
+        override val hashCode = result(hash(DEVICE, device))
+        override def refersTo(id: UUID) = device == id
+        override def toString = "device:" + device
+        override private[FlowTagger] def sameAs(key: TagKey) =
+            key.kind == DEVICE && device == key.id
     }
 
-    case class PortTxTag(port: UUID) extends FlowTag with MeterTag {
-        override def toString = "port:tx:" + port
+    def tagForDevice(device: UUID): FlowTag = {
+        val h = result(hash(DEVICE, device))
+        val table = tagTable
+        table.intern(h, table.key.set(DEVICE, id = device))
     }
 
-    val cachedPortTxTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
+    case class PortTxTag(port: UUID) extends InternedTag with MeterTag {
+        override val hashCode = result(hash(PORT_TX, port))
+        override def refersTo(id: UUID) = port == id
+        override def toString = "port:tx:" + port
+        override private[FlowTagger] def sameAs(key: TagKey) =
+            key.kind == PORT_TX && port == key.id
     }
 
     def tagForPortTx(device: UUID): FlowTag = {
-        val segment = cachedPortTxTags.get().getOrAddSegment(device)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = new PortTxTag(device)
-            segment.value = tag
-        }
-        tag
+        val h = result(hash(PORT_TX, device))
+        val table = tagTable
+        table.intern(h, table.key.set(PORT_TX, id = device))
     }
 
-    case class PortRxTag(port: UUID) extends FlowTag with MeterTag {
+    case class PortRxTag(port: UUID) extends InternedTag with MeterTag {
+        override val hashCode = result(hash(PORT_RX, port))
+        override def refersTo(id: UUID) = port == id
         override def toString = "port:rx:" + port
-    }
-
-    val cachedPortRxTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
+        override private[FlowTagger] def sameAs(key: TagKey) =
+            key.kind == PORT_RX && port == key.id
     }
 
     def tagForPortRx(device: UUID): FlowTag = {
-        val segment = cachedPortRxTags.get().getOrAddSegment(device)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = new PortRxTag(device)
-            segment.value = tag
-        }
-        tag
+        val h = result(hash(PORT_RX, device))
+        val table = tagTable
+        table.intern(h, table.key.set(PORT_RX, id = device))
     }
 
     /**
      * Tag for the flows on "vlanId" addressed to the unknown
      * "dstMac", which were thus flooded on the bridge
      */
-    case class VlanFloodTag(bridgeId: UUID, vlanId: java.lang.Short,
-                            dstMac: MAC) extends FlowTag {
+    case class VlanFloodTag(bridgeId: UUID, vlanId: Short,
+                            dstMac: MAC) extends InternedTag {
+        override val hashCode =
+            result(hash(hash(hash(VLAN_FLOOD, bridgeId), vlanId), dstMac))
+        override def refersTo(id: UUID) = bridgeId == id
         override def toString = "br_flood_mac:" + bridgeId + ":" + dstMac +
                                 ":" + vlanId
+        override private[FlowTagger] def sameAs(key: TagKey) =
+            key.kind == VLAN_FLOOD && vlanId == key.value &&
+            bridgeId == key.id && dstMac == key.ref
     }
 
-    val cachedVlanFloodTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
-    }
-
-    def tagForFloodedFlowsByDstMac(bridgeId: UUID, vlanId: java.lang.Short,
-                                   dstMac: MAC): FlowTag = {
-        val segment = cachedVlanFloodTags.get().getOrAddSegment(bridgeId)
-                                               .getOrAddSegment(vlanId)
-                                               .getOrAddSegment(dstMac)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = new VlanFloodTag(bridgeId, vlanId, dstMac)
-            segment.value = tag
-        }
-        tag
+    def tagForFloodedFlowsByDstMac(bridgeId: UUID, vlanId: Short,
+                                        dstMac: MAC): FlowTag = {
+        val h = result(hash(hash(hash(VLAN_FLOOD, bridgeId), vlanId), dstMac))
+        val table = tagTable
+        table.intern(h, table.key.set(VLAN_FLOOD, id = bridgeId,
+                                      ref = dstMac, value = vlanId))
     }
 
     /**
      * Tag for the flows that are ARP requests emitted from the
      * specified bridge.
      */
-    case class ArpRequestTag(bridgeId: UUID) extends FlowTag {
+    case class ArpRequestTag(bridgeId: UUID) extends InternedTag {
+        override val hashCode = result(hash(ARP_REQUEST, bridgeId))
+        override def refersTo(id: UUID) = bridgeId == id
         override def toString = "br_arp_req:" + bridgeId
-    }
-
-    val cachedArpRequestTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
+        override private[FlowTagger] def sameAs(key: TagKey) =
+            key.kind == ARP_REQUEST && bridgeId == key.id
     }
 
     def tagForArpRequests(bridgeId: UUID): FlowTag = {
-        val segment = cachedArpRequestTags.get().getOrAddSegment(bridgeId)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = new ArpRequestTag(bridgeId)
-            segment.value = tag
-        }
-        tag
+        val h = result(hash(ARP_REQUEST, bridgeId))
+        val table = tagTable
+        table.intern(h, table.key.set(ARP_REQUEST, id = bridgeId))
     }
 
     /**
      * Tag for the flows on "vlan" addressed to "mac" that were
      * sent to "port" in the specified bridge.
      */
-    case class VlanPortTag(bridgeId: UUID, mac: MAC, vlanId: java.lang.Short,
-                           port: UUID) extends FlowTag {
+    case class VlanPortTag(bridgeId: UUID, mac: MAC, vlanId: Short,
+                           port: UUID) extends InternedTag {
+        override val hashCode =
+            result(hash(hash(hash(hash(VLAN_PORT, bridgeId), mac), vlanId), port))
+        override def refersTo(id: UUID) = bridgeId == id || port == id
         override def toString = "br_fwd_mac:" + bridgeId+ ":" + mac + ":" +
                                 vlanId + ":" + port
+        override private[FlowTagger] def sameAs(key: TagKey) =
+            key.kind == VLAN_PORT && vlanId == key.value &&
+            bridgeId == key.id && mac == key.ref && port == key.other
     }
 
-    val cachedVlanPortTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
-    }
-
-    def tagForVlanPort(bridgeId: UUID, mac: MAC, vlanId: java.lang.Short,
+    def tagForVlanPort(bridgeId: UUID, mac: MAC, vlanId: Short,
                        port: UUID): FlowTag = {
-        val segment = cachedVlanPortTags.get().getOrAddSegment(bridgeId)
-                                              .getOrAddSegment(mac)
-                                              .getOrAddSegment(vlanId)
-                                              .getOrAddSegment(port)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = new VlanPortTag(bridgeId, mac, vlanId, port)
-            segment.value = tag
-        }
-        tag
+        val h = result(hash(hash(hash(hash(VLAN_PORT, bridgeId), mac), vlanId),
+                       port))
+        val table = tagTable
+        table.intern(h, table.key.set(VLAN_PORT, id = bridgeId, other = port,
+                                      ref = mac, value = vlanId))
     }
 
     /**
      * Tag for the flows associated with a broadcast from the specified
      * bridge.
      */
-    case class BroadcastTag(bridgeId: UUID) extends FlowTag {
+    case class BroadcastTag(bridgeId: UUID) extends InternedTag {
+        override val hashCode = result(hash(BROADCAST, bridgeId))
+        override def refersTo(id: UUID) = bridgeId == id
         override def toString = "br_flood:" + bridgeId
-    }
-
-    val cachedBroadcastTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
+        override private[FlowTagger] def sameAs(key: TagKey) =
+            key.kind == BROADCAST && bridgeId == key.id
     }
 
     def tagForBroadcast(bridgeId: UUID): FlowTag = {
-        val segment = cachedBroadcastTags.get().getOrAddSegment(bridgeId)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = new BroadcastTag(bridgeId)
-            segment.value = tag
-        }
-        tag
+        val h = result(hash(BROADCAST, bridgeId))
+        val table = tagTable
+        table.intern(h, table.key.set(BROADCAST, id = bridgeId))
     }
 
     /**
      * Tag for the flows associated with specified bridge port.
      */
-    case class BridgePortTag(bridgeId: UUID, logicalPortId: UUID) extends FlowTag {
+    case class BridgePortTag(bridgeId: UUID, logicalPortId: UUID)
+        extends InternedTag {
+        override val hashCode =
+            result(hash(hash(BRIDGE_PORT, bridgeId), logicalPortId))
+        override def refersTo(id: UUID) =
+            bridgeId == id || logicalPortId == id
         override def toString = "br_fwd_lport:" + bridgeId + ":" + logicalPortId
-    }
-
-    val cachedBridgePortTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
+        override private[FlowTagger] def sameAs(key: TagKey) =
+            key.kind == BRIDGE_PORT && bridgeId == key.id &&
+            logicalPortId == key.other
     }
 
     def tagForBridgePort(bridgeId: UUID, logicalPortId: UUID): FlowTag = {
-        val segment = cachedBridgePortTags.get().getOrAddSegment(bridgeId)
-                                                .getOrAddSegment(logicalPortId)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = new BridgePortTag(bridgeId, logicalPortId)
-            segment.value = tag
-        }
-        tag
+        val h = result(hash(hash(BRIDGE_PORT, bridgeId), logicalPortId))
+        val table = tagTable
+        table.intern(h, table.key.set(BRIDGE_PORT, id = bridgeId,
+                                      other = logicalPortId))
     }
 
     /**
      * Tag for the flows associated for the specified datapath port.
      */
-    case class DpPortTag(port: Integer) extends FlowTag {
+    case class DpPortTag(port: Int) extends InternedTag {
+        override val hashCode = result(hash(DP_PORT, port))
         override def toString = "dp_port:" + port
+        override private[FlowTagger] def sameAs(key: TagKey) =
+            key.kind == DP_PORT && port == key.value
     }
 
-    val cachedDpPortTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
-    }
-
-    def tagForDpPort(port: Integer): FlowTag = {
-        val segment = cachedDpPortTags.get().getOrAddSegment(port)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = new DpPortTag(port)
-            segment.value = tag
-        }
-        tag
+    def tagForDpPort(port: Int): FlowTag = {
+        val h = result(hash(DP_PORT, port))
+        val table = tagTable
+        table.intern(h, table.key.set(DP_PORT, value = port))
     }
 
     /**
      * Tag for the flows associated with specified tunnel route.
      */
-    case class TunnelRouteTag(srcIp: Integer, dstIp: Integer) extends FlowTag with MeterTag {
+    case class TunnelRouteTag(srcIp: Int, dstIp: Int)
+        extends InternedTag with MeterTag {
+        override val hashCode = result(hash(hash(TUNNEL_ROUTE, srcIp), dstIp))
         override def toString = s"tunnel:$srcIp:$dstIp"
+        override private[FlowTagger] def sameAs(key: TagKey) =
+            key.kind == TUNNEL_ROUTE && srcIp == key.value &&
+            dstIp == key.otherValue
     }
 
-    val cachedTunnelRouteTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
-    }
-
-    def tagForTunnelRoute(srcIp: Integer, dstIp: Integer): FlowTag = {
-        val segment = cachedTunnelRouteTags.get().getOrAddSegment(srcIp)
-                                                 .getOrAddSegment(dstIp)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = new TunnelRouteTag(srcIp, dstIp)
-            segment.value = tag
-        }
-        tag
+    def tagForTunnelRoute(srcIp: Int, dstIp: Int): FlowTag = {
+        val h = result(hash(hash(TUNNEL_ROUTE, srcIp), dstIp))
+        val table = tagTable
+        table.intern(h, table.key.set(TUNNEL_ROUTE, value = srcIp,
+                                      otherValue = dstIp))
     }
 
     /**
      * Tag for the flows associated with the specified tunnel key.
      */
-    case class TunnelKeyTag(key: java.lang.Long) extends FlowTag {
+    case class TunnelKeyTag(key: Long) extends InternedTag {
+        override val hashCode = result(hash(TUNNEL_KEY, key))
         override def toString = "tun_key:" + key
+        override private[FlowTagger] def sameAs(k: TagKey) =
+            k.kind == TUNNEL_KEY && key == k.value
     }
 
-    val cachedTunnelKeyTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
-    }
-
-    def tagForTunnelKey(key: java.lang.Long): FlowTag = {
-        val segment = cachedTunnelKeyTags.get().getOrAddSegment(key)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = new TunnelKeyTag(key)
-            segment.value = tag
-        }
-        tag
+    def tagForTunnelKey(key: Long): FlowTag = {
+        val h = result(hash(TUNNEL_KEY, key))
+        val table = tagTable
+        table.intern(h, table.key.set(TUNNEL_KEY, value = key))
     }
 
     /**
      * Tag for the flows associated with the specified route.
      */
-    case class RouteTag(routerId: UUID, routeHashCode: Integer) extends FlowTag {
+    case class RouteTag(routerId: UUID, routeHashCode: Int) extends InternedTag {
+        override val hashCode = result(hash(hash(ROUTE, routerId), routeHashCode))
+        override def refersTo(id: UUID) = routerId == id
         override def toString = "rtr_route:" + routerId + ":" + routeHashCode
-    }
-
-    val cachedRouteTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
+        override private[FlowTagger] def sameAs(key: TagKey) =
+            key.kind == ROUTE && routeHashCode == key.value &&
+            routerId == key.id
     }
 
     def tagForRoute(route: Route): FlowTag = {
-        val routeHashCode: Integer = route.hashCode()
-        val segment = cachedRouteTags.get().getOrAddSegment(route.routerId)
-                                           .getOrAddSegment(routeHashCode)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = new RouteTag(route.routerId, routeHashCode)
-            segment.value = tag
-        }
-        tag
+        val routerId = route.routerId
+        val routeHashCode = route.hashCode()
+        val h = result(hash(hash(ROUTE, routerId), routeHashCode))
+        val table = tagTable
+        table.intern(h, table.key.set(ROUTE, id = routerId,
+                                      value = routeHashCode))
     }
 
     /**
      * Tag for the flows associated with a particular IP when
      * it changes on the specified router's ARP table.
      */
-    case class DestinationIpTag(routerId: UUID, ipDestination: IPAddr) extends FlowTag {
+    case class DestinationIpTag(routerId: UUID, ipDestination: IPAddr)
+        extends InternedTag {
+        override val hashCode =
+            result(hash(hash(DESTINATION_IP, routerId), ipDestination))
+        override def refersTo(id: UUID) = routerId == id
         override def toString = "rtr_ip:" + routerId + ":" + ipDestination
-    }
-
-    val cachedDestinationIpTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
+        override private[FlowTagger] def sameAs(key: TagKey) =
+            key.kind == DESTINATION_IP && routerId == key.id &&
+            ipDestination == key.ref
     }
 
     def tagForDestinationIp(routerId: UUID, ipDestination: IPAddr): FlowTag = {
-        val segment = cachedDestinationIpTags.get().getOrAddSegment(routerId)
-                                                   .getOrAddSegment(ipDestination)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = new DestinationIpTag(routerId, ipDestination)
-            segment.value = tag
-        }
-        tag
+        val h = result(hash(hash(DESTINATION_IP, routerId), ipDestination))
+        val table = tagTable
+        table.intern(h, table.key.set(DESTINATION_IP, id = routerId,
+                                      ref = ipDestination))
     }
 
     /**
      * Tag for the flows associated with a meter
      */
-    case class UserTag(name: String) extends FlowTag with MeterTag {
+    case class UserTag(name: String) extends InternedTag with MeterTag {
+        override val hashCode = result(hash(USER, name))
         override def toString = s"user:$name"
-    }
-
-    val cachedUserTags = new ThreadLocal[TagsTrie] {
-        override def initialValue = new TagsTrie
+        override private[FlowTagger] def sameAs(key: TagKey) =
+            key.kind == USER && name == key.ref
     }
 
     def tagForUserMeter(meterName: String): UserTag = {
-        val segment = cachedUserTags.get().getOrAddSegment(meterName)
-        var tag = segment.value
-        if (tag eq null) {
-            tag = UserTag(meterName)
-            segment.value = tag
-        }
-        tag.asInstanceOf[UserTag]
+        val h = result(hash(USER, meterName))
+        val table = tagTable
+        table.intern(h, table.key.set(USER, ref = meterName))
+             .asInstanceOf[UserTag]
     }
 }
 
@@ -23,7 +23,7 @@ import org.slf4j.LoggerFactory
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.util.collection.Reducer
-import org.midonet.util.concurrent.{NanoClock, TimedExpirationMap}
+import org.midonet.util.concurrent.{CompactTimedExpirationMap, NanoClock}
 
 object ShardedFlowStateTable {
     def create[K <: IdleExpiration, V >: Null](): ShardedFlowStateTable[K, V] =
@@ -166,7 +166,7 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
      * aggregation. Reference counting is also delegated on the parent.
      */
     class FlowStateShard(workerId: Int, log: Logger) extends FlowStateTable[K, V] {
-        private val map = new TimedExpirationMap[K, V](log, _.expiresAfter)
+        private val map = new CompactTimedExpirationMap[K, V](log, _.expiresAfter)
 
         override def putAndRef(key: K, value: V): V =
             map.putAndRef(key, value)
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.{ArrayList, UUID}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.rules.{Condition, LiteralRule, Rule}
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.simulation.{Chain, PacketContext}
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4Addr, IPv4Subnet}
+import org.midonet.util.Range
+
+/**
+ * Compares applying chains with their rules indexed against checking them
+ * one by one, over synthetic security group chains where each rule allows a
+ * protocol and destination port from a source subnet, and the last rule drops
+ * everything else. Packets hit rules spread over the whole chain, or none.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class ChainBenchmark {
+
+    @Param(Array("10", "100", "1000"))
+    var ruleCount: Int = _
+
+    @Param(Array("true", "false"))
+    var indexed: Boolean = _
+
+    val PacketCount = 64
+
+    var chain: Chain = _
+    var contexts: Array[PacketContext] = _
+    var index = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        val rules = new ArrayList[Rule]()
+        var i = 0
+        while (i < ruleCount - 1) {
+            val cond = new Condition()
+            cond.nwProto = (if (i % 4 == 0) 17 else 6).toByte
+            cond.tpDst = new Range[Integer](1000 + i)
+            cond.nwSrcIp = new IPv4Subnet(0x0a000000 | (i << 8), 24)
+            rules.add(new LiteralRule(cond, Action.ACCEPT))
+            i += 1
+        }
+        rules.add(new LiteralRule(Condition.TRUE, Action.DROP))
+        chain = new Chain(UUID.randomUUID(), rules, Map[UUID, Chain](),
+                          "sg-chain", indexed)
+
+        contexts = new Array[PacketContext](PacketCount)
+        i = 0
+        while (i < PacketCount) {
+            // Every fourth packet matches no rule but the last one
+            val rule = if (i % 4 == 3) ruleCount else i * ruleCount / PacketCount
+            val fmatch = new FlowMatch()
+                .setEtherType(0x0800.toShort)
+                .setNetworkSrc(IPv4Addr.fromInt(0x0a000000 | (rule << 8) | 1))
+                .setNetworkDst(IPv4Addr.fromInt(0x0b000001))
+                .setNetworkProto((if (rule % 4 == 0) 17 else 6).toByte)
+                .setSrcPort(40000)
+                .setDstPort(1000 + rule)
+            contexts(i) = new PacketContext(i, null, fmatch)
+            i += 1
+        }
+    }
+
+    @Benchmark
+    def applyChain(bh: Blackhole): Unit = {
+        val context = contexts(index)
+        index = (index + 1) % PacketCount
+        bh.consume(Chain.apply(chain, context, chain.id, false))
+    }
+}
@@ -19,22 +19,27 @@ package org.midonet.midolman
 import java.util.UUID
 import java.util.concurrent.TimeUnit
 
+import com.codahale.metrics.MetricRegistry
 import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
 import org.openjdk.jmh.infra.Blackhole
 
 import org.midonet.cluster.data.ports.BridgePort
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.rules.{RuleResult, Condition}
 import org.midonet.midolman.simulation.Bridge
-import org.midonet.midolman.state.{MockStateStorage, FlowStateReplicator}
+import org.midonet.midolman.state.{FlowStateAggregator, MockStateStorage, FlowStateReplicator}
 import org.midonet.midolman.state.ConnTrackState._
+import org.midonet.midolman.state.FlowStateCodec.PeerVersions
 import org.midonet.midolman.state.NatState.{NatKey, NatBinding}
 import org.midonet.midolman.state.TraceState.{TraceKey, TraceContext}
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.UnderlayResolver.Route
+import org.midonet.midolman.util.mock.MockStateCarriers
 import org.midonet.odp.flows.FlowActionOutput
 import org.midonet.packets.{IPv4Addr, MAC}
 import org.midonet.packets.util.PacketBuilder._
 import org.midonet.sdn.state.{ShardedFlowStateTable, FlowStateTransaction}
+import org.midonet.util.concurrent.NanoClock
 
 object ConnTrackBenchmark {
     val leftMac = MAC.random
@@ -67,6 +72,9 @@ class ConnTrackBenchmark extends MidolmanBenchmark {
     implicit val conntrackTx = new FlowStateTransaction(conntrackTable)
     implicit val natTx = new FlowStateTransaction(natTable)
     implicit val traceTx = new FlowStateTransaction(traceTable)
+    val aggregator = new FlowStateAggregator(hostId, underlayResolver, 0, 0L,
+                                             NanoClock.DEFAULT,
+                                             new MockStateCarriers)
     var replicator: FlowStateReplicator = _
 
     val packet = { { eth addr leftMac -> rightMac } <<
@@ -99,7 +107,11 @@ class ConnTrackBenchmark extends MidolmanBenchmark {
                                              hostId,
                                              underlayResolver,
                                              mockFlowInvalidation,
-                                             0)
+                                             0,
+                                             new PeerVersions,
+                                             aggregator,
+                                             new PacketPipelineMetrics(
+                                                 new MetricRegistry, 1))
     }
 
     @Benchmark
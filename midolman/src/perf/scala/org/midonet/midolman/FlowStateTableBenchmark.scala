@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+import org.slf4j.helpers.NOPLogger
+
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.packets.IPv4Addr
+import org.midonet.util.concurrent.{CompactTimedExpirationMap, TimedExpirationMap}
+
+/**
+ * Compares the CompactTimedExpirationMap backing the flow state shards against
+ * the TimedExpirationMap it replaced, for lookups of existing connection
+ * tracking keys, for the ref/unref of flows sharing a key, and for the churn
+ * of keys being added and expired.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class FlowStateTableBenchmark {
+
+    @Param(Array("10000", "100000", "1000000"))
+    var keyCount: Int = _
+
+    val log = Logger(NOPLogger.NOP_LOGGER)
+
+    var keys: Array[ConnTrackKey] = _
+    var compactMap: CompactTimedExpirationMap[ConnTrackKey, ConnTrackValue] = _
+    var map: TimedExpirationMap[ConnTrackKey, ConnTrackValue] = _
+    var index = 0
+    var now = 0L
+
+    @JmhSetup
+    def setup(): Unit = {
+        keys = new Array[ConnTrackKey](keyCount)
+        compactMap = new CompactTimedExpirationMap[ConnTrackKey, ConnTrackValue](
+            log, _.expiresAfter)
+        map = new TimedExpirationMap[ConnTrackKey, ConnTrackValue](
+            log, _.expiresAfter)
+        val device = UUID.randomUUID()
+        var i = 0
+        while (i < keyCount) {
+            keys(i) = ConnTrackKey(IPv4Addr.fromInt(0x0a000000 | (i >>> 16)),
+                                   1024 + (i & 0xffff),
+                                   IPv4Addr.fromInt(0x0b000001), 80, 6, device)
+            compactMap.putAndRef(keys(i), java.lang.Boolean.TRUE)
+            map.putAndRef(keys(i), java.lang.Boolean.TRUE)
+            i += 1
+        }
+    }
+
+    private def next(): Int = {
+        val i = index
+        index = if (i + 1 == keyCount) 0 else i + 1
+        i
+    }
+
+    @Benchmark
+    def compactMapGet(bh: Blackhole): Unit =
+        bh.consume(compactMap.get(keys(next())))
+
+    @Benchmark
+    def timedMapGet(bh: Blackhole): Unit =
+        bh.consume(map.get(keys(next())))
+
+    @Benchmark
+    def compactMapRefAndUnref(bh: Blackhole): Unit = {
+        val key = keys(next())
+        bh.consume(compactMap.ref(key))
+        bh.consume(compactMap.unref(key, now))
+    }
+
+    @Benchmark
+    def timedMapRefAndUnref(bh: Blackhole): Unit = {
+        val key = keys(next())
+        bh.consume(map.ref(key))
+        bh.consume(map.unref(key, now))
+    }
+
+    /* Expires a key and adds it back, which leaves a tombstone behind in the
+     * compact map for its resizes to clean up. */
+    @Benchmark
+    def compactMapExpireAndAdd(bh: Blackhole): Unit = {
+        val key = keys(next())
+        compactMap.unref(key, now)
+        now += 1
+        compactMap.obliterateIdleEntries(now + key.expiresAfter.toMillis)
+        bh.consume(compactMap.putAndRef(key, java.lang.Boolean.TRUE))
+    }
+
+    @Benchmark
+    def timedMapExpireAndAdd(bh: Blackhole): Unit = {
+        val key = keys(next())
+        map.unref(key, now)
+        now += 1
+        map.obliterateIdleEntries(now + key.expiresAfter.toMillis)
+        bh.consume(map.putAndRef(key, java.lang.Boolean.TRUE))
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.HashMap
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.flows.{FlowTable, ManagedFlow}
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4Addr, MAC}
+
+/**
+ * Compares the FlowTable used by the FlowController against the HashMap it
+ * replaced, for lookups of existing flows and for the add/remove churn of
+ * flows being created and expired.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class FlowTableBenchmark {
+
+    @Param(Array("10000", "100000", "1000000"))
+    var flowCount: Int = _
+
+    var flows: Array[ManagedFlow] = _
+    var lookups: Array[FlowMatch] = _
+    var table: FlowTable = _
+    var map: HashMap[FlowMatch, ManagedFlow] = _
+    var index = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        flows = new Array[ManagedFlow](flowCount)
+        lookups = new Array[FlowMatch](flowCount)
+        table = new FlowTable(flowCount)
+        map = new HashMap[FlowMatch, ManagedFlow](flowCount)
+        val srcMac = MAC.random()
+        val dstMac = MAC.random()
+        var i = 0
+        while (i < flowCount) {
+            val fmatch = new FlowMatch()
+                .setInputPortNumber(i % 64)
+                .setEthSrc(srcMac)
+                .setEthDst(dstMac)
+                .setEtherType(0x0800.toShort)
+                .setNetworkSrc(IPv4Addr.fromInt(0x0a000000 | (i >>> 16)))
+                .setNetworkDst(IPv4Addr.fromInt(0x0b000000 | (i & 0xffff)))
+                .setNetworkProto(6.toByte)
+                .setSrcPort(1024 + (i % 50000))
+                .setDstPort(80)
+            val flow = new ManagedFlow(null)
+            flow.flowMatch.reset(fmatch)
+            flows(i) = flow
+            lookups(i) = fmatch
+            table.put(flow)
+            map.put(flow.flowMatch, flow)
+            i += 1
+        }
+    }
+
+    private def next(): Int = {
+        val i = index
+        index = if (i + 1 == flowCount) 0 else i + 1
+        i
+    }
+
+    @Benchmark
+    def flowTableLookup(bh: Blackhole): Unit =
+        bh.consume(table.get(lookups(next())))
+
+    @Benchmark
+    def hashMapLookup(bh: Blackhole): Unit =
+        bh.consume(map.get(lookups(next())))
+
+    @Benchmark
+    def flowTableRemoveAndAdd(bh: Blackhole): Unit = {
+        val flow = flows(next())
+        bh.consume(table.remove(flow))
+        bh.consume(table.put(flow))
+    }
+
+    @Benchmark
+    def hashMapRemoveAndAdd(bh: Blackhole): Unit = {
+        val flow = flows(next())
+        bh.consume(map.remove(flow.flowMatch))
+        bh.consume(map.put(flow.flowMatch, flow))
+    }
+}
@@ -20,14 +20,20 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
+import com.google.common.collect.Ordering;
 import org.junit.Test;
 
+import org.midonet.cluster.data.Chain;
 import org.midonet.cluster.data.Route;
 import org.midonet.cluster.data.Router;
+import org.midonet.cluster.data.Rule;
 import org.midonet.cluster.data.VTEP;
 import org.midonet.cluster.data.dhcp.Subnet;
+import org.midonet.cluster.data.rules.LiteralRule;
 import org.midonet.cluster.data.ports.RouterPort;
 import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.midolman.rules.Condition;
+import org.midonet.midolman.rules.RuleResult;
 import org.midonet.midolman.serialization.SerializationException;
 import org.midonet.midolman.state.StateAccessException;
 import org.midonet.midolman.state.ZkLeaderElectionWatcher.ExecuteOnBecomingLeader;
@@ -35,6 +41,7 @@ import org.midonet.packets.IPv4Addr;
 import org.midonet.packets.MAC;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
@@ -221,6 +228,45 @@ public class LocalDataClientImplTest extends LocalDataClientImplTestBase {
                         "10.0.1.0_24"));
     }
 
+    @Test
+    public void routersGetByIdsTest() throws StateAccessException,
+            SerializationException {
+        UUID id1 = client.routersCreate(new Router());
+        UUID id2 = client.routersCreate(new Router());
+        UUID id3 = client.routersCreate(new Router());
+
+        List<UUID> ids = client.routersGetIds();
+        assertEquals(Ordering.natural().sortedCopy(
+            Arrays.asList(id1, id2, id3)), ids);
+
+        // Routers are returned in the order requested, skipping those that
+        // don't exist.
+        List<Router> routers = client.routersGet(
+            Arrays.asList(id3, UUID.randomUUID(), id1));
+        assertThat(routers, hasSize(2));
+        assertEquals(id3, routers.get(0).getId());
+        assertEquals(id1, routers.get(1).getId());
+    }
+
+    @Test
+    public void rulesGetByIdsTest() throws Exception {
+        UUID chainId = client.chainsCreate(new Chain().setName("chain"));
+        UUID id1 = client.rulesCreate(
+            new LiteralRule(new Condition(), RuleResult.Action.ACCEPT)
+                .setChainId(chainId).setPosition(1));
+        UUID id2 = client.rulesCreate(
+            new LiteralRule(new Condition(), RuleResult.Action.DROP)
+                .setChainId(chainId).setPosition(1));
+
+        List<UUID> ids = client.rulesFindIdsByChain(chainId);
+        assertThat(ids, contains(id2, id1));
+
+        List<Rule<?, ?>> rules = client.rulesGet(ids.subList(1, 2));
+        assertThat(rules, hasSize(1));
+        assertEquals(id1, rules.get(0).getId());
+        assertEquals(2, rules.get(0).getPosition());
+    }
+
     @Test
     public void tryOwnVtepTest() throws Exception {
         UUID node1 = UUID.randomUUID();
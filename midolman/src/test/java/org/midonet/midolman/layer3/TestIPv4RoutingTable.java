@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.packets.IPv4Subnet;
+
+public class TestIPv4RoutingTable {
+
+    private static Route route(int src, int srcLen, int dst, int dstLen,
+                               int weight) {
+        return new Route(src, srcLen, dst, dstLen, NextHop.PORT,
+                         UUID.randomUUID(), 0, weight, null, null);
+    }
+
+    private static Set<Route> set(Iterable<Route> routes) {
+        Set<Route> set = new HashSet<>();
+        for (Route rt : routes)
+            set.add(rt);
+        return set;
+    }
+
+    @Test
+    public void testEmptyRoutingTable() {
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        Assert.assertTrue(table.lookup(0x0a010108, 0x0a010106).isEmpty());
+        Assert.assertTrue(table.lookup(0x00000009, 0xfffffffe).isEmpty());
+    }
+
+    @Test
+    public void testLongestPrefixMatch() {
+        Route rt1 = route(0, 0, 0, 0, 100);
+        Route rt2 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt3 = route(0, 0, 0x0a140000, 20, 100);
+        Route rt4 = route(0, 0, 0x0a140080, 25, 100);
+        Route rt5 = route(0, 0, 0x0a140081, 32, 100);
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        for (Route rt : new Route[] { rt5, rt3, rt1, rt4, rt2 })
+            table.addRoute(rt);
+        Assert.assertEquals(5, table.size());
+
+        Assert.assertEquals(set(table.lookup(0, 0x0a140081)), set(rt5));
+        Assert.assertEquals(set(table.lookup(0, 0x0a140082)), set(rt4));
+        Assert.assertEquals(set(table.lookup(0, 0x0a140001)), set(rt3));
+        Assert.assertEquals(set(table.lookup(0, 0x0a150001)), set(rt2));
+        Assert.assertEquals(set(table.lookup(0, 0x0b000000)), set(rt1));
+
+        table.deleteRoute(rt4);
+        Assert.assertEquals(set(table.lookup(0, 0x0a140082)), set(rt3));
+        table.deleteRoute(rt3);
+        Assert.assertEquals(set(table.lookup(0, 0x0a140082)), set(rt2));
+        Assert.assertEquals(set(table.lookup(0, 0x0a140081)), set(rt5));
+        table.deleteRoute(rt1);
+        Assert.assertTrue(table.lookup(0, 0x0b000000).isEmpty());
+        Assert.assertEquals(2, table.size());
+    }
+
+    @Test
+    public void testEqualCostRoutes() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt3 = route(0, 0, 0x0a000000, 8, 200);
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        table.addRoute(rt1);
+        table.addRoute(rt2);
+        table.addRoute(rt3);
+        table.addRoute(rt1);
+        Assert.assertEquals(3, table.size());
+
+        // The group of routes is computed once for all lookups.
+        List<Route> routes = table.lookup(0x01020304, 0x0a010101);
+        Assert.assertEquals(set(routes), set(rt1, rt2));
+        Assert.assertSame(routes, table.lookup(0x05060708, 0x0a020202));
+
+        table.deleteRoute(rt1);
+        table.deleteRoute(rt2);
+        Assert.assertEquals(set(table.lookup(0, 0x0a010101)), set(rt3));
+    }
+
+    @Test
+    public void testSourceRoutesFallBackToShorterPrefixes() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0xc0a80000, 16, 0x0a140000, 16, 100);
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        table.addRoute(rt1);
+        table.addRoute(rt2);
+
+        Assert.assertEquals(set(table.lookup(0xc0a80101, 0x0a140101)),
+                            set(rt2));
+        Assert.assertEquals(set(table.lookup(0xc0a90101, 0x0a140101)),
+                            set(rt1));
+    }
+
+    @Test
+    public void testCopiesAreIndependent() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a140000, 24, 100);
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        table.addRoute(rt1);
+
+        IPv4RoutingTable copy = new IPv4RoutingTable(table);
+        copy.addRoute(rt2);
+        copy.deleteRoute(rt1);
+
+        Assert.assertEquals(set(table.lookup(0, 0x0a140001)), set(rt1));
+        Assert.assertEquals(set(copy.lookup(0, 0x0a140001)), set(rt2));
+        Assert.assertTrue(copy.lookup(0, 0x0a150001).isEmpty());
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals(1, copy.size());
+    }
+
+    @Test
+    public void testMatchesAllRoutesLookup() {
+        Random random = new Random(42);
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        List<Route> routes = new ArrayList<>();
+
+        // Routes are drawn from a few prefixes, so that they nest and share
+        // their prefixes.
+        for (int i = 0; i < 5000; i++) {
+            if (routes.isEmpty() || random.nextInt(3) > 0) {
+                int dstLen = random.nextInt(33);
+                int srcLen = random.nextInt(8) == 0 ? 8 : 0;
+                Route rt = route(random.nextInt(2) << 24, srcLen,
+                                 randomAddress(random), dstLen,
+                                 random.nextInt(3));
+                routes.add(rt);
+                table.addRoute(rt);
+            } else {
+                Route rt = routes.remove(random.nextInt(routes.size()));
+                table.deleteRoute(rt);
+            }
+
+            for (int j = 0; j < 10; j++) {
+                int src = random.nextInt(2) << 24;
+                int dst = randomAddress(random);
+                Assert.assertEquals(lookup(routes, src, dst),
+                                    set(table.lookup(src, dst)));
+            }
+        }
+    }
+
+    private static int randomAddress(Random random) {
+        return (random.nextInt(4) << 30) | (random.nextInt(8) << 20) |
+               random.nextInt(1 << 12);
+    }
+
+    /* Looks up the routes for a packet by checking all of them. */
+    private static Set<Route> lookup(List<Route> routes, int src, int dst) {
+        for (int len = 32; len >= 0; len--) {
+            int minWeight = Integer.MAX_VALUE;
+            Set<Route> best = new HashSet<>();
+            for (Route rt : routes) {
+                if (rt.dstNetworkLength == len &&
+                    IPv4Subnet.addrMatch(dst, rt.dstNetworkAddr, len) &&
+                    IPv4Subnet.addrMatch(src, rt.srcNetworkAddr,
+                                         rt.srcNetworkLength)) {
+                    if (rt.weight < minWeight) {
+                        best.clear();
+                        minWeight = rt.weight;
+                    }
+                    if (rt.weight == minWeight)
+                        best.add(rt);
+                }
+            }
+            if (!best.isEmpty())
+                return best;
+        }
+        return new HashSet<>();
+    }
+
+    private static Set<Route> set(Route... routes) {
+        Set<Route> set = new HashSet<>();
+        for (Route rt : routes)
+            set.add(rt);
+        return set;
+    }
+}
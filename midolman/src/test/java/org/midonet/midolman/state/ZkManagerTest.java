@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.state;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZkManagerTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A directory that completes its reads on other threads, as ZooKeeper
+     * does, keeping track of how many of them are in flight.
+     */
+    private class AsyncDirectory extends MockDirectory {
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicInteger maxPending = new AtomicInteger();
+        String failingPath = null;
+
+        @Override
+        public void asyncGet(final String path,
+                             final DirectoryCallback<byte[]> cb,
+                             final TypedWatcher watcher) {
+            int inFlight = pending.incrementAndGet();
+            if (inFlight > maxPending.get())
+                maxPending.set(inFlight);
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    pending.decrementAndGet();
+                    if (path.equals(failingPath)) {
+                        cb.onError(new KeeperException.ConnectionLossException());
+                    } else {
+                        AsyncDirectory.super.asyncGet(path, cb, watcher);
+                    }
+                }
+            });
+        }
+    }
+
+    private List<String> addNodes(Directory dir, int count) throws Exception {
+        List<String> paths = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            paths.add(dir.add("/node" + i, ("data" + i).getBytes(),
+                              CreateMode.PERSISTENT));
+        }
+        return paths;
+    }
+
+    @Test
+    public void testGetAllKeepsTheOrderOfThePaths() throws Exception {
+        AsyncDirectory dir = new AsyncDirectory();
+        ZkManager zk = new ZkManager(dir, "");
+        List<String> paths = addNodes(dir, 20);
+        paths.add(5, "/missing");
+
+        List<byte[]> data = zk.getAll(paths, 4);
+
+        Assert.assertEquals(21, data.size());
+        Assert.assertNull(data.get(5));
+        for (int i = 0; i < 21; i++) {
+            if (i != 5) {
+                int node = i < 5 ? i : i - 1;
+                Assert.assertArrayEquals(("data" + node).getBytes(),
+                                         data.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testGetAllBoundsTheReadsInFlight() throws Exception {
+        AsyncDirectory dir = new AsyncDirectory();
+        ZkManager zk = new ZkManager(dir, "");
+
+        zk.getAll(addNodes(dir, 50), 3);
+
+        Assert.assertTrue(dir.maxPending.get() <= 3);
+        Assert.assertEquals(0, dir.pending.get());
+    }
+
+    @Test
+    public void testGetAllFailsOnErrors() throws Exception {
+        AsyncDirectory dir = new AsyncDirectory();
+        ZkManager zk = new ZkManager(dir, "");
+        List<String> paths = addNodes(dir, 10);
+        dir.failingPath = paths.get(3);
+
+        try {
+            zk.getAll(paths, 2);
+            Assert.fail("The read of " + dir.failingPath + " should fail");
+        } catch (NoStatePathException e) {
+            Assert.fail("A lost connection is not a missing node");
+        } catch (StateAccessException e) {
+            Assert.assertTrue(
+                e.getCause() instanceof KeeperException.ConnectionLossException);
+        }
+    }
+
+    @Test
+    public void testGetAllWithSynchronousDirectory() throws Exception {
+        MockDirectory dir = new MockDirectory();
+        ZkManager zk = new ZkManager(dir, "");
+
+        List<byte[]> data = zk.getAll(
+            Arrays.asList(addNodes(dir, 1).get(0), "/missing"), 1);
+
+        Assert.assertArrayEquals("data0".getBytes(), data.get(0));
+        Assert.assertNull(data.get(1));
+    }
+}
@@ -16,7 +16,10 @@
 
 package org.midonet.midolman
 
+import java.util.Random
+
 import scala.collection.mutable.Queue
+import scala.concurrent.duration._
 
 import com.typesafe.scalalogging.Logger
 import org.junit.runner.RunWith
@@ -57,19 +60,17 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
             flow.currentRefCount should be (1)
         }
 
-        scenario ("The removal of a flow is delayed") {
+        scenario ("A removed flow is no longer expired") {
             val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
             flowExpiration.registerFlow(flow)
             flow.currentRefCount should be (2)
             flowExpiration.removeFlow(flow)
-            flow.unref()
             flow.currentRefCount should be (1)
             removedFlows.clear()
             clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value + 1
             flowExpiration.checkFlowsExpiration(clock.tick)
-            removedFlows should have size 1
-            removedFlows.dequeue() should be (flow)
-            flow.currentRefCount should be (0)
+            removedFlows should be (empty)
+            flow.currentRefCount should be (1)
         }
 
         scenario ("There are multiple expiration types") {
@@ -83,6 +84,57 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
         }
     }
 
+    feature ("Flows are kept in a timing wheel") {
+
+        scenario ("Flows expire in time as the clock advances") {
+            val flowExpiration = new FlowAddRemover(removedFlows) with FlowExpirationIndexer {
+                override val maxFlows = 1024
+            }
+            val random = new Random(0xfeed)
+            val maxExpiration = FlowExpirationIndexer.TUNNEL_FLOW_EXPIRATION.value * 2
+            val flows = for (i <- 0 until 200) yield {
+                val flow = new ManagedFlow(null)
+                flow.ref()
+                flow.absoluteExpirationNanos = (random.nextDouble() * maxExpiration).toLong
+                flowExpiration.registerFlow(flow)
+                flow
+            }
+            val expired = new java.util.HashSet[ManagedFlow]()
+            clock.time = 0
+            while (clock.time <= maxExpiration) {
+                flowExpiration.checkFlowsExpiration(clock.tick)
+                while (removedFlows.nonEmpty) {
+                    val flow = removedFlows.dequeue()
+                    flow.absoluteExpirationNanos should be <= clock.time
+                    expired.add(flow) should be (true)
+                }
+                flows filterNot expired.contains foreach { flow =>
+                    flow.absoluteExpirationNanos should be > clock.time
+                }
+                clock.time += (random.nextDouble() * (1 second).toNanos).toLong
+            }
+            flowExpiration.checkFlowsExpiration(Long.MaxValue)
+            expired.size + removedFlows.size should be (flows.size)
+        }
+
+        scenario ("A burst of expirations is spread over several checks") {
+            val flowExpiration = new FlowAddRemover(removedFlows) with FlowExpirationIndexer {
+                override val maxFlows = 4096
+            }
+            for (i <- 0 until 3000) {
+                flowExpiration.registerFlow(createFlow(FlowExpirationIndexer.FLOW_EXPIRATION))
+            }
+            flowExpiration.checkFlowsExpiration(0)
+            flowExpiration.checkFlowsExpiration(Long.MaxValue)
+            removedFlows.size should be < 3000
+            flowExpiration.hasExpiredFlows should be (true)
+            while (flowExpiration.hasExpiredFlows) {
+                flowExpiration.checkFlowsExpiration(Long.MaxValue)
+            }
+            removedFlows should have size 3000
+        }
+    }
+
     feature ("Oversubscription results in removal of excess flows") {
 
         scenario ("The oldest flows are removed") {
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.{HashMap, Random}
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.flows.{FlowTable, ManagedFlow}
+import org.midonet.odp.FlowMatch
+
+@RunWith(classOf[JUnitRunner])
+class FlowTableTest extends FeatureSpec with Matchers {
+
+    private def flowFor(tunnelKey: Long): ManagedFlow = {
+        val flow = new ManagedFlow(null)
+        flow.flowMatch.setTunnelKey(tunnelKey)
+        flow
+    }
+
+    private def matchFor(tunnelKey: Long): FlowMatch =
+        new FlowMatch().setTunnelKey(tunnelKey)
+
+    feature ("Flows are indexed by their FlowMatch") {
+        scenario ("A flow can be added and retrieved") {
+            val table = new FlowTable(16)
+            val flow = flowFor(1)
+            table.put(flow) should be (null)
+            table.size should be (1)
+            table.get(matchFor(1)) should be theSameInstanceAs flow
+            table.contains(matchFor(1)) should be (true)
+            table.contains(matchFor(2)) should be (false)
+            table.get(matchFor(2)) should be (null)
+        }
+
+        scenario ("A flow with an equal match replaces the existing one") {
+            val table = new FlowTable(16)
+            val flow1 = flowFor(1)
+            val flow2 = flowFor(1)
+            table.put(flow1)
+            table.put(flow2) should be theSameInstanceAs flow1
+            table.size should be (1)
+            table.get(matchFor(1)) should be theSameInstanceAs flow2
+        }
+
+        scenario ("Only the indexed instance of a flow is removed") {
+            val table = new FlowTable(16)
+            val flow1 = flowFor(1)
+            val flow2 = flowFor(1)
+            table.put(flow1)
+            table.remove(flow2) should be (false)
+            table.size should be (1)
+            table.remove(flow1) should be (true)
+            table.isEmpty should be (true)
+            table.contains(matchFor(1)) should be (false)
+        }
+
+        scenario ("The table grows beyond the expected number of flows") {
+            val table = new FlowTable(4)
+            for (i <- 0 until 1000) {
+                table.put(flowFor(i))
+            }
+            table.size should be (1000)
+            for (i <- 0 until 1000) {
+                table.get(matchFor(i)).flowMatch.getTunnelKey should be (i)
+            }
+        }
+
+        scenario ("Behaves like a map under random operations") {
+            val table = new FlowTable(64)
+            val reference = new HashMap[FlowMatch, ManagedFlow]()
+            val random = new Random(0xcafe)
+            for (i <- 0 until 100000) {
+                val key = random.nextInt(256)
+                if (random.nextBoolean()) {
+                    val flow = flowFor(key)
+                    table.put(flow) should be (reference.put(flow.flowMatch, flow))
+                } else {
+                    val flow = reference.remove(matchFor(key))
+                    if (flow ne null) {
+                        table.remove(flow) should be (true)
+                    }
+                }
+                table.size should be (reference.size)
+            }
+            for (key <- 0 until 256) {
+                table.get(matchFor(key)) should be (reference.get(matchFor(key)))
+            }
+        }
+    }
+}
@@ -39,7 +39,11 @@ class FlowTagIndexerTest extends MidolmanSpec {
     }
 
     val removedFlows = Queue[ManagedFlow]()
-    val flowInvalidation = new FlowAddRemover(removedFlows) with FlowTagIndexer
+    val latencies = Queue[Long]()
+    val flowInvalidation = new FlowAddRemover(removedFlows) with FlowTagIndexer {
+        override protected def invalidatedFlowsRemoved(latencyNanos: Long) =
+            latencies += latencyNanos
+    }
 
     val tag1 = FlowTagger.tagForDpPort(1)
     val tag2 = FlowTagger.tagForDpPort(2)
@@ -86,5 +90,119 @@ class FlowTagIndexerTest extends MidolmanSpec {
             flowInvalidation.invalidateFlowsFor(tag2)
             removedFlows should be (empty)
         }
+
+        scenario ("A removed flow is not invalidated") {
+            val flow1 = new ManagedFlow(null)
+            flow1.tags.add(tag1)
+            val flow2 = new ManagedFlow(null)
+            flow2.tags.add(tag1)
+            flowInvalidation.registerFlow(flow1)
+            flowInvalidation.registerFlow(flow2)
+
+            flowInvalidation.removeFlow(flow1)
+            removedFlows.clear()
+
+            flowInvalidation.invalidateFlowsFor(tag1)
+            removedFlows should contain theSameElementsAs List(flow2)
+            removedFlows.clear()
+        }
+    }
+
+    feature ("Invalidations are spread over several cycles") {
+        scenario ("The flows of a tag are removed over several cycles") {
+            flowInvalidation.invalidatePendingFlows()
+            val flows = (0 until 2500) map { _ =>
+                val flow = new ManagedFlow(null)
+                flow.tags.add(tag1)
+                flowInvalidation.registerFlow(flow)
+                flow
+            }
+
+            flowInvalidation.invalidateFlowsFor(tag1)
+            removedFlows should have size 1024
+            flowInvalidation.hasPendingInvalidations shouldBe true
+
+            flowInvalidation.invalidatePendingFlows()
+            removedFlows should have size 2048
+            flowInvalidation.invalidatePendingFlows()
+            removedFlows should contain theSameElementsAs flows
+            flowInvalidation.hasPendingInvalidations shouldBe false
+            removedFlows.clear()
+        }
+
+        scenario ("Flows added after an invalidation are not invalidated") {
+            flowInvalidation.invalidatePendingFlows()
+            (0 until 2000) foreach { _ =>
+                val flow = new ManagedFlow(null)
+                flow.tags.add(tag1)
+                flowInvalidation.registerFlow(flow)
+            }
+            flowInvalidation.invalidateFlowsFor(tag1)
+            flowInvalidation.hasPendingInvalidations shouldBe true
+
+            val flow = new ManagedFlow(null)
+            flow.tags.add(tag1)
+            flow.tags.add(tag2)
+            flowInvalidation.registerFlow(flow)
+            flowInvalidation.invalidatePendingFlows()
+            removedFlows should have size 2000
+            removedFlows should not contain flow
+            removedFlows.clear()
+
+            flowInvalidation.invalidateFlowsFor(tag2)
+            removedFlows should contain theSameElementsAs List(flow)
+            removedFlows.clear()
+        }
+
+        scenario ("Pending flows that are removed are not invalidated") {
+            flowInvalidation.invalidatePendingFlows()
+            val flows = (0 until 2000) map { _ =>
+                val flow = new ManagedFlow(null)
+                flow.tags.add(tag1)
+                flowInvalidation.registerFlow(flow)
+                flow
+            }
+            flowInvalidation.invalidateFlowsFor(tag1)
+            val pending = flows filterNot removedFlows.contains
+            pending should have size (2000 - 1024)
+
+            pending foreach flowInvalidation.removeFlow
+            removedFlows.clear()
+            flowInvalidation.invalidatePendingFlows()
+            removedFlows should be (empty)
+            flowInvalidation.hasPendingInvalidations shouldBe false
+        }
+
+        scenario ("The latency is reported once the flows are removed") {
+            flowInvalidation.invalidatePendingFlows()
+            latencies.clear()
+            (0 until 1500) foreach { _ =>
+                val flow = new ManagedFlow(null)
+                flow.tags.add(tag1)
+                flowInvalidation.registerFlow(flow)
+            }
+            val flow = new ManagedFlow(null)
+            flow.tags.add(tag2)
+            flowInvalidation.registerFlow(flow)
+
+            flowInvalidation.invalidateFlowsFor(tag1)
+            flowInvalidation.invalidationCompleted(1L)
+            latencies should be (empty)
+
+            flowInvalidation.invalidateFlowsFor(tag2)
+            flowInvalidation.invalidationCompleted(2L)
+            latencies should be (empty)
+
+            flowInvalidation.invalidatePendingFlows()
+            flowInvalidation.hasPendingInvalidations shouldBe false
+            latencies should have size 2
+            latencies(0) should be >= 1L
+            latencies(1) should be >= 2L
+            removedFlows.clear()
+
+            flowInvalidation.invalidateFlowsFor(tag1)
+            flowInvalidation.invalidationCompleted(3L)
+            latencies.last shouldBe 3L
+        }
     }
 }
@@ -36,6 +36,7 @@ import org.midonet.midolman.layer3.Route.NextHop
 import org.midonet.midolman.rules.Condition
 import org.midonet.midolman.simulation.{Bridge => SimBridge, PacketContext}
 import org.midonet.midolman.simulation.{Router => SimRouter}
+import org.midonet.midolman.state.FlowStateCodec.{BINARY_VERSION, PeerVersions}
 import org.midonet.midolman.state.FlowStatePackets
 import org.midonet.midolman.state.TraceState
 import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
@@ -89,6 +90,7 @@ class FlowTracingEgressMatchingTest extends MidolmanSpec {
     // infra for ingress dda
     private val portMapIngress: BiMap[Int,UUID] = HashBiMap.create()
     private val mockDpIngress = new MockDatapathChannel
+    private val peerVersionsIngress = new PeerVersions
     private var pktWkflIngress: TestActorRef[PacketWorkflow] = null
     private val packetOutQueueIngress = new ju.LinkedList[(Packet, ju.List[FlowAction])]
     private val flowQueueIngress = new ju.LinkedList[Flow]
@@ -167,7 +169,8 @@ class FlowTracingEgressMatchingTest extends MidolmanSpec {
             tunnelPorts = List(tunnelPort),
             traceTable = traceTable,
             dpChannel = mockDpIngress,
-            packetCtxTrap = packetCtxTrapIngress
+            packetCtxTrap = packetCtxTrapIngress,
+            peerVersions = peerVersionsIngress
         )(ingressHost.getId, clusterDataClient)
 
         mockDpIngress.packetsExecuteSubscribe(
@@ -213,13 +216,41 @@ class FlowTracingEgressMatchingTest extends MidolmanSpec {
        }
     }
 
+    feature("aggregated trace state") {
+       scenario("The trace state reaches the peer before the packet") {
+           peerVersionsIngress.learn(egressHost.getId, BINARY_VERSION)
+           newTraceRule(UUID.randomUUID, bridgeChain,
+                        newCondition(tpDst = Some(500)), 1)
+
+           val frame = { eth src vm2Mac dst vm1Mac } <<
+               { ip4 src vm2IpAddr dst vm1IpAddr } <<
+               { tcp src 23423 dst 500 } << payload("foobar")
+
+           val inPortNum = portMapIngress.inverse.get(bridgeVm2Port.getId)
+           val packets = List(new Packet(frame,
+                                         FlowMatches.fromEthernetPacket(frame)
+                                             .addKey(FlowKeys.inPort(inPortNum))
+                                             .setInputPortNumber(inPortNum)))
+           handlePackets(pktWkflIngress, packets: _*)
+
+           packetOutQueueIngress.size should be (2)
+           val (_, stateActions) = packetOutQueueIngress.remove()
+           getTunnelId(stateActions) should be (FlowStatePackets.TUNNEL_KEY)
+           getTunnelDst(stateActions) should be (egressHostIp)
+
+           val (_, actions) = packetOutQueueIngress.remove()
+           TraceState.traceBitPresent(getTunnelId(actions)) should be (true)
+           getTunnelDst(actions) should be (egressHostIp)
+       }
+    }
+
     private def injectPacketVerifyTraced(inPortNum: Int,
                                          frame: Ethernet): Unit = {
         val packets = List(new Packet(frame,
                                       FlowMatches.fromEthernetPacket(frame)
                                           .addKey(FlowKeys.inPort(inPortNum))
                                           .setInputPortNumber(inPortNum)))
-        pktWkflIngress ! PacketWorkflow.HandlePackets(packets.toArray)
+        handlePackets(pktWkflIngress, packets: _*)
 
         // should be sending a trace state to other host
         packetOutQueueIngress.size should be (2)
@@ -255,7 +286,7 @@ class FlowTracingEgressMatchingTest extends MidolmanSpec {
             .setInputPortNumber(tunnelPort)
 
         val packets2 = List(new Packet(egressFrame, egressFrameFlowMatch))
-        pktWkflEgress ! PacketWorkflow.HandlePackets(packets2.toArray)
+        handlePackets(pktWkflEgress, packets2: _*)
 
         val (_, actions2) = packetOutQueueEgress.remove()
 
@@ -198,10 +198,37 @@ class FlowTracingTest extends MidolmanSpec {
             val pktCtxs = new LinkedList[PacketContext]()
             val wkfl = packetWorkflow(Map(42 -> port1.getId),
                                       packetCtxTrap = pktCtxs)
-            wkfl ! PacketWorkflow.HandlePackets(
-                List(makePacket(500)).toArray)
+            handlePackets(wkfl, makePacket(500))
             pktCtxs.size() should be (2)
-            pktCtxs.pop().runs should be (2)
+            pktCtxs.pop() should be theSameInstanceAs pktCtxs.pop()
+        }
+
+        scenario("recycled contexts keep the stored trace state") {
+            val requestId = UUID.randomUUID
+            newTraceRule(requestId, chain,
+                         newCondition(tpDst = Some(500)), 1)
+            val pktCtxs = new LinkedList[PacketContext]()
+            val wkfl = packetWorkflow(Map(42 -> port1.getId),
+                                      packetCtxTrap = pktCtxs,
+                                      traceTable = table)
+            val key1 = TraceKey.fromFlowMatch(
+                FlowMatches.fromEthernetPacket(makeFrame(500, 1)))
+            val key2 = TraceKey.fromFlowMatch(
+                FlowMatches.fromEthernetPacket(makeFrame(500, 2)))
+
+            handlePackets(wkfl, makeFrame(500, 1))
+            val traceCtx1 = table.get(key1)
+            traceCtx1.enabled should be (true)
+            traceCtx1.containsRequest(requestId) should be (true)
+            val flowTraceId1 = traceCtx1.flowTraceId
+
+            // The context of the first packet is reused for the second
+            handlePackets(wkfl, makeFrame(500, 2))
+            pktCtxs.getFirst should be theSameInstanceAs pktCtxs.getLast
+            table.get(key1).flowTraceId should be (flowTraceId1)
+            table.get(key1).containsRequest(requestId) should be (true)
+            table.get(key2).enabled should be (true)
+            table.get(key2).flowTraceId should not be flowTraceId1
         }
     }
 
@@ -31,9 +31,11 @@ import org.midonet.midolman.PacketWorkflow._
 import org.midonet.midolman.UnderlayResolver.Route
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.io.UpcallRing
 import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
 import org.midonet.midolman.simulation.{DhcpConfigFromDataclient, PacketContext}
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.FlowStateCodec.PeerVersions
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
 import org.midonet.midolman.state.{FlowStatePackets, HappyGoLuckyLeaser, MockFlowStateTable, MockStateStorage}
@@ -116,7 +118,7 @@ class PacketWorkflowTest extends MidolmanSpec {
             val pkts = (1 to 4) map (_ => makeStatePacket())
 
             When("they are fed to the DDA")
-            ddaRef ! PacketWorkflow.HandlePackets(pkts.toArray)
+            handlePackets(ddaRef, pkts: _*)
 
             Then("the DDA should accept the state")
             stateMessagesSeen should be (4)
@@ -132,7 +134,7 @@ class PacketWorkflowTest extends MidolmanSpec {
             val pkts = List(makePacket(1), makePacket(2), makePacket(3), makePacket(2))
 
             When("they are fed to the DDA")
-            ddaRef ! PacketWorkflow.HandlePackets(pkts.toArray)
+            handlePackets(ddaRef, pkts: _*)
 
             Then("a packetOut should have been called for the pending packets")
             packetsOut should be (4)
@@ -141,10 +143,64 @@ class PacketWorkflowTest extends MidolmanSpec {
             packetsSeen map (_._2) should be (1 to 4)
         }
 
+        scenario("simulates packets handed over through the upcall ring") {
+            Given("4 packets in the upcall ring")
+            val pkts = List(makePacket(1), makePacket(2), makePacket(3), makePacket(2))
+            pkts foreach { dda.upcalls.offer(_) should be (true) }
+            dda.upcalls.shouldNotify() should be (true)
+
+            When("the DDA is notified")
+            ddaRef ! PacketWorkflow.HandleUpcalls
+
+            Then("4 packet workflows should be executed")
+            packetsOut should be (4)
+            packetsSeen map (_._2) should be (1 to 4)
+
+            And("the ring should be drained and idle")
+            dda.upcalls.isEmpty should be (true)
+            dda.upcalls.shouldNotify() should be (true)
+        }
+
+        scenario("accounts for the upcalls dropped by a full ring") {
+            Given("2 packets dropped because the upcall ring was full")
+            val dropped = dda.metrics.upcallsDropped.getCount
+            dda.upcalls.dropped()
+            dda.upcalls.dropped()
+
+            When("the DDA is notified")
+            ddaRef ! PacketWorkflow.HandleUpcalls
+
+            Then("the dropped packets should be counted as done with")
+            packetsOut should be (2)
+            dda.metrics.upcallsDropped.getCount should be (dropped + 2)
+            dda.upcalls.takeDrops() should be (0)
+        }
+
+        scenario("drops malformed frames without installing a flow") {
+            Given("a packet whose frame is truncated")
+            val eth: Ethernet = makeFrame(1)
+            val pkt = new Packet(eth.serialize().take(10),
+                                 FlowMatches.fromEthernetPacket(eth))
+                          .setReason(Packet.Reason.FlowTableMiss)
+            val dropped = dda.metrics.packetsDropped.getCount
+            val flows = dda.metrics.dpFlowsMetric.getCount
+
+            When("the simulation parses its frame")
+            dda.parseFrames = true
+            handlePackets(ddaRef, pkt)
+
+            Then("the packet should be dropped")
+            packetsOut should be (1)
+            dda.metrics.packetsDropped.getCount should be (dropped + 1)
+
+            And("no flow should be installed for its match")
+            dda.metrics.dpFlowsMetric.getCount should be (flows)
+        }
+
         scenario("simulates generated packets") {
             Given("a simulation that generates a packet")
             val pkt = makePacket(1)
-            ddaRef ! PacketWorkflow.HandlePackets(Array(pkt))
+            handlePackets(ddaRef, pkt)
 
             When("the simulation completes")
             val id = UUID.randomUUID()
@@ -158,19 +214,40 @@ class PacketWorkflowTest extends MidolmanSpec {
             packetsOut should be (1)
         }
 
+        scenario("restarts the packets postponed on a future together") {
+            Given("3 packets postponed on the same future")
+            val pkts = List(makePacket(1), makePacket(2), makePacket(3))
+            handlePackets(ddaRef, pkts: _*)
+            dda.metrics.waitingRoomSize.getValue should be (3)
+
+            When("the future completes")
+            dda.complete(null)
+
+            Then("all the packets should be simulated")
+            packetsSeen map (_._2) should be (1 to 3)
+            dda.metrics.packetsProcessed.getCount should be (3)
+
+            And("the packets should have left the waiting room")
+            dda.metrics.waitingRoomSize.getValue should be (0)
+            dda.metrics.waitingRoomWaitTime.getCount should be (3)
+        }
+
         scenario("expires packets") {
             Given("a pending packet in the DDA")
             createDda(0)
             val pkts = List(makePacket(1), makePacket(1))
-            ddaRef ! PacketWorkflow.HandlePackets(pkts.toArray)
+            handlePackets(ddaRef, pkts: _*)
             packetsOut should be (2)
 
             When("putting another packet handler in the waiting room")
             val pkt2 = makePacket(2)
-            ddaRef ! PacketWorkflow.HandlePackets(Array(pkt2))
+            handlePackets(ddaRef, pkt2)
 
             And("packetsOut should be called with the correct number")
             packetsOut should be (3)
+
+            And("the wait of the expired packets should be recorded")
+            dda.metrics.waitingRoomWaitTime.getCount should be (2)
         }
     }
 /*
@@ -374,14 +451,17 @@ class PacketWorkflowTest extends MidolmanSpec {
                                    flowProcessor,
                                    conntrackTable, natTable,
                                    new ShardedFlowStateTable[TraceKey, TraceContext](),
-                                   new MockStateStorage(), HappyGoLuckyLeaser,
-                                   metrics, packetOut)
+                                   new MockStateStorage(), new PeerVersions,
+                                   HappyGoLuckyLeaser,
+                                   metrics, packetOut,
+                                   new UpcallRing(16, singleProducer = true))
             with MessageAccumulator {
 
         implicit override val dispatcher = this.context.dispatcher
         var p = Promise[Any]()
         var generatedPacket: GeneratedPacket = _
         var nextActions: List[FlowAction] = _
+        var parseFrames = false
 
         def completeWithGenerated(actions: List[FlowAction],
                                   generatedPacket: GeneratedPacket): Unit = {
@@ -398,6 +478,8 @@ class PacketWorkflowTest extends MidolmanSpec {
             stateMessagesSeen += 1
 
         override def start(pktCtx: PacketContext) = {
+            if (parseFrames)
+                pktCtx.ethernet
             pktCtx.runs += 1
             if (pktCtx.runs == 1) {
                 packetsSeen = packetsSeen :+ (pktCtx.packet, pktCtx.cookie)
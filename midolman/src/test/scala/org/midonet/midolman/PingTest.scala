@@ -216,9 +216,9 @@ class PingTest extends MidolmanSpec {
                            .setInputPortNumber(rtrPort1DpNum)) }
         val packets = (1 to howMany) map makePacket toArray
 
-        packetWorkflow(Map(
+        handlePackets(packetWorkflow(Map(
             `rtrPort1DpNum` -> rtrPort1.getId,
-            `vm2PortDpNum` -> vm2Port.getId)) ! PacketWorkflow.HandlePackets(packets)
+            `vm2PortDpNum` -> vm2Port.getId)), packets: _*)
 
         mockDpChannel.packetsSent should have size 20
 
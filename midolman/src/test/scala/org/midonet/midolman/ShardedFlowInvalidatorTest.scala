@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import scala.collection.mutable.ListBuffer
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.flows.{FlowInvalidationHandler, ShardedFlowInvalidator}
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.midolman.util.mock.{EmptyActor, MessageAccumulator}
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+@RunWith(classOf[JUnitRunner])
+class ShardedFlowInvalidatorTest extends MidolmanSpec {
+
+    registerActors(PacketsEntryPoint -> (() => new EmptyActor
+                                                  with MessageAccumulator))
+
+    class Handler extends FlowInvalidationHandler {
+        val tags = ListBuffer[FlowTag]()
+        val latencies = ListBuffer[Long]()
+
+        override def invalidateFlowsFor(tag: FlowTag): Unit =
+            tags += tag
+
+        override def invalidationCompleted(latencyNanos: Long): Unit =
+            latencies += latencyNanos
+    }
+
+    val tag1 = FlowTagger.tagForDpPort(1)
+    val tag2 = FlowTagger.tagForDpPort(2)
+    val tag3 = FlowTagger.tagForDpPort(3)
+
+    var invalidator: ShardedFlowInvalidator = _
+
+    override def beforeTest(): Unit = {
+        invalidator = new ShardedFlowInvalidator(actorsService)
+    }
+
+    feature("Tags are broadcast to all shards") {
+        scenario("Each shard invalidates the scheduled tags") {
+            Given("Two shards")
+            val shard1 = invalidator.registerProcessor()
+            val shard2 = invalidator.registerProcessor()
+            invalidator.hasInvalidations shouldBe false
+
+            When("Scheduling a batch of tags from one of the shards")
+            shard1.scheduleInvalidationForAll(List(tag1, tag2))
+
+            Then("Both shards have invalidations")
+            shard1.hasInvalidations shouldBe true
+            shard2.hasInvalidations shouldBe true
+
+            And("The workers are woken up once")
+            PacketsEntryPoint.getAndClear() should be (List(CheckBackchannels))
+
+            And("Both shards invalidate the tags")
+            for (shard <- List(shard1, shard2)) {
+                val handler = new Handler
+                shard.process(handler)
+                handler.tags should be (List(tag1, tag2))
+                handler.latencies should have size 1
+                shard.hasInvalidations shouldBe false
+            }
+            invalidator.hasInvalidations shouldBe false
+        }
+    }
+
+    feature("Pending tags are coalesced") {
+        scenario("A tag scheduled while pending is invalidated once") {
+            Given("A shard")
+            val shard = invalidator.registerProcessor()
+
+            When("Scheduling overlapping batches of tags")
+            invalidator.scheduleInvalidationForAll(List(tag1, tag2, tag1))
+            invalidator.scheduleInvalidationFor(tag2)
+            invalidator.scheduleInvalidationForAll(List(tag2, tag3))
+
+            Then("The shard keeps each tag once")
+            shard.pendingTags shouldBe 3
+
+            And("The workers are only woken up for new tags")
+            PacketsEntryPoint.getAndClear() should be (
+                List(CheckBackchannels, CheckBackchannels))
+
+            And("The shard invalidates each tag once")
+            val handler = new Handler
+            shard.process(handler)
+            handler.tags should be (List(tag1, tag2, tag3))
+            handler.latencies should have size 2
+            shard.pendingTags shouldBe 0
+        }
+
+        scenario("A tag scheduled after being invalidated is invalidated again") {
+            Given("A shard that invalidated a tag")
+            val shard = invalidator.registerProcessor()
+            invalidator.scheduleInvalidationFor(tag1)
+            shard.process(new Handler)
+
+            When("Scheduling the tag again")
+            invalidator.scheduleInvalidationFor(tag1)
+
+            Then("The shard invalidates it again")
+            val handler = new Handler
+            shard.process(handler)
+            handler.tags should be (List(tag1))
+        }
+    }
+}
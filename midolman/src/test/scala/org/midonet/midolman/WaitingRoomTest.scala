@@ -71,6 +71,19 @@ class WaitingRoomTest extends FeatureSpec with Matchers {
             evictions shouldEqual List(w1, w2)
         }
 
+        scenario("The wait of waiters that leave or time out is reported") {
+            val waits = new ListBuffer[Long]()
+            val wr = new WaitingRoom[Int](to, waits += _)
+            List(1, 2) foreach { wr enter _ }
+            val left = wr leave 1
+            waits shouldEqual List(left)
+
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(to) + 1)
+            wr.doExpirations() shouldEqual List(2)
+            waits should have size 2
+            waits(1) should be > to
+        }
+
         scenario("A waiter leaving before timing out is not expired") {
             val wr = new WaitingRoom[Int](to)
             List(1,2,3) foreach { wr enter _ }
@@ -80,4 +93,69 @@ class WaitingRoomTest extends FeatureSpec with Matchers {
             (wr enter 4) should (contain(1) and contain(3) and not contain(2))
         }
     }
+
+    feature("Waiters blocked on an object") {
+
+        scenario("Waiters are woken up together") {
+            val wr = new WaitingRoom[Int](to)
+            val f1 = new Object
+            val f2 = new Object
+            wr.enter(1, f1)
+            wr.enter(2, f2)
+            wr.enter(3, f1)
+            wr.isWaitingOn(f1) should be (true)
+
+            (wr wakeUp f1) shouldEqual List(1, 3)
+            wr.isWaitingOn(f1) should be (false)
+            (wr wakeUp f1) should be (empty)
+
+            // woken up waiters remain in the room
+            wr.count should be (3)
+        }
+
+        scenario("Waiters that leave are not woken up") {
+            val wr = new WaitingRoom[Int](to)
+            val f = new Object
+            List(1, 2, 3) foreach { wr.enter(_, f) }
+            wr leave 2
+            wr leave 3
+            wr leave 1
+            wr.isWaitingOn(f) should be (false)
+            (wr wakeUp f) should be (empty)
+            wr.count should be (0)
+            (wr leave 1) should be (-1L)
+        }
+
+        scenario("Waiters blocked again keep their deadline") {
+            val wr = new WaitingRoom[Int](to)
+            val f1 = new Object
+            val f2 = new Object
+            wr.enter(1, f1)
+            wr wakeUp f1
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(to) / 2)
+
+            wr.enter(1, f2)
+            wr.isWaitingOn(f2) should be (true)
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(to) / 2 + 1)
+
+            wr.doExpirations() shouldEqual List(1)
+            wr.isWaitingOn(f2) should be (false)
+        }
+
+        scenario("Many waiters expire in the order they entered") {
+            val wr = new WaitingRoom[Int](TimeUnit.MILLISECONDS.toNanos(50))
+            val f = new Object
+            for (i <- 0 until 1000) {
+                wr.enter(i, if (i % 2 == 0) f else null) should be (empty)
+            }
+            wr.count should be (1000)
+            wr.leave(500) should be >= 0L
+
+            Thread.sleep(60)
+            val evictions = wr.doExpirations()
+            evictions shouldEqual ((0 until 1000) filter (_ != 500))
+            wr.count should be (0)
+            wr.isWaitingOn(f) should be (false)
+        }
+    }
 }
@@ -20,6 +20,7 @@ import java.nio.ByteBuffer
 import java.util.{UUID, ArrayList}
 
 import akka.testkit.TestProbe
+import com.codahale.metrics.MetricRegistry
 import com.lmax.disruptor.RingBuffer
 import org.jctools.queues.SpscArrayQueue
 
@@ -31,6 +32,7 @@ import org.scalatest.concurrent.Eventually._
 
 import org.midonet.midolman.datapath.DisruptorDatapathChannel.PacketContextHolder
 import org.midonet.midolman.flows.{FlowOperation, ManagedFlow}
+import org.midonet.midolman.monitoring.metrics.PacketPipelineHistogram
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.netlink.{MockNetlinkChannelFactory, NetlinkMessage}
 import org.midonet.odp._
@@ -182,6 +184,141 @@ class DatapathChannelTest extends MidolmanSpec {
         }
     }
 
+    feature ("FlowProcessor batches flow creates") {
+        scenario ("Flow creates are written together at the end of a batch") {
+            val batchFactory = new MockNetlinkChannelFactory
+            val batchChannel = batchFactory.channel
+            batchChannel.setPid(10)
+            val batchingFp = new FlowProcessor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1024, 2048,
+                batchFactory, clock, flowCreateBatchSize = 64 * 1024)
+
+            val flows = 10
+            val holder = new PacketContextHolder(null, null)
+            for (seq <- 0 until flows) {
+                val context = packetContextFor(ethernet, UUID.randomUUID())
+                context.flowActions.addAll(actions)
+                context.flow = new ManagedFlow(null)
+                holder.flowCreateRef = context
+                batchingFp.onEvent(holder, seq, endOfBatch = seq == flows - 1)
+                if (seq < flows - 1) {
+                    batchChannel.packetsWritten.get() should be (0)
+                }
+            }
+
+            batchChannel.packetsWritten.get() should be (1)
+            val bb = batchChannel.written.poll()
+            val seqs = new ArrayList[Int]()
+            var start = 0
+            while (start < bb.limit()) {
+                bb.getInt(start + NetlinkMessage.NLMSG_PID_OFFSET) should be (10)
+                seqs.add(bb.getInt(start + NetlinkMessage.NLMSG_SEQ_OFFSET))
+                bb.position(start + NetlinkMessage.GENL_HEADER_SIZE)
+                bb.getInt() should be (datapathId)
+                start += NetlinkMessage.align(
+                    bb.getInt(start + NetlinkMessage.NLMSG_LEN_OFFSET))
+            }
+            seqs.size() should be (flows)
+            new java.util.HashSet(seqs).size() should be (flows)
+        }
+
+        scenario ("A flow can't be ejected before its batch is written") {
+            val batchFactory = new MockNetlinkChannelFactory
+            batchFactory.channel.setPid(10)
+            val batchingFp = new FlowProcessor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1024, 2048,
+                batchFactory, clock, flowCreateBatchSize = 64 * 1024)
+            val flowDelete = new FlowOperation(TestProbe().ref,
+                                               new ArrayObjectPool(0, _ => null),
+                                               new SpscArrayQueue(16))
+            val managedFlow = new ManagedFlow(null)
+            flowDelete.reset(FlowOperation.DELETE, managedFlow, retries = 0)
+
+            val context = packetContextFor(ethernet, UUID.randomUUID())
+            context.flowActions.addAll(actions)
+            context.flow = new ManagedFlow(null)
+            managedFlow.flowMatch.reset(context.origMatch)
+            val holder = new PacketContextHolder(null, context)
+            batchingFp.onEvent(holder, 0, endOfBatch = false)
+
+            batchingFp.tryEject(0, datapathId, managedFlow.flowMatch,
+                                flowDelete) should be (false)
+
+            holder.flowCreateRef = context
+            batchingFp.onEvent(holder, 1, endOfBatch = true)
+            batchFactory.channel.packetsWritten.get() should be (1)
+
+            batchingFp.tryEject(0, datapathId, managedFlow.flowMatch,
+                                flowDelete) should be (true)
+        }
+    }
+
+    feature ("PacketExecutor batches packet executes") {
+        scenario ("Packet executes are written together at the end of a batch") {
+            val batchFactory = new MockNetlinkChannelFactory
+            val batchChannel = batchFactory.channel
+            batchChannel.setPid(10)
+            val metrics = new MetricRegistry
+            val executor = new PacketExecutor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1, 0,
+                batchFactory, 64 * 1024, metrics)
+
+            val packets = 10
+            val holder = new PacketContextHolder(null, null)
+            for (seq <- 0 until packets) {
+                val context = packetContextFor(ethernet, UUID.randomUUID())
+                context.packetActions.addAll(actions)
+                holder.packetExecRef = context
+                executor.onEvent(holder, seq, endOfBatch = seq == packets - 1)
+                if (seq < packets - 1) {
+                    batchChannel.packetsWritten.get() should be (0)
+                }
+            }
+
+            batchChannel.packetsWritten.get() should be (1)
+            val bb = batchChannel.written.poll()
+            var executes = 0
+            var start = 0
+            while (start < bb.limit()) {
+                bb.getInt(start + NetlinkMessage.NLMSG_PID_OFFSET) should be (10)
+                bb.position(start + NetlinkMessage.GENL_HEADER_SIZE)
+                bb.getInt() should be (datapathId)
+                start += NetlinkMessage.align(
+                    bb.getInt(start + NetlinkMessage.NLMSG_LEN_OFFSET))
+                executes += 1
+            }
+            executes should be (packets)
+
+            val perWrite = metrics.histogram(MetricRegistry.name(
+                classOf[PacketPipelineHistogram], "packetExecutesPerWrite"))
+            perWrite.getCount should be (1)
+            perWrite.getSnapshot.getMax should be (packets)
+        }
+
+        scenario ("Executors take turns over ranges of sequences") {
+            val factories = Array.fill(2)(new MockNetlinkChannelFactory)
+            val executors = factories map { f =>
+                new PacketExecutor(new DatapathStateDriver(datapath),
+                                   ovsFamilies, 2, factories.indexOf(f), f)
+            }
+
+            val holder = new PacketContextHolder(null, null)
+            for (seq <- 0 until 256) {
+                val context = packetContextFor(ethernet, UUID.randomUUID())
+                context.packetActions.addAll(actions)
+                holder.packetExecRef = context
+                executors foreach { _.onEvent(holder, seq, endOfBatch = true) }
+                holder.packetExecRef should be (null)
+
+                val owner = (seq / 64) % 2
+                factories(owner).channel.packetsWritten.get() should be (
+                    (seq / 128) * 64 + seq % 64 + 1)
+            }
+            factories(0).channel.packetsWritten.get() should be (128)
+            factories(1).channel.packetsWritten.get() should be (128)
+        }
+    }
+
     private def flowMatchParser(buf: ByteBuffer): FlowMatch = {
         val keys = new ArrayList[FlowKey](16)
         FlowKeys.buildFrom(buf, keys)
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.datapath
+
+import java.nio.ByteBuffer
+
+import com.codahale.metrics.MetricRegistry
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.netlink.NetlinkSerializable
+import org.midonet.odp.{FlowMask, FlowMatch, FlowMatches}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+
+@RunWith(classOf[JUnitRunner])
+class FlowMaskCacheTest extends FeatureSpec with Matchers {
+
+    private def tcpMatch(srcPort: Short): FlowMatch = {
+        val frame: Ethernet = { eth src MAC.random() dst MAC.random() } <<
+                            { ip4 src IPv4Addr.random dst IPv4Addr.random } <<
+                            { tcp src srcPort dst 80 }
+        val fmatch = FlowMatches.fromEthernetPacket(frame)
+        fmatch.getEthSrc
+        fmatch.getNetworkSrcIP
+        fmatch.getDstPort
+        fmatch
+    }
+
+    private def udpMatch(): FlowMatch = {
+        val frame: Ethernet = { eth src MAC.random() dst MAC.random() } <<
+                            { ip4 src IPv4Addr.random dst IPv4Addr.random } <<
+                            { udp src 10 dst 53 }
+        val fmatch = FlowMatches.fromEthernetPacket(frame)
+        fmatch.getNetworkSrcIP
+        fmatch.getDstPort
+        fmatch
+    }
+
+    private def bytesOf(mask: NetlinkSerializable): Array[Byte] = {
+        val buf = ByteBuffer.allocate(4096)
+        mask.serializeInto(buf)
+        buf.flip()
+        val bytes = new Array[Byte](buf.remaining())
+        buf.get(bytes)
+        bytes
+    }
+
+    private def expectedBytesOf(fmatch: FlowMatch): Array[Byte] = {
+        val mask = new FlowMask()
+        mask.calculateFor(fmatch)
+        bytesOf(mask)
+    }
+
+    feature ("Flow masks are cached by the shape of the FlowMatch") {
+        scenario ("Matches with the same shape share the serialized mask") {
+            val metrics = new MetricRegistry
+            val cache = new FlowMaskCache(16, metrics)
+            val match1 = tcpMatch(1000)
+            val match2 = tcpMatch(2000)
+            FlowMask.shapeOf(match1) should be (FlowMask.shapeOf(match2))
+
+            val mask1 = cache.maskFor(match1)
+            val mask2 = cache.maskFor(match2)
+            mask2 should be theSameInstanceAs mask1
+            bytesOf(mask1) should be (expectedBytesOf(match1))
+
+            metrics.getMeters.get(
+                "org.midonet.midolman.monitoring.metrics.FlowTablesMeter" +
+                ".flowMaskCacheHits").getCount should be (1)
+            metrics.getMeters.get(
+                "org.midonet.midolman.monitoring.metrics.FlowTablesMeter" +
+                ".flowMaskCacheMisses").getCount should be (1)
+        }
+
+        scenario ("Matches with different shapes get different masks") {
+            val cache = new FlowMaskCache(16, new MetricRegistry)
+            val tcp = tcpMatch(1000)
+            val udp = udpMatch()
+            FlowMask.shapeOf(tcp) should not be FlowMask.shapeOf(udp)
+
+            val tcpMask = cache.maskFor(tcp)
+            val udpMask = cache.maskFor(udp)
+            tcpMask should not be theSameInstanceAs (udpMask)
+            bytesOf(tcpMask) should be (expectedBytesOf(tcp))
+            bytesOf(udpMask) should be (expectedBytesOf(udp))
+        }
+
+        scenario ("Masks are still calculated when the cache is full") {
+            val cache = new FlowMaskCache(1, new MetricRegistry)
+            val tcp = tcpMatch(1000)
+            val udp = udpMatch()
+            cache.maskFor(tcp)
+            val udpMask = cache.maskFor(udp)
+            bytesOf(udpMask) should be (expectedBytesOf(udp))
+            cache.maskFor(udp) should not be theSameInstanceAs (udpMask)
+            cache.maskFor(tcpMatch(2000))
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.io
+
+import java.util.ArrayList
+import java.util.concurrent.Semaphore
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.odp.{FlowMatch, Packet}
+import org.midonet.packets.Ethernet
+
+@RunWith(classOf[JUnitRunner])
+class UpcallRingTest extends FeatureSpec with Matchers {
+
+    private def packet() = new Packet(new Ethernet(), new FlowMatch())
+
+    feature ("The worker is notified when it has packets to process") {
+        scenario ("The producer notifies an idle worker only once") {
+            val ring = new UpcallRing(16, singleProducer = true)
+            ring.offer(packet()) should be (true)
+            ring.shouldNotify() should be (true)
+            ring.offer(packet()) should be (true)
+            ring.shouldNotify() should be (false)
+
+            val drained = new ArrayList[Packet]()
+            ring.drain(drained.add(_), 16) should be (false)
+            drained.size() should be (2)
+
+            ring.offer(packet()) should be (true)
+            ring.shouldNotify() should be (true)
+        }
+
+        scenario ("The worker stays scheduled while there are packets left") {
+            val ring = new UpcallRing(16, singleProducer = true)
+            for (i <- 0 until 10) {
+                ring.offer(packet()) should be (true)
+            }
+            ring.shouldNotify() should be (true)
+
+            val drained = new ArrayList[Packet]()
+            ring.drain(drained.add(_), 4) should be (true)
+            drained.size() should be (4)
+            ring.offer(packet()) should be (true)
+            ring.shouldNotify() should be (false)
+            ring.drain(drained.add(_), 16) should be (false)
+            drained.size() should be (11)
+            ring.isEmpty should be (true)
+        }
+
+        scenario ("The ring is bounded") {
+            val ring = new UpcallRing(4, singleProducer = false)
+            for (i <- 0 until 4) {
+                ring.offer(packet()) should be (true)
+            }
+            ring.offer(packet()) should be (false)
+        }
+
+        scenario ("The worker takes the count of dropped packets") {
+            val ring = new UpcallRing(4, singleProducer = true)
+            ring.takeDrops() should be (0)
+            ring.dropped()
+            ring.dropped()
+            ring.takeDrops() should be (2)
+            ring.takeDrops() should be (0)
+        }
+
+        scenario ("No packets are left behind by concurrent producers") {
+            val ring = new UpcallRing(64, singleProducer = false)
+            val producers = 4
+            val packetsPerProducer = 100000
+            val notifications = new Semaphore(0)
+            val threads = for (p <- 0 until producers) yield new Thread {
+                override def run(): Unit = {
+                    val pkt = packet()
+                    var i = 0
+                    while (i < packetsPerProducer) {
+                        while (!ring.offer(pkt)) {
+                            if (ring.shouldNotify())
+                                notifications.release()
+                            Thread.`yield`()
+                        }
+                        if (ring.shouldNotify())
+                            notifications.release()
+                        i += 1
+                    }
+                }
+            }
+            threads foreach (_.start())
+
+            var drained = 0
+            val count = (_: Packet) => drained += 1
+            while (drained < producers * packetsPerProducer) {
+                notifications.acquire()
+                while (ring.drain(count, 32)) { }
+            }
+            threads foreach (_.join())
+            ring.isEmpty should be (true)
+        }
+    }
+}
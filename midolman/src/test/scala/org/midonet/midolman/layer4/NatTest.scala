@@ -628,7 +628,7 @@ class NatTest extends MidolmanSpec {
                                       FlowMatches.fromEthernetPacket(frame)
                                           .addKey(FlowKeys.inPort(inPortNum))
                                           .setInputPortNumber(inPortNum)))
-        pktWkfl ! PacketWorkflow.HandlePackets(packets.toArray)
+        handlePackets(pktWkfl, packets: _*)
     }
 
     def injectTcp(inPort: UUID, srcMac: MAC, srcIp: IPv4Addr, srcPort: Short,
@@ -15,17 +15,27 @@
  */
 package org.midonet.midolman.simulation
 
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.rules._
 import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.state.ConnTrackState
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.HappyGoLuckyLeaser
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.IPAddr
+import org.midonet.packets.{IPAddr, IPv4, IPv4Addr, IPv4Subnet}
+import org.midonet.sdn.state.{FlowStateTable, FlowStateTransaction, ShardedFlowStateTable}
+import org.midonet.util.Range
 
 import java.util.UUID
 import org.junit.runner.RunWith
 import org.scalatest.{BeforeAndAfterAll, BeforeAndAfter, Matchers, Suite}
 import org.scalatest.junit.JUnitRunner
 import akka.actor.ActorSystem
+import com.codahale.metrics.MetricRegistry
 import scala.collection.mutable
+import scala.util.Random
 
 import scala.collection.JavaConverters._
 
@@ -47,6 +57,7 @@ class ChainTest extends Suite
     private var pktCtx: PacketContext = _
     private var pktMatch: FlowMatch = _
     private val ownerId: UUID = UUID.randomUUID
+    private var metrics: PacketPipelineMetrics = _
 
     before {
         pktMatch = new FlowMatch()
@@ -54,6 +65,7 @@ class ChainTest extends Suite
         pktMatch.setNetworkDst(IPAddr.fromString("1.2.3.4"))
 
         pktCtx = new PacketContext(1, null, pktMatch)
+        metrics = new PacketPipelineMetrics(new MetricRegistry, 1)
     }
 
     def testNullChain() {
@@ -229,6 +241,291 @@ class ChainTest extends Suite
         applyChain(innerAndOuterChain).action should be (Action.REJECT)
     }
 
+    def testIndexedChainDispatchesOnTheDestinationPort() {
+        val rules = (1 to 20).toList map { port =>
+            val cond = new Condition()
+            cond.tpDst = new Range[Integer](port)
+            new LiteralRule(cond, if (port == 15) Action.REJECT
+                                  else Action.ACCEPT)
+        }
+        val c = makeChain(rules)
+        c.isIndexed should be (true)
+
+        pktCtx.wcmatch.setDstPort(15)
+        applyChain(c).action should be (Action.REJECT)
+        pktCtx.wcmatch.setDstPort(3)
+        applyChain(c).action should be (Action.ACCEPT)
+        pktCtx.wcmatch.setDstPort(30)
+        applyChain(c).action should be (Action.ACCEPT)
+    }
+
+    def testIndexedChainKeepsTheRuleOrder() {
+        def protoRule(proto: Int, action: Action) = {
+            val cond = new Condition()
+            cond.nwProto = proto.toByte
+            new LiteralRule(cond, action)
+        }
+        val c = makeChain((1 to 10).toList.map(_ => protoRule(17, Action.ACCEPT)) :::
+                          List(protoRule(6, Action.DROP), rejectRule))
+        c.isIndexed should be (true)
+
+        pktCtx.wcmatch.setNetworkProto(6)
+        applyChain(c).action should be (Action.DROP)
+        pktCtx.wcmatch.setNetworkProto(17)
+        applyChain(c).action should be (Action.ACCEPT)
+        pktCtx.wcmatch.setNetworkProto(1)
+        applyChain(c).action should be (Action.REJECT)
+    }
+
+    def testIndexedChainLooksUpRulesAfterRewrites() {
+        val rewrite = new NatRule(Condition.TRUE, Action.CONTINUE, true) {
+            override def apply(ctx: PacketContext, res: RuleResult,
+                               ownerId: UUID): Unit =
+                ctx.wcmatch.setNetworkProto(17)
+        }
+        def protoRule(proto: Int, action: Action) = {
+            val cond = new Condition()
+            cond.nwProto = proto.toByte
+            new LiteralRule(cond, action)
+        }
+        val rules = (1 to 10).toList.map(_ => protoRule(1, Action.ACCEPT)) :::
+                    List(rewrite, protoRule(6, Action.ACCEPT),
+                         protoRule(17, Action.REJECT))
+        val c = makeChain(rules)
+        c.isIndexed should be (true)
+
+        pktCtx.wcmatch.setNetworkProto(6)
+        applyChain(c).action should be (Action.REJECT)
+    }
+
+    def testIndexedChainMatchesLikeUnindexedChain() {
+        val random = new Random(42)
+        val ports = Array.fill(4)(UUID.randomUUID)
+        def randomCondition(): Condition = {
+            val cond = new Condition()
+            random.nextInt(5) match {
+                case 0 => cond.nwProto = (6 + random.nextInt(2) * 11).toByte
+                case 1 =>
+                    val port = random.nextInt(8)
+                    cond.tpDst = new Range[Integer](port, port + random.nextInt(3))
+                case 2 =>
+                    cond.nwDstIp = new IPv4Subnet(
+                        0x0a000000 | (random.nextInt(4) << 8), 24)
+                case 3 => cond.inPortIds = Set(ports(random.nextInt(4))).asJava
+                case _ => cond.tpSrc = new Range[Integer](random.nextInt(8))
+            }
+            cond.nwProtoInv = random.nextInt(10) == 0
+            cond.tpDstInv = random.nextInt(10) == 0
+            cond.conjunctionInv = random.nextInt(20) == 0
+            cond.matchForwardFlow = random.nextInt(20) == 0
+            cond.matchReturnFlow = random.nextInt(20) == 0
+            cond
+        }
+        val actions = Array(Action.ACCEPT, Action.DROP, Action.REJECT,
+                            Action.RETURN)
+        val rules = List.fill[Rule](200) {
+            val rule = new LiteralRule(randomCondition(),
+                                       actions(random.nextInt(actions.length)))
+            rule.setMeterName("meter-" + random.nextInt(50))
+            rule
+        }
+        val chainId = UUID.randomUUID()
+        val indexed = new Chain(chainId, rules.asJava, Map[UUID, Chain](),
+                                "indexed", true)
+        val unindexed = new Chain(chainId, rules.asJava, Map[UUID, Chain](),
+                                  "unindexed", false)
+        indexed.isIndexed should be (true)
+        unindexed.isIndexed should be (false)
+
+        // Checking the direction of a flow tracks its connection, which tags
+        // the flow with the connection key. Some connections are known to be
+        // return flows, so that rules on either direction match.
+        val conntrackTable =
+            new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]().addShard()
+        val device = UUID.randomUUID()
+
+        for (i <- 0 until 1000) {
+            pktMatch = new FlowMatch()
+            pktMatch.setEtherType(IPv4.ETHERTYPE)
+            pktMatch.setNetworkSrc(IPv4Addr.fromInt(0x0b000000 | random.nextInt(4)))
+            pktMatch.setNetworkProto((6 + random.nextInt(2) * 11).toByte)
+            pktMatch.setSrcPort(random.nextInt(12))
+            pktMatch.setDstPort(random.nextInt(12))
+            pktMatch.setNetworkDst(
+                IPv4Addr.fromInt(0x0a000000 | (random.nextInt(5) << 8) | 1))
+            val inPort = ports(random.nextInt(4))
+            if (random.nextInt(3) == 0)
+                conntrackTable.putAndRef(ConnTrackKey(pktMatch, device),
+                                         ConnTrackState.RETURN_FLOW)
+
+            pktCtx = trackingContext(conntrackTable, device)
+            pktCtx.inPortId = inPort
+            val expected = applyChain(unindexed).action
+            val expectedTags = pktCtx.flowTags.asScala.toSet - unindexed.flowInvTag
+
+            pktCtx = trackingContext(conntrackTable, device)
+            pktCtx.inPortId = inPort
+            applyChain(indexed).action should be (expected)
+            (pktCtx.flowTags.asScala.toSet - indexed.flowInvTag) should be (
+                expectedTags)
+        }
+    }
+
+    def testIndexedChainTracksConnectionsLikeUnindexedChain() {
+        def protoRule(proto: Int, action: Action, forwardFlow: Boolean) = {
+            val cond = new Condition()
+            cond.nwProto = proto.toByte
+            cond.matchForwardFlow = forwardFlow
+            new LiteralRule(cond, action)
+        }
+        val rules = List[Rule](protoRule(17, Action.DROP, forwardFlow = true)) :::
+                    (20 to 29).map(protoRule(_, Action.DROP, false)).toList :::
+                    List(acceptRule)
+        val chainId = UUID.randomUUID()
+        val indexed = new Chain(chainId, rules.asJava, Map[UUID, Chain](),
+                                "indexed", true)
+        val unindexed = new Chain(chainId, rules.asJava, Map[UUID, Chain](),
+                                  "unindexed", false)
+        indexed.isIndexed should be (true)
+
+        val conntrackTable =
+            new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]().addShard()
+        val device = UUID.randomUUID()
+        pktMatch.setEtherType(IPv4.ETHERTYPE)
+        pktMatch.setNetworkProto(6)
+        val connKey = ConnTrackKey(pktMatch, device)
+
+        for (chain <- List(unindexed, indexed)) {
+            pktCtx = trackingContext(conntrackTable, device)
+            Chain.apply(chain, pktCtx, ownerId, false).action should be (
+                Action.ACCEPT)
+            pktCtx.flowTags.asScala should contain (connKey)
+        }
+    }
+
+    def testCachedDecisionIsReusedForUnreadFields() {
+        val cache = new SimulationCache(16, metrics)
+        val cond = new Condition()
+        cond.nwDstIp = new IPv4Subnet("1.2.3.0", 24)
+        val rule = new LiteralRule(cond, Action.REJECT)
+        rule.setMeterName("meter")
+        val c = makeChain(List(rule, acceptRule))
+
+        pktMatch.setDstPort(80)
+        pktCtx = cachingContext(cache)
+        applyChain(c).action should be (Action.REJECT)
+        val tags = pktCtx.flowTags.asScala.toSet
+        val seenFields = pktCtx.wcmatch.getSeenFields
+        cache.size should be (1)
+        metrics.simulationCacheMisses.getCount should be (1)
+
+        pktMatch.setSrcPort(1234)
+        pktMatch.setDstPort(8080)
+        pktCtx = cachingContext(cache)
+        applyChain(c).action should be (Action.REJECT)
+        pktCtx.flowTags.asScala.toSet should be (tags)
+        pktCtx.wcmatch.getSeenFields should be (seenFields)
+        pktCtx.wcmatch.isSeen(FlowMatch.Field.NetworkDst) should be (true)
+        pktCtx.wcmatch.isSeen(FlowMatch.Field.DstPort) should be (false)
+        metrics.simulationCacheHits.getCount should be (1)
+    }
+
+    def testCachedDecisionIsNotReusedForReadFields() {
+        val cache = new SimulationCache(16, metrics)
+        val cond = new Condition()
+        cond.nwDstIp = new IPv4Subnet("1.2.3.0", 24)
+        val c = makeChain(List(new LiteralRule(cond, Action.REJECT),
+                               acceptRule))
+
+        pktCtx = cachingContext(cache)
+        applyChain(c).action should be (Action.REJECT)
+
+        pktMatch.setNetworkDst(IPAddr.fromString("5.6.7.8"))
+        pktCtx = cachingContext(cache)
+        applyChain(c).action should be (Action.ACCEPT)
+        metrics.simulationCacheHits.getCount should be (0)
+        cache.size should be (2)
+    }
+
+    def testCachedDecisionsAreInvalidatedByTag() {
+        val cache = new SimulationCache(16, metrics)
+        val acceptChain = makeChain(List(acceptRule))
+        val c = makeChain(List(makeJumpRule(acceptChain)), List(acceptChain))
+
+        pktCtx = cachingContext(cache)
+        applyChain(c).action should be (Action.ACCEPT)
+        cache.size should be (1)
+
+        cache.invalidate(acceptChain.flowInvTag)
+        cache.size should be (0)
+        pktCtx = cachingContext(cache)
+        applyChain(c).action should be (Action.ACCEPT)
+        metrics.simulationCacheHits.getCount should be (0)
+    }
+
+    def testChainsWithStatefulRulesAreNotCached() {
+        val cache = new SimulationCache(16, metrics)
+        val cond = new Condition()
+        cond.matchForwardFlow = true
+        val forwardChain = makeChain(List(new LiteralRule(cond, Action.DROP)))
+        val c = makeChain(List(makeJumpRule(forwardChain), acceptRule),
+                          List(forwardChain))
+        val rewrite = new NatRule(Condition.TRUE, Action.ACCEPT, true) {
+            override def apply(ctx: PacketContext, res: RuleResult,
+                               ownerId: UUID): Unit =
+                res.action = Action.ACCEPT
+        }
+        val natChain = makeChain(List(rewrite))
+
+        pktCtx = cachingContext(cache)
+        pktCtx.isForwardFlow should be (true)
+        applyChain(c).action should be (Action.DROP)
+        applyChain(natChain).action should be (Action.ACCEPT)
+        cache.size should be (0)
+        metrics.simulationCacheMisses.getCount should be (0)
+    }
+
+    def testInvalidatedDecisionsAreForgotten() {
+        val cache = new SimulationCache(16, metrics)
+        val acceptChain = makeChain(List(acceptRule))
+
+        for (i <- 0 until 100) {
+            // A new version of the chain, whose decision is also tagged by
+            // the chain it jumps to.
+            val c = makeChain(List(makeJumpRule(acceptChain)),
+                              List(acceptChain))
+            pktCtx = cachingContext(cache)
+            applyChain(c).action should be (Action.ACCEPT)
+            cache.size should be (1)
+            cache.invalidate(c.flowInvTag)
+
+            cache.size should be (0)
+            cache.taggedSize should be (0)
+            cache.devicesSize should be (0)
+        }
+    }
+
+    private def cachingContext(cache: SimulationCache) = {
+        val context = new PacketContext(1, null, pktMatch)
+        context.simulationCache = cache
+        context
+    }
+
+    /* A context that tracks connections in the given table, as if the
+     * packet ingressed the given device. */
+    private def trackingContext(
+            conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue],
+            device: UUID) = {
+        val context = new PacketContext(1, null, pktMatch) {
+            override protected def fetchIngressDevice() = device
+        }
+        context.initialize(new FlowStateTransaction(conntrackTable),
+                           new FlowStateTransaction[NatKey, NatBinding](null),
+                           HappyGoLuckyLeaser,
+                           new FlowStateTransaction[TraceKey, TraceContext](null))
+        context
+    }
+
     private def applyChain(c: Chain) =
         Chain.apply(c, pktCtx, ownerId, false)
 
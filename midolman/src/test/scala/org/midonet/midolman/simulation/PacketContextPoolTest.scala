@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import com.codahale.metrics.MetricRegistry
+import com.typesafe.scalalogging.Logger
+import org.slf4j.helpers.NOPLogger
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.HappyGoLuckyLeaser
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.FlowActions
+import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.util.concurrent.MockClock
+
+@RunWith(classOf[JUnitRunner])
+class PacketContextPoolTest extends FeatureSpec with Matchers {
+
+    val log = Logger(NOPLogger.NOP_LOGGER)
+
+    def newContext(): PacketContext = {
+        val context = new PacketContext(0, null, new FlowMatch())
+        context.initialize(
+            new FlowStateTransaction[ConnTrackKey, ConnTrackValue](null),
+            new FlowStateTransaction[NatKey, NatBinding](null),
+            HappyGoLuckyLeaser,
+            new FlowStateTransaction[TraceKey, TraceContext](null))
+        context
+    }
+
+    def newPool(capacity: Int, leakDetection: Boolean = false,
+                clock: MockClock = new MockClock) = {
+        val metrics = new PacketPipelineMetrics(new MetricRegistry, 1)
+        val pool = new PacketContextPool(
+            capacity, newContext, metrics, clock, 1000, log, leakDetection)
+        (pool, metrics)
+    }
+
+    feature("Contexts are taken from the pool") {
+        scenario("The pool allocates contexts when it runs out of them") {
+            val (pool, metrics) = newPool(2)
+            pool.available should be (2)
+
+            val fmatch = new FlowMatch()
+            val egressPort = UUID.randomUUID()
+            val ctx1 = pool.take(1, null, fmatch, egressPort)
+            ctx1.cookie should be (1)
+            ctx1.origMatch should be (fmatch)
+            ctx1.egressPort should be (egressPort)
+            ctx1.idle should be (true)
+
+            val ctx2 = pool.take(2, null, fmatch, null)
+            val ctx3 = pool.take(3, null, fmatch, null)
+            Set(ctx1, ctx2, ctx3) should have size 3
+            pool.available should be (0)
+
+            metrics.packetContextPoolHits.getCount should be (2)
+            metrics.packetContextPoolMisses.getCount should be (1)
+        }
+
+        scenario("Released contexts are reused once reclaimed") {
+            val (pool, metrics) = newPool(1)
+            val ctx = pool.take(1, null, new FlowMatch(), null)
+            pool.release(ctx)
+            pool.pending should be (1)
+            pool.available should be (0)
+
+            pool.reclaim(Long.MinValue)
+            pool.pending should be (0)
+            pool.available should be (1)
+
+            pool.take(2, null, new FlowMatch(), null) should be theSameInstanceAs ctx
+            ctx.cookie should be (2)
+            metrics.packetContextPoolHits.getCount should be (2)
+        }
+    }
+
+    feature("Contexts handed off to the datapath") {
+        scenario("Contexts are reclaimed after their sequence is processed") {
+            val (pool, _) = newPool(3)
+            val ctx1 = pool.take(1, null, new FlowMatch(), null)
+            val ctx2 = pool.take(2, null, new FlowMatch(), null)
+            pool.release(ctx1, 10)
+            pool.release(ctx2, 11)
+
+            pool.reclaim(9)
+            pool.pending should be (2)
+            pool.reclaim(10)
+            pool.pending should be (1)
+            pool.available should be (2)
+            pool.reclaim(11)
+            pool.pending should be (0)
+            pool.available should be (3)
+        }
+
+        scenario("Releasing a context twice doesn't recycle it twice") {
+            val (pool, _) = newPool(2)
+            val ctx = pool.take(1, null, new FlowMatch(), null)
+            pool.release(ctx, 1)
+            pool.release(ctx, 2)
+            pool.pending should be (1)
+            pool.reclaim(2)
+            pool.available should be (2)
+        }
+    }
+
+    feature("Recycled contexts are cleared") {
+        scenario("The state of a packet doesn't leak into the next one") {
+            val (pool, _) = newPool(1)
+            val ctx = pool.take(1, null, new FlowMatch(), UUID.randomUUID())
+            ctx.addVirtualAction(FlowActions.popVLAN())
+            ctx.outPorts.add(UUID.randomUUID())
+            ctx.inPortId = UUID.randomUUID()
+            ctx.postpone()
+            pool.release(ctx)
+            pool.reclaim(0)
+
+            val reused = pool.take(2, null, new FlowMatch(), null)
+            reused should be theSameInstanceAs ctx
+            reused.virtualFlowActions should have size 0
+            reused.packetActions should have size 0
+            reused.outPorts should have size 0
+            reused.inPortId should be (null)
+            reused.egressPort should be (null)
+            reused.idle should be (true)
+            reused.runs should be (0)
+        }
+    }
+
+    feature("Leaked contexts are detected") {
+        scenario("Contexts that are never released are reported once") {
+            val clock = new MockClock
+            val (pool, metrics) = newPool(2, leakDetection = true, clock)
+            val leaked = pool.take(1, null, new FlowMatch(), null)
+            val released = pool.take(2, null, new FlowMatch(), null)
+            pool.release(released)
+
+            clock.time = 1000
+            pool.checkLeaks()
+            metrics.packetContextsLeaked.getCount should be (0)
+
+            clock.time = 1001
+            pool.checkLeaks()
+            metrics.packetContextsLeaked.getCount should be (1)
+            pool.checkLeaks()
+            metrics.packetContextsLeaked.getCount should be (1)
+            leaked.cookie should be (1)
+        }
+
+        scenario("Leaks aren't tracked when detection is disabled") {
+            val clock = new MockClock
+            val (pool, metrics) = newPool(1, leakDetection = false, clock)
+            pool.take(1, null, new FlowMatch(), null)
+            clock.time = 10000
+            pool.checkLeaks()
+            metrics.packetContextsLeaked.getCount should be (0)
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.nio.ByteBuffer
+import java.util.{ArrayList, UUID}
+
+import scala.collection.JavaConversions._
+import scala.concurrent.duration._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers}
+
+import org.midonet.midolman.UnderlayResolver
+import org.midonet.midolman.UnderlayResolver.Route
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowStateCodec._
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.midolman.util.mock.MockStateCarriers
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.{FlowAction, FlowActionOutput, FlowActions, FlowKeys}
+import org.midonet.packets.{FlowStateEthernet, IPv4Addr}
+import org.midonet.util.concurrent.MockClock
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateAggregatorTest extends FeatureSpec
+                              with Matchers
+                              with BeforeAndAfter {
+
+    val hostId = UUID.randomUUID()
+    val peer1 = UUID.randomUUID()
+    val peer2 = UUID.randomUUID()
+    val unknownPeer = UUID.randomUUID()
+    val maxDelay = (10 millis).toNanos
+
+    val underlay = new UnderlayResolver {
+        val output = FlowActions.output(23)
+        override def peerTunnelInfo(peer: UUID): Option[Route] =
+            if (peer == unknownPeer) None
+            else Some(Route(1, peer.hashCode, output))
+        override def vtepTunnellingOutputAction: FlowActionOutput = null
+        override def isVtepTunnellingPort(portNumber: Integer) = false
+        override def isOverlayTunnellingPort(portNumber: Integer) = false
+    }
+
+    var clock: MockClock = _
+    var carriers: MockStateCarriers = _
+    var sent: ArrayList[(ByteBuffer, List[FlowAction])] = _
+    var aggregator: FlowStateAggregator = _
+
+    before {
+        clock = new MockClock
+        carriers = new MockStateCarriers
+        sent = carriers.sent
+        aggregator = new FlowStateAggregator(
+            hostId, underlay, 0, maxDelay, clock, carriers)
+    }
+
+    private def encodedState(natEntries: Int = 0): ByteBuffer = {
+        val buf = ByteBuffer.allocate(8192)
+        val encoder = new FlowStateEncoder(hostId)
+        encoder.start(buf)
+        encoder.startState(UUID.randomUUID())
+        encoder.conntrackKey(ConnTrackKey(IPv4Addr.random, 1234, IPv4Addr.random,
+                                          80, 6, UUID.randomUUID()))
+        for (i <- 0 until natEntries) {
+            encoder.natEntry(NatKey(NatState.FWD_SNAT, IPv4Addr.random, i,
+                                    IPv4Addr.random, 80, 6, UUID.randomUUID()),
+                             NatBinding(IPv4Addr.random, i))
+        }
+        encoder.finish() should be (true)
+        buf.position(buf.position + HEADER_LENGTH)
+        buf
+    }
+
+    private def countStates(message: ByteBuffer): Int = {
+        val data = new Array[Byte](message.remaining())
+        message.duplicate().get(data)
+        val decoder = new FlowStateDecoder
+        decoder.readHeader(data, 0, data.length) should be (true)
+        decoder.sender should be (hostId)
+        var conntrackKeys = 0
+        decoder.readStates(new StateVisitor {
+            override def conntrackKey(k: ConnTrackKey): Unit = conntrackKeys += 1
+            override def natEntry(k: NatKey, v: NatBinding): Unit = { }
+            override def traceEntry(k: TraceKey, ctx: TraceContext): Unit = { }
+        })
+        conntrackKeys
+    }
+
+    feature("Flow states are packed into a message per peer") {
+        scenario("The states of several flows are sent in a single message") {
+            for (i <- 0 until 3) {
+                aggregator.add(peer1, encodedState(), 1) should be (true)
+            }
+            aggregator.add(peer2, encodedState(), 1) should be (true)
+            aggregator.hasPending should be (true)
+            sent should be (empty)
+
+            clock.time += maxDelay
+            aggregator.flush()
+            aggregator.hasPending should be (false)
+            sent should have size 2
+            sent.map(s => countStates(s._1)).sorted should be (List(1, 3))
+            for ((_, actions) <- sent) {
+                actions should have size 2
+                actions(1) should be (underlay.output)
+            }
+        }
+
+        scenario("A message is sent when the next flow state doesn't fit") {
+            val states = 40
+            for (i <- 0 until states) {
+                aggregator.add(peer1, encodedState(natEntries = 4), 1) should be (true)
+            }
+            sent.size should be > 0
+            clock.time += maxDelay
+            aggregator.flush()
+            sent.map(s => countStates(s._1)).sum should be (states)
+            for ((message, _) <- sent) {
+                message.remaining() should be <= FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH
+            }
+        }
+
+        scenario("Flow states that don't fit in a state packet are rejected") {
+            aggregator.add(peer1, encodedState(natEntries = 60), 1) should be (false)
+            aggregator.hasPending should be (false)
+            carriers.released shouldBe carriers.taken
+        }
+
+        scenario("Messages to peers without a tunnel are dropped") {
+            aggregator.add(unknownPeer, encodedState(), 1) should be (true)
+            clock.time += maxDelay
+            aggregator.flush()
+            aggregator.hasPending should be (false)
+            sent should be (empty)
+            carriers.released shouldBe 1
+        }
+    }
+
+    feature("Messages go along with the packets tunnelled to their peers") {
+        scenario("Only the messages to the peers of the packet are sent") {
+            aggregator.add(peer1, encodedState(), 1)
+            aggregator.add(peer2, encodedState(), 1)
+
+            val context = new PacketContext(0, null, new FlowMatch())
+            context.packetActions.add(FlowActions.setKey(
+                FlowKeys.tunnel(1L, 1, peer1.hashCode, 0)))
+            context.packetActions.add(underlay.output)
+            aggregator.sendWith(context)
+
+            context.stateCarriers should have size 1
+            val carrier = context.stateCarriers.get(0)
+            countStates(carrier.stateMessage) shouldBe 1
+            carrier.stateActions should have size 2
+            sent should be (empty)
+
+            clock.time += maxDelay
+            aggregator.flush()
+            sent should have size 1
+            aggregator.hasPending should be (false)
+        }
+
+        scenario("Packets that are not tunnelled carry no messages") {
+            aggregator.add(peer1, encodedState(), 1)
+
+            val context = new PacketContext(0, null, new FlowMatch())
+            context.packetActions.add(underlay.output)
+            aggregator.sendWith(context)
+
+            context.stateCarriers should be (empty)
+            aggregator.hasPending should be (true)
+        }
+    }
+
+    feature("Messages wait at most the maximum delay") {
+        scenario("Messages are sent once they have waited for the delay") {
+            aggregator.add(peer1, encodedState(), 1)
+            clock.time += maxDelay / 2
+            aggregator.add(peer2, encodedState(), 1)
+            aggregator.flush()
+            sent should be (empty)
+
+            clock.time += maxDelay / 2
+            aggregator.flush()
+            sent should have size 1
+            aggregator.hasPending should be (true)
+
+            clock.time += maxDelay / 2
+            aggregator.flush()
+            sent should have size 2
+            aggregator.hasPending should be (false)
+        }
+
+        scenario("With no delay, flushing sends all the messages") {
+            aggregator = new FlowStateAggregator(
+                hostId, underlay, 0, 0L, clock, carriers)
+            aggregator.add(peer1, encodedState(), 1)
+            aggregator.add(peer2, encodedState(), 1)
+            aggregator.flush()
+            sent should have size 2
+        }
+    }
+}
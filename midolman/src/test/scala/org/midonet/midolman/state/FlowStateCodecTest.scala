@@ -0,0 +1,271 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.util.{HashSet => JHashSet, UUID}
+
+import scala.collection.mutable.ListBuffer
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowStateCodec._
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.odp.flows.FlowKeyEtherType
+import org.midonet.packets.{IPv4Addr, IPv6Addr, MAC}
+import org.midonet.rpc.{FlowStateProto => Proto}
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateCodecTest extends FeatureSpec with Matchers {
+
+    val hostId = UUID.randomUUID()
+
+    class CollectingVisitor extends StateVisitor {
+        val conntrack = ListBuffer[ConnTrackKey]()
+        val nat = ListBuffer[(NatKey, NatBinding)]()
+        val traces = ListBuffer[(TraceKey, TraceContext)]()
+
+        override def conntrackKey(k: ConnTrackKey): Unit = conntrack += k
+        override def natEntry(k: NatKey, v: NatBinding): Unit = nat += ((k, v))
+        override def traceEntry(k: TraceKey, ctx: TraceContext): Unit =
+            traces += ((k, ctx))
+    }
+
+    private def decode(buf: ByteBuffer): (FlowStateDecoder, CollectingVisitor) = {
+        val data = new Array[Byte](buf.remaining())
+        buf.get(data)
+        val decoder = new FlowStateDecoder
+        val visitor = new CollectingVisitor
+        decoder.readHeader(data, 0, data.length) should be (true)
+        decoder.readStates(visitor)
+        (decoder, visitor)
+    }
+
+    feature("State keys survive a round trip through the codec") {
+        scenario("Conntrack, nat and trace keys") {
+            val conntrack4 = ConnTrackKey(IPv4Addr.random, 1234, IPv4Addr.random,
+                                          65535, 6, UUID.randomUUID())
+            val conntrack6 = ConnTrackKey(IPv6Addr.random, 40000, IPv6Addr.random,
+                                          22, 17, UUID.randomUUID())
+            val natTypes = List(NatState.FWD_SNAT, NatState.FWD_DNAT,
+                                NatState.FWD_STICKY_DNAT, NatState.REV_SNAT,
+                                NatState.REV_DNAT, NatState.REV_STICKY_DNAT)
+            val nat = natTypes map { t =>
+                (NatKey(t, IPv4Addr.random, 50000, IPv4Addr.random, 443, 6,
+                        UUID.randomUUID()),
+                 NatBinding(IPv4Addr.random, 61000))
+            }
+            val fullTrace = TraceKey(MAC.random(), MAC.random(), 0x800.toShort,
+                                     IPv4Addr.random, IPv6Addr.random, 6,
+                                     1234, 80)
+            val emptyTrace = TraceKey(null, null,
+                                      FlowKeyEtherType.Type.ETH_P_NONE.value.toShort,
+                                      null, null, 0, 0, 0)
+            val ctx = new TraceContext().enable(UUID.randomUUID())
+            ctx.addRequest(UUID.randomUUID())
+            ctx.addRequest(UUID.randomUUID())
+            val port1 = UUID.randomUUID()
+            val port2 = UUID.randomUUID()
+
+            val buf = ByteBuffer.allocate(1024)
+            val encoder = new FlowStateEncoder(hostId)
+            encoder.start(buf)
+            encoder.startState(port1)
+            encoder.conntrackKey(conntrack4)
+            for ((k, v) <- nat) encoder.natEntry(k, v)
+            encoder.traceEntry(fullTrace, ctx)
+            encoder.startState(port2)
+            encoder.conntrackKey(conntrack6)
+            encoder.traceEntry(emptyTrace, ctx)
+            encoder.finish() should be (true)
+
+            val (decoder, visitor) = decode(buf)
+            decoder.version should be (BINARY_VERSION)
+            decoder.maxVersion should be (CURRENT_VERSION)
+            decoder.sender should be (hostId)
+            visitor.conntrack should be (List(conntrack4, conntrack6))
+            visitor.nat should be (nat)
+            visitor.traces should be (List((fullTrace, ctx), (emptyTrace, ctx)))
+        }
+
+        scenario("The message is written from the position of the buffer") {
+            val key = ConnTrackKey(IPv4Addr.random, 1, IPv4Addr.random, 2, 1,
+                                   UUID.randomUUID())
+            val buf = ByteBuffer.allocate(256)
+            buf.position(10)
+            val encoder = new FlowStateEncoder(hostId)
+            encoder.start(buf)
+            encoder.startState(UUID.randomUUID())
+            encoder.conntrackKey(key)
+            encoder.finish() should be (true)
+            buf.position() should be (10)
+
+            decode(buf)._2.conntrack should be (List(key))
+        }
+    }
+
+    feature("Messages that don't fit in the buffer are dropped") {
+        scenario("The encoder reports the overflow when finishing") {
+            val buf = ByteBuffer.allocate(HEADER_LENGTH + 64)
+            val encoder = new FlowStateEncoder(hostId)
+            encoder.start(buf)
+            encoder.startState(UUID.randomUUID())
+            for (i <- 0 until 10) {
+                encoder.natEntry(NatKey(NatState.FWD_SNAT, IPv4Addr.random, i,
+                                        IPv4Addr.random, 80, 6, UUID.randomUUID()),
+                                 NatBinding(IPv4Addr.random, i))
+            }
+            encoder.finish() should be (false)
+
+            // The encoder can be reused
+            buf.clear()
+            encoder.start(buf)
+            encoder.startState(UUID.randomUUID())
+            encoder.finish() should be (true)
+            decode(buf)._2.nat should be (empty)
+        }
+    }
+
+    feature("Flow states are split into states of a maximum length") {
+        /* Prepends the header of an encoded message to a single state. */
+        def message(state: ByteBuffer): ByteBuffer = {
+            val buf = ByteBuffer.allocate(HEADER_LENGTH + state.remaining())
+            val encoder = new FlowStateEncoder(hostId)
+            encoder.start(buf)
+            encoder.finish() should be (true)
+            buf.putShort(20, 1.toShort)
+            buf.position(HEADER_LENGTH)
+            buf.limit(buf.capacity)
+            buf.put(state)
+            buf.flip()
+            buf
+        }
+
+        scenario("The entries of the state are spread over several states") {
+            val port = UUID.randomUUID()
+            val conntrack = ConnTrackKey(IPv4Addr.random, 1234, IPv4Addr.random,
+                                         80, 6, UUID.randomUUID())
+            val nat = for (i <- 0 until 20) yield
+                (NatKey(NatState.FWD_SNAT, IPv4Addr.random, i, IPv4Addr.random,
+                        80, 6, UUID.randomUUID()),
+                 NatBinding(IPv4Addr.random, i))
+            val trace = TraceKey(MAC.random(), MAC.random(), 0x800.toShort,
+                                 IPv4Addr.random, IPv4Addr.random, 6, 1234, 80)
+            val ctx = new TraceContext().enable(UUID.randomUUID())
+
+            val buf = ByteBuffer.allocate(4096)
+            val encoder = new FlowStateEncoder(hostId)
+            encoder.start(buf)
+            encoder.startState(port)
+            encoder.conntrackKey(conntrack)
+            for ((k, v) <- nat) encoder.natEntry(k, v)
+            encoder.traceEntry(trace, ctx)
+            encoder.finish() should be (true)
+            buf.position(buf.position() + HEADER_LENGTH)
+            val maxLength = buf.remaining() / 3
+
+            val visitor = new CollectingVisitor
+            var fragments = 0
+            encoder.splitState(buf, ByteBuffer.allocate(maxLength), maxLength,
+                               state => {
+                state.remaining() should be <= maxLength
+                val decoder = new FlowStateDecoder
+                val data = message(state).array()
+                decoder.readHeader(data, 0, data.length) should be (true)
+                decoder.readStates(visitor)
+                fragments += 1
+            }) should be (true)
+
+            fragments should be >= 3
+            visitor.conntrack should be (List(conntrack))
+            visitor.nat should be (nat)
+            visitor.traces should be (List((trace, ctx)))
+        }
+
+        scenario("A state with an entry larger than the maximum is not split") {
+            val buf = ByteBuffer.allocate(1024)
+            val encoder = new FlowStateEncoder(hostId)
+            encoder.start(buf)
+            encoder.startState(UUID.randomUUID())
+            encoder.natEntry(NatKey(NatState.FWD_SNAT, IPv4Addr.random, 1,
+                                    IPv4Addr.random, 80, 6, UUID.randomUUID()),
+                             NatBinding(IPv4Addr.random, 1))
+            encoder.finish() should be (true)
+            buf.position(buf.position() + HEADER_LENGTH)
+
+            var fragments = 0
+            encoder.splitState(buf, ByteBuffer.allocate(1024), 32,
+                               _ => fragments += 1) should be (false)
+            fragments should be (0)
+        }
+    }
+
+    feature("The decoder tells binary and protobufs messages apart") {
+        scenario("Protobufs messages are not binary messages") {
+            val msg = Proto.StateMessage.newBuilder()
+                .setSender(FlowStatePackets.uuidToProto(hostId))
+                .setEpoch(0L).setSeq(1L)
+                .setCodecVersion(CURRENT_VERSION).build()
+            val out = new ByteArrayOutputStream()
+            msg.writeDelimitedTo(out)
+            val data = out.toByteArray
+            new FlowStateDecoder().readHeader(data, 0, data.length) should be (false)
+        }
+
+        scenario("Truncated messages are rejected") {
+            val buf = ByteBuffer.allocate(256)
+            val encoder = new FlowStateEncoder(hostId)
+            encoder.start(buf)
+            encoder.startState(UUID.randomUUID())
+            encoder.conntrackKey(ConnTrackKey(IPv4Addr.random, 1, IPv4Addr.random,
+                                              2, 1, UUID.randomUUID()))
+            encoder.finish() should be (true)
+
+            val data = new Array[Byte](buf.remaining() - 4)
+            buf.get(data)
+            val decoder = new FlowStateDecoder
+            decoder.readHeader(data, 0, data.length) should be (true)
+            intercept[IllegalArgumentException] {
+                decoder.readStates(new CollectingVisitor)
+            }
+        }
+    }
+
+    feature("Peer versions") {
+        scenario("Messages use the highest version understood by all peers") {
+            val versions = new PeerVersions
+            val peer1 = UUID.randomUUID()
+            val peer2 = UUID.randomUUID()
+            val peers = new JHashSet[UUID]()
+            peers.add(peer1)
+            peers.add(peer2)
+
+            versions.versionFor(peers) should be (PROTOBUF_VERSION)
+            versions.learn(peer1, BINARY_VERSION)
+            versions.versionFor(peers) should be (PROTOBUF_VERSION)
+            versions.learn(peer2, CURRENT_VERSION + 1)
+            versions.versionFor(peers) should be (BINARY_VERSION)
+            versions.learn(peer1, PROTOBUF_VERSION)
+            versions.versionFor(peers) should be (PROTOBUF_VERSION)
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{HashMap => JHashMap, HashSet => JHashSet, UUID}
+
+import com.codahale.metrics.MetricRegistry
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers}
+
+import org.midonet.midolman.HostRequestProxy._
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.packets.IPv4Addr
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateImporterTest extends FeatureSpec
+                            with Matchers
+                            with BeforeAndAfter {
+
+    var conntrackTable: MockFlowStateTable[ConnTrackKey, ConnTrackValue] = _
+    var natTable: MockFlowStateTable[NatKey, NatBinding] = _
+    var metrics: PacketPipelineMetrics = _
+    var importer: FlowStateImporter = _
+
+    before {
+        conntrackTable = new MockFlowStateTable[ConnTrackKey, ConnTrackValue]()
+        natTable = new MockFlowStateTable[NatKey, NatBinding]()
+        metrics = new PacketPipelineMetrics(new MetricRegistry, 1)
+        importer = new FlowStateImporter(conntrackTable, natTable, metrics)
+    }
+
+    private def connTrackKeys(count: Int, port: Int = 1024) = {
+        val keys = new JHashSet[ConnTrackKey]()
+        for (i <- 0 until count) {
+            keys.add(ConnTrackKey(IPv4Addr.random, port + i, IPv4Addr.random,
+                                  80, 6, UUID.randomUUID()))
+        }
+        keys
+    }
+
+    private def natBindings(count: Int) = {
+        val bindings = new JHashMap[NatKey, NatBinding]()
+        for (i <- 0 until count) {
+            bindings.put(NatKey(NatState.FWD_SNAT, IPv4Addr.random, 1024 + i,
+                                IPv4Addr.random, 80, 6, UUID.randomUUID()),
+                         NatBinding(IPv4Addr.random, 30000 + i))
+        }
+        bindings
+    }
+
+    feature ("State keys are imported in bounded chunks") {
+        scenario ("Keys are imported a few at a time") {
+            val strong = connTrackKeys(10)
+            val weak = connTrackKeys(5, port = 2048)
+            val nat = natBindings(5)
+            importer.enqueue(StrongConnTrackBatch(strong))
+            importer.enqueue(WeakConnTrackBatch(weak))
+            importer.enqueue(StrongNatBatch(nat))
+            metrics.stateKeysPendingImport.getCount should be (20)
+
+            importer.importKeys(4)
+            conntrackTable.entries should have size 4
+            importer.isImporting should be (true)
+            metrics.stateKeysPendingImport.getCount should be (16)
+
+            var cycles = 1
+            while (importer.isImporting) {
+                importer.importKeys(4)
+                cycles += 1
+            }
+            cycles should be (5)
+            conntrackTable.entries should have size 15
+            natTable.entries should have size 5
+            natTable.unrefedKeys should have size 5
+            metrics.stateKeysPendingImport.getCount should be (0)
+            metrics.stateKeysImported.getCount should be (20)
+            metrics.stateKeysImportedOnDemand.getCount should be (0)
+        }
+
+        scenario ("Empty batches are ignored") {
+            importer.enqueue(EmptyFlowStateBatch())
+            importer.isImporting should be (false)
+        }
+    }
+
+    feature ("Keys not yet imported are imported on demand") {
+        scenario ("Lookups through the views import pending keys") {
+            val conntrack = connTrackKeys(100)
+            val nat = natBindings(100)
+            importer.enqueue(StrongConnTrackBatch(conntrack))
+            importer.enqueue(WeakNatBatch(nat))
+
+            val pendingKey = conntrack.iterator.next()
+            conntrackTable.get(pendingKey) should be (null)
+            importer.conntrackTable.get(pendingKey) should be (ConnTrackState.RETURN_FLOW)
+            conntrackTable.get(pendingKey) should be (ConnTrackState.RETURN_FLOW)
+            conntrackTable.unrefedKeys should contain (pendingKey)
+
+            val natKey = nat.keySet.iterator.next()
+            importer.natTable.get(natKey) should be (nat.get(natKey))
+            natTable.get(natKey) should be (nat.get(natKey))
+
+            val unknownKey = ConnTrackKey(IPv4Addr.random, 6000, IPv4Addr.random,
+                                          80, 6, UUID.randomUUID())
+            importer.conntrackTable.get(unknownKey) should be (null)
+            metrics.stateKeysImportedOnDemand.getCount should be (2)
+        }
+
+        scenario ("Lookups go straight to the table once the import is done") {
+            val conntrack = connTrackKeys(10)
+            importer.enqueue(StrongConnTrackBatch(conntrack))
+            importer.importKeys(10)
+            importer.isImporting should be (false)
+
+            conntrackTable.entries = Map.empty
+            importer.conntrackTable.get(conntrack.iterator.next()) should be (null)
+            metrics.stateKeysImportedOnDemand.getCount should be (0)
+        }
+    }
+}
@@ -26,6 +26,7 @@ import scala.collection.mutable
 import org.slf4j.LoggerFactory
 import org.slf4j.helpers.NOPLogger
 
+import com.codahale.metrics.MetricRegistry
 import com.google.protobuf.{CodedOutputStream, MessageLite}
 
 import com.typesafe.scalalogging.Logger
@@ -35,14 +36,16 @@ import org.scalatest.junit.JUnitRunner
 
 import org.midonet.midolman.UnderlayResolver
 import org.midonet.midolman.datapath.StatePacketExecutor
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.simulation.PortGroup
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.FlowStateCodec._
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.TraceState.{TraceKey, TraceContext}
 import org.midonet.midolman.topology.devices.{BridgePort, Port}
 import org.midonet.midolman.topology.rcu.ResolvedHost
 import org.midonet.midolman.util.MidolmanSpec
-import org.midonet.midolman.util.mock.MockDatapathChannel
+import org.midonet.midolman.util.mock.{MockDatapathChannel, MockStateCarriers}
 import org.midonet.odp.flows.{FlowAction, FlowActionOutput, FlowActions}
 import org.midonet.odp.{FlowMatches, Packet}
 import org.midonet.packets._
@@ -51,6 +54,7 @@ import org.midonet.rpc.FlowStateProto
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.state.FlowStateTransaction
 import org.midonet.util.FixedArrayOutputStream
+import org.midonet.util.concurrent.MockClock
 import org.midonet.util.functors.Callback0
 
 @RunWith(classOf[JUnitRunner])
@@ -182,10 +186,16 @@ class FlowStateReplicatorTest extends MidolmanSpec {
 
         callbacks.addAll(context.flowRemovedCallbacks)
 
-        val packet = if (context.stateMessage ne null) {
-            statePacketExecutor.prepareStatePacket(context.stateMessage)
-        } else null
-        (packet, context.stateActions.toList)
+        sender.aggregator.flush()
+        if (context.stateMessage ne null) {
+            (statePacketExecutor.prepareStatePacket(context.stateMessage),
+             context.stateActions.toList)
+        } else if (!sender.aggregated.isEmpty) {
+            val (message, actions) = sender.aggregated.get(0)
+            (statePacketExecutor.prepareStatePacket(message), actions)
+        } else {
+            (null, List.empty)
+        }
     }
 
     private def sendAndAcceptTransactions(): (Packet, List[FlowAction]) = {
@@ -401,6 +411,222 @@ class FlowStateReplicatorTest extends MidolmanSpec {
     def acceptPushedState(packet: Packet): Unit =
         recipient.accept(packet.getEthernet)
 
+    private def isBinaryMessage(packet: Packet): Boolean = {
+        val payload = ByteBuffer.wrap(packet.getData)
+        payload.getShort(FlowStateEthernet.FLOW_STATE_ETHERNET_OVERHEAD) == MAGIC
+    }
+
+    private def advertiseVersion(version: Int): Unit =
+        peers.keys foreach { sender.peerVersions.learn(_, version) }
+
+    feature("State messages are encoded in a version understood by the peers") {
+        scenario("Peers that didn't advertise a version get protobufs messages") {
+            Given("A conntrack key in a transaction")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+
+            When("The state is pushed to peers of unknown version")
+            val (packet, _) = sendAndAcceptTransactions()
+
+            Then("The message is a protobufs message")
+            isBinaryMessage(packet) should be (false)
+            recipient.conntrackTable.get(connTrackKeys.head) should equal (ConnTrackState.RETURN_FLOW)
+
+            And("The recipient learns that the sender parses binary messages")
+            recipient.peerVersions.versionOf(ingressHostId) should be (BINARY_VERSION)
+        }
+
+        scenario("Recipients of protobufs messages advertise their version") {
+            Given("A recipient that only receives state from the sender")
+            val clock = new MockClock
+            val recipient = new TestableFlowStateReplicator(
+                ports, portGroups,
+                new MockUnderlayResolver(egressHost1, peers(egressHost1),
+                                         Map(ingressHostId -> senderIp)),
+                new PeerVersions(clock), egressHost1)
+
+            And("A conntrack key in a transaction")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+
+            When("The recipient accepts a protobufs message")
+            val (packet, _) = sendState(ingressPort.id, egressPort1.id)
+            isBinaryMessage(packet) should be (false)
+            recipient.accept(packet.getEthernet)
+            recipient.aggregator.flush()
+
+            Then("It sends the sender a binary message without flow states")
+            recipient.aggregated should have size 1
+            val (message, actions) = recipient.aggregated.get(0)
+            val advertisement = new StatePacketExecutor {
+                val log = Logger(NOPLogger.NOP_LOGGER)
+            }.prepareStatePacket(message)
+            isBinaryMessage(advertisement) should be (true)
+            actions should have size 2
+
+            And("The sender learns the version of the recipient from it")
+            sender.accept(advertisement.getEthernet)
+            sender.peerVersions.versionOf(egressHost1) should be (BINARY_VERSION)
+
+            When("The recipient accepts another protobufs message")
+            recipient.accept(packet.getEthernet)
+            recipient.aggregator.flush()
+
+            Then("It doesn't advertise its version again before the interval")
+            recipient.aggregated should have size 1
+
+            When("The advertisement interval elapses")
+            clock.time = ADVERTISEMENT_INTERVAL_NANOS
+            recipient.accept(packet.getEthernet)
+            recipient.aggregator.flush()
+
+            Then("It advertises its version again")
+            recipient.aggregated should have size 2
+        }
+
+        scenario("Peers that advertised the binary codec get binary messages") {
+            Given("Peers that advertised the binary codec")
+            advertiseVersion(BINARY_VERSION)
+
+            And("Conntrack, nat and trace keys in transactions")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            val (k, v) = natMappings.head
+            natTx.putAndRef(k, v)
+            for ((traceKey, ctx) <- traces) {
+                traceTx.putAndRef(traceKey, ctx)
+            }
+
+            When("The state is pushed to the peers")
+            val (packet, actions) = sendAndAcceptTransactions()
+
+            Then("The message is a binary message sent to each of the peers")
+            isBinaryMessage(packet) should be (true)
+            sender.aggregated should have size peers.size
+            actions should have size 2
+
+            And("The recipient's tables contain the keys")
+            recipient.conntrackTable.get(connTrackKeys.head) should equal (ConnTrackState.RETURN_FLOW)
+            recipient.natTable.get(k) should equal (v)
+            for ((traceKey, ctx) <- traces) {
+                recipient.traceTable.get(traceKey) should equal (ctx)
+            }
+
+            And("Flows tagged with the keys are invalidated")
+            mockFlowInvalidation should haveInvalidated (connTrackKeys.head)
+            mockFlowInvalidation should haveInvalidated (k)
+            recipient.peerVersions.versionOf(ingressHostId) should be (BINARY_VERSION)
+        }
+
+        scenario("Binary messages larger than a state packet are split") {
+            Given("Peers that advertised the binary codec")
+            advertiseVersion(BINARY_VERSION)
+
+            And("More nat keys than fit in a state packet")
+            val device = UUID.randomUUID()
+            val mappings = for (i <- 1 to 128) yield
+                NatKey(NatState.FWD_SNAT, IPv4Addr(0x0a000000 + i), 10000 + i,
+                       "17.16.15.1", 80, 6, device) ->
+                    NatBinding(IPv4Addr(0x01020300 + i), 20000 + i)
+            for ((k, v) <- mappings) {
+                natTx.putAndRef(k, v)
+            }
+
+            When("The state is pushed to the peers")
+            sendState(ingressPort.id, egressPort1.id)
+
+            Then("Each peer is sent several binary messages")
+            sender.aggregated.size should be > peers.size
+            sender.metrics.stateMessagesFragmented.getCount shouldBe 1
+            sender.metrics.stateMessagesDropped.getCount shouldBe 0
+
+            And("Each message fits in a state packet")
+            for ((message, _) <- sender.aggregated) {
+                val packet = statePacketExecutor.prepareStatePacket(message)
+                isBinaryMessage(packet) should be (true)
+                packet.getData.length should be <= (FlowStateEthernet.MTU -
+                    FlowStateEthernet.VXLAN_ENCAPUSULATION_OVERHEAD)
+                acceptPushedState(packet)
+            }
+
+            And("The recipient's tables contain all the keys")
+            for ((k, v) <- mappings) {
+                recipient.natTable.get(k) should equal (v)
+            }
+        }
+
+        scenario("Protobufs messages larger than a state packet are split") {
+            Given("Nat keys for peers of unknown version")
+            val device = UUID.randomUUID()
+            val mappings = for (i <- 1 to 128) yield
+                NatKey(NatState.FWD_SNAT, IPv4Addr(0x0a000000 + i), 10000 + i,
+                       "17.16.15.1", 80, 6, device) ->
+                    NatBinding(IPv4Addr(0x01020300 + i), 20000 + i)
+            for ((k, v) <- mappings) {
+                natTx.putAndRef(k, v)
+            }
+
+            When("The state is pushed to the peers")
+            val context = packetContextFor(ethernet, ingressPort.id)
+            context.flowActions.add(FlowActions.output(1))
+            context.outPorts.add(egressPort1.id)
+            sender.accumulateNewKeys(context)
+
+            Then("The packet carries several protobufs messages")
+            context.stateMessage should not be null
+            context.stateCarriers.size should be > 0
+            sender.metrics.stateMessagesFragmented.getCount shouldBe 1
+            sender.metrics.stateMessagesDropped.getCount shouldBe 0
+            sender.metrics.stateMessagesPartiallyDropped.getCount shouldBe 0
+
+            And("Each message fits in a state packet and goes to every peer")
+            val carriers = context +: context.stateCarriers.toList
+            for (carrier <- carriers) {
+                carrier.stateActions should have size 2 * peers.size
+                val packet = statePacketExecutor.prepareStatePacket(
+                    carrier.stateMessage)
+                isBinaryMessage(packet) should be (false)
+                packet.getData.length should be <= (FlowStateEthernet.MTU -
+                    FlowStateEthernet.VXLAN_ENCAPUSULATION_OVERHEAD)
+                acceptPushedState(packet)
+            }
+
+            And("The recipient's tables contain all the keys")
+            for ((k, v) <- mappings) {
+                recipient.natTable.get(k) should equal (v)
+            }
+        }
+
+        scenario("A single peer of an older version gets protobufs messages") {
+            Given("Peers one of which only parses protobufs messages")
+            advertiseVersion(BINARY_VERSION)
+            sender.peerVersions.learn(egressHost2, PROTOBUF_VERSION)
+
+            And("A nat key in a transaction")
+            val (k, v) = natMappings.head
+            natTx.putAndRef(k, v)
+
+            When("The state is pushed to the peers")
+            val (packet, _) = sendAndAcceptTransactions()
+
+            Then("The message is a protobufs message")
+            isBinaryMessage(packet) should be (false)
+            recipient.natTable.get(k) should equal (v)
+        }
+
+        scenario("Peers of a newer version get messages of the current version") {
+            Given("Peers that advertised a newer version")
+            advertiseVersion(CURRENT_VERSION + 1)
+
+            And("A conntrack key in a transaction")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+
+            When("The state is pushed to the peers")
+            val (packet, _) = sendAndAcceptTransactions()
+
+            Then("The message is a binary message")
+            isBinaryMessage(packet) should be (true)
+            recipient.conntrackTable.get(connTrackKeys.head) should equal (ConnTrackState.RETURN_FLOW)
+        }
+    }
+
     feature("L4 flow state resolves hosts and ports correctly") {
         scenario("All relevant ingress and egress hosts and ports get detected") {
             val tags = new JHashSet[FlowTag]()
@@ -464,14 +690,22 @@ class FlowStateReplicatorTest extends MidolmanSpec {
     class TestableFlowStateReplicator(
             val ports: mutable.Map[UUID, Port],
             val portGroups: mutable.Map[UUID, PortGroup],
-            val underlay: UnderlayResolver) extends {
+            val underlay: UnderlayResolver,
+            val peerVersions: PeerVersions = new PeerVersions,
+            val hostId: UUID = ingressHostId) extends {
         val conntrackTable = new MockFlowStateTable[ConnTrackKey, ConnTrackValue]()
         val natTable = new MockFlowStateTable[NatKey, NatBinding]()
         val traceTable = new MockFlowStateTable[TraceKey, TraceContext]()
+        val carriers = new MockStateCarriers
+        val aggregated = carriers.sent
+        val metrics = new PacketPipelineMetrics(new MetricRegistry, 1)
+        val aggregator = new FlowStateAggregator(
+            hostId, underlay, 0, 0L, new MockClock, carriers)
     } with BaseFlowStateReplicator(conntrackTable, natTable, traceTable,
-                                   new MockStateStorage, ingressHostId, underlay,
+                                   new MockStateStorage, hostId, underlay,
                                    mockFlowInvalidation,
-                                   0) {
+                                   0, peerVersions, aggregator,
+                                   metrics) {
 
         override val log = Logger(LoggerFactory.getLogger(this.getClass))
 
@@ -22,6 +22,7 @@ import scala.collection.JavaConverters._
 import scala.concurrent.Await
 
 import akka.actor.ActorSystem
+import com.codahale.metrics.MetricRegistry
 import org.cassandraunit.utils.EmbeddedCassandraServerHelper
 import org.junit.runner.RunWith
 import org.scalatest._
@@ -62,6 +63,7 @@ class FlowStateStorageTest extends FeatureSpec
 
     var cass: CassandraClient = _
     var storage: FlowStateStorage = _
+    var throttle: FlowStateStorage.WriteThrottle = _
 
     before {
         EmbeddedCassandraServerHelper.startEmbeddedCassandra()
@@ -70,7 +72,9 @@ class FlowStateStorageTest extends FeatureSpec
                                    "MidonetFlowState", 1,
                                    FlowStateStorage.SCHEMA, null)
         cass.connect()
-        storage = FlowStateStorage(cass)
+        throttle = new FlowStateStorage.WriteThrottle(
+            FlowStateStorage.MAX_IN_FLIGHT_BATCHES, new MetricRegistry)
+        storage = FlowStateStorage(cass, throttle)
     }
 
     feature("Stores and fetches state from cassandra") {
@@ -113,5 +117,74 @@ class FlowStateStorageTest extends FeatureSpec
                 }
             }
         }
+
+        scenario("Repeated touches of a key are coalesced") {
+            val k = connTrackKeys.head
+            for (i <- 0 until 3) {
+                storage.touchConnTrackKey(k, ingressPort, egressPorts.asJava.iterator())
+            }
+            storage.submit()
+            throttle.touchesCoalesced.getCount shouldBe 2
+
+            val newEgressPort = UUID.randomUUID()
+            storage.touchConnTrackKey(k, ingressPort, List(newEgressPort).asJava.iterator())
+            storage.submit()
+            throttle.touchesCoalesced.getCount shouldBe 2
+
+            eventually {
+                storage.fetchStrongConnTrackRefs(ingressPort).await() should contain (k)
+                storage.fetchWeakConnTrackRefs(newEgressPort).await() should contain (k)
+            }
+        }
+
+        scenario("NAT keys touched with a new binding are written again") {
+            val (k, v) = natMappings.head
+            storage.touchNatKey(k, v, ingressPort, egressPorts.asJava.iterator())
+            storage.touchNatKey(k, v, ingressPort, egressPorts.reverse.asJava.iterator())
+            storage.submit()
+            throttle.touchesCoalesced.getCount shouldBe 1
+
+            val binding = NatBinding("5.6.7.8", v.transportPort)
+            storage.touchNatKey(k, binding, ingressPort, egressPorts.asJava.iterator())
+            storage.submit()
+            throttle.touchesCoalesced.getCount shouldBe 1
+
+            eventually {
+                storage.fetchStrongNatRefs(ingressPort).await().get(k) should === (binding)
+            }
+        }
+
+        scenario("Shed writes are not coalesced") {
+            val saturated = new FlowStateStorage.WriteThrottle(0, new MetricRegistry)
+            val shedding = FlowStateStorage(cass, saturated)
+            val k = connTrackKeys.head
+            for (i <- 0 until 2) {
+                shedding.touchConnTrackKey(k, ingressPort, egressPorts.asJava.iterator())
+                shedding.submit()
+            }
+            saturated.touchesCoalesced.getCount shouldBe 0
+            saturated.statementsShed.getCount shouldBe 2 * (1 + egressPorts.size)
+        }
+
+        scenario("Writes are shed when too many batches are in flight") {
+            val saturated = new FlowStateStorage.WriteThrottle(0, new MetricRegistry)
+            val shedding = FlowStateStorage(cass, saturated)
+            val shedPort = UUID.randomUUID()
+            val port = UUID.randomUUID()
+            for (k <- connTrackKeys) {
+                shedding.touchConnTrackKey(k, shedPort, egressPorts.asJava.iterator())
+                storage.touchConnTrackKey(k, port, egressPorts.asJava.iterator())
+            }
+            shedding.submit()
+            storage.submit()
+
+            saturated.statementsShed.getCount shouldBe
+                connTrackKeys.size * (1 + egressPorts.size)
+            saturated.batchesWritten.getCount shouldBe 0
+            eventually {
+                storage.fetchStrongConnTrackRefs(port).await() should have size connTrackKeys.size
+            }
+            storage.fetchStrongConnTrackRefs(shedPort).await() shouldBe empty
+        }
     }
 }
@@ -31,13 +31,15 @@ import com.google.inject.Injector
 
 import org.midonet.cluster.DataClient
 import org.midonet.cluster.data._
-import org.midonet.midolman.PacketWorkflow.SimulationResult
+import org.midonet.midolman.PacketWorkflow.{HandleUpcalls, SimulationResult}
 import org.midonet.midolman.UnderlayResolver.{Route => UnderlayRoute}
 import org.midonet.midolman._
 import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.io.UpcallRing
 import org.midonet.midolman.simulation.Coordinator.Device
 import org.midonet.midolman.simulation.{Coordinator, DhcpConfigFromDataclient, PacketContext, PacketEmitter, Router => SimRouter}
 import org.midonet.midolman.state.ConnTrackState._
+import org.midonet.midolman.state.FlowStateCodec.PeerVersions
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.{ArpRequestBroker, HappyGoLuckyLeaser, MockStateStorage}
 import org.midonet.midolman.topology.VirtualToPhysicalMapper.HostRequest
@@ -247,6 +249,22 @@ trait VirtualTopologyHelper { this: MidolmanServices =>
         eth
     }
 
+    /**
+     * Hands packets to a packet workflow through its upcall ring, as the
+     * upcall threads do, and has the workflow process them.
+     */
+    def handlePackets(workflow: TestActorRef[_ <: PacketWorkflow],
+                      packets: Packet*): Unit = {
+        val upcalls = workflow.underlyingActor.upcalls
+        for (packet <- packets) {
+            if (!upcalls.offer(packet)) {
+                workflow ! HandleUpcalls
+                upcalls.offer(packet)
+            }
+        }
+        workflow ! HandleUpcalls
+    }
+
     def packetWorkflow(dpPortToVport: Map[Int, UUID] = Map.empty,
                        tunnelPorts: List[Integer] = List.empty,
                        peers: Map[UUID, UnderlayRoute] = Map.empty,
@@ -254,7 +272,8 @@ trait VirtualTopologyHelper { this: MidolmanServices =>
                        packetCtxTrap: Queue[PacketContext] = new LinkedList[PacketContext](),
                        conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue] = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](clock).addShard(),
                        natTable: FlowStateTable[NatKey, NatBinding] = new ShardedFlowStateTable[NatKey, NatBinding](clock).addShard(),
-                       traceTable: FlowStateTable[TraceKey, TraceContext] = new ShardedFlowStateTable[TraceKey, TraceContext](clock).addShard())
+                       traceTable: FlowStateTable[TraceKey, TraceContext] = new ShardedFlowStateTable[TraceKey, TraceContext](clock).addShard(),
+                       peerVersions: PeerVersions = new PeerVersions)
                       (implicit hostId: UUID, client: DataClient) = {
         val dpState = new DatapathState {
             override val datapath = new Datapath(0, "midonet")
@@ -287,9 +306,11 @@ trait VirtualTopologyHelper { this: MidolmanServices =>
             natTable,
             traceTable,
             new MockStateStorage,
+            peerVersions,
             HappyGoLuckyLeaser,
             metrics,
-            _ => { }) {
+            _ => { },
+            new UpcallRing(16, singleProducer = true)) {
 
             override def runWorkflow(pktCtx: PacketContext) = {
                 packetCtxTrap.add(pktCtx)
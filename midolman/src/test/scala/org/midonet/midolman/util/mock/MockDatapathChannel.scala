@@ -39,22 +39,40 @@ class MockDatapathChannel(val flowsTable: JMap[FlowMatch, Flow] = null)
     def flowCreateSubscribe(cb: Flow => Unit): Unit =
         flowCreateCb = cb
 
+    private def executeStatePacket(context: PacketContext): Unit = {
+        val statePacket = prepareStatePacket(context.stateMessage)
+        if (packetExecCb ne null) {
+            packetExecCb(statePacket, new ArrayList(context.stateActions))
+        }
+    }
+
     override def handoff(context: PacketContext): Long = {
-        if (!context.packetActions.isEmpty) {
+        var i = 0
+        while (i < context.stateCarriers.size) {
+            executeStatePacket(context.stateCarriers.get(i))
+            i += 1
+        }
+
+        if (context.packet eq null) {
+            executeStatePacket(context)
+        } else if (!context.packetActions.isEmpty) {
             packetsSent.add(context.packet)
             if (packetExecCb ne null) {
-                packetExecCb(context.packet, context.packetActions)
+                packetExecCb(context.packet,
+                             new ArrayList(context.packetActions))
             }
             if (context.stateMessage ne null) {
                 val statePacket = prepareStatePacket(context.stateMessage)
                 if (packetExecCb ne null) {
-                    packetExecCb(statePacket, context.stateActions)
+                    packetExecCb(statePacket,
+                                 new ArrayList(context.stateActions))
                 }
             }
         }
 
         if (context.flow ne null) {
-            val flow = new Flow(context.origMatch, context.flowActions)
+            val flow = new Flow(context.origMatch,
+                                new ArrayList(context.flowActions))
             if (flowCreateCb ne null) {
                 flowCreateCb(flow)
             }
@@ -67,6 +85,10 @@ class MockDatapathChannel(val flowsTable: JMap[FlowMatch, Flow] = null)
         0
     }
 
+    // Handed off contexts are recycled straight away, which is why the
+    // subscribers get copies of their actions.
+    override def processedSequence: Long = Long.MaxValue
+
     override def start(): Unit = { }
     override def stop(): Unit = { }
 }
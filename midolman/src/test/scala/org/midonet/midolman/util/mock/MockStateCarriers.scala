@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.util.mock
+
+import java.nio.ByteBuffer
+import java.util.ArrayList
+
+import scala.collection.JavaConversions._
+
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.midolman.state.FlowStateAggregator
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.FlowAction
+
+/**
+ * Gives the FlowStateAggregator a new context for every message, and records
+ * the messages that it hands off on their own.
+ */
+class MockStateCarriers extends FlowStateAggregator.Carriers {
+    val sent = new ArrayList[(ByteBuffer, List[FlowAction])]()
+    var taken = 0
+    var released = 0
+
+    override def take(): PacketContext = {
+        taken += 1
+        new PacketContext(0, null, new FlowMatch())
+    }
+
+    override def release(carrier: PacketContext): Unit =
+        released += 1
+
+    override def handoff(carrier: PacketContext): Unit =
+        sent.add((carrier.stateMessage, carrier.stateActions.toList))
+}
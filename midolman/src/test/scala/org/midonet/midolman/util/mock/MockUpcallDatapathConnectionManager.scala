@@ -43,7 +43,10 @@ class MockUpcallDatapathConnectionManager(config: MidolmanConfig)
 
     def initialize()(implicit ec: ExecutionContext, as: ActorSystem) {
         if (upcallHandler == null) {
-            upcallHandler = makeUpcallHandler(Workers(IndexedSeq(PacketsEntryPoint)))
+            upcallHandler = makeUpcallHandler(Workers(
+                IndexedSeq(PacketsEntryPoint),
+                IndexedSeq(new UpcallRing(config.datapath.upcallRingCapacity,
+                                          singleProducer = true))))
             conn.getConnection.datapathsSetNotificationHandler(upcallHandler)
         }
     }
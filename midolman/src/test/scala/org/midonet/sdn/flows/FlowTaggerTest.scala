@@ -57,6 +57,109 @@ class FlowTaggerTest extends FeatureSpecLike
         }
     }
 
+    feature("FlowTags are interned") {
+        scenario("Interned tags equal the tags constructed directly") {
+            val uuid = UUID.randomUUID()
+            val mac = MAC.random()
+            val ip = IPv4Addr.random
+            val tags = List(
+                tagForDevice(uuid) -> DeviceTag(uuid),
+                tagForFloodedFlowsByDstMac(uuid, 10.toShort, mac) ->
+                    VlanFloodTag(uuid, 10.toShort, mac),
+                tagForVlanPort(uuid, mac, 10.toShort, uuid) ->
+                    VlanPortTag(uuid, mac, 10.toShort, uuid),
+                tagForTunnelRoute(1, 2) -> TunnelRouteTag(1, 2),
+                tagForTunnelKey(3L) -> TunnelKeyTag(3L),
+                tagForDestinationIp(uuid, ip) ->
+                    DestinationIpTag(uuid, IPv4Addr.fromInt(ip.toInt)))
+            for ((interned, constructed) <- tags) {
+                interned shouldBe constructed
+                interned.hashCode shouldBe constructed.hashCode
+            }
+        }
+
+        scenario("Many tags are interned") {
+            val tags = (0 until 10000) map { i => tagForDpPort(i) }
+            for (i <- 0 until 10000) {
+                tagForDpPort(i) should be theSameInstanceAs tags(i)
+                tags(i) shouldBe DpPortTag(i)
+            }
+            FlowTagger.internedTags should be >= 10000L
+        }
+
+        scenario("Tags with the same hash are told apart") {
+            Given("Datapath ports whose tags have the same hash")
+            val ports = mutable.HashMap[Int, Int]()
+            var colliding: (Int, Int) = null
+            var port = 0
+            while (colliding eq null) {
+                val hash = DpPortTag(port).hashCode
+                ports.get(hash) match {
+                    case Some(other) => colliding = (other, port)
+                    case None => ports.put(hash, port)
+                }
+                port += 1
+            }
+            val (port1, port2) = colliding
+
+            When("Their tags are interned")
+            val tag1 = tagForDpPort(port1)
+            val tag2 = tagForDpPort(port2)
+
+            Then("They are distinct tags")
+            tag1.hashCode shouldBe tag2.hashCode
+            tag1 shouldBe DpPortTag(port1)
+            tag2 shouldBe DpPortTag(port2)
+
+            And("Each of them is found again")
+            tagForDpPort(port1) should be theSameInstanceAs tag1
+            tagForDpPort(port2) should be theSameInstanceAs tag2
+        }
+
+        scenario("Tags are evicted when their device is deleted") {
+            Given("Tags for a bridge and a port")
+            val bridgeId = UUID.randomUUID()
+            val portId = UUID.randomUUID()
+            val bridgeTag = tagForBroadcast(bridgeId)
+            val portTag = tagForBridgePort(bridgeId, portId)
+            val otherTag = tagForDevice(portId)
+
+            When("The bridge is deleted")
+            FlowTagger.evictTagsFor(bridgeId)
+
+            Then("The tags for the bridge are created again")
+            val newBridgeTag = tagForBroadcast(bridgeId)
+            newBridgeTag should not be theSameInstanceAs (bridgeTag)
+            newBridgeTag shouldBe bridgeTag
+            tagForBridgePort(bridgeId, portId) should not be
+                theSameInstanceAs (portTag)
+
+            And("The other tags are still interned")
+            tagForDevice(portId) should be theSameInstanceAs otherTag
+        }
+
+        scenario("Tags of several deleted devices are evicted together") {
+            Given("Tags for two bridges and a router")
+            val bridge1 = UUID.randomUUID()
+            val bridge2 = UUID.randomUUID()
+            val routerId = UUID.randomUUID()
+            val tag1 = tagForBroadcast(bridge1)
+            val tag2 = tagForArpRequests(bridge2)
+            val otherTag = tagForDevice(routerId)
+
+            When("Both bridges are deleted before the next lookup")
+            FlowTagger.evictTagsFor(bridge1)
+            FlowTagger.evictTagsFor(bridge2)
+
+            Then("The tags for both bridges are created again")
+            tagForBroadcast(bridge1) should not be theSameInstanceAs (tag1)
+            tagForArpRequests(bridge2) should not be theSameInstanceAs (tag2)
+
+            And("The other tags are still interned")
+            tagForDevice(routerId) should be theSameInstanceAs otherTag
+        }
+    }
+
     def flowTags() = {
         val rand = new Random
         val short = rand.nextInt(Short.MaxValue).toShort
@@ -29,6 +29,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
@@ -47,6 +48,7 @@ import org.midonet.api.filter.RuleFactory;
 import org.midonet.api.rest_api.AbstractResource;
 import org.midonet.api.rest_api.BadRequestHttpException;
 import org.midonet.api.rest_api.NotFoundHttpException;
+import org.midonet.api.rest_api.ResourceStream;
 import org.midonet.api.rest_api.RestApiConfig;
 import org.midonet.cluster.DataClient;
 import org.midonet.cluster.rest_api.VendorMediaType;
@@ -182,40 +184,45 @@ public class RuleResource extends AbstractResource {
         }
 
         /**
-         * Handler to list chain rules.
+         * Handler to list chain rules, in the order of the chain.
          *
+         * @param marker ID of the last rule of the previous page, if any.
+         * @param limit Maximum number of rules to list, if any.
          * @throws StateAccessException Data access error.
-         * @return A list of Rule objects.
+         * @return A stream of Rule objects.
          */
         @GET
         @PermitAll
         @Produces({ VendorMediaType.APPLICATION_RULE_COLLECTION_JSON,
                     VendorMediaType.APPLICATION_RULE_COLLECTION_JSON_V2,
                     MediaType.APPLICATION_JSON })
-        public List<Rule> list() throws StateAccessException,
-                                        SerializationException {
+        public Iterable<Rule> list(@QueryParam("marker") UUID marker,
+                                   @QueryParam("limit") Integer limit)
+                throws StateAccessException, SerializationException {
 
             authoriser.tryAuthoriseChain(chainId, "view these rules");
 
-            List<org.midonet.cluster.data.Rule<?,?>> ruleDataList;
+            List<UUID> ruleIds;
             try {
-                ruleDataList = dataClient.rulesFindByChain(chainId);
+                ruleIds = dataClient.rulesFindIdsByChain(chainId);
             } catch (NoStatePathException e) {
                 throw new NotFoundHttpException(e, "No such chain" + chainId);
             }
 
-            if (ruleDataList == null) {
-                return new ArrayList<>(0);
-            }
-
-            List<Rule> rules = new ArrayList<>();
-            for (org.midonet.cluster.data.Rule<?, ?> ruleData : ruleDataList) {
-                Rule rule = RuleFactory.createRule(ruleData);
-                rule.setBaseUri(getBaseUri());
-                rules.add(rule);
-            }
-
-            return rules;
+            return new ResourceStream<Rule>(ruleIds, false, marker, limit) {
+                @Override
+                protected List<Rule> read(List<UUID> ids)
+                        throws StateAccessException, SerializationException {
+                    List<Rule> rules = new ArrayList<>(ids.size());
+                    for (org.midonet.cluster.data.Rule<?, ?> ruleData :
+                            dataClient.rulesGet(ids)) {
+                        Rule rule = RuleFactory.createRule(ruleData);
+                        rule.setBaseUri(getBaseUri());
+                        rules.add(rule);
+                    }
+                    return rules;
+                }
+            };
         }
     }
 }
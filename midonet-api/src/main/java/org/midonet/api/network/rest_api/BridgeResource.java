@@ -17,6 +17,7 @@ package org.midonet.api.network.rest_api;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -56,6 +57,7 @@ import org.midonet.api.rest_api.AbstractResource;
 import org.midonet.api.rest_api.BadRequestHttpException;
 import org.midonet.api.rest_api.NotFoundHttpException;
 import org.midonet.api.rest_api.ResourceFactory;
+import org.midonet.api.rest_api.ResourceStream;
 import org.midonet.api.rest_api.RestApiConfig;
 import org.midonet.cluster.DataClient;
 import org.midonet.cluster.data.ports.VlanMacPort;
@@ -308,11 +310,14 @@ public class BridgeResource extends AbstractResource {
     }
 
     /**
-     * Handler to list all bridges.
+     * Handler to list all bridges, or those of a tenant, in the order of
+     * their IDs.
      *
+     * @param marker ID of the last bridge of the previous page, if any.
+     * @param limit Maximum number of bridges to list, if any.
      * @throws StateAccessException
      *             Data access error.
-     * @return A list of Bridge objects.
+     * @return A stream of Bridge objects.
      */
     @GET
     @RolesAllowed({ AuthRole.ADMIN })
@@ -320,16 +325,39 @@ public class BridgeResource extends AbstractResource {
             VendorMediaType.APPLICATION_BRIDGE_COLLECTION_JSON_V2,
             VendorMediaType.APPLICATION_BRIDGE_COLLECTION_JSON_V3,
             MediaType.APPLICATION_JSON })
-    public List<Bridge> list(@QueryParam("tenant_id") String tenantId)
+    public Iterable<Bridge> list(@QueryParam("tenant_id") String tenantId,
+                                 @QueryParam("marker") UUID marker,
+                                 @QueryParam("limit") Integer limit)
             throws StateAccessException, SerializationException,
                    IllegalAccessException{
 
-        List<org.midonet.cluster.data.Bridge> dataBridges;
         if (tenantId == null) {
-            dataBridges = dataClient.bridgesGetAll();
-        } else {
-            dataBridges = dataClient.bridgesFindByTenant(tenantId);
+            return new ResourceStream<Bridge>(dataClient.bridgesGetIds(),
+                                              marker, limit) {
+                @Override
+                protected List<Bridge> read(List<UUID> ids)
+                        throws StateAccessException, SerializationException {
+                    try {
+                        return fromData(dataClient.bridgesGet(ids));
+                    } catch (IllegalAccessException e) {
+                        // The sub-resource fields of a bridge are public.
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+
+        Map<UUID, Bridge> bridges = new HashMap<>();
+        for (Bridge bridge :
+                fromData(dataClient.bridgesFindByTenant(tenantId))) {
+            bridges.put(bridge.id, bridge);
         }
+        return ResourceStream.of(bridges, marker, limit);
+    }
+
+    private List<Bridge> fromData(
+            List<org.midonet.cluster.data.Bridge> dataBridges)
+            throws IllegalAccessException {
         List<Bridge> bridges = new ArrayList<>();
         if (dataBridges != null) {
             for (org.midonet.cluster.data.Bridge dataBridge :
@@ -31,6 +31,7 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
@@ -53,6 +54,7 @@ import org.midonet.api.rest_api.AbstractResource;
 import org.midonet.api.rest_api.BadRequestHttpException;
 import org.midonet.api.rest_api.NotFoundHttpException;
 import org.midonet.api.rest_api.ResourceFactory;
+import org.midonet.api.rest_api.ResourceStream;
 import org.midonet.api.rest_api.RestApiConfig;
 import org.midonet.api.vtep.VtepClusterClient;
 import org.midonet.cluster.DataClient;
@@ -167,37 +169,51 @@ public class PortResource extends AbstractResource {
         return port;
     }
 
+    /**
+     * Handler to list all ports, in the order of their IDs.
+     *
+     * @param marker ID of the last port of the previous page, if any.
+     * @param limit Maximum number of ports to list, if any.
+     * @return A stream of Port objects.
+     */
     @GET
     @RolesAllowed({ AuthRole.ADMIN })
     @Produces({ VendorMediaType.APPLICATION_PORT_V2_COLLECTION_JSON,
                 MediaType.APPLICATION_JSON})
-    public List<Port> list() throws StateAccessException,
-                                    SerializationException {
-        List<Port> ports = new ArrayList<>();
-        for (org.midonet.cluster.data.Port<?, ?> portData :
-                dataClient.portsGetAll()) { // NPE-safe
-            Port port = PortFactory.convertToApiPort(portData);
-            port.setBaseUri(getBaseUri());
-            ports.add(port);
-        }
-        return ports;
+    public Iterable<Port> list(@QueryParam("marker") UUID marker,
+                               @QueryParam("limit") Integer limit)
+            throws StateAccessException, SerializationException {
+        return streamPorts(marker, limit, false);
     }
 
     @GET
     @RolesAllowed({ AuthRole.ADMIN })
     @Produces({ VendorMediaType.APPLICATION_PORT_COLLECTION_JSON })
-    public List<Port> listV1()
+    public Iterable<Port> listV1(@QueryParam("marker") UUID marker,
+                                 @QueryParam("limit") Integer limit)
             throws StateAccessException, SerializationException {
-        List<org.midonet.cluster.data.Port<?, ?>> portDataList =
-                dataClient.portsGetAll();
-        List<Port> ports = new ArrayList<>();
-        for (org.midonet.cluster.data.Port<?, ?> portData: portDataList) {
-            Port port = PortFactory.convertToApiPortV1(portData);
-            port.setBaseUri(getBaseUri());
-            ports.add(port);
-        }
+        return streamPorts(marker, limit, true);
+    }
 
-        return ports;
+    private Iterable<Port> streamPorts(UUID marker, Integer limit,
+                                       final boolean v1)
+            throws StateAccessException, SerializationException {
+        return new ResourceStream<Port>(dataClient.portsGetIds(), marker,
+                                        limit) {
+            @Override
+            protected List<Port> read(List<UUID> ids)
+                    throws StateAccessException, SerializationException {
+                List<Port> ports = new ArrayList<>(ids.size());
+                for (org.midonet.cluster.data.Port<?, ?> portData :
+                        dataClient.portsGet(ids)) {
+                    Port port = v1 ? PortFactory.convertToApiPortV1(portData)
+                                   : PortFactory.convertToApiPort(portData);
+                    port.setBaseUri(getBaseUri());
+                    ports.add(port);
+                }
+                return ports;
+            }
+        };
     }
 
     /**
@@ -29,6 +29,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
@@ -42,6 +43,7 @@ import org.midonet.api.ResourceUriBuilder;
 import org.midonet.api.auth.AuthRole;
 import org.midonet.api.network.Route;
 import org.midonet.api.rest_api.AbstractResource;
+import org.midonet.api.rest_api.ResourceStream;
 import org.midonet.api.rest_api.RestApiConfig;
 import org.midonet.cluster.DataClient;
 import org.midonet.cluster.rest_api.VendorMediaType;
@@ -162,34 +164,38 @@ public class RouteResource extends AbstractResource {
         }
 
         /**
-         * Handler to list routes.
+         * Handler to list routes, in the order of their IDs.
          *
+         * @param marker ID of the last route of the previous page, if any.
+         * @param limit Maximum number of routes to list, if any.
          * @throws StateAccessException Data access error.
-         * @return A list of Route objects.
+         * @return A stream of Route objects.
          */
         @GET
         @PermitAll
         @Produces({ VendorMediaType.APPLICATION_ROUTE_COLLECTION_JSON,
                 MediaType.APPLICATION_JSON })
-        public List<Route> list() throws StateAccessException,
-                                         SerializationException {
+        public Iterable<Route> list(@QueryParam("marker") UUID marker,
+                                    @QueryParam("limit") Integer limit)
+                throws StateAccessException, SerializationException {
 
             authoriser.tryAuthoriseRouter(routerId, "view these routes");
 
-            List<org.midonet.cluster.data.Route> routeDataList =
-                    dataClient.routesFindByRouter(routerId);
-
-            if (routeDataList == null) {
-                return new ArrayList<>(0);
-            }
-
-            List<Route> routes = new ArrayList<>(routeDataList.size());
-            for (org.midonet.cluster.data.Route routeData : routeDataList) {
-                Route route = new Route(routeData);
-                route.setBaseUri(getBaseUri());
-                routes.add(route);
-            }
-            return routes;
+            return new ResourceStream<Route>(
+                    dataClient.routesFindIdsByRouter(routerId), marker, limit) {
+                @Override
+                protected List<Route> read(List<UUID> ids)
+                        throws StateAccessException, SerializationException {
+                    List<Route> routes = new ArrayList<>(ids.size());
+                    for (org.midonet.cluster.data.Route routeData :
+                            dataClient.routesGet(ids)) {
+                        Route route = new Route(routeData);
+                        route.setBaseUri(getBaseUri());
+                        routes.add(route);
+                    }
+                    return routes;
+                }
+            };
         }
     }
 }
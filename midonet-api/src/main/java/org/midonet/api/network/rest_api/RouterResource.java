@@ -16,7 +16,9 @@
 package org.midonet.api.network.rest_api;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.annotation.security.PermitAll;
@@ -46,6 +48,7 @@ import org.midonet.api.network.Router;
 import org.midonet.api.rest_api.AbstractResource;
 import org.midonet.api.rest_api.Authoriser;
 import org.midonet.api.rest_api.ResourceFactory;
+import org.midonet.api.rest_api.ResourceStream;
 import org.midonet.api.rest_api.RestApiConfig;
 import org.midonet.cluster.DataClient;
 import org.midonet.cluster.rest_api.VendorMediaType;
@@ -206,23 +209,45 @@ public class RouterResource extends AbstractResource {
     }
 
     /**
-     * Handler to list all routers.
+     * Handler to list all routers, or those of a tenant, in the order of
+     * their IDs.
      *
+     * @param marker ID of the last router of the previous page, if any.
+     * @param limit Maximum number of routers to list, if any.
      * @throws StateAccessException Data access error.
-     * @return A list of Router objects.
+     * @return A stream of Router objects.
      */
     @GET
     @RolesAllowed({ AuthRole.ADMIN })
     @Produces({ VendorMediaType.APPLICATION_ROUTER_COLLECTION_JSON,
                 VendorMediaType.APPLICATION_ROUTER_COLLECTION_JSON_V2,
                 MediaType.APPLICATION_JSON })
-    public List<Router> list(@QueryParam("tenant_id") String tenantId)
+    public Iterable<Router> list(@QueryParam("tenant_id") String tenantId,
+                                 @QueryParam("marker") UUID marker,
+                                 @QueryParam("limit") Integer limit)
             throws StateAccessException, SerializationException {
 
-        List<org.midonet.cluster.data.Router> dataRouters = (tenantId == null) ?
-                dataClient.routersGetAll() :
-                dataClient.routersFindByTenant(tenantId);
+        if (tenantId == null) {
+            return new ResourceStream<Router>(dataClient.routersGetIds(),
+                                              marker, limit) {
+                @Override
+                protected List<Router> read(List<UUID> ids)
+                        throws StateAccessException, SerializationException {
+                    return fromData(dataClient.routersGet(ids));
+                }
+            };
+        }
+
+        Map<UUID, Router> routers = new HashMap<>();
+        for (Router router :
+                fromData(dataClient.routersFindByTenant(tenantId))) {
+            routers.put(router.getId(), router);
+        }
+        return ResourceStream.of(routers, marker, limit);
+    }
 
+    private List<Router> fromData(
+            List<org.midonet.cluster.data.Router> dataRouters) {
         List<Router> routers = new ArrayList<>();
         if (dataRouters != null) {
             for (org.midonet.cluster.data.Router dataRouter :
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.api.rest_api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.midolman.serialization.SerializationException;
+import org.midonet.midolman.state.StateAccessException;
+
+/**
+ * A collection of resources that is read from the data store in batches as
+ * it is iterated. Jackson writes an Iterable as a JSON array one element at a
+ * time, so a list handler returning a stream sends the collection to the
+ * client without holding all of it in memory, and the body is the same array
+ * that the handler would return as a List.
+ *
+ * The IDs of the resources are listed upfront in a stable order, so that the
+ * collection can be paged: a page is made of the resources after the one
+ * with the marker ID, up to a limit, and the ID of the last resource of a
+ * page is the marker of the next one. A marker that is not in the collection
+ * is a bad request.
+ *
+ * Only the first batch is read before the response starts. If reading a
+ * later batch fails, the error is logged and the array written so far is
+ * left unterminated, so that the client fails to parse a truncated body
+ * rather than taking it for the whole collection.
+ */
+public abstract class ResourceStream<T> implements Iterable<T> {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(ResourceStream.class);
+
+    /**
+     * The number of resources read from the data store at once.
+     */
+    public static final int BATCH_SIZE = 256;
+
+    private final List<UUID> ids;
+    private final List<T> first;
+
+    /**
+     * Creates the stream of the resources with the given IDs, in ascending
+     * order, after the marker, if any, up to the limit, if any.
+     */
+    protected ResourceStream(List<UUID> ids, UUID marker, Integer limit)
+            throws StateAccessException, SerializationException {
+        this(ids, true, marker, limit);
+    }
+
+    /**
+     * Creates the stream of the resources with the given IDs after the marker,
+     * if any, up to the limit, if any. The first batch is read right away, so
+     * that errors reading it still result in an error response. The marker is
+     * found with a binary search when the IDs are sorted.
+     */
+    protected ResourceStream(List<UUID> ids, boolean sorted, UUID marker,
+                             Integer limit)
+            throws StateAccessException, SerializationException {
+        int from = 0;
+        if (marker != null) {
+            from = (sorted ? Collections.binarySearch(ids, marker)
+                           : ids.indexOf(marker)) + 1;
+            if (from <= 0) {
+                throw new BadRequestHttpException(
+                    "The marker " + marker + " is not in the collection.");
+            }
+        }
+        int to = ids.size();
+        if (limit != null) {
+            if (limit < 0) {
+                throw new BadRequestHttpException(
+                    "The limit must not be negative.");
+            }
+            to = (int) Math.min(to, (long) from + limit);
+        }
+        this.ids = ids.subList(from, to);
+        this.first = this.ids.isEmpty() ? Collections.<T>emptyList()
+            : read(this.ids.subList(0, Math.min(BATCH_SIZE, this.ids.size())));
+    }
+
+    /**
+     * Reads the resources with the given IDs in the same order, skipping those
+     * that no longer exist.
+     */
+    protected abstract List<T> read(List<UUID> ids)
+            throws StateAccessException, SerializationException;
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int position = Math.min(BATCH_SIZE, ids.size());
+            private Iterator<T> batch = first.iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!batch.hasNext() && position < ids.size()) {
+                    int to = Math.min(position + BATCH_SIZE, ids.size());
+                    try {
+                        batch = read(ids.subList(position, to)).iterator();
+                    } catch (StateAccessException | SerializationException e) {
+                        // The response is already being written, so the
+                        // error can only abort it.
+                        log.error("Failed to read the resources {} to {} " +
+                                  "of a stream of {}", position, to,
+                                  ids.size(), e);
+                        throw new RuntimeException(e);
+                    }
+                    position = to;
+                }
+                return batch.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * A stream of resources that were already read, such as those of a
+     * tenant, which is paged in the order of their IDs.
+     */
+    public static <T> ResourceStream<T> of(final Map<UUID, T> resources,
+                                           UUID marker, Integer limit)
+            throws StateAccessException, SerializationException {
+        List<UUID> ids = new ArrayList<>(resources.keySet());
+        Collections.sort(ids);
+        return new ResourceStream<T>(ids, marker, limit) {
+            @Override
+            protected List<T> read(List<UUID> page) {
+                List<T> batch = new ArrayList<>(page.size());
+                for (UUID id : page) {
+                    batch.add(resources.get(id));
+                }
+                return batch;
+            }
+        };
+    }
+}
@@ -20,6 +20,7 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -54,6 +55,7 @@ import org.midonet.client.dto.DtoPort;
 import org.midonet.client.dto.DtoRuleChain;
 import org.midonet.client.dto.DtoTenant;
 
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.arrayContainingInAnyOrder;
 import static org.hamcrest.Matchers.arrayWithSize;
@@ -62,6 +64,7 @@ import static org.hamcrest.Matchers.hasSize;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.midonet.client.VendorMediaType.APPLICATION_BRIDGE_COLLECTION_JSON;
 import static org.midonet.client.VendorMediaType.APPLICATION_BRIDGE_JSON;
 import static org.midonet.client.VendorMediaType.APPLICATION_BRIDGE_JSON_V2;
@@ -404,6 +407,72 @@ public class TestBridge {
                     MessageProperty.VXLAN_PORT_ID_NOT_SETTABLE);
         }
 
+        private List<UUID> listBridgeIds(URI bridgesUri, UUID marker,
+                                         Integer limit) {
+            Map<String, String> queryParams = new HashMap<>();
+            if (marker != null) {
+                queryParams.put("marker", marker.toString());
+            }
+            if (limit != null) {
+                queryParams.put("limit", limit.toString());
+            }
+            DtoBridge[] bridges = dtoResource.getAndVerifyOk(bridgesUri,
+                    queryParams, APPLICATION_BRIDGE_COLLECTION_JSON,
+                    DtoBridge[].class);
+            List<UUID> ids = new ArrayList<>(bridges.length);
+            for (DtoBridge bridge : bridges) {
+                ids.add(bridge.getId());
+            }
+            return ids;
+        }
+
+        @Test
+        public void testListInPages() throws Exception {
+            URI bridgesUri = topology.getApplication().getBridges();
+            List<UUID> expected = new ArrayList<>();
+            Map<UUID, URI> uris = new HashMap<>();
+            for (int i = 0; i < 7; i++) {
+                DtoBridge bridge = new DtoBridge();
+                bridge.setName("bridge" + i);
+                bridge.setTenantId("tenant1");
+                bridge = dtoResource.postAndVerifyCreated(bridgesUri,
+                        APPLICATION_BRIDGE_JSON, bridge, DtoBridge.class);
+                expected.add(bridge.getId());
+                uris.put(bridge.getId(), bridge.getUri());
+            }
+            Collections.sort(expected);
+            assertEquals(expected, listBridgeIds(bridgesUri, null, null));
+
+            // The pages of 3 bridges list all of them in order
+            List<UUID> paged = new ArrayList<>();
+            UUID marker = null;
+            List<UUID> page;
+            do {
+                page = listBridgeIds(bridgesUri, marker, 3);
+                assertTrue(page.size() <= 3);
+                paged.addAll(page);
+                marker = page.isEmpty() ? null : page.get(page.size() - 1);
+            } while (page.size() == 3);
+            assertEquals(expected, paged);
+
+            // A deleted marker is a bad request
+            UUID deleted = expected.get(2);
+            dtoResource.deleteAndVerifyNoContent(uris.get(deleted),
+                                                 APPLICATION_BRIDGE_JSON);
+            Map<String, String> queryParams = new HashMap<>();
+            queryParams.put("marker", deleted.toString());
+            dtoResource.getAndVerifyStatus(bridgesUri, queryParams,
+                    APPLICATION_BRIDGE_COLLECTION_JSON,
+                    BAD_REQUEST.getStatusCode());
+
+            // A negative limit is a bad request
+            queryParams.clear();
+            queryParams.put("limit", "-1");
+            dtoResource.getAndVerifyStatus(bridgesUri, queryParams,
+                    APPLICATION_BRIDGE_COLLECTION_JSON,
+                    BAD_REQUEST.getStatusCode());
+        }
+
         @Test
         public void testCrud() throws Exception {
 
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.api.rest_api;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.ws.rs.core.MediaType;
+
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.map.JsonMappingException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import org.midonet.api.serialization.ConfiguredJacksonJaxbJsonProvider;
+import org.midonet.midolman.state.StateAccessException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResourceStreamTest {
+
+    private static final int BATCH_SIZE = ResourceStream.BATCH_SIZE;
+
+    /**
+     * Streams the IDs themselves, recording the size of each batch read, and
+     * failing to read the batch that starts at failAt, if any.
+     */
+    private static class IdStream extends ResourceStream<UUID> {
+        static List<Integer> batches;
+        static UUID failAt;
+
+        IdStream(List<UUID> ids, boolean sorted, UUID marker, Integer limit)
+                throws Exception {
+            super(ids, sorted, marker, limit);
+        }
+
+        @Override
+        protected List<UUID> read(List<UUID> ids)
+                throws StateAccessException {
+            if (ids.get(0).equals(failAt)) {
+                throw new StateAccessException("Failed to read " + failAt);
+            }
+            batches.add(ids.size());
+            return new ArrayList<>(ids);
+        }
+    }
+
+    private static List<UUID> sortedIds(int count) {
+        List<UUID> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(UUID.randomUUID());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static List<UUID> stream(List<UUID> ids, boolean sorted,
+                                     UUID marker, Integer limit)
+            throws Exception {
+        IdStream.batches = new ArrayList<>();
+        IdStream.failAt = null;
+        List<UUID> streamed = new ArrayList<>();
+        for (UUID id : new IdStream(ids, sorted, marker, limit)) {
+            streamed.add(id);
+        }
+        return streamed;
+    }
+
+    @Test
+    public void testStreamsAllResourcesInBatches() throws Exception {
+        List<UUID> ids = sortedIds(2 * BATCH_SIZE + 10);
+        assertEquals(ids, stream(ids, true, null, null));
+        assertEquals(3, IdStream.batches.size());
+        assertEquals(BATCH_SIZE, (int) IdStream.batches.get(0));
+        assertEquals(BATCH_SIZE, (int) IdStream.batches.get(1));
+        assertEquals(10, (int) IdStream.batches.get(2));
+    }
+
+    @Test
+    public void testEmptyCollection() throws Exception {
+        assertTrue(stream(new ArrayList<UUID>(), true, null, null).isEmpty());
+    }
+
+    @Test
+    public void testStartsAfterTheMarker() throws Exception {
+        List<UUID> ids = sortedIds(10);
+        assertEquals(ids.subList(4, 10), stream(ids, true, ids.get(3), null));
+        assertEquals(ids.subList(4, 10), stream(ids, false, ids.get(3), null));
+        assertTrue(stream(ids, true, ids.get(9), null).isEmpty());
+    }
+
+    @Test
+    public void testUnknownMarkerOfASortedCollection() throws Exception {
+        List<UUID> ids = sortedIds(10);
+        UUID deleted = ids.remove(5);
+        try {
+            stream(ids, true, deleted, null);
+            fail("An unknown marker should be a bad request");
+        } catch (BadRequestHttpException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnknownMarkerOfAnUnsortedCollection() throws Exception {
+        List<UUID> ids = sortedIds(10);
+        Collections.reverse(ids);
+        try {
+            stream(ids, false, UUID.randomUUID(), null);
+            fail("An unknown marker should be a bad request");
+        } catch (BadRequestHttpException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testStopsAtTheLimit() throws Exception {
+        List<UUID> ids = sortedIds(20);
+        assertEquals(ids.subList(0, 5), stream(ids, true, null, 5));
+        assertEquals(ids.subList(3, 8), stream(ids, true, ids.get(2), 5));
+        assertEquals(ids.subList(15, 20), stream(ids, true, ids.get(14), 50));
+        assertTrue(stream(ids, true, null, 0).isEmpty());
+    }
+
+    @Test
+    public void testLimitAcrossBatchBoundaries() throws Exception {
+        List<UUID> ids = sortedIds(3 * BATCH_SIZE);
+        List<UUID> page = stream(ids, true, ids.get(BATCH_SIZE / 2),
+                                 BATCH_SIZE + 1);
+        assertEquals(ids.subList(BATCH_SIZE / 2 + 1,
+                                 BATCH_SIZE / 2 + BATCH_SIZE + 2), page);
+        assertEquals(2, IdStream.batches.size());
+        assertEquals(BATCH_SIZE, (int) IdStream.batches.get(0));
+        assertEquals(1, (int) IdStream.batches.get(1));
+    }
+
+    @Test
+    public void testNegativeLimit() throws Exception {
+        try {
+            stream(sortedIds(10), true, null, -1);
+            fail("A negative limit should be a bad request");
+        } catch (BadRequestHttpException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReadsTheFirstBatchUpfront() throws Exception {
+        List<UUID> ids = sortedIds(BATCH_SIZE + 1);
+        IdStream.batches = new ArrayList<>();
+        IdStream.failAt = null;
+        new IdStream(ids, true, null, null);
+        assertEquals(1, IdStream.batches.size());
+    }
+
+    @Test
+    public void testFailsMidStream() throws Exception {
+        List<UUID> ids = sortedIds(BATCH_SIZE + 1);
+        IdStream.batches = new ArrayList<>();
+        IdStream.failAt = ids.get(BATCH_SIZE);
+        Iterator<UUID> it = new IdStream(ids, true, null, null).iterator();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            it.next();
+        }
+        try {
+            it.hasNext();
+            fail("Reading the second batch should fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof StateAccessException);
+        }
+    }
+
+    @Test
+    public void testFailureMidStreamLeavesTheArrayUnterminated()
+            throws Exception {
+        List<UUID> ids = sortedIds(2 * BATCH_SIZE);
+        IdStream.batches = new ArrayList<>();
+        IdStream.failAt = ids.get(BATCH_SIZE);
+        IdStream stream = new IdStream(ids, true, null, null);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            new ConfiguredJacksonJaxbJsonProvider().writeTo(
+                stream, IdStream.class, IdStream.class, new Annotation[0],
+                MediaType.APPLICATION_JSON_TYPE, null, body);
+            fail("Writing the stream should fail");
+        } catch (JsonMappingException e) {
+            assertTrue(e.getCause() instanceof RuntimeException);
+        }
+        assertTrue(body.size() > 0);
+        try {
+            new ObjectMapper().readValue(body.toByteArray(), List.class);
+            fail("A truncated body should not parse");
+        } catch (JsonParseException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testStreamOfResourcesReadInAdvance() throws Exception {
+        List<UUID> ids = sortedIds(10);
+        Map<UUID, String> resources = new HashMap<>();
+        List<UUID> shuffled = new ArrayList<>(ids);
+        Collections.shuffle(shuffled);
+        for (UUID id : shuffled) {
+            resources.put(id, id.toString());
+        }
+        List<String> page = new ArrayList<>();
+        for (String resource : ResourceStream.of(resources, ids.get(1), 3)) {
+            page.add(resource);
+        }
+        assertEquals(3, page.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(ids.get(i + 2).toString(), page.get(i));
+        }
+        assertFalse(page.contains(ids.get(1).toString()));
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.util.concurrent.atomic._
+
+import scala.annotation.tailrec
+import scala.concurrent.duration.Duration
+
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.util.collection.Reducer
+
+object CompactTimedExpirationMap {
+    /* Slot states. A live entry stores its reference count plus one, so that
+     * an entry with no references is still told apart from a slot whose key
+     * was just claimed and whose value is yet to be published. */
+    private final val INITIALIZING = 0
+    private final val IDLE = 1
+    private final val DYING = -1
+    private final val DEAD = -2
+    private final val FROZEN = Int.MinValue
+
+    /* Key sentinels: MOVED marks the free slots of a table being resized,
+     * TOMBSTONE the slots of expired entries. */
+    private val MOVED = new AnyRef
+    private val TOMBSTONE = new AnyRef
+
+    /* Results of a lookup that doesn't find the key's slot. */
+    private final val NOT_FOUND = -1
+    private final val RESIZING = -2
+
+    private final val MIN_CAPACITY = 16
+    private final val CHUNK_SIZE = 1024
+
+    private def capacityFor(size: Int): Int = {
+        var capacity = MIN_CAPACITY
+        while (capacity < size)
+            capacity <<= 1
+        capacity
+    }
+
+    /**
+     * An open-addressing table of entries, stored in parallel arrays indexed
+     * by slot. Keys are only ever written once to a free slot, and later
+     * replaced by TOMBSTONE when their entry expires, so that linear probing
+     * never misses a key.
+     */
+    private final class Table(val capacity: Int) {
+        val mask = capacity - 1
+        val threshold = capacity >> 1
+        val keys = new AtomicReferenceArray[AnyRef](capacity)
+        val values = new AtomicReferenceArray[AnyRef](capacity)
+        val states = new AtomicIntegerArray(capacity)
+        val expirations = new AtomicLongArray(capacity)
+        val used = new AtomicInteger()
+        val tombstones = new AtomicInteger()
+        val next = new AtomicReference[Table]()
+    }
+
+    /**
+     * A chunk of the expiration ring. Writers claim an index and publish the
+     * key after the expiration time, which the single reader reads once it
+     * sees the key.
+     */
+    private final class Chunk {
+        val keys = new AtomicReferenceArray[AnyRef](CHUNK_SIZE)
+        val times = new Array[Long](CHUNK_SIZE)
+        val claimed = new AtomicInteger()
+        val next = new AtomicReference[Chunk]()
+    }
+}
+
+/**
+ * An alternative implementation of the TimedExpirationMap that doesn't
+ * allocate objects for each of its entries, for maps that hold millions of
+ * them, such as the flow state tables.
+ *
+ * The entries live in an open-addressing table made of parallel arrays of
+ * keys, values, reference counts and expiration times. The keys to check for
+ * expiration are kept in a ring of array chunks holding a key and a primitive
+ * expiration time, rather than in a queue of tuples. The API and semantics
+ * are those of the TimedExpirationMap; see its documentation.
+ *
+ * The reference count of an entry is kept in its slot's state, and the races
+ * between ref() and obliterateIdleEntries() are solved as in the
+ * TimedExpirationMap: an idle entry expires by atomically moving its state
+ * from IDLE to DYING, which makes ref() fail and put() calls spin, and it is
+ * only after calling into the reducer that the state moves to DEAD and the
+ * key is replaced by a tombstone, letting the key be added back.
+ *
+ * The table grows, or gets rid of its tombstones, by copying its entries to a
+ * new table. The copying thread freezes each slot by atomically setting its
+ * state to FROZEN, and marks the free slots as MOVED, so that no operation
+ * changes an entry once it has been copied. Operations that find a frozen
+ * slot wait for the copy to finish and retry on the new table.
+ */
+final class CompactTimedExpirationMap[K <: AnyRef, V >: Null](
+        log: Logger, expirationFor: K => Duration, initialCapacity: Int = 1024) {
+
+    import CompactTimedExpirationMap._
+
+    @volatile private var table = new Table(capacityFor(initialCapacity))
+
+    private val expiringTail = new AtomicReference[Chunk](new Chunk)
+    private var expiringHead = expiringTail.get
+    private var expiringIndex = 0
+
+    private def indexFor(key: AnyRef, mask: Int): Int = {
+        val h = key.hashCode * 0x9E3779B9
+        (h ^ (h >>> 16)) & mask
+    }
+
+    /**
+     * Returns the slot of a key, NOT_FOUND if it isn't in the table, or
+     * RESIZING if the table is being resized.
+     */
+    private def find(t: Table, key: AnyRef): Int = {
+        var i = indexFor(key, t.mask)
+        var probes = 0
+        while (probes < t.capacity) {
+            val k = t.keys.get(i)
+            if (k eq null)
+                return NOT_FOUND
+            if (k eq MOVED)
+                return RESIZING
+            if (k == key)
+                return i
+            i = (i + 1) & t.mask
+            probes += 1
+        }
+        NOT_FOUND
+    }
+
+    private def awaitResize(t: Table): Unit =
+        while (table eq t) {
+            Thread.`yield`()
+        }
+
+    private def insert(key: K, value: V, overwrite: Boolean): V = {
+        while (true) {
+            val t = table
+            var i = indexFor(key, t.mask)
+            var retry = false
+            while (!retry) {
+                val k = t.keys.get(i)
+                if (k eq null) {
+                    if (t.used.get >= t.threshold) {
+                        resize(t)
+                        retry = true
+                    } else if (t.keys.compareAndSet(i, null, key)) {
+                        t.used.incrementAndGet()
+                        t.values.set(i, value.asInstanceOf[AnyRef])
+                        t.expirations.set(i, Long.MaxValue)
+                        t.states.set(i, IDLE + 1)
+                        log.debug(s"Incrementing reference count of $key to 1")
+                        return null
+                    }
+                } else if (k eq MOVED) {
+                    awaitResize(t)
+                    retry = true
+                } else if (k == key) {
+                    /* An initializing, dying or dead entry is spun on until
+                     * its state or key change. */
+                    val s = t.states.get(i)
+                    if (s >= IDLE) {
+                        if (t.states.compareAndSet(i, s, s + 1)) {
+                            log.debug(s"Incrementing ref count of $key to $s")
+                            if (s == IDLE)
+                                log.debug(s"Unscheduling removal of $key")
+                            if (!overwrite)
+                                return t.values.get(i).asInstanceOf[V]
+                            val oldValue =
+                                t.values.getAndSet(i, value.asInstanceOf[AnyRef])
+                            if (t.states.get(i) == FROZEN)
+                                updateValue(key, value)
+                            return oldValue.asInstanceOf[V]
+                        }
+                    } else if (s == FROZEN) {
+                        awaitResize(t)
+                        retry = true
+                    }
+                } else {
+                    i = (i + 1) & t.mask
+                }
+            }
+        }
+        null // not reached
+    }
+
+    /* Sets the value of an entry whose slot was frozen while the value was
+     * being replaced, which the resize may not have copied. */
+    @tailrec
+    private def updateValue(key: K, value: V): Unit = {
+        val t = table
+        val i = find(t, key)
+        if (i == RESIZING || (i >= 0 && t.states.get(i) == FROZEN)) {
+            awaitResize(t)
+            updateValue(key, value)
+        } else if (i >= 0) {
+            t.values.set(i, value.asInstanceOf[AnyRef])
+            if (t.states.get(i) == FROZEN)
+                updateValue(key, value)
+        }
+    }
+
+    def putAndRef(key: K, value: V): V = insert(key, value, overwrite = true)
+
+    def putIfAbsentAndRef(key: K, value: V): V =
+        insert(key, value, overwrite = false)
+
+    @tailrec
+    def get(key: K): V = {
+        val t = table
+        val i = find(t, key)
+        if (i == NOT_FOUND) {
+            null
+        } else if (i == RESIZING) {
+            awaitResize(t)
+            get(key)
+        } else {
+            val s = t.states.get(i)
+            if (s >= IDLE) {
+                t.values.get(i).asInstanceOf[V]
+            } else if (s == FROZEN) {
+                awaitResize(t)
+                get(key)
+            } else {
+                null
+            }
+        }
+    }
+
+    @tailrec
+    def getRefCount(key: K): Int = {
+        val t = table
+        val i = find(t, key)
+        if (i == NOT_FOUND) {
+            0
+        } else if (i == RESIZING) {
+            awaitResize(t)
+            getRefCount(key)
+        } else {
+            val s = t.states.get(i)
+            if (s >= IDLE) {
+                s - 1
+            } else if (s == DYING) {
+                -1
+            } else if (s == FROZEN) {
+                awaitResize(t)
+                getRefCount(key)
+            } else {
+                0
+            }
+        }
+    }
+
+    def refCount(key: K) = getRefCount(key)
+
+    def fold[U](seed: U, func: Reducer[K, V, U]): U = {
+        val t = table
+        var acc = seed
+        var i = 0
+        while (i < t.capacity) {
+            val k = t.keys.get(i)
+            if ((k ne null) && (k ne MOVED) && (k ne TOMBSTONE)) {
+                val s = t.states.get(i)
+                val v = t.values.get(i)
+                if (s != INITIALIZING && s != DEAD && (v ne null))
+                    acc = func.apply(acc, k.asInstanceOf[K], v.asInstanceOf[V])
+            }
+            i += 1
+        }
+        acc
+    }
+
+    @tailrec
+    def ref(key: K): V = {
+        val t = table
+        val i = find(t, key)
+        if (i == NOT_FOUND) {
+            null
+        } else if (i == RESIZING) {
+            awaitResize(t)
+            ref(key)
+        } else {
+            val s = t.states.get(i)
+            if (s >= IDLE) {
+                if (t.states.compareAndSet(i, s, s + 1)) {
+                    log.debug(s"Incrementing ref count of $key to $s")
+                    if (s == IDLE)
+                        log.debug(s"Unscheduling removal of $key")
+                    t.values.get(i).asInstanceOf[V]
+                } else {
+                    ref(key)
+                }
+            } else if (s == FROZEN) {
+                awaitResize(t)
+                ref(key)
+            } else {
+                null
+            }
+        }
+    }
+
+    @tailrec
+    def unref(key: K, currentTimeMillis: Long): V = {
+        val t = table
+        val i = find(t, key)
+        if (i == NOT_FOUND) {
+            null
+        } else if (i == RESIZING) {
+            awaitResize(t)
+            unref(key, currentTimeMillis)
+        } else {
+            val s = t.states.get(i)
+            if (s > IDLE + 1) {
+                if (t.states.compareAndSet(i, s, s - 1)) {
+                    log.debug(s"Decrementing reference count of $key to ${s - 2}")
+                    t.values.get(i).asInstanceOf[V]
+                } else {
+                    unref(key, currentTimeMillis)
+                }
+            } else if (s == IDLE + 1) {
+                /* The expiration is written before the count drops to zero, so
+                 * that it's copied along with the entry by a resize. */
+                val expiration = currentTimeMillis + expirationFor(key).toMillis
+                t.expirations.set(i, expiration)
+                if (t.states.compareAndSet(i, s, IDLE)) {
+                    log.debug(s"Decrementing reference count of $key to 0")
+                    log.debug(s"Scheduling removal of $key")
+                    scheduleExpiration(key, expiration)
+                    t.values.get(i).asInstanceOf[V]
+                } else {
+                    unref(key, currentTimeMillis)
+                }
+            } else if (s == FROZEN) {
+                awaitResize(t)
+                unref(key, currentTimeMillis)
+            } else if (s == INITIALIZING) {
+                unref(key, currentTimeMillis)
+            } else if (s == DEAD) {
+                null
+            } else {
+                log.error(s"Decrement a ref count past 0 for $key")
+                t.values.get(i).asInstanceOf[V]
+            }
+        }
+    }
+
+    /**
+     * Cleans up resources that have had their reference count at 0 for longer
+     * than the configured expiration.
+     *
+     * WARNING: This method is not thread-safe for multiple callers.
+     */
+
+    val identityReducer = new Reducer[K, V, Unit] {
+        override def apply(acc: Unit, key: K, value: V): Unit = ()
+    }
+
+    def obliterateIdleEntries[U](currentTimeMillis: Long): Unit =
+        obliterateIdleEntries(currentTimeMillis, (), identityReducer)
+
+    def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                 reducer: Reducer[K, V, U]): U = {
+        var acc = seed
+        while (true) {
+            if (expiringIndex == CHUNK_SIZE) {
+                val next = expiringHead.next.get
+                if (next eq null)
+                    return acc
+                expiringHead = next
+                expiringIndex = 0
+            }
+
+            val key = expiringHead.keys.get(expiringIndex)
+            if ((key eq null) || expiringHead.times(expiringIndex) > currentTimeMillis)
+                return acc
+
+            acc = expire(key.asInstanceOf[K], currentTimeMillis, acc, reducer)
+            expiringIndex += 1
+        }
+        acc
+    }
+
+    @tailrec
+    private def expire[U](key: K, currentTimeMillis: Long, acc: U,
+                          reducer: Reducer[K, V, U]): U = {
+        val t = table
+        val i = find(t, key)
+        if (i == NOT_FOUND) {
+            acc
+        } else if (i == RESIZING) {
+            awaitResize(t)
+            expire(key, currentTimeMillis, acc, reducer)
+        } else {
+            val s = t.states.get(i)
+            if (s == FROZEN) {
+                awaitResize(t)
+                expire(key, currentTimeMillis, acc, reducer)
+            } else if (s != IDLE || t.expirations.get(i) > currentTimeMillis) {
+                acc
+            } else if (t.states.compareAndSet(i, IDLE, DYING)) {
+                log.debug(s"Forgetting entry $key")
+                /* The following operations are precisely ordered as explained
+                 * in the header. */
+                val result = reducer(acc, key, t.values.get(i).asInstanceOf[V])
+                remove(key)
+                result
+            } else {
+                expire(key, currentTimeMillis, acc, reducer)
+            }
+        }
+    }
+
+    @tailrec
+    private def remove(key: K): Unit = {
+        val t = table
+        val i = find(t, key)
+        if (i == RESIZING) {
+            awaitResize(t)
+            remove(key)
+        } else if (i >= 0) {
+            if (t.states.compareAndSet(i, DYING, DEAD)) {
+                t.values.set(i, null)
+                t.keys.set(i, TOMBSTONE)
+                t.tombstones.incrementAndGet()
+            } else {
+                awaitResize(t)
+                remove(key)
+            }
+        }
+    }
+
+    private def scheduleExpiration(key: K, expiration: Long): Unit = {
+        while (true) {
+            val chunk = expiringTail.get
+            val i = chunk.claimed.getAndIncrement()
+            if (i < CHUNK_SIZE) {
+                chunk.times(i) = expiration
+                chunk.keys.set(i, key)
+                return
+            }
+            val next = chunk.next.get
+            if (next ne null) {
+                expiringTail.compareAndSet(chunk, next)
+            } else {
+                val chunk2 = new Chunk
+                if (chunk.next.compareAndSet(null, chunk2))
+                    expiringTail.compareAndSet(chunk, chunk2)
+            }
+        }
+    }
+
+    private def resize(t: Table): Unit = {
+        val live = t.used.get - t.tombstones.get
+        val newTable = new Table(capacityFor(live * 4))
+        if (t.next.compareAndSet(null, newTable)) {
+            log.debug(s"Resizing table of ${t.capacity} slots and $live " +
+                      s"entries to ${newTable.capacity} slots")
+            migrate(t, newTable)
+            table = newTable
+        } else {
+            awaitResize(t)
+        }
+    }
+
+    private def migrate(from: Table, to: Table): Unit = {
+        var i = 0
+        while (i < from.capacity) {
+            val k = from.keys.get(i)
+            if (k eq null) {
+                if (from.keys.compareAndSet(i, null, MOVED))
+                    i += 1
+            } else {
+                /* Spin on entries being initialized, and leave dead ones
+                 * behind. */
+                val s = from.states.get(i)
+                if (s == DEAD) {
+                    i += 1
+                } else if (s != INITIALIZING &&
+                           from.states.compareAndSet(i, s, FROZEN)) {
+                    transfer(to, k, from.values.get(i),
+                             from.expirations.get(i), s)
+                    i += 1
+                }
+            }
+        }
+    }
+
+    private def transfer(t: Table, key: AnyRef, value: AnyRef,
+                         expiration: Long, state: Int): Unit = {
+        var i = indexFor(key, t.mask)
+        while (t.keys.get(i) ne null) {
+            i = (i + 1) & t.mask
+        }
+        t.keys.set(i, key)
+        t.values.set(i, value)
+        t.expirations.set(i, expiration)
+        t.states.set(i, state)
+        t.used.incrementAndGet()
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.util.concurrent.{CountDownLatch, ThreadLocalRandom}
+
+import scala.concurrent.duration._
+
+import com.typesafe.scalalogging.Logger
+import org.slf4j.helpers.NOPLogger
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers, OneInstancePerTest}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.util.collection.Reducer
+
+@RunWith(classOf[JUnitRunner])
+class CompactTimedExpirationMapTest extends FeatureSpec
+                                    with Matchers
+                                    with OneInstancePerTest {
+
+    val log = Logger(NOPLogger.NOP_LOGGER)
+    val map = new CompactTimedExpirationMap[String, String](log, _ => 0 millis)
+
+    val counter = new Reducer[String, String, Int] {
+        override def apply(acc: Int, key: String, value: String): Int = acc + 1
+    }
+
+    feature("Normal operations") {
+        scenario("putAndRef and putIfAbsentAndRef") {
+            map.putAndRef("A", "X") should be (null)
+            map.putAndRef("A", "Y") should be ("X")
+            map get "A" should be ("Y")
+            map.putIfAbsentAndRef("A", "Z") should be ("Y")
+            map get "A" should be ("Y")
+            map refCount "A" should be (3)
+        }
+
+        scenario("ref and unref") {
+            map.ref("A") should be (null)
+            map.unref("A", 0) should be (null)
+            map.putIfAbsentAndRef("A", "X")
+            map.ref("A") should be ("X")
+            map refCount "A" should be (2)
+            map.unref("A", 0) should be ("X")
+            map.unref("A", 0) should be ("X")
+            map refCount "A" should be (0)
+            map.unref("A", 0) should be ("X")
+            map refCount "A" should be (0)
+        }
+
+        scenario("Idle entries expire after their expiration") {
+            val timedMap = new CompactTimedExpirationMap[String, String](
+                log, k => if (k == "A") 10 millis else 20 millis)
+            timedMap.putAndRef("A", "X")
+            timedMap.putAndRef("B", "Y")
+            timedMap.unref("A", 0)
+            timedMap.unref("B", 0)
+
+            timedMap.obliterateIdleEntries(9, 0, counter) should be (0)
+            timedMap.obliterateIdleEntries(10, 0, counter) should be (1)
+            timedMap get "A" should be (null)
+            timedMap get "B" should be ("Y")
+            timedMap.obliterateIdleEntries(20, 0, counter) should be (1)
+            timedMap get "B" should be (null)
+        }
+
+        scenario("Referenced entries don't expire") {
+            map.putAndRef("A", "X")
+            map.unref("A", 0)
+            map.ref("A") should be ("X")
+            map.obliterateIdleEntries(1, 0, counter) should be (0)
+            map get "A" should be ("X")
+
+            map.unref("A", 1)
+            map.obliterateIdleEntries(2, 0, counter) should be (1)
+            map.putAndRef("A", "Y") should be (null)
+            map refCount "A" should be (1)
+        }
+
+        scenario("obliterateIdleEntries blocks operations on the same key") {
+            map.putAndRef("A", "X")
+            map.unref("A", 0) should be ("X")
+
+            val latch = new CountDownLatch(1)
+            map.obliterateIdleEntries(1, "", new Reducer[String, String, String]() {
+                override def apply(acc: String, key: String,
+                                   value: String): String = {
+                    map.ref("A") should be (null)
+                    map.getRefCount("A") should be (-1)
+
+                    val started = new CountDownLatch(1)
+                    new Thread() {
+                        override def run() {
+                            started.countDown()
+                            map.putAndRef("A", "Y")
+                            latch.countDown()
+                        }
+                    }.start()
+
+                    started.await()
+                    var retries = 500
+                    while (retries > 0) {
+                        map.get("A") should be (null)
+                        retries -= 1
+                    }
+                    acc + key + value
+                }
+            }) should be ("AX")
+
+            latch.await()
+            map.get("A") should be ("Y")
+        }
+    }
+
+    feature("The table grows and drops its expired entries") {
+        scenario("Entries survive the table growing") {
+            val keys = 10000
+            for (i <- 0 until keys) {
+                map.putAndRef(i.toString, i.toString) should be (null)
+            }
+            for (i <- 0 until keys) {
+                map.get(i.toString) should be (i.toString)
+                map.refCount(i.toString) should be (1)
+            }
+            map.fold(0, counter) should be (keys)
+        }
+
+        scenario("Expired entries are dropped when resizing") {
+            for (round <- 0 until 20; i <- 0 until 1000) {
+                val key = s"$round-$i"
+                map.putAndRef(key, key)
+                map.unref(key, 0)
+                if (i % 100 == 0)
+                    map.obliterateIdleEntries(1)
+            }
+            map.obliterateIdleEntries(1)
+            map.fold(0, counter) should be (0)
+        }
+    }
+
+    feature("Correctness test") {
+        scenario("Reference counts are kept while entries are expired and " +
+                 "the table is resized") {
+            val stressMap = new CompactTimedExpirationMap[String, String](
+                log, _ => 0 millis, initialCapacity = 16)
+            val keys = (0 until 5000) map { _.toString } toArray
+            val operations = 1000000
+            val writers = 2
+
+            val refs = Array.fill(writers)(new Array[Int](keys.length))
+            val threads = new Array[Thread](writers + 1)
+            for (w <- 0 until writers) {
+                threads(w) = new Thread() {
+                    override def run() {
+                        val rand = ThreadLocalRandom.current()
+                        var i = 0
+                        while (i < operations) {
+                            val index = rand.nextInt(0, keys.length)
+                            val key = keys(index)
+                            if (rand.nextBoolean()) {
+                                stressMap.putAndRef(key, rand.nextInt().toString)
+                                refs(w)(index) += 1
+                            } else if (stressMap.ref(key) ne null) {
+                                refs(w)(index) += 1
+                            }
+                            i += 1
+                        }
+                    }
+                }
+            }
+
+            val unrefs = new Array[Int](keys.length)
+            threads(writers) = new Thread() {
+                override def run() {
+                    val rand = ThreadLocalRandom.current()
+                    var i = 0
+                    while (i < operations) {
+                        val index = rand.nextInt(0, keys.length)
+                        val key = keys(index)
+                        if (rand.nextInt(10) < 7) {
+                            if (stressMap.getRefCount(key) > 0) {
+                                stressMap.unref(key, 0)
+                                unrefs(index) += 1
+                            }
+                        } else {
+                            stressMap.obliterateIdleEntries(1)
+                        }
+                        i += 1
+                    }
+                }
+            }
+
+            threads foreach (_.start())
+            threads foreach (_.join())
+
+            for (i <- keys.indices) {
+                val count = refs.map(_(i)).sum - unrefs(i)
+                stressMap.getRefCount(keys(i)) should be (count)
+                for (j <- 0 until count)
+                    stressMap.unref(keys(i), 0)
+            }
+            stressMap.obliterateIdleEntries(1)
+            stressMap.fold(0, counter) should be (0)
+        }
+    }
+}
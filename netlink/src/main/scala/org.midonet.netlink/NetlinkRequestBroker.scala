@@ -26,6 +26,7 @@ import rx.Observer
 
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.Util
+import org.midonet.util.cLibrary
 import org.midonet.util.concurrent.NanoClock
 
 object NetlinkRequestBroker {
@@ -242,14 +243,25 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
     /**
      * Processes a reply - a stream of ByteBuffers - if one is available.
      * Any reply that doesn't match a valid sequence number is passed on to
-     * the optional unhandled Observer. Returns the number of bytes read.
+     * the optional unhandled Observer. A read may hold the replies to several
+     * requests, each of which is completed or failed on its own. Returns the
+     * number of bytes read.
      */
     @throws(classOf[IOException])
     def readReply(unhandled: Observer[ByteBuffer] = NOOP): Int = {
         try {
-            val nbytes = reader.read(readBuf)
-            readBuf.flip()
             var start = 0
+            val nbytes = try {
+                reader.read(readBuf)
+            } catch { case e: NetlinkException if e.getSeq != -1 =>
+                // The reader only checks the first reply of a read, so the
+                // replies that follow the failed one are still handled below.
+                failRequest(e.getSeq, e, unhandled)
+                start = readBuf.getInt(NetlinkMessage.NLMSG_LEN_OFFSET)
+                readBuf.position()
+            }
+            readBuf.flip()
+            readBuf.position(math.min(start, readBuf.limit()))
             while (readBuf.remaining() >= NetlinkMessage.HEADER_SIZE) {
                 val size = readBuf.getInt(start + NetlinkMessage.NLMSG_LEN_OFFSET)
                 handleReply(readBuf, unhandled, start, size)
@@ -259,10 +271,11 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
             advanceReadSeqAndCheckTimeouts()
             nbytes
         } catch { case e: NetlinkException =>
-            val pos = readBuf.getInt(NetlinkMessage.NLMSG_SEQ_OFFSET)
-            val obs = getObserver(pos, unhandled)
-            freeObserver(pos)
-            obs.onError(e)
+            // A truncated read: only the header of its first reply is known.
+            val pos = if (readBuf.position() >= NetlinkMessage.HEADER_SIZE)
+                          readBuf.getInt(NetlinkMessage.NLMSG_SEQ_OFFSET)
+                      else e.getSeq
+            failRequest(pos, e, unhandled)
             0
         } finally {
             readBuf.clear()
@@ -289,18 +302,46 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
             if (NLFlag.isMultiFlagSet(flags)) {
                 return
             }
+        } else if (`type` == NLMessageType.ERROR &&
+                   size >= NetlinkMessage.NLMSG_ERROR_OFFSET + 4) {
+            val error = readBuf.getInt(start + NetlinkMessage.NLMSG_ERROR_OFFSET)
+            if (error != 0) {
+                failRequest(pos, new NetlinkException(
+                    -error, cLibrary.lib.strerror(-error), pos), unhandled)
+                return
+            }
         }
 
         freeObserver(pos)
         obs.onCompleted()
     }
 
+    private def failRequest(pos: Int, e: NetlinkException,
+                            unhandled: Observer[ByteBuffer]): Unit = {
+        val obs = getObserver(pos, unhandled)
+        freeObserver(pos)
+        obs.onError(e)
+    }
+
     private def getObserver(pos: Int, unhandled: Observer[ByteBuffer]) =
-        observers(pos) match {
-            case null => unhandled
-            case obs => obs
+        if (isOwnPosition(pos)) {
+            observers(pos) match {
+                case null => unhandled
+                case obs => obs
+            }
+        } else {
+            unhandled
         }
 
+    /**
+     * Whether a Netlink sequence number may belong to a request issued through
+     * this broker. Requests written to the same channel by other means should
+     * use sequence numbers outside [0, capacity), so that their replies are
+     * passed on to the unhandled Observer.
+     */
+    private def isOwnPosition(pos: Int): Boolean =
+        pos >= 0 && pos < capacity
+
     private def advanceReadSeqAndCheckTimeouts(): Unit = {
         val currentTime = clock.tick
         var seq = readSequence
@@ -325,10 +366,11 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
             false
         }
 
-    private def freeObserver(pos: Int): Unit = {
-        observers(pos) = null
-        expirations(pos) = Long.MaxValue
-    }
+    private def freeObserver(pos: Int): Unit =
+        if (isOwnPosition(pos)) {
+            observers(pos) = null
+            expirations(pos) = Long.MaxValue
+        }
 
     private def isAvailable(seq: Long): Boolean =
         publishedSequences.get(position(seq)) == availabilityFlag(seq)
@@ -12,6 +12,7 @@ import rx.Observer
 
 import org.midonet.util.concurrent.MockClock
 import org.midonet.netlink.Netlink.Address
+import org.midonet.netlink.exceptions.NetlinkException
 
 @RunWith(classOf[JUnitRunner])
 class NetlinkRequestBrokerTest extends FeatureSpec
@@ -228,6 +229,52 @@ class NetlinkRequestBrokerTest extends FeatureSpec
             obs.onCompletedCalls should be (1)
         }
 
+        scenario ("An error for a foreign sequence number is passed into a catch-all Observer") {
+            val foreignSeq = 1 << 30
+            val obs = new CountingObserver {
+                override def onError(t: Throwable) = {
+                    t.asInstanceOf[NetlinkException].getSeq should be (foreignSeq)
+                    super.onError(t)
+                }
+            }
+
+            val size = NetlinkMessage.NLMSG_ERROR_SIZE + NetlinkMessage.NLMSG_ERROR_HEADER_SIZE
+            NetlinkMessage.writeHeader(replyBuf, size, NLMessageType.ERROR, 0, foreignSeq, 0, 0, 0)
+            replyBuf.putInt(NetlinkMessage.NLMSG_ERROR_OFFSET, -17)
+            replyBuf.limit(size)
+
+            broker.readReply(obs)
+            obs.onErrorCalls should be (1)
+        }
+
+        scenario ("Each of the replies in a read is completed or failed") {
+            val obs = Array.fill(3)(new CountingObserver)
+            val seqs = obs map { o =>
+                val seq = broker.nextSequence()
+                broker.publishRequest(seq, o)
+                seq.toInt
+            }
+            broker.writePublishedRequests()
+
+            val size = NetlinkMessage.NLMSG_ERROR_SIZE + NetlinkMessage.NLMSG_ERROR_HEADER_SIZE
+            Seq(seqs(1) -> -17, seqs(0) -> 0, seqs(2) -> -24) foreach {
+                case (seq, error) =>
+                    val start = replyBuf.position()
+                    NetlinkMessage.writeHeader(replyBuf, size, NLMessageType.ERROR, 0, seq, 0, 0, 0)
+                    replyBuf.putInt(start + NetlinkMessage.NLMSG_ERROR_OFFSET, error)
+                    replyBuf.position(start + size)
+            }
+            replyBuf.flip()
+
+            broker.readReply()
+            obs(0).onCompletedCalls should be (1)
+            obs(0).onErrorCalls should be (0)
+            obs(1).onErrorCalls should be (1)
+            obs(1).onCompletedCalls should be (0)
+            obs(2).onErrorCalls should be (1)
+            obs(2).onCompletedCalls should be (0)
+        }
+
         scenario ("A truncated packet is detected") {
             val obs = new CountingObserver {
                 override def onError(t: Throwable) = {
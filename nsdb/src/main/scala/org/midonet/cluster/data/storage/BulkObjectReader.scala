@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster.data.storage
+
+import java.util.concurrent.Executor
+
+import scala.util.control.NonFatal
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.api.{BackgroundCallback, CuratorEvent}
+import org.apache.zookeeper.KeeperException
+import org.apache.zookeeper.KeeperException.Code
+import rx.Observable.OnSubscribe
+import rx.{Producer, Subscriber}
+
+import org.midonet.cluster.data.ObjId
+
+/**
+ * Reads the objects with the given IDs for each subscriber, emitting them in
+ * the order of the IDs. ZooKeeper has no batched read, so the reads are
+ * pipelined: up to `window` background reads are issued at once, and each
+ * object that is emitted makes room for the read of the next one. An object
+ * holds its slot of the window from the moment it is requested until it is
+ * emitted, so no more than `window` objects are in memory at any time,
+ * whatever the number of IDs.
+ *
+ * The reads follow the demand of the subscriber: no more objects are read
+ * than it has requested, so a slow subscriber holds back the reads instead
+ * of having the objects queue up for it.
+ *
+ * The data of the nodes is deserialized on the given executor rather than on
+ * the Curator event thread, which is then free to complete the other reads.
+ * The stream fails with a NotFoundException if any of the objects does not
+ * exist, and stops issuing reads when the subscriber unsubscribes.
+ */
+private[storage] class BulkObjectReader[T](curator: CuratorFramework,
+                                           clazz: Class[T],
+                                           ids: IndexedSeq[ObjId],
+                                           path: ObjId => String,
+                                           deserialize: Array[Byte] => T,
+                                           executor: Executor,
+                                           window: Int)
+    extends OnSubscribe[T] {
+
+    override def call(child: Subscriber[_ >: T]): Unit = {
+        new Read(child).start()
+    }
+
+    /** The state of the reads for one subscriber, guarded by its monitor. */
+    private class Read(child: Subscriber[_ >: T])
+        extends BackgroundCallback with Producer {
+
+        private val slots = new Array[AnyRef](Math.max(1, window))
+        private var issued = 0
+        private var emitted = 0
+        private var requested = 0L
+        private var draining = false
+        private var done = false
+
+        def start(): Unit = {
+            if (ids.isEmpty) synchronized {
+                done = true
+                child.onCompleted()
+            } else {
+                child.setProducer(this)
+            }
+        }
+
+        override def request(n: Long): Unit = synchronized {
+            if (n > 0 && !done) {
+                requested = if (requested + n < 0) Long.MaxValue
+                            else requested + n
+                drain()
+            }
+        }
+
+        override def processResult(client: CuratorFramework,
+                                   event: CuratorEvent): Unit = {
+            val index = event.getContext.asInstanceOf[Int]
+            if (event.getResultCode == Code.OK.intValue) {
+                val data = event.getData
+                try {
+                    executor.execute(new Runnable {
+                        override def run(): Unit = {
+                            try completed(index, deserialize(data)) catch {
+                                case NonFatal(e) => fail(e)
+                            }
+                        }
+                    })
+                } catch {
+                    case NonFatal(e) => fail(new InternalObjectMapperException(e))
+                }
+            } else if (event.getResultCode == Code.NONODE.intValue) {
+                fail(new NotFoundException(clazz, ids(index)))
+            } else {
+                fail(KeeperException.create(Code.get(event.getResultCode),
+                                            event.getPath))
+            }
+        }
+
+        /** Issues the read of the next object, which must fit the window. */
+        private def issue(): Unit = {
+            val index = issued
+            issued += 1
+            try {
+                curator.getData.inBackground(this, Int.box(index))
+                       .forPath(path(ids(index)))
+            } catch {
+                case NonFatal(e) => fail(new InternalObjectMapperException(e))
+            }
+        }
+
+        /** Stores a read object and emits all objects now in order. */
+        private def completed(index: Int, obj: T): Unit = synchronized {
+            if (done) return
+            slots(index % slots.length) = obj.asInstanceOf[AnyRef]
+            drain()
+        }
+
+        /**
+         * Emits the objects that were read, in order, as long as the
+         * subscriber requested them, and then issues the reads that fit both
+         * the window and the outstanding demand. The subscriber may request
+         * more from onNext, in which case the loop that is already running
+         * picks up the new demand.
+         */
+        private def drain(): Unit = {
+            if (draining) return
+            draining = true
+            try {
+                var slot = emitted % slots.length
+                while (!done && requested > 0 && (slots(slot) ne null)) {
+                    val next = slots(slot).asInstanceOf[T]
+                    slots(slot) = null
+                    emitted += 1
+                    if (requested != Long.MaxValue) requested -= 1
+                    if (child.isUnsubscribed) {
+                        done = true
+                    } else {
+                        child.onNext(next)
+                        if (emitted == ids.size) {
+                            done = true
+                            child.onCompleted()
+                        }
+                    }
+                    slot = emitted % slots.length
+                }
+                while (!done && issued < ids.size &&
+                       issued - emitted < slots.length &&
+                       issued - emitted < requested) {
+                    issue()
+                }
+            } finally {
+                draining = false
+            }
+        }
+
+        private def fail(e: Throwable): Unit = synchronized {
+            if (!done) {
+                done = true
+                child.onError(e)
+            }
+        }
+    }
+}
@@ -27,6 +27,7 @@ import scala.collection.mutable
 import scala.concurrent.ExecutionContext.fromExecutorService
 import scala.concurrent.Future
 import scala.concurrent.duration._
+import scala.util.{Failure, Success}
 
 import org.apache.zookeeper.KeeperException.BadVersionException
 import rx.Observable.OnSubscribe
@@ -469,6 +470,30 @@ class InMemoryStorage extends StorageWithOwnership {
         classes.get(clazz).asInstanceOf[ClassNode[T]].getAll
     }
 
+    override def streamAll[T](clazz: Class[T],
+                              ids: Seq[_ <: ObjId]): Observable[T] = {
+        streamOf(getAll(clazz, ids))
+    }
+
+    override def streamAll[T](clazz: Class[T]): Observable[T] = {
+        streamOf(getAll(clazz))
+    }
+
+    /** Emits the instances of a read for each subscriber, since the in-memory
+      * instances are read at once. */
+    private def streamOf[T](objs: => Future[Seq[T]]): Observable[T] = {
+        Observable.create(new OnSubscribe[T] {
+            override def call(child: Subscriber[_ >: T]): Unit = {
+                objs.onComplete {
+                    case Success(all) =>
+                        all.foreach(child.onNext)
+                        child.onCompleted()
+                    case Failure(e) => child.onError(e)
+                }(CallingThreadExecutionContext)
+            }
+        })
+    }
+
     override def getOwners(clazz: Class[_], id: ObjId): Future[Set[String]] = {
         assertBuilt()
         assert(isRegistered(clazz))
@@ -18,6 +18,8 @@ package org.midonet.cluster.data.storage
 
 import scala.concurrent.Future
 
+import rx.Observable
+
 import org.midonet.cluster.data.ObjId
 
 /**
@@ -47,6 +49,21 @@ trait ReadOnlyStorage {
      */
     def getAll[T](clazz: Class[T]): Future[Seq[T]]
 
+    /**
+     * Reads the specified instances of the specified class for each
+     * subscriber, emitting them in the order of the identifiers. Unlike
+     * getAll(), the instances are emitted as they are read and need not all
+     * be held in memory at once. The observable fails if any of the requested
+     * instances cannot be retrieved.
+     */
+    def streamAll[T](clazz: Class[T], ids: Seq[_ <: ObjId]): Observable[T]
+
+    /**
+     * Reads all instances of the specified class for each subscriber,
+     * emitting them as they are read.
+     */
+    def streamAll[T](clazz: Class[T]): Observable[T]
+
     /**
      * Asynchronous method that indicated if the specified object exists in the
      * storage.
@@ -17,7 +17,7 @@ package org.midonet.cluster.data.storage
 
 import java.io.StringWriter
 import java.lang.{Long => JLong}
-import java.util.concurrent.Executors
+import java.util.concurrent.{Executors, LinkedBlockingQueue, ThreadPoolExecutor, TimeUnit}
 import java.util.concurrent.atomic.AtomicLong
 import java.util.ConcurrentModificationException
 
@@ -43,11 +43,13 @@ import org.apache.zookeeper.data.Stat
 import org.codehaus.jackson.JsonFactory
 import org.codehaus.jackson.map.ObjectMapper
 import org.slf4j.LoggerFactory
-import rx.Observable
+import rx.Observable.OnSubscribe
+import rx.{Observable, Subscriber}
 
 import org.midonet.cluster.data.storage.OwnershipType.OwnershipType
 import org.midonet.cluster.data.storage.TransactionManager._
 import org.midonet.cluster.data.{Obj, ObjId}
+import org.midonet.util.concurrent.NamedThreadFactory
 import org.midonet.util.reactivex._
 
 /**
@@ -131,6 +133,17 @@ class ZookeeperObjectMapper(
     private implicit val executionContext =
         ExecutionContext.fromExecutorService(executor)
 
+    // Deserializes the instances of bulk reads off the Curator event thread.
+    private val deserializer = {
+        val threads = Runtime.getRuntime.availableProcessors
+        val pool = new ThreadPoolExecutor(
+            threads, threads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue[Runnable],
+            new NamedThreadFactory("zoom-deserializer"))
+        pool.allowCoreThreadTimeOut(true)
+        pool
+    }
+
     private val simpleNameToClass = new mutable.HashMap[String, Class[_]]()
 
     private val instanceCaches = new mutable.HashMap[
@@ -526,39 +539,80 @@ class ZookeeperObjectMapper(
 
     override def getAll[T](clazz: Class[T], ids: Seq[_ <: ObjId])
     : Future[Seq[T]] = {
-        assertBuilt()
-        assert(isRegistered(clazz))
-        Future.sequence(ids.map(get(clazz, _)))
+        collect(streamAll(clazz, ids), ids.size)
     }
 
     /**
      * Gets all instances of the specified class from Zookeeper.
      */
     override def getAll[T](clazz: Class[T]): Future[Seq[T]] = {
+        collect(streamAll(clazz), 16)
+    }
+
+    /**
+     * Reads the specified instances of the specified class with a window of
+     * BULK_READ_WINDOW pipelined Zookeeper reads, deserializing them on a
+     * bounded pool of threads. The instance caches are bypassed, as the
+     * instances are read in bulk.
+     */
+    override def streamAll[T](clazz: Class[T], ids: Seq[_ <: ObjId])
+    : Observable[T] = {
         assertBuilt()
         assert(isRegistered(clazz))
 
-        val all = Promise[Seq[T]]()
-        val cb = new BackgroundCallback {
-            override def processResult(client: CuratorFramework,
-                                       evt: CuratorEvent): Unit = {
-                assert(CuratorEventType.CHILDREN == evt.getType)
-                getAll(clazz, evt.getChildren).onComplete {
-                    case Success(l) => all trySuccess l
-                    case Failure(t) => all tryFailure t
+        Observable.create(new BulkObjectReader[T](
+            curator, clazz, ids.toIndexedSeq, id => getPath(clazz, id),
+            deserialize(_, clazz), deserializer, BULK_READ_WINDOW))
+    }
+
+    /**
+     * Lists the instances of the specified class in Zookeeper for each
+     * subscriber, and then reads them as streamAll(clazz, ids) does.
+     */
+    override def streamAll[T](clazz: Class[T]): Observable[T] = {
+        assertBuilt()
+        assert(isRegistered(clazz))
+
+        Observable.create(new OnSubscribe[T] {
+            override def call(child: Subscriber[_ >: T]): Unit = {
+                val cb = new BackgroundCallback {
+                    override def processResult(client: CuratorFramework,
+                                               evt: CuratorEvent): Unit = {
+                        assert(CuratorEventType.CHILDREN == evt.getType)
+                        if (evt.getResultCode == Code.OK.intValue) {
+                            streamAll(clazz, evt.getChildren.asScala)
+                                .subscribe(child)
+                        } else {
+                            child.onError(KeeperException.create(
+                                Code.get(evt.getResultCode), evt.getPath))
+                        }
+                    }
+                }
+
+                try {
+                    curator.getChildren.inBackground(cb).forPath(getPath(clazz))
+                } catch {
+                    case ex: Exception =>
+                        // Should have created this during class registration.
+                        child.onError(new InternalObjectMapperException(
+                            s"Node ${getPath(clazz)} does not exist in " +
+                            "Zookeeper.", ex))
                 }
             }
-        }
+        })
+    }
 
-        try {
-            curator.getChildren.inBackground(cb).forPath(getPath(clazz))
-        } catch {
-            case ex: Exception =>
-                // Should have created this during class registration.
-                throw new InternalObjectMapperException(
-                    s"Node ${getPath(clazz)} does not exist in Zookeeper.", ex)
-        }
-        all.future
+    /** Collects the instances emitted by a bulk read into a future. */
+    private def collect[T](objs: Observable[T], sizeHint: Int)
+    : Future[Seq[T]] = {
+        val p = Promise[Seq[T]]()
+        val all = new mutable.ArrayBuffer[T](sizeHint)
+        objs.subscribe(new Subscriber[T] {
+            override def onNext(obj: T): Unit = all += obj
+            override def onCompleted(): Unit = p.success(all)
+            override def onError(e: Throwable): Unit = p.failure(e)
+        })
+        p.future
     }
 
     @throws[NotFoundException]
@@ -748,6 +802,12 @@ object ZookeeperObjectMapper {
     private val VERSION_NODE = "dataset_version"
     private val INITIAL_ZOOM_DATA_SET_VERSION = 1
 
+    /* The maximum number of instances being read at once by a bulk read,
+     * which bounds both the outstanding requests it sends to Zookeeper and
+     * the instances it holds in memory.
+     */
+    private val BULK_READ_WINDOW = 500
+
     private[storage] final class MessageClassInfo(clazz: Class[_],
                                                   ownershipType: OwnershipType)
         extends ClassInfo(clazz, ownershipType) {
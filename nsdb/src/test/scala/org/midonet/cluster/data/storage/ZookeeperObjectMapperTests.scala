@@ -348,6 +348,138 @@ class ZookeeperObjectMapperTests extends Suite
         twoChains.map(_.getName) should equal(List("chain0", "chain1"))
     }
 
+    def testMultiIdGetNonExistingObject() {
+        val chain = pojoChain("chain0")
+        zom.create(chain)
+        val id = UUID.randomUUID
+        try {
+            await(zom.getAll(classOf[PojoChain], List(chain.id, id)))
+            fail("Getting a non-existing chain should fail.")
+        } catch {
+            case nfe: NotFoundException =>
+                nfe.clazz shouldBe classOf[PojoChain]
+                nfe.id shouldBe id
+        }
+    }
+
+    def testStreamAllInOrder() {
+        val chains = (0 until 20).map(i => pojoChain("chain" + i))
+        zom.multi(chains.map(CreateOp))
+        val ids = chains.reverse.map(_.id) :+ chains(3).id
+        val obs = new TestObserver[PojoChain] with AwaitableObserver[PojoChain]
+        zom.streamAll(classOf[PojoChain], ids).subscribe(obs)
+        obs.awaitCompletion(5 seconds)
+        obs.getOnErrorEvents shouldBe empty
+        obs.getOnNextEvents.asScala.map(_.id) shouldBe ids
+    }
+
+    def testStreamAllOfClass() {
+        val chains = List("chain0", "chain1", "chain2").map(pojoChain)
+        zom.multi(chains.map(CreateOp))
+        val obs = new TestObserver[PojoChain] with AwaitableObserver[PojoChain]
+        zom.streamAll(classOf[PojoChain]).subscribe(obs)
+        obs.awaitCompletion(5 seconds)
+        val names = List("chain0", "chain1", "chain2")
+        val all = await(zom.getAll(classOf[PojoChain]))
+        val streamed = obs.getOnNextEvents.asScala.map(_.name)
+        streamed should contain theSameElementsAs names
+        all.map(_.name) should contain theSameElementsAs names
+    }
+
+    def testStreamAllEmpty() {
+        val obs = new TestObserver[PojoChain] with AwaitableObserver[PojoChain]
+        zom.streamAll(classOf[PojoChain], Seq.empty[UUID]).subscribe(obs)
+        obs.awaitCompletion(1 second)
+        obs.getOnNextEvents shouldBe empty
+        obs.getOnCompletedEvents should have size 1
+    }
+
+    def testStreamAllNonExistingObject() {
+        val chains = List("chain0", "chain1").map(pojoChain)
+        zom.multi(chains.map(CreateOp))
+        val id = UUID.randomUUID
+        val obs = new TestObserver[PojoChain] with AwaitableObserver[PojoChain]
+        zom.streamAll(classOf[PojoChain], List(chains(0).id, id, chains(1).id))
+           .subscribe(obs)
+        obs.awaitCompletion(5 seconds)
+        // The failure may arrive before the first chain is emitted.
+        obs.getOnNextEvents.asScala.map(_.name) should not contain "chain1"
+        obs.getOnErrorEvents.get(0) match {
+            case nfe: NotFoundException => nfe.id shouldBe id
+            case e => fail("Unexpected error " + e)
+        }
+    }
+
+    def testBulkReadHoldsAtMostTheWindow() {
+        val chains = (0 until 50).map(i => pojoChain("chain" + i))
+        zom.multi(chains.map(CreateOp))
+        val window = 4
+        val read = new atomic.AtomicInteger
+        val executor = Executors.newFixedThreadPool(4)
+        val reader = new BulkObjectReader[PojoChain](
+            curator, classOf[PojoChain], chains.map(_.id),
+            id => zom.getPath(classOf[PojoChain], id),
+            data => {
+                read.incrementAndGet()
+                ZookeeperObjectMapper.deserialize(data, classOf[PojoChain])
+            }, executor, window)
+        var held = 0
+        val obs = new TestObserver[PojoChain] with AwaitableObserver[PojoChain] {
+            override def onNext(chain: PojoChain): Unit = {
+                held = Math.max(held, read.get - getOnNextEvents.size)
+                super.onNext(chain)
+            }
+        }
+        try {
+            rx.Observable.create(reader).subscribe(obs)
+            obs.awaitCompletion(5 seconds)
+        } finally {
+            executor.shutdown()
+        }
+        obs.getOnNextEvents.asScala.map(_.id) shouldBe chains.map(_.id)
+        held should be <= window
+    }
+
+    def testBulkReadFollowsTheDemand() {
+        val chains = (0 until 20).map(i => pojoChain("chain" + i))
+        zom.multi(chains.map(CreateOp))
+        val read = new atomic.AtomicInteger
+        val executor = Executors.newFixedThreadPool(4)
+        val requester = Executors.newSingleThreadScheduledExecutor()
+        val reader = new BulkObjectReader[PojoChain](
+            curator, classOf[PojoChain], chains.map(_.id),
+            id => zom.getPath(classOf[PojoChain], id),
+            data => {
+                read.incrementAndGet()
+                ZookeeperObjectMapper.deserialize(data, classOf[PojoChain])
+            }, executor, 8)
+        val received = new ConcurrentLinkedQueue[PojoChain]()
+        val completed = new CountDownLatch(1)
+        @volatile var ahead = 0
+        // Requests one object at a time, some time after receiving the last
+        val subscriber = new rx.Subscriber[PojoChain] {
+            override def onStart(): Unit = request(1)
+            override def onNext(chain: PojoChain): Unit = {
+                ahead = Math.max(ahead, read.get - received.size)
+                received.add(chain)
+                requester.schedule(new Runnable {
+                    override def run(): Unit = request(1)
+                }, 5, TimeUnit.MILLISECONDS)
+            }
+            override def onCompleted(): Unit = completed.countDown()
+            override def onError(e: Throwable): Unit = completed.countDown()
+        }
+        try {
+            rx.Observable.create(reader).subscribe(subscriber)
+            completed.await(5, TimeUnit.SECONDS) shouldBe true
+        } finally {
+            executor.shutdown()
+            requester.shutdown()
+        }
+        received.asScala.map(_.id).toSeq shouldBe chains.map(_.id)
+        ahead shouldBe 1
+    }
+
     def testCreateAndUpdateJava(): Unit = {
         val bridge = pojoBridge()
         zom.create(bridge)
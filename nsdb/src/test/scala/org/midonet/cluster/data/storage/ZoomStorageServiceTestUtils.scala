@@ -138,6 +138,15 @@ trait ZoomStorageTester extends StorageTester
         zoom.getAll(clazz)
     }
 
+    override def streamAll[T](clazz: Class[T],
+                              ids: Seq[_ <: ObjId]): Observable[T] = {
+        zoom.streamAll(clazz, ids)
+    }
+
+    override def streamAll[T](clazz: Class[T]): Observable[T] = {
+        zoom.streamAll(clazz)
+    }
+
     override def exists(clazz: Class[_], id: ObjId): Future[Boolean] = {
         zoom.exists(clazz, id)
     }
@@ -144,6 +144,28 @@ public class FlowMask extends NetlinkSerializable
         return keys[keyId & MASK];
     }
 
+    /**
+     * Returns a key identifying the flow mask that calculateFor() would
+     * produce for the specified FlowMatch: the mask only depends on the
+     * fields that were seen and, for the upper layers, on the EtherType and
+     * the network protocol of the match. FlowMatches with the same key have
+     * the same flow mask.
+     */
+    public static long shapeOf(FlowMatch fmatch) {
+        long shape = fmatch.getSeenFields() & fmatch.getUsedFields();
+        short highestLayer = fmatch.highestLayerSeen();
+        if (highestLayer >= 3) {
+            short ethertype = fmatch.getEtherType();
+            shape |= (ethertype & 0xffffL) << 32;
+            if (highestLayer >= 4 &&
+                (ethertype == org.midonet.packets.IPv4.ETHERTYPE ||
+                 ethertype == org.midonet.packets.IPv6.ETHERTYPE)) {
+                shape |= (fmatch.getNetworkProto() & 0xffL) << 48;
+            }
+        }
+        return shape;
+    }
+
     /**
      * Calculate the flow mask from the specified FlowMatch.
      * The input port is always an exact match.
@@ -15,6 +15,7 @@
  */
 package org.midonet.odp;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -25,12 +26,21 @@ import javax.annotation.Nullable;
 
 import com.google.common.primitives.Longs;
 
+import org.midonet.netlink.AttributeHandler;
+import org.midonet.netlink.BytesUtil;
+import org.midonet.netlink.NetlinkMessage;
 import org.midonet.odp.flows.*;
 import org.midonet.packets.*;
 
 /**
  * An ovs datapath flow match object. Contains a list of FlowKey instances.
  *
+ * The match of a kernel upcall is read straight from the netlink attributes
+ * of its keys into its fields, through key instances that the match reuses
+ * across upcalls, so that it can be recycled along with its packet. Such a
+ * match keeps the attributes it was read from, which it serializes as is,
+ * and only builds its list of keys when it is asked for.
+ *
  * @see FlowKey
  * @see org.midonet.odp.flows.FlowKeys
  */
@@ -341,7 +351,15 @@ public class FlowMatch {
     protected long seenFields = 0;
 
     private final ArrayList<FlowKey> keys = new ArrayList<>();
+    // The netlink attributes of the keys of a match read from an upcall,
+    // which stand for the list of keys while keyBytesLength isn't negative.
+    private byte[] keyBytes;
+    private int keyBytesLength = -1;
+    // The keys that the attributes are decoded into, reused across upcalls.
+    private FlowKey[] decodedKeys;
+    private AttributeHandler keyDecoder;
     private int hashCode = 0;
+    private long longHashCode = 0L;
     private int connectionHash = 0;
 
     public FlowMatch() { }
@@ -351,17 +369,120 @@ public class FlowMatch {
     }
 
     public FlowMatch addKey(FlowKey key) {
+        buildKeys();
         keys.add(FlowKeys.intern(key));
         processMatchKey(key);
         invalidateHashCode();
         return this;
     }
 
+    /**
+     * Returns the keys of this match, building them from the netlink
+     * attributes the match was read from, if any. The match is then
+     * serialized from the returned list, which callers may modify.
+     */
     @Nonnull
     public ArrayList<FlowKey> getKeys() {
+        buildKeys();
         return keys;
     }
 
+    /**
+     * Resets this match to the keys serialized as netlink attributes in the
+     * buffer, as found in the key attribute of an upcall. The keys are
+     * decoded straight into the fields of the match, and their attributes
+     * are kept in place of the list of keys. The position of the buffer is
+     * left unchanged.
+     */
+    public FlowMatch deserializeFrom(ByteBuffer buf) {
+        clear();
+        if (keyDecoder == null) {
+            decodedKeys = new FlowKey[OpenVSwitch.FlowKey.Attr.MAX];
+            keyDecoder = new AttributeHandler() {
+                @Override
+                public void use(ByteBuffer buffer, short id) {
+                    decodeKey(buffer, id);
+                }
+            };
+        }
+        NetlinkMessage.scanAttributes(buf, keyDecoder);
+        int length = buf.remaining();
+        if (keyBytes == null || keyBytes.length < length)
+            keyBytes = new byte[length];
+        int start = buf.position();
+        buf.get(keyBytes, 0, length);
+        buf.position(start);
+        keyBytesLength = length;
+        return this;
+    }
+
+    private void decodeKey(ByteBuffer buf, short id) {
+        if (id >= decodedKeys.length)
+            return;
+
+        FlowKey key;
+        if (id == OpenVSwitch.FlowKey.Attr.Encap) {
+            // The encapsulated keys are added to the key, so it isn't reused.
+            key = FlowKeys.newBlankInstance(id);
+        } else {
+            key = decodedKeys[id];
+            if (key == null)
+                key = decodedKeys[id] = FlowKeys.newBlankInstance(id);
+            else
+                key.wildcard(); // Nested attributes may be absent
+        }
+        if (key == null)
+            return;
+
+        key.deserializeFrom(buf);
+        processMatchKey(key);
+    }
+
+    private void buildKeys() {
+        if (keyBytesLength < 0)
+            return;
+
+        FlowKeys.buildFrom(BytesUtil.instance.sliceOf(
+            ByteBuffer.wrap(keyBytes, 0, keyBytesLength)), keys);
+        for (int i = 0; i < keys.size(); ++i) {
+            keys.set(i, FlowKeys.intern(keys.get(i)));
+        }
+        keyBytesLength = -1;
+    }
+
+    /**
+     * Serializes the keys of this match as a sequence of netlink attributes.
+     * A match read from netlink attributes whose keys weren't asked for
+     * writes those attributes as is, without building its keys, so that
+     * the match can be serialized from several threads at once, as when
+     * creating the flow of a packet while executing it.
+     */
+    public int serializeKeysInto(ByteBuffer buf) {
+        if (keyBytesLength >= 0) {
+            int start = buf.position();
+            buf.put(keyBytes, 0, keyBytesLength);
+            NetlinkMessage.alignBuffer(buf);
+            return buf.position() - start;
+        }
+        int nbytes = 0;
+        for (int i = 0; i < keys.size(); ++i) {
+            nbytes += NetlinkMessage.writeAttr(buf, keys.get(i),
+                                               FlowKeys.writer);
+        }
+        return nbytes;
+    }
+
+    /**
+     * Whether this match has the keys of an ICMP packet as the kernel
+     * reports them, lacking the fields only set in userspace, which are
+     * taken from the packet itself.
+     */
+    public boolean needsUserspaceKeys() {
+        return networkProto == ICMP.PROTOCOL_NUMBER
+               && (usedFields & (1L << Field.SrcPort.ordinal())) != 0
+               && (usedFields & userspaceFieldsMask) == 0;
+    }
+
     public FlowMatch addKeys(@Nonnull Iterable<FlowKey> keys) {
         for (FlowKey key : keys) {
             addKey(key);
@@ -384,6 +505,15 @@ public class FlowMatch {
         seenFields |= trackSeenFields << field.ordinal();
     }
 
+    /**
+     * Replaces the set of Fields that have been read from this instance, so
+     * that the fields read by a stage of the simulation can be told apart
+     * from the ones read before it.
+     */
+    public void setSeenFields(long fields) {
+        seenFields = fields;
+    }
+
     public final void fieldUnseen(Field field) {
         seenFields &= ~(1L << field.ordinal());
     }
@@ -491,7 +621,16 @@ public class FlowMatch {
         trackSeenFields = that.trackSeenFields;
         seenFields = that.seenFields;
         keys.clear();
-        keys.addAll(that.keys);
+        if (that.keyBytesLength >= 0) {
+            if (keyBytes == null || keyBytes.length < that.keyBytesLength)
+                keyBytes = new byte[that.keyBytesLength];
+            System.arraycopy(that.keyBytes, 0, keyBytes, 0,
+                             that.keyBytesLength);
+            keyBytesLength = that.keyBytesLength;
+        } else {
+            keyBytesLength = -1;
+            keys.addAll(that.keys);
+        }
         invalidateHashCode();
     }
 
@@ -511,6 +650,7 @@ public class FlowMatch {
         this.trackSeenFields = 1;
         this.seenFields = 0;
         keys.clear();
+        keyBytesLength = -1;
         invalidateHashCode();
     }
 
@@ -785,8 +925,9 @@ public class FlowMatch {
         if (o == null || !(o instanceof FlowMatch)) return false;
 
         FlowMatch that = (FlowMatch) o;
-        for (Field f : fields) {
-            if (isUsed(f) && (!that.isUsed(f) || !f.equals(this, that)))
+        for (long bits = usedFields; bits != 0; bits &= bits - 1) {
+            Field f = fields[Long.numberOfTrailingZeros(bits)];
+            if (!that.isUsed(f) || !f.equals(this, that))
                 return false;
         }
         return true;
@@ -796,15 +937,37 @@ public class FlowMatch {
     public int hashCode() {
         if (hashCode == 0) {
             int result = Longs.hashCode(usedFields);
-            for (Field f : fields) {
-                if (isUsed(f))
-                    result = 31 * result + f.hashCode(this);
+            for (long bits = usedFields; bits != 0; bits &= bits - 1) {
+                Field f = fields[Long.numberOfTrailingZeros(bits)];
+                result = 31 * result + f.hashCode(this);
             }
             hashCode = result;
         }
         return hashCode;
     }
 
+    /** Returns a 64-bit hash code over the used fields. It is cached like
+     *  hashCode(), but its bits are well distributed, so it can directly
+     *  index large open-addressing tables without further mixing.
+     */
+    public long longHashCode() {
+        if (longHashCode == 0) {
+            long result = usedFields;
+            for (long bits = usedFields; bits != 0; bits &= bits - 1) {
+                Field f = fields[Long.numberOfTrailingZeros(bits)];
+                result = 31 * result + f.hashCode(this);
+            }
+            // Finalization step of MurmurHash3's 64-bit variant
+            result ^= result >>> 33;
+            result *= 0xff51afd7ed558ccdL;
+            result ^= result >>> 33;
+            result *= 0xc4ceb9fe1a85ec53L;
+            result ^= result >>> 33;
+            longHashCode = result;
+        }
+        return longHashCode;
+    }
+
     /** Returns a hash code which only uses for its calculation fields that are
      *  part of a stateful L4 connection. This allows for  a consistent result
      *  across multiple matches that belong to the same connection.
@@ -833,6 +996,7 @@ public class FlowMatch {
 
     private void invalidateHashCode() {
         hashCode = 0;
+        longHashCode = 0L;
         connectionHash = 0;
     }
 
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of the FlowMatches that the upcalls of a datapath connection are
+ * read into. The matches are taken by the thread reading the upcalls and
+ * released, through their packets, by the threads processing them, once the
+ * flows of the packets are installed. When the pool runs out of matches, a
+ * new one is allocated, which the pool keeps when it's released if it has
+ * room for it.
+ *
+ * This class is thread-safe.
+ */
+public final class FlowMatchPool {
+
+    private final ArrayBlockingQueue<FlowMatch> matches;
+
+    public FlowMatchPool(int capacity) {
+        matches = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Takes a match from the pool, whose contents are those of its last use.
+     */
+    public FlowMatch take() {
+        FlowMatch match = matches.poll();
+        return match != null ? match : new FlowMatch();
+    }
+
+    /**
+     * Gives back a match to the pool, which must not be used afterwards.
+     */
+    public void release(FlowMatch match) {
+        matches.offer(match);
+    }
+
+    /**
+     * The number of matches ready to be taken.
+     */
+    public int available() {
+        return matches.size();
+    }
+}
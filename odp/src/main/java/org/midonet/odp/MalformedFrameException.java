@@ -0,0 +1,29 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp;
+
+/**
+ * Thrown when the frame of a {@link Packet} received from the kernel fails
+ * to parse, which only happens when its Ethernet is first asked for.
+ */
+public class MalformedFrameException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    public MalformedFrameException(Throwable cause) {
+        super("Malformed packet", cause);
+    }
+}
@@ -17,6 +17,7 @@ package org.midonet.odp;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Objects;
 
 import org.slf4j.Logger;
@@ -36,6 +37,10 @@ import org.midonet.packets.Ethernet;
  * {@link FlowMatch} object and a <code>byte[] data</code> member when triggered
  * via a kernel notification.
  *
+ * Packets received from the kernel keep their frame as is, and only parse it
+ * into an {@link Ethernet} when it is asked for, since the simulation of most
+ * packets only looks at the match built from the flow keys of the kernel.
+ *
  * @see FlowMatch
  */
 public class Packet {
@@ -51,6 +56,10 @@ public class Packet {
     private Long userData;
     private Reason reason;
     private Ethernet eth;
+    // The frame of the packet, until it is parsed into eth.
+    private byte[] frame;
+    // The pool the match was taken from, until it is released.
+    private FlowMatchPool matchPool;
 
     // user field used by midolman packet pipeline to track time statistics,
     // ignored in equals() and hashCode()
@@ -61,18 +70,82 @@ public class Packet {
         this.match = match;
     }
 
+    /**
+     * Creates a packet from the frame received from the kernel, which is
+     * parsed when the Ethernet of the packet is first asked for.
+     */
+    public Packet(byte[] frame, FlowMatch match) {
+        this(frame, match, null);
+    }
+
+    /**
+     * Creates a packet from the frame received from the kernel, whose match
+     * was taken from the given pool, and which is given back to it when the
+     * packet is released.
+     */
+    public Packet(byte[] frame, FlowMatch match, FlowMatchPool matchPool) {
+        this.frame = frame;
+        this.match = match;
+        this.matchPool = matchPool;
+    }
+
+    /**
+     * Returns the Ethernet of the packet, parsing its frame if needed.
+     *
+     * @throws MalformedFrameException if the frame is malformed.
+     */
     public Ethernet getEthernet() {
+        if (eth == null && frame != null) {
+            Ethernet parsed = new Ethernet();
+            try {
+                parsed.deserialize(ByteBuffer.wrap(frame));
+            } catch (Exception e) {
+                throw new MalformedFrameException(e);
+            }
+            eth = parsed;
+            frame = null;
+        }
         return eth;
     }
 
+    /**
+     * Whether the frame of the packet has been parsed.
+     */
+    public boolean isParsed() {
+        return frame == null;
+    }
+
     public byte[] getData() {
-        return eth.serialize();
+        // The Ethernet may be modified once parsed, as when mangling the
+        // payload of ICMP errors.
+        return frame != null ? frame : eth.serialize();
     }
 
     public FlowMatch getMatch() {
         return match;
     }
 
+    /**
+     * Keeps the match of the packet from going back to its pool, as when the
+     * packet is handed to several consumers, none of which knows whether the
+     * others are done with it.
+     */
+    public void retainMatch() {
+        matchPool = null;
+    }
+
+    /**
+     * Gives the match of the packet back to the pool it was taken from, if
+     * any, once the packet and its flow have been fully processed. Neither
+     * the packet nor its match may be used afterwards.
+     */
+    public void releaseMatch() {
+        if (matchPool != null) {
+            matchPool.release(match);
+            matchPool = null;
+        }
+    }
+
     public void setUserData(Long userData) {
         this.userData = userData;
     }
@@ -98,16 +171,28 @@ public class Packet {
         @SuppressWarnings("unchecked")
         Packet that = (Packet) o;
 
-        return Objects.equals(this.eth, that.eth)
-            && Objects.equals(this.match, that.match)
+        return Objects.equals(this.match, that.match)
             && Objects.equals(this.userData, that.userData)
-            && (this.reason == that.reason);
+            && (this.reason == that.reason)
+            && sameData(that);
+    }
+
+    /* Compares the packets without parsing their frames, which may be
+     * malformed: only the Ethernets of two parsed packets are compared. */
+    private boolean sameData(Packet that) {
+        if (this.frame == null && that.frame == null)
+            return Objects.equals(this.eth, that.eth);
+        if (this.frame != null && that.frame != null)
+            return Arrays.equals(this.frame, that.frame);
+        Packet parsed = this.frame == null ? this : that;
+        return parsed.eth != null
+            && Arrays.equals(this.getData(), that.getData());
     }
 
     @Override
     public int hashCode() {
-        int result = Objects.hashCode(eth);
-        result = 31 * result + Objects.hashCode(match);
+        // The data is left out, as it may be parsed or not in equal packets.
+        int result = Objects.hashCode(match);
         result = 31 * result + Objects.hashCode(userData);
         result = 31 * result + Objects.hashCode(reason);
         return result;
@@ -116,7 +201,7 @@ public class Packet {
     @Override
     public String toString() {
         return "Packet{" +
-            "data=" + eth +
+            "data=" + (frame != null ? frame.length + " bytes" : eth) +
             ", match=" + match +
             ", userData=" + userData +
             ", reason=" + reason +
@@ -16,7 +16,6 @@
 package org.midonet.odp.protos;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -38,6 +37,7 @@ import org.midonet.odp.DpPort;
 import org.midonet.odp.Flow;
 import org.midonet.odp.FlowMask;
 import org.midonet.odp.FlowMatch;
+import org.midonet.odp.FlowMatchPool;
 import org.midonet.odp.OpenVSwitch;
 import org.midonet.odp.OvsNetlinkFamilies;
 import org.midonet.odp.OvsProtocol;
@@ -71,23 +71,52 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         packetFamily = ovsNetlinkFamilies.packetFamily();
     }
 
+    /**
+     * Builds the packets of the upcalls from the kernel. The frame of the
+     * packet is copied as is, and only parsed when the packet is simulated
+     * by a device that looks past the flow match, or when the flow keys of
+     * the packet need to be completed in userspace.
+     */
     static class PacketBuilder implements AttributeHandler {
-        private ArrayList<FlowKey> keys = new ArrayList<>(16);
-        private Ethernet eth;
+        // Enough matches for the packets of the upcalls being processed.
+        private static final int POOLED_MATCHES = 1024;
+
+        private final FlowMatchPool matches =
+            new FlowMatchPool(POOLED_MATCHES);
+        private FlowMatch match;
+        private byte[] frame;
         private Long userData;
 
         public Packet buildFrom(ByteBuffer buf) {
             int datapathIndex = buf.getInt(); // ignored
+            match = matches.take();
+            match.clear();
             NetlinkMessage.scanAttributes(buf, this);
-            if (eth == null) {
-                keys.clear();
+            FlowMatch fmatch = match;
+            match = null;
+            if (frame == null) {
+                matches.release(fmatch);
+                userData = null;
                 return null;
             }
-            FlowKeys.addUserspaceKeys(eth, keys);
-            Packet p = new Packet(eth, new FlowMatch(keys));
-            p.setUserData(userData);
-            eth = null;
-            keys.clear();
+            Packet p = null;
+            if (fmatch.needsUserspaceKeys()) {
+                try {
+                    Ethernet eth = new Ethernet();
+                    eth.deserialize(ByteBuffer.wrap(frame));
+                    ArrayList<FlowKey> keys = fmatch.getKeys();
+                    FlowKeys.addUserspaceKeys(eth, keys);
+                    p = new Packet(eth, new FlowMatch(keys));
+                } catch (Exception e) {
+                    log.warn("Dropping malformed packet", e);
+                }
+                matches.release(fmatch);
+            } else {
+                p = new Packet(frame, fmatch, matches);
+            }
+            if (p != null)
+                p.setUserData(userData);
+            frame = null;
             userData = null;
             return p;
         }
@@ -96,20 +125,12 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         public void use(ByteBuffer buffer, short id) {
             switch(NetlinkMessage.unnest(id)) {
                 case OpenVSwitch.Packet.Attr.Packet:
-                    ByteOrder originalOrder = buffer.order();
-                    try {
-                        eth = new Ethernet();
-                        eth.deserialize(buffer);
-                    } catch (Exception e) {
-                        log.warn("Dropping malformed packet", e);
-                        this.eth = null;
-                    } finally {
-                        buffer.order(originalOrder);
-                    }
+                    frame = new byte[buffer.remaining()];
+                    buffer.get(frame);
                     break;
 
                 case OpenVSwitch.Packet.Attr.Key:
-                    FlowKeys.buildFrom(buffer, keys);
+                    match.deserializeFrom(buffer);
                     break;
 
                 case OpenVSwitch.Packet.Attr.Userdata:
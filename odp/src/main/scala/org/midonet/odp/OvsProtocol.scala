@@ -19,7 +19,7 @@ package org.midonet.odp
 import java.nio.ByteBuffer
 import java.util.{List => JList}
 
-import org.midonet.netlink.{NLFlag, NetlinkMessage, NetlinkMessageWrapper, NetlinkRequestContext}
+import org.midonet.netlink.{NLFlag, NetlinkMessage, NetlinkMessageWrapper, NetlinkRequestContext, NetlinkSerializable}
 import org.midonet.odp.flows.{FlowAction, FlowActions, FlowKey, FlowKeys}
 
 /**
@@ -129,7 +129,7 @@ sealed class OvsProtocol(pid: Int,
 
         val message = messageFor(buf, datapathId, flowFamily.contextGet)
             .withFlags(NLFlag.REQUEST)
-        NetlinkMessage.writeAttrSeq(buf, Attr.Key, fmatch.getKeys, FlowKeys.writer)
+        writeKeys(buf, Attr.Key, fmatch)
         message.finalize(pid)
     }
 
@@ -137,13 +137,42 @@ sealed class OvsProtocol(pid: Int,
         enum(buf, datapathId, flowFamily.contextGet)
 
     def prepareFlowCreate(datapathId: Int, keys: JList[FlowKey],
-                          actions: JList[FlowAction], flowMask: FlowMask,
+                          actions: JList[FlowAction],
+                          flowMask: NetlinkSerializable,
                           buf: ByteBuffer, nlFlags: Short = 0): Unit = {
         import org.midonet.odp.OpenVSwitch.Flow.Attr
 
-        val message = messageFor(buf, datapathId, flowFamily.contextNew)
-            .withFlags((nlFlags | NLFlag.REQUEST | NLFlag.New.CREATE).toShort)
+        val message = flowCreateFor(buf, datapathId, nlFlags)
         NetlinkMessage.writeAttrSeq(buf, Attr.Key, keys, FlowKeys.writer)
+        finalizeFlowCreate(message, actions, flowMask, buf)
+    }
+
+    /**
+     * Prepares the creation of a flow with the keys of the given match, which
+     * is left unchanged.
+     */
+    def prepareFlowCreate(datapathId: Int, fmatch: FlowMatch,
+                          actions: JList[FlowAction],
+                          flowMask: NetlinkSerializable,
+                          buf: ByteBuffer): Unit = {
+        import org.midonet.odp.OpenVSwitch.Flow.Attr
+
+        val message = flowCreateFor(buf, datapathId, 0)
+        writeKeys(buf, Attr.Key, fmatch)
+        finalizeFlowCreate(message, actions, flowMask, buf)
+    }
+
+    private def flowCreateFor(buf: ByteBuffer, datapathId: Int,
+                              nlFlags: Short) =
+        messageFor(buf, datapathId, flowFamily.contextNew)
+            .withFlags((nlFlags | NLFlag.REQUEST | NLFlag.New.CREATE).toShort)
+
+    private def finalizeFlowCreate(message: NetlinkMessageWrapper,
+                                   actions: JList[FlowAction],
+                                   flowMask: NetlinkSerializable,
+                                   buf: ByteBuffer): Unit = {
+        import org.midonet.odp.OpenVSwitch.Flow.Attr
+
         // the actions list is allowed to be empty (drop flow). Nevertheless the
         // actions nested attribute header needs to be written otherwise the
         // datapath will answer back with EINVAL
@@ -160,7 +189,7 @@ sealed class OvsProtocol(pid: Int,
 
         val message = messageFor(buf, datapathId, flowFamily.contextSet)
             .withFlags(NLFlag.REQUEST | NLFlag.ECHO)
-        NetlinkMessage.writeAttrSeq(buf, Attr.Key, flow.getMatch.getKeys, FlowKeys.writer)
+        writeKeys(buf, Attr.Key, flow.getMatch)
         // the actions list is allowed to be empty (drop flow). Nevertheless the
         // actions nested attribute header needs to be written otherwise the
         // datapath will answer back with EINVAL
@@ -181,6 +210,20 @@ sealed class OvsProtocol(pid: Int,
         message.finalize(pid)
     }
 
+    /**
+     * Prepares the deletion of the flow with the keys of the given match,
+     * which is left unchanged.
+     */
+    def prepareFlowDelete(datapathId: Int, fmatch: FlowMatch,
+                          buf: ByteBuffer): Unit = {
+        import org.midonet.odp.OpenVSwitch.Flow.Attr
+
+        val message = messageFor(buf, datapathId, flowFamily.contextDel)
+            .withFlags(NLFlag.REQUEST | NLFlag.ECHO)
+        writeKeys(buf, Attr.Key, fmatch)
+        message.finalize(pid)
+    }
+
     def prepareFlowFlush(datapathId: Int, buf: ByteBuffer): Unit = {
         val message = messageFor(buf, datapathId, flowFamily.contextDel)
             .withFlags(NLFlag.REQUEST | NLFlag.ACK)
@@ -198,10 +241,17 @@ sealed class OvsProtocol(pid: Int,
         // datapathId. I examined the ByteBuffers constructed with that
         // ordering of attributes and compared it to this one, and found
         // only the expected difference.
-        NetlinkMessage.writeAttrSeq(buf, Attr.Key, packet.getMatch.getKeys, FlowKeys.writer)
+        writeKeys(buf, Attr.Key, packet.getMatch)
         NetlinkMessage.writeAttrSeq(buf, Attr.Actions, actions, FlowActions.writer)
-        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet.getEthernet.serialize())
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet.getData)
 
         message.finalize(pid)
     }
+
+    private def writeKeys(buf: ByteBuffer, id: Short, fmatch: FlowMatch): Unit = {
+        val start = buf.position()
+        NetlinkMessage.setAttrHeader(buf, NetlinkMessage.nested(id), 0)
+        val nbytes = 4 + fmatch.serializeKeysInto(buf)
+        buf.putShort(start, nbytes.toShort)
+    }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.odp.protos
+
+import java.nio.ByteBuffer
+import java.util.ArrayList
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import org.midonet.netlink.{BytesUtil, NetlinkMessage}
+import org.midonet.odp.OpenVSwitch.Packet.Attr
+import org.midonet.odp.{FlowMatch, Packet}
+import org.midonet.odp.flows.{FlowKey, FlowKeys}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+
+object UpcallBenchmark {
+    // Mostly TCP traffic, along with some UDP, ICMP and ARP.
+    def corpus: Seq[Ethernet] = {
+        def l2 = { eth src MAC.random() dst MAC.random() }
+        def l3 = l2 << { ip4 src IPv4Addr.random dst IPv4Addr.random }
+        val (srcMac, srcIp, dstIp) =
+            (MAC.random(), IPv4Addr.random, IPv4Addr.random)
+        Seq.fill(12) {
+            (l3 << { tcp src 4000 dst 80 } << payload("x" * 512)).packet
+        } ++ Seq.fill(2) {
+            (l3 << { udp src 4000 dst 53 } << payload("x" * 64)).packet
+        } ++ Seq(
+            (l3 << { icmp.echo.request.id(1).seq(1) }).packet,
+            (l2 << { arp.req mac srcMac -> eth_bcast ip srcIp --> dstIp })
+                .packet)
+    }
+}
+
+/**
+ * Measures building the packets of kernel upcalls, with and without parsing
+ * their frames, and reading their flow keys into matches, either through a
+ * list of keys or straight into a recycled match.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class UpcallBenchmark {
+    val builder = new OvsDatapathConnectionImpl.PacketBuilder()
+    var upcalls: Array[ByteBuffer] = _
+    var keys: Array[ByteBuffer] = _
+    var next = 0
+    val fmatch = new FlowMatch()
+
+    @Setup
+    def createUpcalls(): Unit = {
+        upcalls = UpcallBenchmark.corpus.map { eth =>
+            val buf = BytesUtil.instance.allocate(2 * 1024)
+            buf.putInt(0) // datapath index
+            NetlinkMessage.writeRawAttribute(buf, Attr.Packet, eth.serialize())
+            NetlinkMessage.writeAttrSeq(buf, Attr.Key,
+                                        FlowKeys.fromEthernetPacket(eth),
+                                        FlowKeys.writer)
+            buf.flip()
+            buf
+        }.toArray
+        keys = UpcallBenchmark.corpus.map { eth =>
+            val buf = BytesUtil.instance.allocate(1024)
+            val it = FlowKeys.fromEthernetPacket(eth).iterator()
+            while (it.hasNext) {
+                NetlinkMessage.writeAttr(buf, it.next(), FlowKeys.writer)
+            }
+            buf.flip()
+            buf
+        }.toArray
+    }
+
+    private def nextUpcall(): ByteBuffer = nextOf(upcalls)
+
+    private def nextOf(bufs: Array[ByteBuffer]): ByteBuffer = {
+        val buf = bufs(next)
+        next = (next + 1) % bufs.length
+        buf.rewind()
+        buf
+    }
+
+    @Benchmark
+    def buildPacket(): Packet =
+        builder.buildFrom(nextUpcall())
+
+    @Benchmark
+    def buildAndParsePacket(): Ethernet =
+        builder.buildFrom(nextUpcall()).getEthernet
+
+    @Benchmark
+    def buildAndReleasePacket(): Packet = {
+        val packet = builder.buildFrom(nextUpcall())
+        packet.releaseMatch()
+        packet
+    }
+
+    @Benchmark
+    def buildKeysAndMatch(): FlowMatch = {
+        val list = new ArrayList[FlowKey]()
+        FlowKeys.buildFrom(nextOf(keys), list)
+        new FlowMatch(list)
+    }
+
+    @Benchmark
+    def deserializeMatch(): FlowMatch =
+        fmatch.deserializeFrom(nextOf(keys))
+}
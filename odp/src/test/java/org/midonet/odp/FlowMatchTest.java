@@ -16,13 +16,17 @@
 
 package org.midonet.odp.flows;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import org.midonet.netlink.BytesUtil;
+import org.midonet.netlink.NetlinkMessage;
 import org.midonet.odp.FlowMatch;
 import org.midonet.odp.FlowMatches;
 import org.midonet.packets.Ethernet;
@@ -30,6 +34,7 @@ import org.midonet.packets.ICMP;
 import org.midonet.packets.IPv4;
 import org.midonet.packets.IPv4Addr;
 import org.midonet.packets.MAC;
+import org.midonet.packets.TCP;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
@@ -45,6 +50,8 @@ import static org.midonet.odp.flows.FlowKeys.tcp;
 import static org.midonet.odp.flows.FlowKeys.icmp;
 import static org.midonet.odp.flows.FlowKeys.icmpEcho;
 import static org.midonet.odp.flows.FlowKeys.icmpError;
+import static org.midonet.odp.flows.FlowKeys.inPort;
+import static org.midonet.odp.flows.FlowKeys.tunnel;
 
 public class FlowMatchTest {
 
@@ -414,4 +421,100 @@ public class FlowMatchTest {
         m.getNetworkTTL();
         assertEquals(m.highestLayerSeen(), 4);
     }
+
+    private List<FlowKey> tcpKeys(int dstPort, long tunnelId) {
+        List<FlowKey> keys = new ArrayList<>();
+        keys.add(inPort(3));
+        if (tunnelId != 0)
+            keys.add(tunnel(tunnelId, 0x0a000001, 0x0a000002, (byte) 0));
+        keys.add(FlowKeys.ethernet(MAC.random().getAddress(),
+                                   MAC.random().getAddress()));
+        keys.add(FlowKeys.etherType(IPv4.ETHERTYPE));
+        keys.add(FlowKeys.ipv4(0x0a000001, 0x0a000002, TCP.PROTOCOL_NUMBER,
+                               (byte) 0, (byte) 64, (byte) 0));
+        keys.add(tcp(1234, dstPort));
+        return keys;
+    }
+
+    private ByteBuffer serialize(List<FlowKey> keys) {
+        ByteBuffer buf = BytesUtil.instance.allocate(1024);
+        for (FlowKey key : keys) {
+            NetlinkMessage.writeAttr(buf, key, FlowKeys.writer);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Test
+    public void testDeserializeFrom() {
+        List<FlowKey> keys = tcpKeys(80, 42L);
+        ByteBuffer buf = serialize(keys);
+        FlowMatch m = new FlowMatch().deserializeFrom(buf);
+
+        assertEquals(0, buf.position());
+        assertEquals(new FlowMatch(keys), m);
+        assertEquals(42L, m.getTunnelKey());
+        assertEquals(80, m.getDstPort());
+        assertFalse(m.needsUserspaceKeys());
+        assertEquals(keys, m.getKeys());
+    }
+
+    @Test
+    public void testDeserializeFromReusesKeys() {
+        FlowMatch m = new FlowMatch();
+        m.deserializeFrom(serialize(tcpKeys(80, 42L)));
+
+        List<FlowKey> keys = tcpKeys(22, 0L);
+        m.deserializeFrom(serialize(keys));
+        assertEquals(new FlowMatch(keys), m);
+        assertFalse(m.isUsed(FlowMatch.Field.TunnelKey));
+        assertEquals(keys, m.getKeys());
+    }
+
+    @Test
+    public void testSerializeKeysAsDeserialized() {
+        List<FlowKey> keys = tcpKeys(80, 42L);
+        ByteBuffer expected = serialize(keys);
+        FlowMatch m = new FlowMatch().deserializeFrom(expected);
+
+        ByteBuffer buf = BytesUtil.instance.allocate(1024);
+        assertEquals(expected.remaining(), m.serializeKeysInto(buf));
+        buf.flip();
+        assertEquals(expected, buf);
+
+        // Once asked for, the keys are serialized instead.
+        m.getKeys().add(inPort(4));
+        buf.clear();
+        m.serializeKeysInto(buf);
+        buf.flip();
+        ArrayList<FlowKey> serialized = new ArrayList<>();
+        FlowKeys.buildFrom(buf, serialized);
+        assertEquals(inPort(4), serialized.get(serialized.size() - 1));
+    }
+
+    @Test
+    public void testResetCopiesDeserializedKeys() {
+        List<FlowKey> keys = tcpKeys(80, 42L);
+        FlowMatch m = new FlowMatch().deserializeFrom(serialize(keys));
+        FlowMatch copy = new FlowMatch();
+        copy.reset(m);
+
+        m.deserializeFrom(serialize(tcpKeys(22, 0L)));
+        assertEquals(new FlowMatch(keys), copy);
+        assertEquals(keys, copy.getKeys());
+    }
+
+    @Test
+    public void testDeserializeIcmpNeedsUserspaceKeys() {
+        List<FlowKey> keys = new ArrayList<>(Arrays.<FlowKey>asList(
+            FlowKeys.etherType(IPv4.ETHERTYPE),
+            FlowKeys.ipv4(0x0a000001, 0x0a000002, ICMP.PROTOCOL_NUMBER,
+                          (byte) 0, (byte) 64, (byte) 0),
+            icmp(ICMP.TYPE_ECHO_REQUEST, ICMP.CODE_NONE)));
+        FlowMatch m = new FlowMatch().deserializeFrom(serialize(keys));
+        assertTrue(m.needsUserspaceKeys());
+
+        m.addKey(icmpEcho(ICMP.TYPE_ECHO_REQUEST, ICMP.CODE_NONE, (short) 1));
+        assertFalse(m.needsUserspaceKeys());
+    }
 }
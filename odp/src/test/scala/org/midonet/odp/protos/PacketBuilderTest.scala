@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.odp.protos
+
+import java.nio.ByteBuffer
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.netlink.{BytesUtil, NetlinkMessage}
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.OpenVSwitch.Packet.Attr
+import org.midonet.odp.flows.{FlowKey, FlowKeys}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+
+@RunWith(classOf[JUnitRunner])
+class PacketBuilderTest extends FeatureSpec with Matchers {
+
+    val buf = BytesUtil.instance.allocate(4 * 1024)
+
+    def upcall(frame: Array[Byte], keys: java.util.List[FlowKey],
+               userData: Long = 0L): ByteBuffer = {
+        buf.clear()
+        buf.putInt(42) // datapath index
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, frame)
+        NetlinkMessage.writeAttrSeq(buf, Attr.Key, keys, FlowKeys.writer)
+        if (userData != 0L)
+            NetlinkMessage.writeLongAttr(buf, Attr.Userdata, userData)
+        buf.flip()
+        buf
+    }
+
+    def build(upcall: ByteBuffer) =
+        new OvsDatapathConnectionImpl.PacketBuilder().buildFrom(upcall)
+
+    def tcpFrame: Ethernet =
+        ({ eth src MAC.random() dst MAC.random() } <<
+         { ip4 src IPv4Addr.random dst IPv4Addr.random } <<
+         { tcp src 1234 dst 80 } <<
+         payload("payload")).packet
+
+    feature("Upcall frames are parsed lazily") {
+        scenario("The frame of a TCP packet is not parsed") {
+            val pkt = tcpFrame
+            val frame = pkt.serialize()
+            val packet = build(
+                upcall(frame, FlowKeys.fromEthernetPacket(pkt), 7L))
+
+            packet.isParsed shouldBe false
+            packet.getUserData shouldBe 7L
+            packet.getMatch.getDstPort shouldBe 80
+            packet.getData should be (frame)
+
+            packet.getEthernet should be (pkt)
+            packet.isParsed shouldBe true
+            packet.getData should be (frame)
+        }
+
+        scenario("The frame of an ICMP packet completes its flow keys") {
+            val echo: Ethernet =
+                ({ eth src MAC.random() dst MAC.random() } <<
+                 { ip4 src IPv4Addr.random dst IPv4Addr.random } <<
+                 { icmp.echo.request.id(17).seq(3) }).packet
+            val packet = build(
+                upcall(echo.serialize(), FlowKeys.fromEthernetPacket(echo)))
+
+            packet.isParsed shouldBe true
+            packet.getData should be (echo.serialize())
+            packet.getMatch.getIcmpIdentifier shouldBe 17
+        }
+
+        scenario("Malformed frames fail when parsed") {
+            val pkt = tcpFrame
+            val frame = pkt.serialize().take(10)
+            val packet = build(upcall(frame, FlowKeys.fromEthernetPacket(pkt)))
+
+            packet.isParsed shouldBe false
+            an [IllegalArgumentException] should be thrownBy packet.getEthernet
+        }
+
+        scenario("Packets are compared without parsing their frames") {
+            val pkt = tcpFrame
+            val keys = FlowKeys.fromEthernetPacket(pkt)
+            val malformed = pkt.serialize().take(10)
+            val packet = build(upcall(malformed, keys))
+
+            packet shouldBe build(upcall(malformed, keys))
+            packet.hashCode shouldBe build(upcall(malformed, keys)).hashCode
+            packet should not be build(upcall(pkt.serialize(), keys))
+            packet.isParsed shouldBe false
+
+            val parsed = build(upcall(pkt.serialize(), keys))
+            val unparsed = build(upcall(pkt.serialize(), keys))
+            parsed.getEthernet
+            parsed shouldBe unparsed
+            parsed.hashCode shouldBe unparsed.hashCode
+        }
+
+        scenario("Upcalls without a frame are ignored") {
+            buf.clear()
+            buf.putInt(42)
+            NetlinkMessage.writeAttrSeq(buf, Attr.Key,
+                                        FlowKeys.fromEthernetPacket(tcpFrame),
+                                        FlowKeys.writer)
+            buf.flip()
+            build(buf) shouldBe null
+        }
+    }
+
+    feature("Upcall matches are pooled") {
+        scenario("A released match is reused for a later upcall") {
+            val builder = new OvsDatapathConnectionImpl.PacketBuilder()
+            val first = builder.buildFrom(
+                upcall(tcpFrame.serialize(),
+                       FlowKeys.fromEthernetPacket(tcpFrame)))
+            val fmatch = first.getMatch
+            first.releaseMatch()
+
+            val pkt = tcpFrame
+            val keys = FlowKeys.fromEthernetPacket(pkt)
+            val second = builder.buildFrom(upcall(pkt.serialize(), keys))
+            second.getMatch should be theSameInstanceAs fmatch
+            second.getMatch shouldBe new FlowMatch(keys)
+            second.getMatch.getKeys shouldBe keys
+        }
+
+        scenario("A retained match is not reused") {
+            val builder = new OvsDatapathConnectionImpl.PacketBuilder()
+            val pkt = tcpFrame
+            val keys = FlowKeys.fromEthernetPacket(pkt)
+            val first = builder.buildFrom(upcall(pkt.serialize(), keys))
+            first.retainMatch()
+            first.releaseMatch()
+
+            val second = builder.buildFrom(
+                upcall(tcpFrame.serialize(),
+                       FlowKeys.fromEthernetPacket(tcpFrame)))
+            second.getMatch should not be theSameInstanceAs (first.getMatch)
+            first.getMatch shouldBe new FlowMatch(keys)
+        }
+    }
+}